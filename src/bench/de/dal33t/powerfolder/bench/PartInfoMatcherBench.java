@@ -0,0 +1,275 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.dal33t.powerfolder.util.RingBuffer;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
+import de.dal33t.powerfolder.util.delta.MatchInfo;
+import de.dal33t.powerfolder.util.delta.PartInfo;
+import de.dal33t.powerfolder.util.delta.PartInfoMatcher;
+import de.dal33t.powerfolder.util.delta.RollingAdler32;
+import de.dal33t.powerfolder.util.delta.RollingChecksum;
+
+/**
+ * Compares the delta sync matcher with the previous implementation, which
+ * used a HashMap of boxed checksums, a modulo heavy rolling checksum and slid
+ * over the data byte by byte.
+ * <p>
+ * A record is built for 64 MB of random data. It is matched against a copy
+ * with a few bytes inserted every 100000 bytes and against unrelated data,
+ * where the matcher has to slide over every byte. The result is the best of
+ * three runs in milliseconds.
+ */
+public class PartInfoMatcherBench extends Bench {
+
+    private static final int DATA_SIZE = 64 * 1024 * 1024;
+    private static final int PART_SIZE = 4096;
+    private static final int RUNS = 3;
+
+    private final FilePartsRecord record;
+    private final byte[] modified;
+    private final byte[] unrelated;
+
+    public static void main(String[] args) throws Exception {
+        PartInfoMatcherBench bench = new PartInfoMatcherBench();
+        bench.run();
+    }
+
+    public PartInfoMatcherBench() throws Exception {
+        Random r = new Random(1);
+        byte[] data = new byte[DATA_SIZE];
+        r.nextBytes(data);
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new RollingAdler32(PART_SIZE), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), PART_SIZE);
+        builder.update(data);
+        record = builder.getRecord();
+
+        int step = 100000;
+        int insert = 7;
+        modified = new byte[data.length + (data.length / step + 1) * insert];
+        int w = 0;
+        for (int i = 0; i < data.length; i += step) {
+            int len = Math.min(step, data.length - i);
+            System.arraycopy(data, i, modified, w, len);
+            w += len + insert;
+        }
+        unrelated = new byte[DATA_SIZE];
+        r.nextBytes(unrelated);
+    }
+
+    protected boolean winnerIsGreatest() {
+        return false;
+    }
+
+    protected Map<String, Comparable> getResults() {
+        HashMap<String, Comparable> map = new HashMap<String, Comparable>();
+        try {
+            map.put("Old implementation, modified data", best(false, modified));
+            map.put("New implementation, modified data", best(true, modified));
+            map.put("Old implementation, unrelated data",
+                best(false, unrelated));
+            map.put("New implementation, unrelated data",
+                best(true, unrelated));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return map;
+    }
+
+    private Comparable best(boolean newImpl, byte[] data) throws Exception {
+        long best = Long.MAX_VALUE;
+        int matches = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.currentTimeMillis();
+            matches = newImpl ? matchNew(data) : matchOld(data);
+            best = Math.min(best, System.currentTimeMillis() - start);
+        }
+        System.out.println((newImpl ? "New" : "Old") + " implementation found "
+            + matches + " of " + record.getInfos().length + " parts");
+        return best;
+    }
+
+    private int matchNew(byte[] data) throws Exception {
+        PartInfoMatcher matcher = new PartInfoMatcher(new ByteArrayInputStream(
+            data), new RollingAdler32(PART_SIZE), MessageDigest
+            .getInstance("SHA-256"), record.getInfos());
+        int matches = 0;
+        while (matcher.nextMatch() != null) {
+            matches++;
+        }
+        return matches;
+    }
+
+    private int matchOld(byte[] data) throws Exception {
+        LegacyPartInfoMatcher matcher = new LegacyPartInfoMatcher(
+            new ByteArrayInputStream(data), new LegacyRollingAdler32(PART_SIZE),
+            MessageDigest.getInstance("SHA-256"), record.getInfos());
+        int matches = 0;
+        while (matcher.nextMatch() != null) {
+            matches++;
+        }
+        return matches;
+    }
+
+    /**
+     * The matching loop of the previous PartInfoMatcher.
+     */
+    private static class LegacyPartInfoMatcher extends FilterInputStream {
+        private static final int BUFFER_SIZE = 16384;
+        private final RollingChecksum chksum;
+        private final MessageDigest digester;
+        private final RingBuffer rbuf;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private final Map<Long, List<PartInfo>> partCache = new HashMap<Long, List<PartInfo>>();
+        private final byte[] dbuf;
+
+        private long pos;
+
+        LegacyPartInfoMatcher(InputStream in, RollingChecksum chksum,
+            MessageDigest digester, PartInfo[] partInfos)
+        {
+            super(in);
+            this.chksum = chksum;
+            this.digester = digester;
+            rbuf = new RingBuffer(chksum.getFrameSize());
+            dbuf = new byte[chksum.getFrameSize()];
+            for (PartInfo info : partInfos) {
+                List<PartInfo> pList = partCache.get(info.getChecksum());
+                if (pList == null) {
+                    partCache.put(info.getChecksum(),
+                        pList = new LinkedList<PartInfo>());
+                }
+                pList.add(info);
+            }
+        }
+
+        MatchInfo nextMatch() throws IOException {
+            int rem = rbuf.remaining();
+            while (rem > 0) {
+                int read = read(buf, 0, Math.min(rem, BUFFER_SIZE));
+                if (read == -1) {
+                    break;
+                }
+                pos += read;
+                rem -= read;
+                chksum.update(buf, 0, read);
+                rbuf.write(buf, 0, read);
+            }
+            while (rbuf.remaining() == 0) {
+                List<PartInfo> lookup = partCache.get(chksum.getValue());
+                if (lookup != null) {
+                    rbuf.peek(dbuf, 0, chksum.getFrameSize());
+                    byte[] digest = digester.digest(dbuf);
+                    for (PartInfo info : lookup) {
+                        if (Arrays.equals(digest, info.getDigest())) {
+                            MatchInfo retval = new MatchInfo(info, pos
+                                - chksum.getFrameSize());
+                            rbuf.reset();
+                            return retval;
+                        }
+                    }
+                }
+                rbuf.skip(1);
+                int data = read();
+                if (data == -1) {
+                    break;
+                }
+                pos++;
+                rbuf.write(data);
+                chksum.update(data);
+            }
+            // Partial last part ignored, irrelevant for the comparison
+            return null;
+        }
+    }
+
+    /**
+     * The previous RollingAdler32.
+     */
+    private static class LegacyRollingAdler32 implements RollingChecksum {
+        private final static int MOD_ADLER = 65521;
+        private final RingBuffer rbuf;
+        private final int n;
+        private int A = 1, B;
+
+        LegacyRollingAdler32(int n) {
+            rbuf = new RingBuffer(n);
+            this.n = n;
+        }
+
+        public void update(int nd) {
+            int fb = 0;
+            nd &= 0xff;
+            if (rbuf.remaining() == 0) {
+                fb = rbuf.read();
+                B--;
+            }
+            rbuf.write(nd);
+            A = A + nd - fb;
+            if (A < 0) {
+                A += MOD_ADLER;
+            } else if (A >= MOD_ADLER) {
+                A -= MOD_ADLER;
+            }
+            B = (B + A - n * fb) % MOD_ADLER;
+            if (B < 0) {
+                B += MOD_ADLER;
+            }
+        }
+
+        public void update(byte[] data) {
+            update(data, 0, data.length);
+        }
+
+        public void update(byte[] data, int ofs, int len) {
+            for (; len > 0; len--) {
+                update(data[ofs++]);
+            }
+        }
+
+        public void reset() {
+            A = 1;
+            B = 0;
+            rbuf.reset();
+        }
+
+        public int getFrameSize() {
+            return n;
+        }
+
+        public long getValue() {
+            return ((long) B << 16) | A;
+        }
+    }
+}
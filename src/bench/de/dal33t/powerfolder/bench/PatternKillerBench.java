@@ -19,36 +19,35 @@
 */
 package de.dal33t.powerfolder.bench;
 
-import de.dal33t.powerfolder.util.PatternMatch;
-import de.dal33t.powerfolder.util.CompilingPatternMatch;
-
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.util.pattern.Pattern;
+import de.dal33t.powerfolder.util.pattern.PatternFactory;
+import de.dal33t.powerfolder.util.pattern.PatternMatcher;
 
 /**
- * This is a bench test to performance test pattern matching with long * chains.
- * The original implementation does not handle these well, because of
- * exponential depth processing. The new implementation has a linear
- * implementation.
- *
- * The test loops 1000 times over the string for the pattern.
- *
- * The first run uses the existing PatternMatch.isMatch() method.
- *
- * The second run pre-compiles the pattern, then tests with check string.
- * Note that the compile time is not included in the run time.
+ * Worst case for glob patterns: Many stars and texts that almost match.
  */
 public class PatternKillerBench extends Bench {
 
+    private static final int RUNS = 100000;
+
     /** Check strings */
     private static final String[] CHECK_STRINGS = {
-            "aaaaaaaaaaaaaaaaaaaaaaaaaab"
+            "aaaaaaaaaaaaaaaaaaaaaaaaaab",
+            "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaab",
+            "dir/aaaaaaaaaaaaaaaaaaaaaaaaaab"
     };
 
     /** Patterns, with many '*' characters */
     private static final String[] PATTERN_STRINGS = {
-            "a*a*a*a*a"
+            "a*a*a*a*ac",
+            "a*a*a*a*a*a*a*a*ad",
+            "*a*b*a*b*a*",
+            "dir/a*a*a*a*ae"
     };
 
     /**
@@ -77,50 +76,44 @@ public class PatternKillerBench extends Bench {
      */
     protected Map<String, Comparable> getResults() {
         HashMap<String, Comparable> map = new HashMap<String, Comparable>();
-        map.put("Old implementation", doOldRun());
-        map.put("New implementation", doNewRun());
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String patternString : PATTERN_STRINGS) {
+            patterns.add(PatternFactory.createPattern(patternString));
+        }
+        // Warm up
+        doPatternsRun(patterns);
+        doMatcherRun(patterns);
+        map.put("Patterns one by one", doPatternsRun(patterns));
+        map.put("PatternMatcher", doMatcherRun(patterns));
         return map;
     }
 
     /**
      * Iterate the check strings and the patterns and do matching.
      *
-     * @return
-     *          the run time in milliseconds.
+     * @return the run time in milliseconds.
      */
-    private static Comparable doOldRun() {
-
-        // Iterate test
-        Date start = new Date();
-        for (int i = 0; i < 1000; i++) {
+    private static Comparable doPatternsRun(List<Pattern> patterns) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < RUNS; i++) {
             for (String checkString : CHECK_STRINGS) {
-                for (String patternString : PATTERN_STRINGS) {
-                    PatternMatch.isMatch(checkString, patternString);
+                for (Pattern pattern : patterns) {
+                    pattern.isMatch(checkString);
                 }
             }
         }
-        Date end = new Date();
-        return end.getTime() - start.getTime();
+        return System.currentTimeMillis() - start;
     }
 
-    private static Comparable doNewRun() {
-        CompilingPatternMatch[] patterns = new CompilingPatternMatch[PATTERN_STRINGS.length];
-        for (int i = 0; i < PATTERN_STRINGS.length; i++) {
-            String modifiedPattern = PATTERN_STRINGS[i];
-            patterns[i] = new CompilingPatternMatch(modifiedPattern);
-        }
-
-        // Iterate test
-        Date start = new Date();
-        for (int i = 0; i < 1000; i++) {
+    private static Comparable doMatcherRun(List<Pattern> patterns) {
+        long start = System.currentTimeMillis();
+        PatternMatcher matcher = new PatternMatcher(patterns);
+        for (int i = 0; i < RUNS; i++) {
             for (String checkString : CHECK_STRINGS) {
-                for (CompilingPatternMatch pattern : patterns) {
-                    pattern.isMatch(checkString);
-                }
+                matcher.isMatch(checkString);
             }
         }
-        Date end = new Date();
-        return end.getTime() - start.getTime();
+        return System.currentTimeMillis() - start;
     }
 
-}
\ No newline at end of file
+}
@@ -19,53 +19,80 @@
 */
 package de.dal33t.powerfolder.bench;
 
-import de.dal33t.powerfolder.util.PatternMatch;
-import de.dal33t.powerfolder.util.CompilingPatternMatch;
-
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.dal33t.powerfolder.util.pattern.DefaultExcludes;
+import de.dal33t.powerfolder.util.pattern.Pattern;
+import de.dal33t.powerfolder.util.pattern.PatternFactory;
+import de.dal33t.powerfolder.util.pattern.PatternMatcher;
 
 /**
- * This is a bench test to see if we can get better performance using a
- * compiled regex matcher over the existing implementation.
- *
- * The test loops 1000 times over 10 check strings over 10 patterns.
- *
- * The first run uses the existing PatternMatch.isMatch() method.
- *
- * The second run pre-compiles the patterns, then tests with those.
- * Note that the compile time is not included in the run time.
+ * Compares matching every pattern one after another with the compiled
+ * {@link PatternMatcher} on a folder with a few hundred ignore patterns.
  */
 public class PatternMatchBench extends Bench {
 
-    /** Ten check strings */
-    private static final String[] CHECK_STRINGS = {
-            "a uhui iauwehru hdkab f",
-            "asdfk as,jhlk uhelkh kj",
-            "a dfjhlkuahw fklhkljha ",
-            "lkjlkhaseu hasjdflbkbsd",
-            "a lkhasduy uhj sfja kj ",
-            "iuhba bkadsf kjhbkjhba ",
-            "jhiu  ads bnbkajhsbf kh",
-            "akjkhlkjbxkjhgad fkh as",
-            "jjjjjjjjjjjjjjjjjjjjjjj",
-            "  lkjhk   kj    jkk h  "
-    };
+    private static final int N_PATTERNS = 300;
+    private static final int N_DIRECTORIES = 200;
+    private static final int N_FILES = 50;
+    private static final int RUNS = 5;
+
+    private static final String[] EXTENSIONS = {".txt", ".doc", ".jpg",
+        ".java", ".class", ".bak", ".tmp", ".pdf"};
 
-    /** Ten patterns, some with '*' characters */
-    private static final String[] PATTERN_STRINGS = {
-            "h sdf",
-            "s hj*s j",
-            "hkjh as ",
-            "*.ye",
-            "as*dl j*lkja ",
-            "iui*ajj",
-            "*.exe",
-            "hlksj",
-            "j*j*j",
-            "hlkah"
-    };
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<String> names = new ArrayList<String>();
+
+    public PatternMatchBench() {
+        Random random = new Random(0);
+        List<String> words = new ArrayList<String>();
+        for (DefaultExcludes exclude : DefaultExcludes.values()) {
+            patterns.add(PatternFactory.createPattern(exclude.getPattern()));
+        }
+        while (patterns.size() < N_PATTERNS) {
+            String word = randomWord(random);
+            words.add(word);
+            switch (patterns.size() % 4) {
+                case 0 :
+                    patterns.add(PatternFactory.createPattern("dir" + word
+                        + "/" + word + ".txt"));
+                    break;
+                case 1 :
+                    patterns.add(PatternFactory.createPattern("dir" + word
+                        + "/*"));
+                    break;
+                case 2 :
+                    patterns.add(PatternFactory.createPattern("*." + word));
+                    break;
+                default :
+                    patterns.add(PatternFactory.createPattern("*/" + word
+                        + "/*" + EXTENSIONS[random.nextInt(EXTENSIONS.length)]));
+            }
+        }
+        for (int d = 0; d < N_DIRECTORIES; d++) {
+            // Some directories are ignored
+            String dir = d % 4 == 0 ? "dir"
+                + words.get(random.nextInt(words.size())) + "/"
+                + words.get(random.nextInt(words.size())) + "/" : "dir"
+                + randomWord(random) + "/" + randomWord(random) + "/";
+            for (int f = 0; f < N_FILES; f++) {
+                names.add(dir + randomWord(random)
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            }
+        }
+    }
+
+    private static String randomWord(Random random) {
+        char[] chars = new char[3 + random.nextInt(6)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
 
     /**
      * Main.
@@ -93,50 +120,51 @@ public class PatternMatchBench extends Bench {
      */
     protected Map<String, Comparable> getResults() {
         HashMap<String, Comparable> map = new HashMap<String, Comparable>();
-        map.put("Old implementation", doOldRun());
-        map.put("New implementation", doNewRun());
+        // Warm up
+        doPatternsRun();
+        doMatcherRun();
+        map.put("Patterns one by one", doPatternsRun());
+        map.put("PatternMatcher", doMatcherRun());
         return map;
     }
 
     /**
-     * Iterate the check strings and the patterns and do matching.
+     * Iterate the names and match every pattern.
      *
-     * @return
-     *          the run time in milliseconds.
+     * @return the run time in milliseconds.
      */
-    private static Comparable doOldRun() {
-
-        // Iterate test
-        Date start = new Date();
-        for (int i = 0; i < 1000; i++) {
-            for (String checkString : CHECK_STRINGS) {
-                for (String patternString : PATTERN_STRINGS) {
-                    PatternMatch.isMatch(checkString, patternString);
+    private Comparable doPatternsRun() {
+        long start = System.currentTimeMillis();
+        int matches = 0;
+        for (int i = 0; i < RUNS; i++) {
+            for (String name : names) {
+                for (Pattern pattern : patterns) {
+                    if (pattern.isMatch(name)) {
+                        matches++;
+                        break;
+                    }
                 }
             }
         }
-        Date end = new Date();
-        return end.getTime() - start.getTime();
+        long took = System.currentTimeMillis() - start;
+        System.out.println("Patterns one by one: " + matches + " matches");
+        return took;
     }
 
-    private static Comparable doNewRun() {
-        CompilingPatternMatch[] patterns = new CompilingPatternMatch[PATTERN_STRINGS.length];
-        for (int i = 0; i < PATTERN_STRINGS.length; i++) {
-            String modifiedPattern = PATTERN_STRINGS[i];
-            patterns[i] = new CompilingPatternMatch(modifiedPattern);
-        }
-
-        // Iterate test
-        Date start = new Date();
-        for (int i = 0; i < 1000; i++) {
-            for (String checkString : CHECK_STRINGS) {
-                for (CompilingPatternMatch pattern : patterns) {
-                    pattern.isMatch(checkString);
+    private Comparable doMatcherRun() {
+        long start = System.currentTimeMillis();
+        PatternMatcher matcher = new PatternMatcher(patterns);
+        int matches = 0;
+        for (int i = 0; i < RUNS; i++) {
+            for (String name : names) {
+                if (matcher.isMatch(name)) {
+                    matches++;
                 }
             }
         }
-        Date end = new Date();
-        return end.getTime() - start.getTime();
+        long took = System.currentTimeMillis() - start;
+        System.out.println("PatternMatcher: " + matches + " matches");
+        return took;
     }
 
 }
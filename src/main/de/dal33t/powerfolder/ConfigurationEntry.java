@@ -812,6 +812,13 @@ public enum ConfigurationEntry {
      */
     TRANSFER_BUFFER_THRESHOLD("transfer.buffer.threshold", 2 * 1024 * 1024),
 
+    /**
+     * Stream file chunks of uploads directly from the file into the
+     * connection instead of building a message in memory. Only used for
+     * remote peers supporting it. The file data is sent uncompressed.
+     */
+    TRANSFER_CHUNK_STREAMING("transfer.chunk.streaming", true),
+
     /**
      * My dynamic dns hostname or fix ip.
      */
@@ -857,6 +864,12 @@ public enum ConfigurationEntry {
 
     USE_DELTA_ON_LAN("deltasync.lan.enabled", true),
 
+    /**
+     * Delta-sync: Maximum number of threads matching segments of big files.
+     */
+    DELTA_SYNC_MAX_MATCHERS("deltasync.max_matchers", Math.max(2, Runtime
+        .getRuntime().availableProcessors() / 2)),
+
     /**
      * Setting to enable/disable swarming.
      */
@@ -1066,10 +1079,43 @@ public enum ConfigurationEntry {
      */
     FOLDER_DB_PERSIST_TIME("filedb.persist.seconds", 60),
 
+    /**
+     * Write the files of the folder database with the compact
+     * {@link de.dal33t.powerfolder.light.FileInfoCodec} encoding. Disable to
+     * keep the database readable by older versions.
+     */
+    FOLDER_DB_COMPACT("filedb.compact.enabled", true),
+
+    /**
+     * Append changes of the folder database to a journal instead of rewriting
+     * the whole database on every persist.
+     */
+    FOLDER_DB_JOURNAL_ENABLED("filedb.journal.enabled", true),
+
+    /**
+     * The size of the folder database journal in percent of the number of
+     * files in the folder. The journal gets compacted into a full database
+     * snapshot when exceeded.
+     */
+    FOLDER_DB_JOURNAL_COMPACT_PERCENT("filedb.journal.compact.percent", 20),
+
+    /**
+     * Minimum number of files and directories of a member in a folder to keep
+     * OID and hash indexes for it. The indexes cost memory per entry. 0 to
+     * always index, negative to disable the indexes.
+     */
+    FOLDER_DB_SECONDARY_INDEX_MIN_FILES("filedb.secondary_index.min_files",
+        10000),
+
     /**
      * #2637: Disabling can save OS resources.
      */
     FOLDER_WATCHER_ENABLED("folder.watcher.enabled", true, true),
+    /**
+     * Watch folders with the Java WatchService if the native library is not
+     * available.
+     */
+    FOLDER_WATCHER_NIO("folder.watcher.nio.enabled", true),
     /**
      * #2405: The delay for syncing after folderWatcher detects a change.
      */
@@ -1263,6 +1309,11 @@ public enum ConfigurationEntry {
      */
     DEFAULT_ARCHIVE_CLEANUP_DAYS("archive.cleanup.days", 0),
 
+    /**
+     * Store identical versions of a file only once in the archive.
+     */
+    ARCHIVE_DEDUPLICATION("archive.deduplication", false),
+
     /**
      * #2132: This transfer mode will be recommend by default.
      */
@@ -1277,9 +1328,34 @@ public enum ConfigurationEntry {
     UNC_TRANSFER_MODE("unc.transfer.mode"),
 
     /**
-     * The number of maximum activate
+     * The number of maximum active directory crawlers of all folder scans
+     * together. Caps the parallel disk I/O of the folder scanner.
+     */
+    FOLDER_SCANNER_MAX_CRAWLERS("sync.folder.max_crawlers", Math.max(3,
+        Runtime.getRuntime().availableProcessors())),
+
+    /**
+     * The number of folders that may be scanned at the same time.
+     */
+    FOLDER_SCANNER_MAX_FOLDERS("sync.folder.max_concurrent_scans", 2),
+
+    /**
+     * The number of folders that may be maintained at the same time.
+     */
+    FOLDER_MAINTENANCE_MAX_WORKERS("sync.folder.max_maintenance_workers",
+        Math.max(2, Runtime.getRuntime().availableProcessors() / 2)),
+
+    /**
+     * The number of folders on the same disk that may be maintained at the
+     * same time.
+     */
+    FOLDER_MAINTENANCE_MAX_PER_DISK("sync.folder.max_maintenance_per_disk", 2),
+
+    /**
+     * If more folders are configured the startup does not wait for them to be
+     * loaded. They are loaded in background or on first demand.
      */
-    FOLDER_SCANNER_MAX_CRAWLERS("sync.folder.max_crawlers", 3),
+    FOLDER_LAZY_LOADING_THRESHOLD("folder.lazy_loading.threshold", 100),
 
     /**
      * PFC-3018: The max number of file requesting workers to spawn
@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder;
 
+import de.dal33t.powerfolder.clientserver.RequestExecutor;
 import de.dal33t.powerfolder.clientserver.ServerClient;
 import de.dal33t.powerfolder.d2d.D2DSocketConnectionHandler;
 import de.dal33t.powerfolder.disk.Folder;
@@ -26,13 +27,18 @@ import de.dal33t.powerfolder.disk.FolderRepository;
 import de.dal33t.powerfolder.disk.problem.FolderReadOnlyProblem;
 import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.*;
 import de.dal33t.powerfolder.message.clientserver.AccountStateChanged;
+import de.dal33t.powerfolder.message.clientserver.Response;
 import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.net.FileChunkStreamer;
+import de.dal33t.powerfolder.net.IOProvider;
 import de.dal33t.powerfolder.net.InvalidIdentityException;
+import de.dal33t.powerfolder.net.MessageDispatcher;
 import de.dal33t.powerfolder.net.PlainSocketConnectionHandler;
 import de.dal33t.powerfolder.transfer.Download;
 import de.dal33t.powerfolder.transfer.TransferManager;
@@ -45,11 +51,14 @@ import de.dal33t.powerfolder.util.net.NetworkUtil;
 import java.io.Externalizable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -61,12 +70,182 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Member extends PFComponent implements Comparable<Member> {
 
+    /**
+     * Handlers of the messages by message class.
+     */
+    private static final Map<Class<?>, MessageType<?>> MESSAGE_HANDLERS = new HashMap<>();
+
+    /**
+     * Types of messages without handler. Only given to the listeners.
+     */
+    private static final Map<Class<?>, MessageType<?>> UNHANDLED_TYPES = Util
+        .createConcurrentHashMap();
+
+    /**
+     * Resolves the type of a message class once, including subclasses of
+     * handled messages.
+     */
+    private static final ClassValue<MessageType<?>> MESSAGE_TYPES = new ClassValue<MessageType<?>>()
+    {
+        @Override
+        protected MessageType<?> computeValue(Class<?> klass) {
+            for (Class<?> c = klass; c != null; c = c.getSuperclass()) {
+                MessageType<?> type = MESSAGE_HANDLERS.get(c);
+                if (type != null) {
+                    return type;
+                }
+            }
+            return UNHANDLED_TYPES.computeIfAbsent(klass,
+                k -> new MessageType<>(Message.class,
+                    MessageDispatcher.Category.CONTROL, -1, null));
+        }
+    };
+
+    static {
+        MessageDispatcher.Category control = MessageDispatcher.Category.CONTROL;
+        MessageDispatcher.Category transfer = MessageDispatcher.Category.TRANSFER;
+        MessageDispatcher.Category fileList = MessageDispatcher.Category.FILE_LIST;
+
+        register(Ping.class, control, 50,
+            (node, m, peer, folder) -> node.receivedPing(m));
+        register(HandshakeCompleted.class, control, 100,
+            (node, m, peer, folder) -> node.receivedHandshakeCompleted(m));
+        register(FolderList.class, control, 300,
+            (node, m, peer, folder) -> node.receivedFolderList(m, peer));
+        register(ScanCommand.class, control, 50,
+            (node, m, peer, folder) -> node.receivedScanCommand(m, folder));
+        register(FileRequestCommand.class, control, 50,
+            (node, m, peer, folder) -> node.receivedFileRequestCommand(m, folder));
+        register(FolderDBMaintCommando.class, control, 50,
+            (node, m, peer, folder) -> node.receivedFolderDBMaintCommando(m, folder));
+        register(RequestNodeList.class, control, 100,
+            (node, m, peer, folder) -> node.receivedRequestNodeList(m));
+        register(KnownNodes.class, control, 200,
+            (node, m, peer, folder) -> node.receivedKnownNodes(m));
+        register(RequestNodeInformation.class, control, 50,
+            (node, m, peer, folder) -> node.receivedRequestNodeInformation(m));
+        register(TransferStatus.class, control, 50,
+            (node, m, peer, folder) -> node.receivedTransferStatus(m));
+        register(NodeInformation.class, control, -1,
+            (node, m, peer, folder) -> node.receivedNodeInformation(m));
+        register(SettingsChange.class, control, 50,
+            (node, m, peer, folder) -> node.receivedSettingsChange(m));
+        register(Invitation.class, control, 100,
+            (node, m, peer, folder) -> node.receivedInvitation(m));
+        register(Problem.class, control, 100,
+            (node, m, peer, folder) -> node.receivedProblem(m));
+        register(SearchNodeRequest.class, control, 50,
+            (node, m, peer, folder) -> node.receivedSearchNodeRequest(m));
+        register(AddFriendNotification.class, control, 50,
+            (node, m, peer, folder) -> node.receivedAddFriendNotification(m));
+        register(Notification.class, control, 50,
+            (node, m, peer, folder) -> node.receivedNotification(m));
+        register(RevertedFile.class, control, -1,
+            (node, m, peer, folder) -> node.receivedRevertedFile(m, folder));
+        register(QuotaExceeded.class, control, -1,
+            (node, m, peer, folder) -> node.receivedQuotaExceeded(m, folder));
+        register(UDTMessage.class, control, 50,
+            (node, m, peer, folder) -> node.receivedUDTMessage(m));
+        register(AccountStateChanged.class, control, -1,
+            (node, m, peer, folder) -> node.receivedAccountStateChanged(m));
+        register(ConfigurationLoadRequest.class, control, -1,
+            (node, m, peer, folder) -> node.receivedConfigurationLoadRequest(m));
+
+        register(RequestDownload.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedRequestDownload(m));
+        register(DownloadQueued.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedDownloadQueued(m));
+        register(AbortDownload.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedAbortDownload(m));
+        register(AbortUpload.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedAbortUpload(m));
+        register(FileChunk.class, transfer, -1,
+            (node, m, peer, folder) -> node.receivedFileChunk(m));
+        register(RequestPart.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedRequestPart(m));
+        register(StartUpload.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedStartUpload(m));
+        register(StopUpload.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedStopUpload(m));
+        register(RequestFilePartsRecord.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedRequestFilePartsRecord(m));
+        register(ReplyFilePartsRecord.class, transfer, 100,
+            (node, m, peer, folder) -> node.receivedReplyFilePartsRecord(m));
+        register(RelayedMessage.class, transfer, -1,
+            (node, m, peer, folder) -> node.receivedRelayedMessage(m));
+
+        register(FileListRequest.class, fileList, -1,
+            (node, m, peer, folder) -> node.receivedFileListRequest(m, folder));
+        register(FileList.class, fileList, 250,
+            (node, m, peer, folder) -> node.receivedFileList(m, folder));
+        register(FolderFilesChanged.class, fileList, 250,
+            (node, m, peer, folder) -> node.receivedFolderFilesChanged(m, folder));
+        register(FileHistoryRequest.class, fileList, -1,
+            (node, m, peer, folder) -> node.receivedFileHistoryRequest(m));
+        register(FileHistoryReply.class, fileList, -1,
+            (node, m, peer, folder) -> node.receivedFileHistoryReply(m));
+    }
+
+    private static <M extends Message> void register(Class<M> type,
+        MessageDispatcher.Category category, int expectedTime,
+        MessageHandler<M> handler)
+    {
+        MESSAGE_HANDLERS.put(type, new MessageType<>(type, category,
+            expectedTime, handler));
+    }
+
+    /**
+     * Handles one type of message.
+     */
+    @FunctionalInterface
+    private interface MessageHandler<M extends Message> {
+        /**
+         * @param node
+         *            the node the message was received from
+         * @param message
+         * @param fromPeer
+         *            the peer the message was received from
+         * @param targetFolder
+         *            the folder of a {@link FolderRelatedMessage} or
+         *            <code>null</code>
+         * @return true if the message should be given to the node manager
+         *         and message listeners.
+         */
+        boolean handle(Member node, M message, ConnectionHandler fromPeer,
+            Folder targetFolder);
+    }
+
+    private static final class MessageType<M extends Message> {
+        private final Class<M> type;
+        private final MessageDispatcher.Category category;
+        private final int expectedTime;
+        private final MessageHandler<M> handler;
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private MessageType(Class<M> type,
+            MessageDispatcher.Category category, int expectedTime,
+            MessageHandler<M> handler)
+        {
+            this.type = type;
+            this.category = category;
+            this.expectedTime = expectedTime;
+            this.handler = handler;
+        }
+    }
+
     /** Listener support for incoming messages */
     private MessageListenerSupport messageListenerSupport;
 
     /** The current connection handler */
     private volatile ConnectionHandler peer;
 
+    /** The lanes to handle received messages by category */
+    private final AtomicReferenceArray<MessageDispatcher.Lane> lanes = new AtomicReferenceArray<>(
+        MessageDispatcher.Category.values().length);
+
+    /** Executes the requests on this node. Created on first use */
+    private final AtomicReference<RequestExecutor> requestExecutor = new AtomicReference<>();
+
     /**
      * If this node has completely handshaked. TODO: Move this into
      * connectionHandler ?
@@ -1204,6 +1383,12 @@ public class Member extends PFComponent implements Comparable<Member> {
 
         shutdownPeer();
 
+        // Break pending requests
+        RequestExecutor executor = requestExecutor.get();
+        if (executor != null) {
+            executor.connectionLost();
+        }
+
         // Notify waiting locks.
         synchronized (folderListWaiter) {
             folderListWaiter.notifyAll();
@@ -1262,13 +1447,46 @@ public class Member extends PFComponent implements Comparable<Member> {
             // synchronized (peerInitalizeLock) {
             if (peer != null) {
                 // send
-                peer.sendMessage(message);
+                peer.sendMessage(toProtocolVersion(message));
             }
             // }
 
         }
     }
 
+    /**
+     * Sends a {@link FileChunk} directly from the file if the connection
+     * supports it. Waits until the chunk was sent.
+     *
+     * @see FileChunkStreamer
+     * @param file
+     *            the file the chunk belongs to
+     * @param offset
+     *            the offset of the chunk in the file
+     * @param channel
+     *            the channel to read the data from
+     * @param length
+     *            the length of the chunk
+     * @return true if the chunk was sent, false if the connection does not
+     *         support streaming. The chunk has to be sent as message then.
+     * @throws ConnectionException
+     */
+    public boolean sendFileChunk(FileInfo file, long offset,
+        FileChannel channel, int length) throws ConnectionException
+    {
+        checkPeer();
+        ConnectionHandler thisPeer = peer;
+        if (!(thisPeer instanceof FileChunkStreamer)
+            || !((FileChunkStreamer) thisPeer).isFileChunkStreaming())
+        {
+            return false;
+        }
+        thisPeer.waitForEmptySendQueue(-1);
+        ((FileChunkStreamer) thisPeer).sendFileChunk(file, offset, channel,
+            length);
+        return true;
+    }
+
     /**
      * Enque one messages for sending. code execution does not wait util message
      * was sent successfully
@@ -1279,7 +1497,7 @@ public class Member extends PFComponent implements Comparable<Member> {
      */
     public void sendMessageAsynchron(Message message) {
         if (peer != null && peer.isConnected()) {
-            peer.sendMessagesAsynchron(message);
+            peer.sendMessagesAsynchron(toProtocolVersion(message));
         }
     }
 
@@ -1293,12 +1511,47 @@ public class Member extends PFComponent implements Comparable<Member> {
      */
     public void sendMessagesAsynchron(Message... messages) {
         if (peer != null && peer.isConnected()) {
-            peer.sendMessagesAsynchron(messages);
+            Message[] sendMessages = messages;
+            for (int i = 0; i < messages.length; i++) {
+                Message message = toProtocolVersion(messages[i]);
+                if (message != messages[i]) {
+                    if (sendMessages == messages) {
+                        sendMessages = messages.clone();
+                    }
+                    sendMessages[i] = message;
+                }
+            }
+            peer.sendMessagesAsynchron(sendMessages);
+        }
+    }
+
+    /**
+     * The file list messages are shared between all members of a folder.
+     * Peers below {@link Identity#PROTOCOL_VERSION_113} can't read files
+     * encoded by the {@link FileInfoCodec} and get a copy in the previous
+     * format.
+     *
+     * @param message
+     * @return the message to send to this member.
+     */
+    private Message toProtocolVersion(Message message) {
+        if (getProtocolVersion() >= Identity.PROTOCOL_VERSION_113) {
+            return message;
+        }
+        if (message instanceof FileListExt) {
+            return ((FileListExt) message).withoutCodec();
+        }
+        if (message instanceof FolderFilesChangedExt) {
+            return ((FolderFilesChangedExt) message).withoutCodec();
         }
+        return message;
     }
 
     /**
-     * Handles an incomming message from the remote peer (ConnectionHandler)
+     * Handles an incomming message from the remote peer (ConnectionHandler).
+     * The message is queued for handling in the {@link MessageDispatcher} by
+     * its category. Messages of the same category are handled in the order
+     * they were received.
      *
      * @param message
      *            The message to handle
@@ -1313,24 +1566,107 @@ public class Member extends PFComponent implements Comparable<Member> {
             throw new NullPointerException(
                 "Unable to handle message, message is null");
         }
+        if (message instanceof Response) {
+            // Complete pending requests directly, the requesting thread might
+            // be the one handling messages.
+            RequestExecutor executor = requestExecutor.get();
+            if (executor != null
+                && executor.responseReceived((Response) message))
+            {
+                return;
+            }
+        }
+        final MessageType<?> type = MESSAGE_TYPES.get(message.getClass());
+        MessageDispatcher.Lane lane = getLane(type.category);
+        if (lane == null) {
+            // Not started. Handle directly
+            processMessage(type, message, fromPeer);
+            return;
+        }
+        try {
+            lane.execute(() -> {
+                try {
+                    processMessage(type, message, fromPeer);
+                } catch (RuntimeException e) {
+                    logSevere("RuntimeException while handling " + message
+                        + ". " + e, e);
+                    shutdown();
+                }
+            });
+        } catch (InterruptedException e) {
+            logFine("Interrupted while queueing " + message);
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    private MessageDispatcher.Lane getLane(MessageDispatcher.Category category)
+    {
+        IOProvider ioProvider = getController().getIOProvider();
+        MessageDispatcher dispatcher = ioProvider != null ? ioProvider
+            .getMessageDispatcher() : null;
+        if (dispatcher == null || !dispatcher.isStarted()) {
+            return null;
+        }
+        int i = category.ordinal();
+        MessageDispatcher.Lane lane = lanes.get(i);
+        if (lane == null) {
+            lanes.compareAndSet(i, null, dispatcher.createLane(category));
+            lane = lanes.get(i);
+        }
+        return lane;
+    }
+
+    /**
+     * @return the executor for requests on this node. Requests may be executed
+     *         concurrently.
+     */
+    public RequestExecutor getRequestExecutor() {
+        RequestExecutor executor = requestExecutor.get();
+        if (executor == null) {
+            requestExecutor.compareAndSet(null, new RequestExecutor(
+                getController(), this));
+            executor = requestExecutor.get();
+        }
+        return executor;
+    }
+
+    /**
+     * @return the latencies of handling the messages by message class.
+     */
+    public static Map<Class<?>, LatencyHistogram> getMessageLatencies() {
+        Map<Class<?>, LatencyHistogram> latencies = new TreeMap<>(
+            Comparator.comparing(Class::getName));
+        for (Map.Entry<Class<?>, MessageType<?>> entry : MESSAGE_HANDLERS
+            .entrySet())
+        {
+            latencies.put(entry.getKey(), entry.getValue().latency);
+        }
+        for (Map.Entry<Class<?>, MessageType<?>> entry : UNHANDLED_TYPES
+            .entrySet())
+        {
+            latencies.put(entry.getKey(), entry.getValue().latency);
+        }
+        return latencies;
+    }
+
+    private <M extends Message> void processMessage(MessageType<M> type,
+        Message message, ConnectionHandler fromPeer)
+    {
         // Profile this execution.
         ProfilingEntry profilingEntry = null;
         if (Profiling.ENABLED) {
             profilingEntry = Profiling.start(getClass(), "handleMessage",  message.getClass().getSimpleName());
         }
 
-        int expectedTime = -1;
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         try {
             if (getController().getOSClient().isPrimaryServer(this)) {
                 ServerClient.SERVER_HANDLE_MESSAGE_THREAD.set(true);
             }
             // related folder is filled if message is a folder related message
-            final FolderInfo targetedFolderInfo;
             final Folder targetFolder;
             if (message instanceof FolderRelatedMessage) {
-                targetedFolderInfo = ((FolderRelatedMessage) message).folder;
+                FolderInfo targetedFolderInfo = ((FolderRelatedMessage) message).folder;
                 if (targetedFolderInfo != null) {
                     targetFolder = getController().getFolderRepository()
                         .getFolder(targetedFolderInfo);
@@ -1340,556 +1676,592 @@ public class Member extends PFComponent implements Comparable<Member> {
                         + message);
                 }
             } else {
-                targetedFolderInfo = null;
                 targetFolder = null;
             }
 
             // do all the message processing
             // Processing of message also should take only
             // a short time, because member is not able
-            // to received any other message meanwhile !
+            // to received any other message of this category meanwhile !
 
             // Identity is not handled HERE !
-            if (message instanceof Ping) {
-                // TRAC #812: Answer the ping here. PONG is handled in
-                // ConnectionHandler!
-                Pong pong = new Pong((Ping) message);
-                sendMessagesAsynchron(pong);
-                expectedTime = 50;
-            } else if (message instanceof HandshakeCompleted) {
-                lastHandshakeCompleted = (HandshakeCompleted) message;
-                // Notify waiting ppl
-                handshaked = true;
-                expectedTime = 100;
-            } else if (message instanceof FolderList) {
-                final FolderList fList = (FolderList) message;
-                // #2569
-                if (isWarning()
-                    && !isServer()
-                    && ((fList.folders != null && fList.folders.length > 100) || (fList.secretFolders != null && fList.secretFolders.length > 100))
-                    && getController().getFolderRepository().getFoldersCount() < 100)
+            if (type.handler != null) {
+                if (!type.handler.handle(this, type.type.cast(message),
+                    fromPeer, targetFolder))
                 {
-                    logWarning("Received large " + fList);
-                }
-                getController().getIOProvider().startIO(() -> {
-                    processFolderList(fList, fromPeer);
-                });
-                expectedTime = 300;
-            } else if (message instanceof ScanCommand) {
-                if (targetFolder != null) {
-                    if (targetFolder.getSyncProfile().isInstantSync()
-                        || targetFolder.getSyncProfile().isPeriodicSync())
-                    {
-                        logFiner("Remote sync command received on "
-                            + targetFolder);
-                        getController().setPaused(false);
-                        // Now trigger the scan
-                        targetFolder.recommendScanOnNextMaintenance();
-                        getController().getFolderRepository()
-                            .triggerMaintenance();
-                    }
-                    if (targetFolder.getSyncProfile().isAutodownload()) {
-                        getController().getFolderRepository()
-                            .getFileRequestor()
-                            .triggerFileRequesting(targetedFolderInfo);
-                    }
+                    return;
                 }
-                expectedTime = 50;
-
-            } else if (message instanceof FileRequestCommand) {
-                if (targetFolder != null) {
-                    if (targetFolder.getSyncProfile().isAutodownload()) {
-                        getController().getFolderRepository()
-                            .getFileRequestor()
-                            .triggerFileRequesting(targetedFolderInfo);
-                    }
+            } else {
+                if (isFiner()) {
+                    logFiner("Message not known to message handling code, "
+                        + "maybe handled in listener: " + message);
                 }
-                expectedTime = 50;
-
-            } else if (message instanceof FolderDBMaintCommando) {
-                final FolderDBMaintCommando m = (FolderDBMaintCommando) message;
-                if (targetFolder != null) {
-                    getController().getIOProvider().startIO(new Runnable() {
-                        @Override
-                        public void run() {
-                            targetFolder
-                                .maintainFolderDB(m.getDate().getTime());
-                        }
-                    });
+            }
+
+            // Give message to node manager
+            getController().getNodeManager().messageReceived(this, message);
+            // now give the message to all message listeners
+            fireMessageToListeners(message);
+        } finally {
+            ServerClient.SERVER_HANDLE_MESSAGE_THREAD.set(false);
+            Profiling.end(profilingEntry, type.expectedTime);
+            long took = System.nanoTime() - start;
+            type.latency.record(took);
+            if (took > TimeUnit.SECONDS.toNanos(60)) {
+                logWarning(this + ": Handling took "
+                    + TimeUnit.NANOSECONDS.toSeconds(took) + "s: " + message);
+            }
+        }
+    }
+
+    private boolean receivedPing(Ping ping) {
+        // TRAC #812: Answer the ping here. PONG is handled in
+        // ConnectionHandler!
+        Pong pong = new Pong(ping);
+        sendMessagesAsynchron(pong);
+        return true;
+    }
+
+    private boolean receivedHandshakeCompleted(
+        HandshakeCompleted handshakeCompleted)
+    {
+        lastHandshakeCompleted = handshakeCompleted;
+        // Notify waiting ppl
+        handshaked = true;
+        return true;
+    }
+
+    private boolean receivedFolderList(final FolderList fList,
+        final ConnectionHandler fromPeer)
+    {
+        // #2569
+        if (isWarning()
+            && !isServer()
+            && ((fList.folders != null && fList.folders.length > 100) || (fList.secretFolders != null && fList.secretFolders.length > 100))
+            && getController().getFolderRepository().getFoldersCount() < 100)
+        {
+            logWarning("Received large " + fList);
+        }
+        getController().getIOProvider().startIO(() -> {
+            processFolderList(fList, fromPeer);
+        });
+        return true;
+    }
+
+    private boolean receivedScanCommand(ScanCommand command,
+        Folder targetFolder)
+    {
+        if (targetFolder != null) {
+            if (targetFolder.getSyncProfile().isInstantSync()
+                || targetFolder.getSyncProfile().isPeriodicSync())
+            {
+                logFiner("Remote sync command received on " + targetFolder);
+                getController().setPaused(false);
+                // Now trigger the scan
+                targetFolder.recommendScanOnNextMaintenance();
+                getController().getFolderRepository().triggerMaintenance();
+            }
+            if (targetFolder.getSyncProfile().isAutodownload()) {
+                getController().getFolderRepository().getFileRequestor()
+                    .triggerFileRequesting(command.folder);
+            }
+        }
+        return true;
+    }
+
+    private boolean receivedFileRequestCommand(FileRequestCommand command,
+        Folder targetFolder)
+    {
+        if (targetFolder != null) {
+            if (targetFolder.getSyncProfile().isAutodownload()) {
+                getController().getFolderRepository().getFileRequestor()
+                    .triggerFileRequesting(command.folder);
+            }
+        }
+        return true;
+    }
+
+    private boolean receivedFolderDBMaintCommando(
+        final FolderDBMaintCommando m, final Folder targetFolder)
+    {
+        if (targetFolder != null) {
+            getController().getIOProvider().startIO(new Runnable() {
+                @Override
+                public void run() {
+                    targetFolder.maintainFolderDB(m.getDate().getTime());
                 }
-                expectedTime = 50;
-
-            } else if (message instanceof RequestDownload) {
-                final RequestDownload dlReq = (RequestDownload) message;
-                // a download is requested. Put handling in background thread
-                // for faster processing.
-                if (getController().isPaused()) {
-                    // Send abort
-                    logFine("Sending abort (paused) of " + dlReq.file);
-                    sendMessagesAsynchron(new AbortUpload(dlReq.file));
-                } else {
-                    Runnable runner = new Runnable() {
-                        @Override
-                        public void run() {
-                            Upload ul = getController().getTransferManager()
-                                .queueUpload(Member.this, dlReq);
-                            if (ul == null && isCompletelyConnected()) {
-                                // Send abort
-                                if (isFine()) {
-                                    logFine("Sending abort of " + dlReq.file);                                    
-                                }
-                                sendMessagesAsynchron(
-                                    new AbortUpload(dlReq.file));
-                            }
-                            if (getController().isPaused()) {
-                                // Send abort
-                                if (isInfo()) {
-                                    logInfo("Sending abort (paused) of "
-                                        + dlReq.file);
-                                }
-                                sendMessagesAsynchron(
-                                    new AbortUpload(dlReq.file));
-                            }
+            });
+        }
+        return true;
+    }
+
+    private boolean receivedRequestDownload(final RequestDownload dlReq) {
+        // a download is requested. Put handling in background thread
+        // for faster processing.
+        if (getController().isPaused()) {
+            // Send abort
+            logFine("Sending abort (paused) of " + dlReq.file);
+            sendMessagesAsynchron(new AbortUpload(dlReq.file));
+        } else {
+            Runnable runner = new Runnable() {
+                @Override
+                public void run() {
+                    Upload ul = getController().getTransferManager()
+                        .queueUpload(Member.this, dlReq);
+                    if (ul == null && isCompletelyConnected()) {
+                        // Send abort
+                        if (isFine()) {
+                            logFine("Sending abort of " + dlReq.file);                                    
                         }
-                    };
-                    getController().getIOProvider().startIO(runner);
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof DownloadQueued) {
-                // set queued flag here, if we received status from other side
-                DownloadQueued dlQueued = (DownloadQueued) message;
-                Download dl = getController().getTransferManager()
-                    .getActiveDownload(this, dlQueued.file);
-                if (dl != null) {
-                    dl.setQueued(dlQueued.file);
-                } else if (!downloadRecentlyCompleted(dlQueued.file)) {
-                    logFine("Remote side queued non-existant download: "
-                        + dlQueued.file);
-                    sendMessageAsynchron(new AbortDownload(dlQueued.file));
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof AbortDownload) {
-                AbortDownload abort = (AbortDownload) message;
-                // Abort the upload
-                logFine("Received " + abort + " from " + this);
-                getController().getTransferManager().abortUpload(abort.file,
-                    this);
-                expectedTime = 100;
-
-            } else if (message instanceof AbortUpload) {
-                AbortUpload abort = (AbortUpload) message;
-                // Abort the upload
-                getController().getTransferManager().abortDownload(abort.file,
-                    this);
-                expectedTime = 100;
-
-            } else if (message instanceof FileChunk) {
-                // File chunk received
-                FileChunk chunk = (FileChunk) message;
-                Download d = getController().getTransferManager()
-                    .getActiveDownload(this, chunk.file);
-                if (d != null) {
-                    d.addChunk(chunk);
-                } else if (downloadRecentlyCompleted(chunk.file)) {
-                    sendMessageAsynchron(new AbortDownload(chunk.file));
-                }
-                expectedTime = -1;
-
-            } else if (message instanceof RequestNodeList) {
-                // Nodemanager will handle that
-                RequestNodeList request = (RequestNodeList) message;
-                getController().getNodeManager().receivedRequestNodeList(
-                    request, this);
-                expectedTime = 100;
-
-            } else if (message instanceof KnownNodes) {
-                KnownNodes newNodes = (KnownNodes) message;
-                // TODO Move this code into NodeManager.receivedKnownNodes(....)
-                // TODO This code should be done in NodeManager
-                // This might also just be a search result and thus not include
-                // us
-                for (int i = 0; i < newNodes.nodes.length; i++) {
-                    MemberInfo remoteNodeInfo = newNodes.nodes[i];
-                    if (remoteNodeInfo == null) {
-                        continue;
+                        sendMessagesAsynchron(new AbortUpload(dlReq.file));
                     }
-
-                    if (getInfo().equals(remoteNodeInfo)) {
-                        // Take his info
-                        updateInfo(remoteNodeInfo);
+                    if (getController().isPaused()) {
+                        // Send abort
+                        if (isInfo()) {
+                            logInfo("Sending abort (paused) of " + dlReq.file);
+                        }
+                        sendMessagesAsynchron(new AbortUpload(dlReq.file));
                     }
                 }
+            };
+            getController().getIOProvider().startIO(runner);
+        }
+        return true;
+    }
 
-                // Queue arrived node list at nodemanager
-                getController().getNodeManager().queueNewNodes(newNodes.nodes);
-                expectedTime = 200;
-            } else if (message instanceof RequestNodeInformation) {
-                if (getController().isDebugReports()) {
-                    // send him our node information, if allowed/set
-                    sendMessageAsynchron(new NodeInformation(getController()));
-                    expectedTime = 50;
-                }
+    private boolean receivedDownloadQueued(DownloadQueued dlQueued) {
+        // set queued flag here, if we received status from other side
+        Download dl = getController().getTransferManager().getActiveDownload(
+            this, dlQueued.file);
+        if (dl != null) {
+            dl.setQueued(dlQueued.file);
+        } else if (!downloadRecentlyCompleted(dlQueued.file)) {
+            logFine("Remote side queued non-existant download: "
+                + dlQueued.file);
+            sendMessageAsynchron(new AbortDownload(dlQueued.file));
+        }
+        return true;
+    }
 
-            } else if (message instanceof TransferStatus) {
-                // Hold transfer status
-                lastTransferStatus = (TransferStatus) message;
-                expectedTime = 50;
+    private boolean receivedAbortDownload(AbortDownload abort) {
+        // Abort the upload
+        logFine("Received " + abort + " from " + this);
+        getController().getTransferManager().abortUpload(abort.file, this);
+        return true;
+    }
 
-            } else if (message instanceof NodeInformation) {
-                if (isFiner()) {
-                    logFiner("Node information received");
-                }
-                if (LoggingManager.isLogToFile()) {
-                    Debug.writeNodeInformation((NodeInformation) message);
-                }
-                // Cache the last node information
-                // lastNodeInformation = (NodeInformation) message;
-                expectedTime = -1;
-
-            } else if (message instanceof SettingsChange) {
-                SettingsChange settingsChange = (SettingsChange) message;
-                if (settingsChange.newInfo != null) {
-                    logFine(getInfo().nick + " changed nick to "
-                        + settingsChange.newInfo.nick);
-                    setNick(settingsChange.newInfo.nick);
-                }
-                expectedTime = 50;
-            } else if (message instanceof FileListRequest) {
-                // Re-Send file list to client.
-
-                if (targetFolder != null) {
-                    Runnable filelistSender = new Runnable() {
-                        @Override
-                        public void run() {
-                            if (targetFolder.hasReadPermission(Member.this)) {
-                                // FIX for #924
-                                targetFolder.waitForScan();
-                                // Send filelist of joined folders
-                                logInfo("Resending file list of "
+    private boolean receivedAbortUpload(AbortUpload abort) {
+        // Abort the upload
+        getController().getTransferManager().abortDownload(abort.file, this);
+        return true;
+    }
+
+    private boolean receivedFileChunk(FileChunk chunk) {
+        // File chunk received
+        Download d = getController().getTransferManager().getActiveDownload(
+            this, chunk.file);
+        if (d != null) {
+            d.addChunk(chunk);
+        } else if (downloadRecentlyCompleted(chunk.file)) {
+            sendMessageAsynchron(new AbortDownload(chunk.file));
+        }
+        return true;
+    }
+
+    private boolean receivedRequestNodeList(RequestNodeList request) {
+        // Nodemanager will handle that
+        getController().getNodeManager().receivedRequestNodeList(request,
+            this);
+        return true;
+    }
+
+    private boolean receivedKnownNodes(KnownNodes newNodes) {
+        // TODO Move this code into NodeManager.receivedKnownNodes(....)
+        // TODO This code should be done in NodeManager
+        // This might also just be a search result and thus not include
+        // us
+        for (int i = 0; i < newNodes.nodes.length; i++) {
+            MemberInfo remoteNodeInfo = newNodes.nodes[i];
+            if (remoteNodeInfo == null) {
+                continue;
+            }
+
+            if (getInfo().equals(remoteNodeInfo)) {
+                // Take his info
+                updateInfo(remoteNodeInfo);
+            }
+        }
+
+        // Queue arrived node list at nodemanager
+        getController().getNodeManager().queueNewNodes(newNodes.nodes);
+        return true;
+    }
+
+    private boolean receivedRequestNodeInformation(
+        RequestNodeInformation request)
+    {
+        if (getController().isDebugReports()) {
+            // send him our node information, if allowed/set
+            sendMessageAsynchron(new NodeInformation(getController()));
+        }
+        return true;
+    }
+
+    private boolean receivedTransferStatus(TransferStatus status) {
+        // Hold transfer status
+        lastTransferStatus = status;
+        return true;
+    }
+
+    private boolean receivedNodeInformation(NodeInformation information) {
+        if (isFiner()) {
+            logFiner("Node information received");
+        }
+        if (LoggingManager.isLogToFile()) {
+            Debug.writeNodeInformation(information);
+        }
+        // Cache the last node information
+        // lastNodeInformation = (NodeInformation) message;
+        return true;
+    }
+
+    private boolean receivedSettingsChange(SettingsChange settingsChange) {
+        if (settingsChange.newInfo != null) {
+            logFine(getInfo().nick + " changed nick to "
+                + settingsChange.newInfo.nick);
+            setNick(settingsChange.newInfo.nick);
+        }
+        return true;
+    }
+
+    private boolean receivedFileListRequest(FileListRequest request,
+        final Folder targetFolder)
+    {
+        // Re-Send file list to client.
+        if (targetFolder != null) {
+            Runnable filelistSender = new Runnable() {
+                @Override
+                public void run() {
+                    if (targetFolder.hasReadPermission(Member.this)) {
+                        // FIX for #924
+                        targetFolder.waitForScan();
+                        // Send filelist of joined folders
+                        logInfo("Resending file list of "
+                            + targetFolder.getName() + " to " + getNick());
+                        Message[] filelistMsgs = FileList.create(targetFolder,
+                            targetFolder.supportExternalizable(Member.this));
+                        for (Message filelistMsg : filelistMsgs) {
+                            try {
+                                sendMessage(filelistMsg);
+                            } catch (ConnectionException e) {
+                                logFine("Unable to send new filelist of "
                                     + targetFolder.getName() + " to "
-                                    + getNick());
-                                Message[] filelistMsgs = FileList.create(
-                                    targetFolder, targetFolder
-                                        .supportExternalizable(Member.this));
-                                for (Message filelistMsg : filelistMsgs) {
-                                    try {
-                                        sendMessage(filelistMsg);
-                                    } catch (ConnectionException e) {
-                                        logFine("Unable to send new filelist of "
-                                            + targetFolder.getName()
-                                            + " to "
-                                            + getNick() + ". " + e);
-                                    }
-                                }
+                                    + getNick() + ". " + e);
                             }
                         }
-                    };
-                    getController().getIOProvider().startIO(filelistSender);
+                    }
                 }
+            };
+            getController().getIOProvider().startIO(filelistSender);
+        }
+        return true;
+    }
 
-            } else if (message instanceof FileList) {
-                final FileList remoteFileList = (FileList) message;
+    private boolean receivedFileList(FileList remoteFileList,
+        Folder targetFolder)
+    {
+        if (isFine()) {
+            logFine("Received new filelist. Expecting "
+                + remoteFileList.nFollowingDeltas + " more deltas. "
+                + remoteFileList);
+        }
+        // Reset counter of expected filelists
+        expectedListMessages.put(remoteFileList.folder,
+            remoteFileList.nFollowingDeltas);
 
-                if (isFine()) {
-                    logFine("Received new filelist. Expecting "
-                        + remoteFileList.nFollowingDeltas + " more deltas. "
-                        + message);
-                }
-                // Reset counter of expected filelists
-                expectedListMessages.put(remoteFileList.folder,
-                    remoteFileList.nFollowingDeltas);
+        if (targetFolder != null) {
+            // Inform folder
+            targetFolder.fileListChanged(Member.this, remoteFileList);
+        }
+        return true;
+    }
 
-                if (targetFolder != null) {
-                    // Inform folder
-                    targetFolder.fileListChanged(Member.this, remoteFileList);
-                }
-                expectedTime = 250;
-
-            } else if (message instanceof FolderFilesChanged) {
-                final FolderFilesChanged changes = (FolderFilesChanged) message;
-                Integer nExpected = expectedListMessages.get(changes.folder);
-                if (nExpected == null) {
-                    logWarning("Disconnecting: Received folder changes, but not received the full filelist from "
-                        + getNick() + ": " + changes);
-                    shutdown();
-                    return;
-                }
-                nExpected -= 1;
-                expectedListMessages.put(changes.folder, nExpected);
-
-                TransferManager tm = getController().getTransferManager();
-                if (changes.getFiles() != null) {
-                    for (int i = 0; i < changes.getFiles().length; i++) {
-                        FileInfo file = changes.getFiles()[i];
-                        // TODO Optimize: Don't break if files are same.
-                        tm.abortDownload(file, this);
-                    }
-                }
-                if (changes.getRemoved() != null) {
-                    for (int i = 0; i < changes.getRemoved().length; i++) {
-                        FileInfo file = changes.getRemoved()[i];
-                        // TODO Optimize: Don't break if files are same.
-                        tm.abortDownload(file, this);
-                    }
-                }
+    private boolean receivedFolderFilesChanged(FolderFilesChanged changes,
+        Folder targetFolder)
+    {
+        Integer nExpected = expectedListMessages.get(changes.folder);
+        if (nExpected == null) {
+            logWarning("Disconnecting: Received folder changes, but not received the full filelist from "
+                + getNick() + ": " + changes);
+            shutdown();
+            return false;
+        }
+        nExpected -= 1;
+        expectedListMessages.put(changes.folder, nExpected);
 
-                if (isFine()) {
-                    int msgs = expectedListMessages.get(targetedFolderInfo);
-                    if (msgs >= 0) {
-                        logFine("Received folder change. Expecting " + msgs
-                            + " more deltas. " + message);
-                    } else {
-                        logFine("Received folder change. Received " + (-msgs)
-                            + " additional deltas. " + message);
-                    }
-                }
+        TransferManager tm = getController().getTransferManager();
+        if (changes.getFiles() != null) {
+            for (int i = 0; i < changes.getFiles().length; i++) {
+                FileInfo file = changes.getFiles()[i];
+                // TODO Optimize: Don't break if files are same.
+                tm.abortDownload(file, this);
+            }
+        }
+        if (changes.getRemoved() != null) {
+            for (int i = 0; i < changes.getRemoved().length; i++) {
+                FileInfo file = changes.getRemoved()[i];
+                // TODO Optimize: Don't break if files are same.
+                tm.abortDownload(file, this);
+            }
+        }
 
-                if (targetFolder != null) {
-                    // Inform folder
-                    targetFolder.fileListChanged(Member.this, changes);
-                }
-                expectedTime = 250;
+        if (isFine()) {
+            int msgs = expectedListMessages.get(changes.folder);
+            if (msgs >= 0) {
+                logFine("Received folder change. Expecting " + msgs
+                    + " more deltas. " + changes);
+            } else {
+                logFine("Received folder change. Received " + (-msgs)
+                    + " additional deltas. " + changes);
+            }
+        }
 
-            } else if (message instanceof Invitation) {
+        if (targetFolder != null) {
+            // Inform folder
+            targetFolder.fileListChanged(Member.this, changes);
+        }
+        return true;
+    }
 
-                // Invitation to folder
-                Invitation invitation = (Invitation) message;
+    private boolean receivedInvitation(Invitation invitation) {
+        // Server is the only one who is allowed to send invitations
+        // with a different invitor
+        if (!getController().getOSClient().isPrimaryServer(this)) {
+            // To ensure invitor is correct for all other computers
+            invitation.setSenderDevice(getInfo());
+        }
 
-                // Server is the only one who is allowed to send invitations
-                // with a different invitor
-                if (!getController().getOSClient().isPrimaryServer(this)) {
-                    // To ensure invitor is correct for all other computers
-                    invitation.setSenderDevice(getInfo());
-                }
+        getController().invitationReceived(invitation);
+        return true;
+    }
 
-                getController().invitationReceived(invitation);
-                expectedTime = 100;
+    private boolean receivedProblem(Problem problem) {
+        lastProblem = problem;
 
-            } else if (message instanceof Problem) {
-                lastProblem = (Problem) message;
+        if (lastProblem.problemCode == Problem.DO_NOT_LONGER_CONNECT) {
+            // Finds us boring
+            // set unable to connect
+            logFine("Problem received: Node reject our connection, "
+                + "we should not longer try to connect");
+            // Not connected to public network
+            setConnectedToNetwork(true);
+        } else if (lastProblem.problemCode == Problem.DUPLICATE_CONNECTION) {
+            logWarning("Problem received: Node thinks we have a dupe connection to " + this);
+        } else {
+            logWarning("Problem received: " + lastProblem);
+        }
 
-                if (lastProblem.problemCode == Problem.DO_NOT_LONGER_CONNECT) {
-                    // Finds us boring
-                    // set unable to connect
-                    logFine("Problem received: Node reject our connection, "
-                        + "we should not longer try to connect");
-                    // Not connected to public network
-                    setConnectedToNetwork(true);
-                } else if (lastProblem.problemCode == Problem.DUPLICATE_CONNECTION)
-                {
-                    logWarning("Problem received: Node thinks we have a dupe connection to " + this);
-                } else {
-                    logWarning("Problem received: " + lastProblem);
-                }
+        if (lastProblem.fatal) {
+            // Shutdown
+            shutdown();
+        }
+        return true;
+    }
 
-                if (lastProblem.fatal) {
-                    // Shutdown
-                    shutdown();
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof SearchNodeRequest) {
-                // Send nodelist that matches the search.
-                final SearchNodeRequest request = (SearchNodeRequest) message;
-                getController().getNodeManager().receivedSearchNodeRequest(
-                    request, this);
-                expectedTime = 50;
-
-            } else if (message instanceof AddFriendNotification) {
-                AddFriendNotification notification = (AddFriendNotification) message;
-                getController().makeFriendship(notification.getMemberInfo());
-                expectedTime = 50;
-            } else if (message instanceof Notification) {
-                // This is the V3 friendship notification class.
-                // V4 uses AddFriendNotification.
-                Notification not = (Notification) message;
-                if (not.getEvent() == null) {
-                    logWarning("Unknown event from peer");
-                } else {
-                    switch (not.getEvent()) {
-                        case ADDED_TO_FRIENDS :
-                            getController().makeFriendship(getInfo());
-                            break;
-                        default :
-                            logWarning("Unhandled event: " + not.getEvent());
-                    }
-                }
-                expectedTime = 50;
-            } else if (message instanceof RevertedFile) {
-                RevertedFile msg = (RevertedFile) message;
-                if (targetFolder != null) {
-                    Path path = msg.file.getDiskFile(getController().getFolderRepository());
-                    FolderReadOnlyProblem problem = new FolderReadOnlyProblem(
-                        targetFolder, path, true);
-                    targetFolder.addProblem(problem);
-                }
+    private boolean receivedSearchNodeRequest(SearchNodeRequest request) {
+        // Send nodelist that matches the search.
+        getController().getNodeManager().receivedSearchNodeRequest(request,
+            this);
+        return true;
+    }
 
-            } else if (message instanceof QuotaExceeded) {
-                QuotaExceeded msg = (QuotaExceeded) message;
-                if (targetFolder != null && getController().isUIEnabled()) {
-                    WarningNotice notice = new WarningNotice(
-                        Translation.get("warning_notice.title"),
-                        Translation
-                            .get("warning_notice.insufficient_quota_summary"),
-                        Translation.get(
-                            "warning_notice.insufficient_quota_message",
-                            msg.account.getDisplayName(),
-                            msg.file.getFilenameOnly()));
-                    getController().getUIController().getApplicationModel()
-                        .getNoticesModel().handleNotice(notice);
-                }
+    private boolean receivedAddFriendNotification(
+        AddFriendNotification notification)
+    {
+        getController().makeFriendship(notification.getMemberInfo());
+        return true;
+    }
 
-            } else if (message instanceof RequestPart) {
-                final RequestPart pr = (RequestPart) message;
-                Upload up = getController().getTransferManager().getUpload(
-                    Member.this, pr.getFile());
-                if (up != null) { // If the upload isn't broken
-                    up.enqueuePartRequest(pr);
-                } else {
-                    sendMessageAsynchron(new AbortUpload(pr.getFile()));
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof StartUpload) {
-                StartUpload su = (StartUpload) message;
-                Download dl = getController().getTransferManager()
-                    .getActiveDownload(this, su.getFile());
-                if (dl != null) {
-                    dl.uploadStarted(su.getFile());
-                } else if (downloadRecentlyCompleted(su.getFile())) {
-                    logFine("Download invalid or obsolete:" + su.getFile());
-                    sendMessageAsynchron(new AbortDownload(su.getFile()));
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof StopUpload) {
-                StopUpload su = (StopUpload) message;
-                Upload up = getController().getTransferManager().getUpload(
-                    this, su.getFile());
-                if (up != null) { // If the upload isn't broken
-                    up.stopUploadRequest(su);
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof RequestFilePartsRecord) {
-                RequestFilePartsRecord req = (RequestFilePartsRecord) message;
-                Upload up = getController().getTransferManager().getUpload(
-                    this, req.getFile());
-                if (up != null) { // If the upload isn't broken
-                    up.receivedFilePartsRecordRequest(req);
-                } else {
-                    sendMessageAsynchron(new AbortUpload(req.getFile()));
-                }
-                expectedTime = 100;
-
-            } else if (message instanceof ReplyFilePartsRecord) {
-                ReplyFilePartsRecord rep = (ReplyFilePartsRecord) message;
-                Download dl = getController().getTransferManager()
-                    .getActiveDownload(this, rep.getFile());
-                if (dl != null) {
-                    dl.receivedFilePartsRecord(rep.getFile(), rep.getRecord());
-                } else if (downloadRecentlyCompleted(rep.getFile())) {
-                    logInfo("Download not found: " + dl);
-                    sendMessageAsynchron(new AbortDownload(rep.getFile()));
+    private boolean receivedNotification(Notification not) {
+        // This is the V3 friendship notification class.
+        // V4 uses AddFriendNotification.
+        if (not.getEvent() == null) {
+            logWarning("Unknown event from peer");
+        } else {
+            switch (not.getEvent()) {
+                case ADDED_TO_FRIENDS :
+                    getController().makeFriendship(getInfo());
+                    break;
+                default :
+                    logWarning("Unhandled event: " + not.getEvent());
+            }
+        }
+        return true;
+    }
+
+    private boolean receivedRevertedFile(RevertedFile msg, Folder targetFolder)
+    {
+        if (targetFolder != null) {
+            Path path = msg.file.getDiskFile(getController()
+                .getFolderRepository());
+            FolderReadOnlyProblem problem = new FolderReadOnlyProblem(
+                targetFolder, path, true);
+            targetFolder.addProblem(problem);
+        }
+        return true;
+    }
+
+    private boolean receivedQuotaExceeded(QuotaExceeded msg,
+        Folder targetFolder)
+    {
+        if (targetFolder != null && getController().isUIEnabled()) {
+            WarningNotice notice = new WarningNotice(
+                Translation.get("warning_notice.title"),
+                Translation.get("warning_notice.insufficient_quota_summary"),
+                Translation.get("warning_notice.insufficient_quota_message",
+                    msg.account.getDisplayName(), msg.file.getFilenameOnly()));
+            getController().getUIController().getApplicationModel()
+                .getNoticesModel().handleNotice(notice);
+        }
+        return true;
+    }
+
+    private boolean receivedRequestPart(RequestPart pr) {
+        Upload up = getController().getTransferManager().getUpload(
+            Member.this, pr.getFile());
+        if (up != null) { // If the upload isn't broken
+            up.enqueuePartRequest(pr);
+        } else {
+            sendMessageAsynchron(new AbortUpload(pr.getFile()));
+        }
+        return true;
+    }
+
+    private boolean receivedStartUpload(StartUpload su) {
+        Download dl = getController().getTransferManager().getActiveDownload(
+            this, su.getFile());
+        if (dl != null) {
+            dl.uploadStarted(su.getFile());
+        } else if (downloadRecentlyCompleted(su.getFile())) {
+            logFine("Download invalid or obsolete:" + su.getFile());
+            sendMessageAsynchron(new AbortDownload(su.getFile()));
+        }
+        return true;
+    }
+
+    private boolean receivedStopUpload(StopUpload su) {
+        Upload up = getController().getTransferManager().getUpload(this,
+            su.getFile());
+        if (up != null) { // If the upload isn't broken
+            up.stopUploadRequest(su);
+        }
+        return true;
+    }
+
+    private boolean receivedRequestFilePartsRecord(RequestFilePartsRecord req)
+    {
+        Upload up = getController().getTransferManager().getUpload(this,
+            req.getFile());
+        if (up != null) { // If the upload isn't broken
+            up.receivedFilePartsRecordRequest(req);
+        } else {
+            sendMessageAsynchron(new AbortUpload(req.getFile()));
+        }
+        return true;
+    }
+
+    private boolean receivedReplyFilePartsRecord(ReplyFilePartsRecord rep) {
+        Download dl = getController().getTransferManager().getActiveDownload(
+            this, rep.getFile());
+        if (dl != null) {
+            dl.receivedFilePartsRecord(rep.getFile(), rep.getRecord());
+        } else if (downloadRecentlyCompleted(rep.getFile())) {
+            logInfo("Download not found: " + dl);
+            sendMessageAsynchron(new AbortDownload(rep.getFile()));
+        }
+        return true;
+    }
+
+    private boolean receivedRelayedMessage(RelayedMessage relMsg) {
+        getController().getIOProvider().getRelayedConnectionManager()
+            .handleRelayedMessage(this, relMsg);
+        return true;
+    }
+
+    private boolean receivedUDTMessage(UDTMessage udtMsg) {
+        getController().getIOProvider().getUDTSocketConnectionManager()
+            .handleUDTMessage(this, udtMsg);
+        return true;
+    }
+
+    private boolean receivedFileHistoryRequest(FileHistoryRequest request) {
+        final FileInfo requested = request.getFileInfo();
+        // No need to wait for the FileDAO to have built the FileHistory
+        getController().getIOProvider().startIO(new Runnable() {
+            @Override
+            public void run() {
+                Folder f = getController().getFolderRepository().getFolder(
+                    requested.getFolderInfo());
+                if (f == null) {
+                    logWarning("Illegal FileHistoryRequest from " + this
+                        + ": This client is not member of the folder.");
+                    return;
                 }
-                expectedTime = 100;
-
-            } else if (message instanceof RelayedMessage) {
-                RelayedMessage relMsg = (RelayedMessage) message;
-                getController().getIOProvider().getRelayedConnectionManager()
-                    .handleRelayedMessage(this, relMsg);
-                expectedTime = -1;
-
-            } else if (message instanceof UDTMessage) {
-                getController().getIOProvider().getUDTSocketConnectionManager()
-                    .handleUDTMessage(this, (UDTMessage) message);
-                expectedTime = 50;
-
-            } else if (message instanceof FileHistoryRequest) {
-                final FileInfo requested = ((FileHistoryRequest) message)
-                    .getFileInfo();
-                // No need to wait for the FileDAO to have built the FileHistory
-                getController().getIOProvider().startIO(new Runnable() {
+                sendMessageAsynchron(new FileHistoryReply(f.getDAO()
+                    .getFileHistory(requested), requested));
+            }
+        });
+        return true;
+    }
+
+    private boolean receivedFileHistoryReply(FileHistoryReply reply) {
+        getController().getFolderRepository().getFileRequestor()
+            .receivedFileHistory(reply);
+        return true;
+    }
+
+    private boolean receivedAccountStateChanged(AccountStateChanged asc) {
+        if (isFine()) {
+            logFine("Received: " + asc);
+        }
+        Member node = asc.getNode().getNode(getController(), false);
+        if (node != null) {
+            getController().getSecurityManager().nodeAccountStateChanged(node,
+                true);
+        }
+        asc.decreaseTTL();
+        if (asc.isAlive()) {
+            // Continue broadcast.
+            getController().getNodeManager().broadcastMessage(asc,
+                new Filter<Member>() {
+                    // Don't send the message back to the source.
                     @Override
-                    public void run() {
-                        Folder f = getController().getFolderRepository()
-                            .getFolder(requested.getFolderInfo());
-                        if (f == null) {
-                            logWarning("Illegal FileHistoryRequest from "
-                                + this
-                                + ": This client is not member of the folder.");
-                            return;
-                        }
-                        sendMessageAsynchron(new FileHistoryReply(f.getDAO()
-                            .getFileHistory(requested), requested));
+                    public boolean accept(Member item) {
+                        return !equals(item) && !item.isServer();
                     }
                 });
+        }
+        return true;
+    }
 
-            } else if (message instanceof FileHistoryReply) {
-                getController().getFolderRepository().getFileRequestor()
-                    .receivedFileHistory((FileHistoryReply) message);
-
-            } else if (message instanceof AccountStateChanged) {
-                AccountStateChanged asc = (AccountStateChanged) message;
-                if (isFine()) {
-                    logFine("Received: " + asc);
-                }
-                Member node = asc.getNode().getNode(getController(), false);
-                if (node != null) {
-                    getController().getSecurityManager()
-                        .nodeAccountStateChanged(node, true);
-                }
-                asc.decreaseTTL();
-                if (asc.isAlive()) {
-                    // Continue broadcast.
-                    getController().getNodeManager().broadcastMessage(asc,
-                        new Filter<Member>() {
-                            // Don't send the message back to the source.
-                            @Override
-                            public boolean accept(Member item) {
-                                return !equals(item) && !item.isServer();
-                            }
-                        });
-                }
-            } else if (message instanceof ConfigurationLoadRequest) {
-                boolean isFederated = getController().getOSClient().isFederatedServer(this);
-                if (isServer() && !isFederated) {
-                    ConfigurationLoadRequest clr = (ConfigurationLoadRequest) message;
-                    if (!getController().getMySelf().isServer()) {
-                        ConfigurationLoader
-                            .processMessage(getController(), clr);
-                    } else if (clr.isKeyValue()) {
-                        ConfigurationLoader
-                            .processMessage(getController(), clr);
-                    } else {
-                        logWarning("Ignoring full reload config request for myself being server: "
-                            + message);
-                    }
-                } else {
-                    logWarning("Ignoring reload config request from non server: "
-                        + message);
-                }
+    private boolean receivedConfigurationLoadRequest(
+        ConfigurationLoadRequest clr)
+    {
+        boolean isFederated = getController().getOSClient().isFederatedServer(this);
+        if (isServer() && !isFederated) {
+            if (!getController().getMySelf().isServer()) {
+                ConfigurationLoader.processMessage(getController(), clr);
+            } else if (clr.isKeyValue()) {
+                ConfigurationLoader.processMessage(getController(), clr);
             } else {
-                if (isFiner()) {
-                    logFiner("Message not known to message handling code, "
-                        + "maybe handled in listener: " + message);
-                }
-            }
-
-            // Give message to node manager
-            getController().getNodeManager().messageReceived(this, message);
-            // now give the message to all message listeners
-            fireMessageToListeners(message);
-        } finally {
-            ServerClient.SERVER_HANDLE_MESSAGE_THREAD.set(false);
-            Profiling.end(profilingEntry, expectedTime);
-            long took = System.currentTimeMillis() - start;
-            if (took > 60000) {
-                logWarning(this + ": Handling took " + (took/1000) + "s: " + message);
+                logWarning("Ignoring full reload config request for myself being server: "
+                    + clr);
             }
+        } else {
+            logWarning("Ignoring reload config request from non server: "
+                + clr);
         }
+        return true;
     }
 
     public void processFolderList(FolderList fList, ConnectionHandler fromPeer) {
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.clientserver;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Calls methods of a remote service without blocking the calling thread.
+ * <p>
+ * The call is described by invoking the method on the given service, e.g.
+ * <code>stub.call(service -> service.getAccountDetails())</code>. Only the
+ * first method invoked on the service is called remotely.
+ *
+ * @see RemoteServiceStubFactory#createAsyncRemoteStub
+ * @author sprajc
+ * @param <T>
+ *            The interface class of the service
+ */
+public class AsyncRemoteStub<T> {
+    private final Class<T> serviceInterface;
+    private final RemoteServiceStubFactory.RemoteInvocationHandler handler;
+
+    AsyncRemoteStub(Class<T> serviceInterface,
+        RemoteServiceStubFactory.RemoteInvocationHandler handler)
+    {
+        this.serviceInterface = serviceInterface;
+        this.handler = handler;
+    }
+
+    /**
+     * @param <R>
+     *            the result type
+     * @param invocation
+     *            invokes the method to call on the given service.
+     * @return the future result of the remote method. Completes exceptionally
+     *         with the exception thrown by the remote method or a
+     *         {@link RemoteCallException}.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> call(Function<T, R> invocation) {
+        Recorder recorder = new Recorder();
+        invocation.apply(recorder.createProxy());
+        return (CompletableFuture<R>) recorder.invoke();
+    }
+
+    /**
+     * @param invocation
+     *            invokes the method to call on the given service.
+     * @return completes after the remote method was executed.
+     */
+    public CompletableFuture<Void> run(Consumer<T> invocation) {
+        Recorder recorder = new Recorder();
+        invocation.accept(recorder.createProxy());
+        return recorder.invoke().thenApply(result -> null);
+    }
+
+    /**
+     * Records the first method invoked on the service.
+     */
+    private class Recorder {
+        private Method method;
+        private Object[] args;
+
+        private T createProxy() {
+            return serviceInterface.cast(Proxy.newProxyInstance(
+                serviceInterface.getClassLoader(),
+                new Class<?>[]{serviceInterface}, (proxy, m, a) -> {
+                    if (method == null) {
+                        method = m;
+                        args = a;
+                    }
+                    return getDefaultValue(m.getReturnType());
+                }));
+        }
+
+        private CompletableFuture<Object> invoke() {
+            Reject.ifNull(method, "No method of " + serviceInterface.getName()
+                + " invoked");
+            return handler.invokeAsync(method, args);
+        }
+    }
+
+    private static Object getDefaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == char.class) {
+            return (char) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == float.class) {
+            return 0F;
+        }
+        return 0D;
+    }
+}
@@ -21,10 +21,13 @@ package de.dal33t.powerfolder.clientserver;
  */
 
 import java.awt.EventQueue;
+import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -93,7 +96,34 @@ public class RemoteServiceStubFactory {
             .getClassLoader(), new Class[]{serviceInterface}, handler);
     }
 
-    private static class RemoteInvocationHandler implements InvocationHandler {
+    /**
+     * Constructs a stub to call methods of the given service interface
+     * asynchronously. Many calls may be executed at the same time over one
+     * connection.
+     *
+     * @param <T>
+     *            The interface class of the service
+     * @param controller
+     *            the controller
+     * @param serviceInterface
+     * @param remoteSide
+     * @param throwableHandler
+     * @return the remote stub calling the service interface asynchronously
+     */
+    public static <T> AsyncRemoteStub<T> createAsyncRemoteStub(
+        Controller controller, Class<T> serviceInterface, Member remoteSide,
+        ThrowableHandler throwableHandler)
+    {
+        Reject.ifNull(controller, "Controller is null");
+        Reject.ifNull(remoteSide, "Remote site is null");
+        Reject.ifFalse(serviceInterface.isInterface(),
+            "Service interface class is not a interface! " + serviceInterface);
+        return new AsyncRemoteStub<>(serviceInterface,
+            new RemoteInvocationHandler(controller, serviceInterface
+                .getName(), remoteSide, throwableHandler));
+    }
+
+    static class RemoteInvocationHandler implements InvocationHandler {
         private Controller controller;
         private Member remoteSide;
         private String serviceId;
@@ -124,9 +154,55 @@ public class RemoteServiceStubFactory {
                     + (args != null ? Arrays.asList(args) : "n/a"),
                     new StackDump());
             }
+            RemoteMethodCallRequest request = createRequest(method, args);
+            RemoteMethodCallResponse response;
+            try {
+                response = (RemoteMethodCallResponse) remoteSide
+                    .getRequestExecutor().execute(request);
+            } catch (ConnectionException e) {
+                throw new RemoteCallException(e);
+            }
+            return getResult(method, response);
+        }
+
+        /**
+         * Calls the method without waiting for the result. Safe to use in the
+         * EDT or while handling messages.
+         *
+         * @param method
+         * @param args
+         * @return the future result of the method
+         */
+        CompletableFuture<Object> invokeAsync(Method method, Object[] args) {
+            RemoteMethodCallRequest request;
+            try {
+                request = createRequest(method, args);
+            } catch (IOException e) {
+                CompletableFuture<Object> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new RemoteCallException(e));
+                return failed;
+            }
+            return remoteSide.getRequestExecutor().executeAsync(request)
+                .handleAsync((response, e) -> {
+                    if (e != null) {
+                        throw new CompletionException(new RemoteCallException(
+                            e instanceof CompletionException
+                                ? e.getCause()
+                                : e));
+                    }
+                    try {
+                        return getResult(method,
+                            (RemoteMethodCallResponse) response);
+                    } catch (Throwable t) {
+                        throw new CompletionException(t);
+                    }
+                }, controller.getThreadPool());
+        }
+
+        private RemoteMethodCallRequest createRequest(Method method,
+            Object[] args) throws IOException
+        {
             Identity id = remoteSide.getIdentity();
-            RequestExecutor executor = new RequestExecutor(controller,
-                remoteSide);
             RemoteMethodCallRequest request = new RemoteMethodCallRequest(
                 serviceId, method, args);
             if (id == null || id.isSupportsSerializedRequest()) {
@@ -145,12 +221,12 @@ public class RemoteServiceStubFactory {
                 }
 
             }
-            RemoteMethodCallResponse response;
-            try {
-                response = (RemoteMethodCallResponse) executor.execute(request);
-            } catch (ConnectionException e) {
-                throw new RemoteCallException(e);
-            }
+            return request;
+        }
+
+        private Object getResult(Method method,
+            RemoteMethodCallResponse response) throws Throwable
+        {
             if (response.isException()) {
                 StackTraceElement[] serverSte = response.getException()
                     .getStackTrace();
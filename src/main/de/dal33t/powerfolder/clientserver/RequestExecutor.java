@@ -19,161 +19,196 @@
  */
 package de.dal33t.powerfolder.clientserver;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
-import de.dal33t.powerfolder.event.NodeManagerAdapter;
-import de.dal33t.powerfolder.event.NodeManagerEvent;
-import de.dal33t.powerfolder.message.Message;
-import de.dal33t.powerfolder.message.MessageListener;
+import de.dal33t.powerfolder.message.clientserver.RemoteMethodCallRequest;
 import de.dal33t.powerfolder.message.clientserver.Request;
 import de.dal33t.powerfolder.message.clientserver.Response;
 import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.util.LatencyHistogram;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
 
 /**
- * Performs a basic request - response message cycle.
+ * Performs basic request - response message cycles.
  * <p>
- * Rationale: Executes a request on a remote node.
+ * Rationale: Executes requests on a remote node.
  * <p>
- * Is thread safe. Can execute only one request.
+ * Is thread safe. Any number of requests can be executed at the same time
+ * over one connection. Responses are matched to the pending requests by their
+ * request id. Use {@link Member#getRequestExecutor()} to get the executor of a
+ * node.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc</a>
  * @version $Revision: 1.5 $
  */
 public class RequestExecutor extends PFComponent {
 
-    private Object waitForResponseLock = new Object();
-    private Member node;
+    /**
+     * The latencies of all executed requests by method or request type.
+     */
+    private static final Map<String, LatencyHistogram> LATENCIES = Util
+        .createConcurrentHashMap();
+
+    private final Member node;
 
-    private DisconnectListener discoListener;
-    private ResponseMessageListener messageListener;
-    private String requestId;
-    private Response response;
+    /**
+     * The requests waiting for a response by request id.
+     */
+    private final Map<String, CompletableFuture<Response>> pendingRequests = Util
+        .createConcurrentHashMap();
 
     public RequestExecutor(Controller controller, Member node) {
         super(controller);
         Reject.ifNull(node, "Node is null");
         this.node = node;
-        this.discoListener = new DisconnectListener();
-        this.messageListener = new ResponseMessageListener();
     }
 
-    public synchronized Response execute(Request request)
-        throws ConnectionException
-    {
-        if (!node.isConnected()) {
-            throw new ConnectionException("Not connected to " + node.getNick());
-        }
-
-        // Prepare
-        response = null;
-        requestId = request.getRequestId();
-
-        if (isFiner()) {
-            logFiner("Sending request to " + node.getNick() + " (" + requestId
-                + "): " + request);
-        }
-        // Listen to receive the response
-        getController().getNodeManager().addNodeManagerListener(discoListener);
-        node.addMessageListener(messageListener);
-        node.sendMessage(request);
-
+    /**
+     * Sends the request and waits for the response.
+     *
+     * @param request
+     * @return the response
+     * @throws ConnectionException
+     *             if disconnected or no response was received in time.
+     */
+    public Response execute(Request request) throws ConnectionException {
+        CompletableFuture<Response> future = executeAsync(request);
         try {
-            waitForResponse(Constants.REQUEST_RESPONSE_TIMEOUT);
-
-            if (response == null) {
-                if (!node.isConnected()) {
-                    throw new ConnectionException(node.getNick()
-                        + " disconnected");
-                }
-                throw new ConnectionException("Timeout to " + node.getNick());
-            }
-
-            if (isFiner()) {
-                logFiner("Response from " + node.getNick() + " (" + requestId
-                    + "): " + response + " to " + request);
+            return future.get();
+        } catch (InterruptedException e) {
+            logWarning("Interrupted while waiting for response (" + node
+                + "): " + e);
+            logFiner("InterruptedException", e);
+            pendingRequests.remove(request.getRequestId(), future);
+            throw new ConnectionException("Timeout to " + node.getNick(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConnectionException) {
+                throw (ConnectionException) e.getCause();
             }
-        } finally {
-            notifyAndcleanup();
+            throw new ConnectionException(e.getCause());
         }
-
-        return response;
     }
 
-    // Internal helper ********************************************************
+    /**
+     * Sends the request without waiting for the response.
+     *
+     * @param request
+     * @return the future response. Completes exceptionally with a
+     *         {@link ConnectionException} if disconnected or no response was
+     *         received within {@link Constants#REQUEST_RESPONSE_TIMEOUT}.
+     */
+    public CompletableFuture<Response> executeAsync(Request request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        if (!node.isConnected()) {
+            future.completeExceptionally(new ConnectionException(
+                "Not connected to " + node.getNick()));
+            return future;
+        }
 
-    private void waitForResponse(long seconds) {
-        synchronized (waitForResponseLock) {
-            if (response != null) {
-                // Already got response
-                return;
-            }
-            try {
-                waitForResponseLock.wait(1000L * seconds);
-            } catch (InterruptedException e) {
-                logWarning("Interrupted while waiting for response (" + node
-                    + "): " + e);
-                logFiner("InterruptedException", e);
+        String requestId = request.getRequestId();
+        pendingRequests.put(requestId, future);
+        ScheduledFuture<?> timeout = getController().getThreadPool().schedule(
+            () -> {
+                if (pendingRequests.remove(requestId, future)) {
+                    future.completeExceptionally(new ConnectionException(
+                        node.isConnected()
+                            ? "Timeout to " + node.getNick()
+                            : node.getNick() + " disconnected"));
+                }
+            }, Constants.REQUEST_RESPONSE_TIMEOUT, TimeUnit.SECONDS);
+
+        LatencyHistogram latency = LATENCIES.computeIfAbsent(
+            getName(request), name -> new LatencyHistogram());
+        long start = System.nanoTime();
+        future.whenComplete((response, e) -> {
+            timeout.cancel(false);
+            latency.record(System.nanoTime() - start);
+            if (isFiner()) {
+                logFiner("Response from " + node.getNick() + " ("
+                    + requestId + "): " + (e != null ? e : response)
+                    + " to " + request);
             }
-        }
-    }
+        });
 
-    private void notifyAndcleanup() {
         if (isFiner()) {
-            logFiner("Cleanup of request: " + requestId);
+            logFiner("Sending request to " + node.getNick() + " (" + requestId
+                + "): " + request);
         }
-        synchronized (waitForResponseLock) {
-            waitForResponseLock.notifyAll();
+        node.sendMessagesAsynchron(request);
+        if (!node.isConnected() && pendingRequests.remove(requestId, future))
+        {
+            future.completeExceptionally(new ConnectionException(node
+                .getNick() + " disconnected"));
         }
-        node.removeMessageListener(messageListener);
-        getController().getNodeManager().removeNodeManagerListener(
-            discoListener);
+        return future;
     }
 
-    private class DisconnectListener extends NodeManagerAdapter {
-        @Override
-        public void nodeConnected(NodeManagerEvent e) {
-            if (!e.getNode().equals(node)) {
-                return;
-            }
-            // Break request
-            // notifyAndcleanup();
+    /**
+     * Completes the pending request of the response.
+     *
+     * @param response
+     * @return true if the response belonged to a pending request.
+     */
+    public boolean responseReceived(Response response) {
+        if (response.requestId == null) {
+            return false;
         }
-
-        @Override
-        public void nodeDisconnected(NodeManagerEvent e) {
-            if (!e.getNode().equals(node)) {
-                return;
-            }
-            // Break request
-            notifyAndcleanup();
+        CompletableFuture<Response> future = pendingRequests
+            .remove(response.requestId);
+        if (future == null) {
+            return false;
         }
+        future.complete(response);
+        return true;
+    }
 
-        public boolean fireInEventDispatchThread() {
-            return false;
+    /**
+     * Breaks all pending requests.
+     */
+    public void connectionLost() {
+        for (Iterator<CompletableFuture<Response>> it = pendingRequests
+            .values().iterator(); it.hasNext();)
+        {
+            CompletableFuture<Response> future = it.next();
+            it.remove();
+            future.completeExceptionally(new ConnectionException(node
+                .getNick() + " disconnected"));
         }
     }
 
-    private class ResponseMessageListener implements MessageListener {
+    /**
+     * @return the number of requests waiting for a response.
+     */
+    public int countPendingRequests() {
+        return pendingRequests.size();
+    }
 
-        public void handleMessage(Member source, Message message) {
-            if (!source.equals(node)) {
-                return;
-            }
-            if (!(message instanceof Response)) {
-                return;
-            }
-            Response canidate = (Response) message;
-            if (requestId.equals(canidate.requestId)) {
-                response = canidate;
-                notifyAndcleanup();
-            }
-        }
+    /**
+     * @return the latencies of the executed requests by remote method or
+     *         request type.
+     */
+    public static Map<String, LatencyHistogram> getLatencies() {
+        return new TreeMap<>(LATENCIES);
+    }
 
-        public boolean fireInEventDispatchThread() {
-            return false;
+    // Internal helper ********************************************************
+
+    private static String getName(Request request) {
+        if (request instanceof RemoteMethodCallRequest) {
+            RemoteMethodCallRequest call = (RemoteMethodCallRequest) request;
+            return call.getServiceId() + '.' + call.getMethodName();
         }
+        return request.getClass().getName();
     }
 }
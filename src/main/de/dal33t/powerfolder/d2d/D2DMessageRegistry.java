@@ -0,0 +1,342 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.d2d;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+import com.google.protobuf.WireFormat;
+
+import de.dal33t.powerfolder.message.*;
+import de.dal33t.powerfolder.message.clientserver.*;
+import de.dal33t.powerfolder.protocol.*;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Registry of all message types known on a D2D connection. Maps the type name
+ * transmitted in the <code>clazzName</code> field of every protobuf message to
+ * the {@link Parser} of the protobuf message and a factory of the
+ * corresponding {@link D2DObject}. Built once, so no reflection is required
+ * while reading or writing messages.
+ * <p>
+ * Also keeps per type counters of the received and sent messages and bytes.
+ *
+ * @author sprajc
+ */
+public final class D2DMessageRegistry {
+
+    private static final D2DMessageRegistry INSTANCE = new D2DMessageRegistry();
+
+    /**
+     * Field number of the type name. Same for all messages.
+     */
+    private static final int CLAZZNAME_FIELD_NUMBER = AnyMessageProto.AnyMessage.CLAZZNAME_FIELD_NUMBER;
+
+    /**
+     * Messages that can not be sent over a D2D connection. Replaced by a
+     * {@link Ping}.
+     */
+    private static final Class<?>[] UNSUPPORTED = {
+        AddFriendNotification.class, KnownNodes.class, RelayedMessageExt.class,
+        Invitation.class, Problem.class, RequestNodeList.class,
+        TransferStatus.class, UDTMessage.class};
+
+    private final Map<String, Type> types = new TreeMap<>();
+
+    private D2DMessageRegistry() {
+        // Type names as defined in the protocol files, some differ from the
+        // names of the message classes. Types without factory are only sent.
+        add("AccountChangeReply", AccountChangeReplyProto.AccountChangeReply.parser());
+        add("AccountChangeRequest", AccountChangeRequestProto.AccountChangeRequest.parser(), AccountChangeRequest::new);
+        add("AccountInfoReply", AccountInfoReplyProto.AccountInfoReply.parser(), AccountInfoReply::new);
+        add("AccountInfoRequest", AccountInfoRequestProto.AccountInfoRequest.parser(), AccountInfoRequest::new);
+        add("AccountSearchReply", AccountSearchReplyProto.AccountSearchReply.parser(), AccountSearchReply::new);
+        add("AccountSearchRequest", AccountSearchRequestProto.AccountSearchRequest.parser(), AccountSearchRequest::new);
+        add("AccountStateChanged", AccountStateChangedProto.AccountStateChanged.parser());
+        add("ActivityListReply", ActivityListReplyProto.ActivityListReply.parser(), ActivityListReply::new);
+        add("ActivityListRequest", ActivityListRequestProto.ActivityListRequest.parser(), ActivityListRequest::new);
+        add("AvatarReply", AvatarReplyProto.AvatarReply.parser(), AvatarReply::new);
+        add("AvatarRequest", AvatarRequestProto.AvatarRequest.parser(), AvatarRequest::new);
+        add("CertificateSigningReply", CertificateSigningReplyProto.CertificateSigningReply.parser(), CertificateSigningReply::new);
+        add("CertificateSigningRequest", CertificateSigningRequestProto.CertificateSigningRequest.parser(), CertificateSigningRequest::new);
+        add("CreateAccountReply", CreateAccountReplyProto.CreateAccountReply.parser());
+        add("CreateAccountRequest", CreateAccountRequestProto.CreateAccountRequest.parser(), CreateAccountRequest::new);
+        add("DownloadAbort", DownloadAbortProto.DownloadAbort.parser());
+        add("DownloadQueued", DownloadQueuedProto.DownloadQueued.parser(), DownloadQueued::new);
+        add("DownloadRequest", DownloadRequestProto.DownloadRequest.parser(), RequestDownload::new);
+        add("FileListReply", FileListReplyProto.FileListReply.parser(), FileListReply::new);
+        add("FileListRequest", FileListRequestProto.FileListRequest.parser(), D2DFileListRequest::new);
+        add("FilePartInfoListReply", FilePartInfoListReplyProto.FilePartInfoListReply.parser(), ReplyFilePartsRecord::new);
+        add("FilePartInfoListRequest", FilePartInfoListRequestProto.FilePartInfoListRequest.parser(), RequestFilePartsRecord::new);
+        add("FilePartReply", FilePartReplyProto.FilePartReply.parser(), FileChunk::new);
+        add("FilePartRequest", FilePartRequestProto.FilePartRequest.parser(), RequestPart::new);
+        add("FileSearchReply", FileSearchReplyProto.FileSearchReply.parser(), FileSearchReply::new);
+        add("FileSearchRequest", FileSearchRequestProto.FileSearchRequest.parser(), FileSearchRequest::new);
+        add("FolderCreateReply", FolderCreateReplyProto.FolderCreateReply.parser(), FolderCreateReply::new);
+        add("FolderCreateRequest", FolderCreateRequestProto.FolderCreateRequest.parser(), FolderCreateRequest::new);
+        // Protected fields of FolderFilesChanged are only set by the Ext
+        add("FolderFilesChanged", FolderFilesChangedProto.FolderFilesChanged.parser(), FolderFilesChangedExt::new);
+        add("FolderList", FolderListProto.FolderList.parser(), FolderList::new);
+        add("FolderRemoveReply", FolderRemoveReplyProto.FolderRemoveReply.parser());
+        add("FolderRemoveRequest", FolderRemoveRequestProto.FolderRemoveRequest.parser(), FolderRemoveRequest::new);
+        add("FolderRenameReply", FolderRenameReplyProto.FolderRenameReply.parser());
+        add("FolderRenameRequest", FolderRenameRequestProto.FolderRenameRequest.parser(), FolderRenameRequest::new);
+        add("FolderServerNodesReply", FolderServerNodesReplyProto.FolderServerNodesReply.parser(), FolderServerNodesReply::new);
+        add("FolderServerNodesRequest", FolderServerNodesRequestProto.FolderServerNodesRequest.parser(), FolderServerNodesRequest::new);
+        add("GroupSearchReply", GroupSearchReplyProto.GroupSearchReply.parser(), GroupSearchReply::new);
+        add("GroupSearchRequest", GroupSearchRequestProto.GroupSearchRequest.parser(), GroupSearchRequest::new);
+        add("HandshakeCompleted", HandshakeCompletedProto.HandshakeCompleted.parser(), HandshakeCompleted::new);
+        add("Identity", IdentityProto.Identity.parser(), Identity::new);
+        add("IdentityReply", IdentityReplyProto.IdentityReply.parser(), IdentityReply::new);
+        add("InvitationAcceptReply", InvitationAcceptReplyProto.InvitationAcceptReply.parser());
+        add("InvitationAcceptRequest", InvitationAcceptRequestProto.InvitationAcceptRequest.parser(), InvitationAcceptRequest::new);
+        add("InvitationCreateReply", InvitationCreateReplyProto.InvitationCreateReply.parser(), InvitationCreateReply::new);
+        add("InvitationCreateRequest", InvitationCreateRequestProto.InvitationCreateRequest.parser(), InvitationCreateRequest::new);
+        add("LoginReply", LoginReplyProto.LoginReply.parser(), LoginReply::new);
+        add("LoginRequest", LoginRequestProto.LoginRequest.parser(), LoginRequest::new);
+        add("PermissionChangeReply", PermissionChangeReplyProto.PermissionChangeReply.parser());
+        add("PermissionChangeRequest", PermissionChangeRequestProto.PermissionChangeRequest.parser(), PermissionChangeRequest::new);
+        add("PermissionInfoReply", PermissionInfoReplyProto.PermissionInfoReply.parser());
+        add("PermissionInfoRequest", PermissionInfoRequestProto.PermissionInfoRequest.parser(), PermissionInfoRequest::new);
+        add("PermissionListReply", PermissionListReplyProto.PermissionListReply.parser(), PermissionListReply::new);
+        add("PermissionListRequest", PermissionListRequestProto.PermissionListRequest.parser(), PermissionListRequest::new);
+        add("PermissionRemoveReply", PermissionRemoveReplyProto.PermissionRemoveReply.parser());
+        add("PermissionRemoveRequest", PermissionRemoveRequestProto.PermissionRemoveRequest.parser(), PermissionRemoveRequest::new);
+        add("Ping", PingProto.Ping.parser(), Ping::new);
+        add("Pong", PongProto.Pong.parser(), Pong::new);
+        add("ShareLinkChangeReply", ShareLinkChangeReplyProto.ShareLinkChangeReply.parser());
+        add("ShareLinkChangeRequest", ShareLinkChangeRequestProto.ShareLinkChangeRequest.parser(), ShareLinkChangeRequest::new);
+        add("ShareLinkCreateReply", ShareLinkCreateReplyProto.ShareLinkCreateReply.parser(), ShareLinkCreateReply::new);
+        add("ShareLinkCreateRequest", ShareLinkCreateRequestProto.ShareLinkCreateRequest.parser(), ShareLinkCreateRequest::new);
+        add("ShareLinkInfo", ShareLinkInfoProto.ShareLinkInfo.parser(), ShareLinkInfo::new);
+        add("ShareLinkInfoReply", ShareLinkInfoReplyProto.ShareLinkInfoReply.parser(), ShareLinkInfoReply::new);
+        add("ShareLinkInfoRequest", ShareLinkInfoRequestProto.ShareLinkInfoRequest.parser(), ShareLinkInfoRequest::new);
+        add("ShareLinkListReply", ShareLinkListReplyProto.ShareLinkListReply.parser(), ShareLinkListReply::new);
+        add("ShareLinkListRequest", ShareLinkListRequestProto.ShareLinkListRequest.parser(), ShareLinkListRequest::new);
+        add("ShareLinkRemoveReply", ShareLinkRemoveReplyProto.ShareLinkRemoveReply.parser(), ShareLinkRemoveReply::new);
+        add("ShareLinkRemoveRequest", ShareLinkRemoveRequestProto.ShareLinkRemoveRequest.parser(), ShareLinkRemoveRequest::new);
+        add("ThumbnailReply", ThumbnailReplyProto.ThumbnailReply.parser(), ThumbnailReply::new);
+        add("ThumbnailRequest", ThumbnailRequestProto.ThumbnailRequest.parser(), ThumbnailRequest::new);
+        add("UploadAbort", UploadAbortProto.UploadAbort.parser());
+        add("UploadStart", UploadStartProto.UploadStart.parser(), StartUpload::new);
+        add("UploadStop", UploadStopProto.UploadStop.parser(), StopUpload::new);
+    }
+
+    public static D2DMessageRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private void add(String name, Parser<? extends AbstractMessage> parser) {
+        add(name, parser, null);
+    }
+
+    private void add(String name, Parser<? extends AbstractMessage> parser,
+        Supplier<? extends D2DObject> factory)
+    {
+        types.put(name, new Type(name, parser, factory));
+    }
+
+    /**
+     * @param name
+     *            the type name as transmitted in the message
+     * @return the type or <code>null</code> if not known
+     */
+    public Type getType(String name) {
+        return types.get(name);
+    }
+
+    /**
+     * @return all known types, sorted by name
+     */
+    public Collection<Type> getTypes() {
+        return Collections.unmodifiableCollection(types.values());
+    }
+
+    /**
+     * @param message
+     * @return true if the message can be sent over a D2D connection.
+     */
+    public boolean isSupported(Message message) {
+        for (Class<?> klass : UNSUPPORTED) {
+            if (klass.isInstance(message)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the type name of a message without parsing the whole message.
+     * The type name is the first field of every message.
+     *
+     * @param data
+     * @param len
+     * @return the type name or <code>null</code> if the message has none.
+     * @throws InvalidProtocolBufferException
+     *             if the data could not be read
+     */
+    public static String readTypeName(byte[] data, int len)
+        throws InvalidProtocolBufferException
+    {
+        CodedInputStream in = CodedInputStream.newInstance(data, 0, len);
+        try {
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == CLAZZNAME_FIELD_NUMBER
+                    && WireFormat.getTagWireType(
+                        tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED)
+                {
+                    return in.readStringRequireUtf8();
+                }
+                if (!in.skipField(tag)) {
+                    return null;
+                }
+            }
+            return null;
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e);
+        }
+    }
+
+    /**
+     * Reads a message.
+     *
+     * @param data
+     * @param len
+     * @return the message
+     * @throws ClassNotFoundException
+     *             if the message type is not known
+     * @throws InvalidProtocolBufferException
+     *             if the data could not be read
+     */
+    public D2DObject read(byte[] data, int len) throws ClassNotFoundException,
+        InvalidProtocolBufferException
+    {
+        String name = readTypeName(data, len);
+        Type type = name != null ? types.get(name) : null;
+        if (type == null) {
+            throw new ClassNotFoundException("Unknown message type " + name);
+        }
+        if (type.factory == null) {
+            throw new ClassNotFoundException("Unable to receive message type "
+                + name);
+        }
+        AbstractMessage mesg = type.parser.parseFrom(data, 0, len);
+        D2DObject object = type.factory.get();
+        object.initFromD2D(mesg);
+        type.received(len);
+        return object;
+    }
+
+    /**
+     * Writes a message.
+     *
+     * @param object
+     * @return the data of the message
+     */
+    public byte[] write(D2DObject object) {
+        AbstractMessage mesg = object.toD2D();
+        byte[] data = mesg.toByteArray();
+        Type type = types.get(mesg.getDescriptorForType().getName());
+        if (type != null) {
+            type.sent(data.length);
+        }
+        return data;
+    }
+
+    /**
+     * A message type with the counters of received and sent messages.
+     */
+    public static final class Type {
+        private final String name;
+        private final Parser<? extends AbstractMessage> parser;
+        private final Supplier<? extends D2DObject> factory;
+        private final AtomicLong receivedMessages = new AtomicLong();
+        private final AtomicLong receivedBytes = new AtomicLong();
+        private final AtomicLong sentMessages = new AtomicLong();
+        private final AtomicLong sentBytes = new AtomicLong();
+
+        private Type(String name, Parser<? extends AbstractMessage> parser,
+            Supplier<? extends D2DObject> factory)
+        {
+            Reject.ifBlank(name, "Name is blank");
+            Reject.ifNull(parser, "Parser is null");
+            this.name = name;
+            this.parser = parser;
+            this.factory = factory;
+        }
+
+        private void received(int bytes) {
+            receivedMessages.incrementAndGet();
+            receivedBytes.addAndGet(bytes);
+        }
+
+        private void sent(int bytes) {
+            sentMessages.incrementAndGet();
+            sentBytes.addAndGet(bytes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if messages of this type can be received, false if
+         *         they are only sent.
+         */
+        public boolean isReceivable() {
+            return factory != null;
+        }
+
+        public long getReceivedMessages() {
+            return receivedMessages.get();
+        }
+
+        public long getReceivedBytes() {
+            return receivedBytes.get();
+        }
+
+        public long getSentMessages() {
+            return sentMessages.get();
+        }
+
+        public long getSentBytes() {
+            return sentBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": received " + receivedMessages + " ("
+                + receivedBytes + " bytes), sent " + sentMessages + " ("
+                + sentBytes + " bytes)";
+        }
+    }
+}
@@ -21,14 +21,11 @@
 
 package de.dal33t.powerfolder.d2d;
 
-import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.message.*;
 import de.dal33t.powerfolder.net.*;
-import de.dal33t.powerfolder.protocol.AnyMessageProto;
-import de.dal33t.powerfolder.protocol.FolderFilesChangedProto;
 import de.dal33t.powerfolder.transfer.LimitedInputStream;
 import de.dal33t.powerfolder.transfer.LimitedOutputStream;
 import de.dal33t.powerfolder.util.Convert;
@@ -38,8 +35,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InvalidClassException;
 import java.io.InvalidObjectException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -54,12 +49,7 @@ public class D2DSocketConnectionHandler extends AbstractSocketConnectionHandler
     // Socket acceptor to accept connection after identity was received
     private ConnectionListener.SocketAcceptor socketAcceptor;
 
-    /* Define full packages here; might be required in the future */
-    private final String[] PACKAGES = new String[] {
-        "de.dal33t.powerfolder.message.%s",
-        "de.dal33t.powerfolder.message.clientserver.%s",
-        "de.dal33t.powerfolder.util.delta.%s"
-    };
+    private final D2DMessageRegistry registry = D2DMessageRegistry.getInstance();
 
     /**
      * Builds a new D2D connection manager for the socket.
@@ -141,93 +131,11 @@ public class D2DSocketConnectionHandler extends AbstractSocketConnectionHandler
             logFiner("Got message; parsing it..");
         }
 
-        String klassName = "unknown";
         try {
-            AnyMessageProto.AnyMessage anyMessage = AnyMessageProto.AnyMessage
-                .parseFrom(data);
-
-            /* Assemble name and package */
-            klassName = anyMessage.getClazzName();
-            String klassPkg = String.format(
-                "de.dal33t.powerfolder.protocol.%sProto$%s", klassName,
-                klassName);
-
-            // Workaround for FolderFilesChanged (protected variables cannot be
-            // set via reflection)
-            if (klassName.equals("FolderFilesChanged")) {
-                FolderFilesChangedProto.FolderFilesChanged folderFilesChangedProto = 
-                    FolderFilesChangedProto.FolderFilesChanged.parseFrom(data);
-
-                FolderFilesChangedExt folderFilesChangedExt = new FolderFilesChangedExt();
-                folderFilesChangedExt.initFromD2D(folderFilesChangedProto);
-
-                return folderFilesChangedExt;
-            }
-
-            /* Try to create D2D message */
-            Class<?> klass = Class.forName(klassPkg);
-            Method method = klass.getMethod("parseFrom", byte[].class);
-            AbstractMessage abstractMessage = (AbstractMessage) method.invoke(null, (Object) data);
-
-            // Translate new names defined in protocol files to old message names
-            if (klassName.equals("DownloadAbort")) {
-                klassName = "AbortDownload";
-            } else if (klassName.equals("DownloadRequest")) {
-                klassName = "RequestDownload";
-            } else if (klassName.equals("FileListRequest")) {
-                klassName = "D2DFileListRequest";
-            } else if (klassName.equals("FilePartInfo")) {
-                klassName = "PartInfo";
-            } else if (klassName.equals("FilePartInfoList")) {
-                klassName = "FilePartsRecord";
-            } else if (klassName.equals("FilePartInfoListReply")) {
-                klassName = "ReplyFilePartsRecord";
-            } else if (klassName.equals("FilePartInfoListRequest")) {
-                klassName = "RequestFilePartsRecord";
-            } else if (klassName.equals("FilePartReply")) {
-                klassName = "FileChunk";
-            } else if (klassName.equals("FilePartRequest")) {
-                klassName = "RequestPart";
-            } else if (klassName.equals("NodeInfo")) {
-                klassName = "MemberInfo";
-            } else if (klassName.equals("NodeList")) {
-                klassName = "KnownNodes";
-            } else if (klassName.equals("NodeListRequest")) {
-                klassName = "RequestNodeList";
-            } else if (klassName.equals("UploadAbort")) {
-                klassName = "AbortUpload";
-            } else if (klassName.equals("UploadStart")) {
-                klassName = "StartUpload";
-            } else if (klassName.equals("UploadStop")) {
-                klassName = "StopUpload";
-            }
-
-            /* Try to find klass in package list and might
-             * cause a NPE when no matching class can be found */
-            for(String pkg : PACKAGES) {
-                try {
-                    klass = Class.forName(String.format(pkg, klassName));
-                } catch (ClassNotFoundException e) {
-                    klass = null; ///< Make this this fails
-                }
-                
-                if(null != klass) break; ///< Exit when done
-            }
-            
-            method = klass.getMethod("initFromD2D", AbstractMessage.class);
-
-            Object message = klass.newInstance();
-
-            method.invoke(message, abstractMessage); ///< Call initFromD2DMessage
-
-            return message;
-        } catch (NoSuchMethodException | SecurityException
-            | IllegalArgumentException | InvocationTargetException
-            | InstantiationException | IllegalAccessException
-            | InvalidProtocolBufferException | NullPointerException e)
-        {
+            return registry.read(data, len);
+        } catch (InvalidProtocolBufferException | RuntimeException e) {
             if (isFiner()) {
-                logFiner("Cannot read message(" + klassName + "): " + e.toString());
+                logFiner("Cannot read message: " + e.toString());
             }
 
             throw new ConnectionException(
@@ -248,34 +156,18 @@ public class D2DSocketConnectionHandler extends AbstractSocketConnectionHandler
     @Override
     protected byte[] serialize(Message message) throws ConnectionException {
         // Block unsupported messages
-        if (message instanceof AddFriendNotification) {
-            message = new Ping();
-        } else if (message instanceof KnownNodes) {
-            message = new Ping();
-        } else if (message instanceof RelayedMessageExt) {
-            message = new Ping();
-        } else if (message instanceof Invitation) {
-            message = new Ping();
-        } else if (message instanceof Problem) {
-            message = new Ping();
-        } else if (message instanceof RequestNodeList) {
-            message = new Ping();
-        } else if (message instanceof TransferStatus) {
-            message = new Ping();
-        } else if (message instanceof UDTMessage) {
+        if (!registry.isSupported(message)) {
             message = new Ping();
         }
 
         byte[] data = null;
 
         if (message instanceof D2DObject) {
-            AbstractMessage abstractMessage = ((D2DObject) message).toD2D();
+            data = registry.write((D2DObject) message);
 
             if (isFiner()) {
-                logFiner("Sent " + abstractMessage.getClass().getCanonicalName());
+                logFiner("Sent " + message.getClass().getCanonicalName());
             }
-
-            data = abstractMessage.toByteArray();
         } else {
             logWarning("Message " + message.getClass().getSimpleName() + " does not implement D2Object");
             throw new ConnectionException("Message " + message.getClass().getSimpleName() + " does not implement D2Object").with(this);
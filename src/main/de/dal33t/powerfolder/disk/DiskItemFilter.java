@@ -44,6 +44,7 @@ import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.pattern.Pattern;
 import de.dal33t.powerfolder.util.pattern.PatternFactory;
+import de.dal33t.powerfolder.util.pattern.PatternMatcher;
 
 /**
  * Class to hold a number of patterns to filter DiskItems with. The class has
@@ -73,6 +74,12 @@ public class DiskItemFilter {
      */
     private final Set<Pattern> patterns = new CopyOnWriteArraySet<Pattern>();
 
+    /**
+     * All patterns compiled into one matcher. Recompiled on every change of
+     * the patterns.
+     */
+    private volatile PatternMatcher matcher = new PatternMatcher(patterns);
+
     /**
      * Whether the patterns have been modified since the last save.
      */
@@ -148,13 +155,15 @@ public class DiskItemFilter {
 
                 // Something changed. Redo the patterns.
                 log.fine("Received a pattern file different to own, so loading it.");
-                for (Pattern oldPattern : patterns) {
-                    patterns.remove(oldPattern);
+                List<Pattern> oldPatterns = new ArrayList<Pattern>(patterns);
+                patterns.removeAll(oldPatterns);
+                patterns.addAll(tempPatterns);
+                compile();
+                for (Pattern oldPattern : oldPatterns) {
                     listenerSupport.patternRemoved(new PatternChangedEvent(
                         this, oldPattern.getPatternText(), false));
                 }
                 for (Pattern newPattern : tempPatterns) {
-                    patterns.add(newPattern);
                     listenerSupport.patternAdded(new PatternChangedEvent(this,
                         newPattern.getPatternText(), true));
                 }
@@ -232,6 +241,7 @@ public class DiskItemFilter {
         }
         try {
             patterns.add(pattern);
+            compile();
             dirty = true;
             listenerSupport.patternAdded(new PatternChangedEvent(this, pattern
                 .getPatternText(), true));
@@ -242,9 +252,14 @@ public class DiskItemFilter {
     }
 
     void removeAllPatterns() {
-        for (Pattern pattern : patterns) {
-            patterns.remove(pattern);
-            dirty = true;
+        List<Pattern> removed = new ArrayList<Pattern>(patterns);
+        if (removed.isEmpty()) {
+            return;
+        }
+        patterns.removeAll(removed);
+        compile();
+        dirty = true;
+        for (Pattern pattern : removed) {
             listenerSupport.patternRemoved(new PatternChangedEvent(this,
                 pattern.getPatternText(), false));
         }
@@ -260,6 +275,7 @@ public class DiskItemFilter {
         for (Pattern pattern : patterns) {
             if (pattern.equals(targetPattern)) {
                 patterns.remove(pattern);
+                compile();
                 dirty = true;
                 listenerSupport.patternRemoved(new PatternChangedEvent(this,
                     pattern.getPatternText(), false));
@@ -267,6 +283,10 @@ public class DiskItemFilter {
         }
     }
 
+    private synchronized void compile() {
+        matcher = new PatternMatcher(patterns);
+    }
+
     /**
      * @return True if patterns have been changed.
      */
@@ -285,20 +305,9 @@ public class DiskItemFilter {
         if (diskItem instanceof DirectoryInfo) {
             DirectoryInfo directoryInfo = (DirectoryInfo) diskItem;
             String dirName = directoryInfo.getRelativeName() + "/*";
-
-            for (Pattern pattern : patterns) {
-                if (pattern.isMatch(dirName)) {
-                    return true;
-                }
-            }
+            return matcher.isMatch(dirName);
         } else if (diskItem instanceof FileInfo) {
-            String name = diskItem.getRelativeName();
-
-            for (Pattern pattern : patterns) {
-                if (pattern.isMatch(name)) {
-                    return true;
-                }
-            }
+            return matcher.isMatch(diskItem.getRelativeName());
         }
 
         return false;
@@ -355,12 +364,7 @@ public class DiskItemFilter {
         if (patterns.isEmpty()) {
             return false;
         }
-        for (Pattern pattern : patterns) {
-            if (pattern.isMatch(relativeName)) {
-                return true;
-            }
-        }
-        return false;
+        return matcher.isMatch(relativeName);
     }
 
     /**
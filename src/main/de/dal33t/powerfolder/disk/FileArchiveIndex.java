@@ -0,0 +1,359 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+
+/**
+ * The versions stored in a {@link FileArchiver}, by relative name of the file.
+ * Saves directory listings and file name parsing of the archive on every
+ * lookup.
+ * <p>
+ * Also knows which versions have the same content (by hash), so identical
+ * versions can be stored once.
+ *
+ * @author sprajc
+ */
+final class FileArchiveIndex {
+    private static final int VERSION_1 = 1;
+
+    private final Map<String, List<Version>> versions = new HashMap<String, List<Version>>();
+    private final Map<String, List<Version>> contents = new HashMap<String, List<Version>>();
+    private long count;
+
+    /**
+     * A single archived version of a file.
+     */
+    static final class Version {
+        final String relativeName;
+        final int version;
+        final long size;
+        final long modifiedDate;
+        final MemberInfo modifiedBy;
+        final AccountInfo modifiedByAccount;
+        /**
+         * The hash of the content or null if unknown.
+         */
+        final String hash;
+
+        Version(String relativeName, int version, long size, Date modifiedDate,
+            MemberInfo modifiedBy, AccountInfo modifiedByAccount, String hash)
+        {
+            this(relativeName, version, size, modifiedDate != null
+                ? modifiedDate.getTime()
+                : 0, modifiedBy, modifiedByAccount, hash);
+        }
+
+        private Version(String relativeName, int version, long size,
+            long modifiedDate, MemberInfo modifiedBy,
+            AccountInfo modifiedByAccount, String hash)
+        {
+            this.relativeName = relativeName;
+            this.version = version;
+            this.size = size;
+            this.modifiedDate = modifiedDate;
+            this.modifiedBy = modifiedBy;
+            this.modifiedByAccount = modifiedByAccount;
+            this.hash = hash;
+        }
+
+        Date getModifiedDate() {
+            return new Date(modifiedDate);
+        }
+
+        @Override
+        public String toString() {
+            return relativeName + " version " + version;
+        }
+    }
+
+    private static String key(String relativeName) {
+        return FileInfo.IGNORE_CASE
+            ? relativeName.toLowerCase()
+            : relativeName;
+    }
+
+    /**
+     * Adds the version. Replaces a previous entry of the same version.
+     *
+     * @param version
+     */
+    synchronized void add(Version version) {
+        remove(version.relativeName, version.version);
+        String key = key(version.relativeName);
+        List<Version> list = versions.get(key);
+        if (list == null) {
+            list = new ArrayList<Version>(2);
+            versions.put(key, list);
+        }
+        list.add(version);
+        count++;
+        if (version.hash != null) {
+            List<Version> same = contents.get(version.hash);
+            if (same == null) {
+                same = new ArrayList<Version>(1);
+                contents.put(version.hash, same);
+            }
+            same.add(version);
+        }
+    }
+
+    /**
+     * @param relativeName
+     * @param version
+     * @return the removed version or null if not indexed.
+     */
+    synchronized Version remove(String relativeName, int version) {
+        String key = key(relativeName);
+        List<Version> list = versions.get(key);
+        if (list == null) {
+            return null;
+        }
+        for (Iterator<Version> it = list.iterator(); it.hasNext();) {
+            Version candidate = it.next();
+            if (candidate.version != version) {
+                continue;
+            }
+            it.remove();
+            count--;
+            if (list.isEmpty()) {
+                versions.remove(key);
+            }
+            if (candidate.hash != null) {
+                List<Version> same = contents.get(candidate.hash);
+                if (same != null) {
+                    same.remove(candidate);
+                    if (same.isEmpty()) {
+                        contents.remove(candidate.hash);
+                    }
+                }
+            }
+            return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * @param relativeName
+     * @return all indexed versions of the file. Not sorted.
+     */
+    synchronized List<Version> getVersions(String relativeName) {
+        List<Version> list = versions.get(key(relativeName));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Version>(list);
+    }
+
+    /**
+     * @param relativeName
+     * @param version
+     * @return the indexed version or null if not indexed.
+     */
+    synchronized Version getVersion(String relativeName, int version) {
+        List<Version> list = versions.get(key(relativeName));
+        if (list == null) {
+            return null;
+        }
+        for (Version candidate : list) {
+            if (candidate.version == version) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    synchronized boolean hasVersions(String relativeName) {
+        return versions.containsKey(key(relativeName));
+    }
+
+    /**
+     * @param hash
+     * @return a version with this content or null if none.
+     */
+    synchronized Version findContent(String hash) {
+        List<Version> same = contents.get(hash);
+        return same != null && !same.isEmpty() ? same.get(0) : null;
+    }
+
+    /**
+     * @param version
+     * @return true if another version shares the content of this version.
+     */
+    synchronized boolean isShared(Version version) {
+        if (version.hash == null) {
+            return false;
+        }
+        List<Version> same = contents.get(version.hash);
+        if (same == null) {
+            return false;
+        }
+        for (Version other : same) {
+            if (other != version) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return all indexed versions.
+     */
+    synchronized List<Version> getAll() {
+        List<Version> all = new ArrayList<Version>((int) count);
+        for (List<Version> list : versions.values()) {
+            all.addAll(list);
+        }
+        return all;
+    }
+
+    /**
+     * @return the number of bytes stored. Identical versions count once.
+     */
+    synchronized long getStoredSize() {
+        long size = 0;
+        for (List<Version> list : versions.values()) {
+            for (Version version : list) {
+                if (version.hash == null
+                    || contents.get(version.hash).get(0) == version)
+                {
+                    size += version.size;
+                }
+            }
+        }
+        return size;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized void clear() {
+        versions.clear();
+        contents.clear();
+        count = 0;
+    }
+
+    // Serialization **********************************************************
+
+    synchronized void write(ObjectOutput out) throws IOException {
+        Map<Object, Integer> written = new IdentityHashMap<Object, Integer>();
+        out.writeInt(VERSION_1);
+        out.writeLong(count);
+        for (List<Version> list : versions.values()) {
+            for (Version version : list) {
+                out.writeUTF(version.relativeName);
+                out.writeInt(version.version);
+                out.writeLong(version.size);
+                out.writeLong(version.modifiedDate);
+                writeRef(out, written, version.modifiedBy);
+                writeRef(out, written, version.modifiedByAccount);
+                out.writeBoolean(version.hash != null);
+                if (version.hash != null) {
+                    out.writeUTF(version.hash);
+                }
+            }
+        }
+    }
+
+    static FileArchiveIndex read(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        int streamVersion = in.readInt();
+        if (streamVersion != VERSION_1) {
+            throw new InvalidClassException(FileArchiveIndex.class.getName(),
+                "Unable to read. Version(stream): " + streamVersion
+                    + ", expected: " + VERSION_1);
+        }
+        FileArchiveIndex index = new FileArchiveIndex();
+        List<Object> refs = new ArrayList<Object>();
+        long n = in.readLong();
+        for (long i = 0; i < n; i++) {
+            String relativeName = in.readUTF();
+            int version = in.readInt();
+            long size = in.readLong();
+            long modifiedDate = in.readLong();
+            MemberInfo modifiedBy = (MemberInfo) readRef(in, refs, false);
+            AccountInfo modifiedByAccount = (AccountInfo) readRef(in, refs,
+                true);
+            String hash = in.readBoolean() ? in.readUTF() : null;
+            index.add(new Version(relativeName, version, size, modifiedDate,
+                modifiedBy, modifiedByAccount, hash));
+        }
+        return index;
+    }
+
+    /**
+     * Writes member and account infos only once per stream. Afterwards they
+     * are referenced by index.
+     */
+    private static void writeRef(ObjectOutput out, Map<Object, Integer> written,
+        Object info) throws IOException
+    {
+        if (info == null) {
+            out.writeInt(-1);
+            return;
+        }
+        Integer ref = written.get(info);
+        if (ref != null) {
+            out.writeInt(ref);
+            return;
+        }
+        out.writeInt(-2);
+        written.put(info, written.size());
+        if (info instanceof MemberInfo) {
+            ((MemberInfo) info).writeExternal(out);
+        } else {
+            ((AccountInfo) info).writeExternal(out);
+        }
+    }
+
+    private static Object readRef(ObjectInput in, List<Object> refs,
+        boolean account) throws IOException, ClassNotFoundException
+    {
+        int ref = in.readInt();
+        if (ref == -1) {
+            return null;
+        }
+        if (ref >= 0) {
+            return refs.get(ref);
+        }
+        Object info = account
+            ? AccountInfo.readExt(in)
+            : MemberInfo.readExt(in);
+        refs.add(info);
+        return info;
+    }
+}
@@ -27,11 +27,20 @@ import de.dal33t.powerfolder.util.StreamUtils;
 import de.dal33t.powerfolder.util.Util;
 import org.apache.commons.io.FileUtils;
 
+import de.dal33t.powerfolder.disk.FileArchiveIndex.Version;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,6 +54,11 @@ import java.util.regex.Pattern;
  * stored in an archives directory, with suffix '_K_nnn', where 'nnn' is the
  * version number. So 'data/info.txt' archive version 6 would be
  * 'archive/data/info.txt_K_6'.
+ * <p>
+ * The versions are kept in a {@link FileArchiveIndex}, persisted in the
+ * archive directory. The index file is removed while it has unsaved changes,
+ * so the archive gets indexed again after a crash. Optionally identical
+ * versions are stored only once (hard links).
  *
  * @author dante
  */
@@ -53,9 +67,13 @@ public class FileArchiver {
     private static final Logger log = Logger.getLogger(FileArchiver.class
             .getName());
     private static final VersionComparator VERSION_COMPARATOR = new VersionComparator();
+    private static final IndexVersionComparator INDEX_VERSION_COMPARATOR = new IndexVersionComparator();
     private static final Pattern BASE_NAME_PATTERN = Pattern
             .compile("(.*)_K_\\d+(.*)");
     private static final String SIZE_INFO_FILE = "Size";
+    private static final String INDEX_FILE = "Versions";
+    private static final String INDEX_TEMP_FILE = "Versions.writing";
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
 
     private final Path archiveDirectory;
     private volatile int versionsPerFile;
@@ -66,6 +84,13 @@ public class FileArchiver {
      */
     private Long size;
 
+    /*
+     * The versions in this archive. Loaded or built on first use.
+     */
+    private FileArchiveIndex index;
+    private boolean indexDirty;
+    private volatile boolean deduplicate;
+
     /**
      * Constructs a new FileArchiver which stores backups in the given
      * directory.
@@ -143,8 +168,20 @@ public class FileArchiver {
         if (Files.exists(target.getParent())) {
             // Reset cache
             // size = null;
-            boolean tryCopy = forceKeepSource;
-            if (!tryCopy) {
+            String hash = null;
+            boolean linked = false;
+            if (deduplicate) {
+                hash = getContentHash(source);
+                linked = hash != null
+                    && linkContent(hash, source, target, forceKeepSource);
+            }
+            if (hash != null && !linked
+                    && getIndex().findContent(hash) != null) {
+                // Stored independently. Must not count as shared content.
+                hash = null;
+            }
+            boolean tryCopy = forceKeepSource && !linked;
+            if (!tryCopy && !linked) {
                 try {
                     // // PFS-1794: Replace existing target file atomically.
                     Files.move(source, target,
@@ -175,10 +212,14 @@ public class FileArchiver {
                         + source + " to " + target);
             }
 
+            getIndex().add(new Version(fileInfo.getRelativeName(),
+                    fileInfo.getVersion(), Files.size(target),
+                    fileInfo.getModifiedDate(), fileInfo.getModifiedBy(),
+                    fileInfo.getModifiedByAccount(), hash));
+            indexChanged();
+
             // Success, now check if we have to remove a file
-            List<Path> list = getArchivedFiles(target.getParent(),
-                    fileInfo.getFilenameOnly());
-            checkArchivedFile(list);
+            checkArchivedVersions(fileInfo.getRelativeName());
 
             if (oldSize != size) {
                 saveSize();
@@ -193,6 +234,286 @@ public class FileArchiver {
         return archiveDirectory;
     }
 
+    /**
+     * @param deduplicate
+     *            true to store identical versions only once.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Stores the version as hard link to an archived version with the same
+     * content.
+     *
+     * @return true if linked, false if the version has to be stored.
+     */
+    private boolean linkContent(String hash, Path source, Path target,
+            boolean keepSource) {
+        Version same = getIndex().findContent(hash);
+        if (same == null) {
+            return false;
+        }
+        Path existing = getArchivedPath(same.relativeName, same.version);
+        try {
+            if (Files.notExists(existing)
+                    || Files.size(existing) != Files.size(source)) {
+                return false;
+            }
+            Files.createLink(target, existing);
+        } catch (IOException | UnsupportedOperationException
+                | SecurityException e) {
+            log.fine("Unable to link " + target + " to identical version "
+                    + existing + ". " + e);
+            return false;
+        }
+        if (!keepSource) {
+            try {
+                Files.deleteIfExists(source);
+            } catch (IOException e) {
+                log.warning("Unable to remove old file " + source + ". " + e);
+            }
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Archived " + target + " as link to identical version "
+                    + existing);
+        }
+        return true;
+    }
+
+    private static String getContentHash(Path file) {
+        try {
+            MessageDigest digest = MessageDigest
+                    .getInstance(CONTENT_HASH_ALGORITHM);
+            return new String(Util.encodeHex(PathUtils.digest(file, digest,
+                    null)));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            log.fine("Unable to calculate hash of " + file + ". " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the oldest versions of the file, which exceed the allowed number
+     * of versions.
+     */
+    private void checkArchivedVersions(String relativeName)
+            throws IOException {
+        if (versionsPerFile < 0) {
+            // Unlimited. Don't check
+            return;
+        }
+        List<Version> versions = getIndex().getVersions(relativeName);
+        if (versions.size() <= versionsPerFile) {
+            return;
+        }
+        Collections.sort(versions, INDEX_VERSION_COMPARATOR);
+        int toDelete = versions.size() - versionsPerFile;
+        for (int i = 0; i < toDelete; i++) {
+            deleteVersion(versions.get(i));
+        }
+    }
+
+    private void deleteVersion(Version version) throws IOException {
+        FileArchiveIndex versions = getIndex();
+        Path f = getArchivedPath(version.relativeName, version.version);
+        boolean shared = versions.isShared(version);
+        try {
+            if (Files.exists(f)) {
+                long len = Files.size(f);
+                Files.delete(f);
+                if (size != null && !shared) {
+                    size -= len;
+                }
+            }
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Deleted archived file " + f);
+            }
+        } catch (IOException ioe) {
+            throw new IOException("Could not delete old version: " + f);
+        }
+        versions.remove(version.relativeName, version.version);
+        indexChanged();
+    }
+
+    // Version index **********************************************************
+
+    private synchronized FileArchiveIndex getIndex() {
+        if (index == null) {
+            index = loadIndex();
+            if (index == null) {
+                index = buildIndex(null);
+                indexDirty = true;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Removes the index file until the changes are saved.
+     */
+    private synchronized void indexChanged() {
+        if (indexDirty) {
+            return;
+        }
+        indexDirty = true;
+        try {
+            Files.deleteIfExists(archiveDirectory.resolve(INDEX_FILE));
+        } catch (IOException e) {
+            log.fine("Unable to delete version index " + INDEX_FILE + ". " + e);
+        }
+    }
+
+    private FileArchiveIndex loadIndex() {
+        Path indexFile = archiveDirectory.resolve(INDEX_FILE);
+        if (Files.notExists(indexFile)) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            return FileArchiveIndex.read(in);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            log.warning("Unable to read version index " + indexFile
+                    + ". Indexing archive again. " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Indexes all versions found in the archive directory.
+     *
+     * @param known
+     *            the previous index to take the meta data of unchanged
+     *            versions from, may be null.
+     */
+    private FileArchiveIndex buildIndex(final FileArchiveIndex known) {
+        final FileArchiveIndex built = new FileArchiveIndex();
+        if (Files.notExists(archiveDirectory)) {
+            return built;
+        }
+        try {
+            Files.walkFileTree(archiveDirectory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) {
+                    if (file.getParent().equals(archiveDirectory)
+                            && isMetaDataFile(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    String name;
+                    int version;
+                    try {
+                        name = getFileInfoName(file);
+                        version = getVersionNumber(file);
+                    } catch (RuntimeException e) {
+                        log.fine("Not an archived file: " + file + ". " + e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Version previous = known != null ? known.getVersion(name,
+                            version) : null;
+                    if (previous != null && previous.size == attrs.size()) {
+                        built.add(previous);
+                    } else {
+                        built.add(new Version(name, version, attrs.size(),
+                                new Date(attrs.lastModifiedTime().toMillis()),
+                                null, null, null));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException exc) {
+                    log.warning(exc.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warning("Unable to index archive " + archiveDirectory + ". "
+                    + e);
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Indexed " + built.getCount() + " versions in "
+                    + archiveDirectory);
+        }
+        return built;
+    }
+
+    private static boolean isMetaDataFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.equals(SIZE_INFO_FILE) || name.equals(INDEX_FILE)
+                || name.equals(INDEX_TEMP_FILE);
+    }
+
+    /**
+     * Saves the version index if changed.
+     */
+    synchronized void saveIndex() {
+        if (index == null || !indexDirty) {
+            return;
+        }
+        Path indexFile = archiveDirectory.resolve(INDEX_FILE);
+        if (Files.notExists(archiveDirectory)) {
+            indexDirty = false;
+            return;
+        }
+        if (index.getCount() == 0) {
+            try {
+                Files.deleteIfExists(indexFile);
+                indexDirty = false;
+            } catch (IOException e) {
+                log.fine("Unable to delete version index " + indexFile + ". "
+                        + e);
+            }
+            return;
+        }
+        Path tempFile = archiveDirectory.resolve(INDEX_TEMP_FILE);
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                index.write(out);
+            }
+            Files.move(tempFile, indexFile,
+                    StandardCopyOption.REPLACE_EXISTING);
+            PathUtils.setAttributesOnWindows(indexFile, true, true);
+            indexDirty = false;
+        } catch (IOException e) {
+            log.warning("Unable to save version index " + indexFile + ". "
+                    + e);
+        }
+    }
+
+    private FileInfo toFileInfo(Version version, FolderInfo foInfo) {
+        // PFC-2352: TODO: Support ID and tags
+        return FileInfoFactory.archivedFile(foInfo, version.relativeName,
+                null, version.size, version.modifiedBy != null
+                        ? version.modifiedBy
+                        : mySelf, version.modifiedByAccount,
+                version.getModifiedDate(), version.version, version.hash, null);
+    }
+
+    /**
+     * @return the path of the archived version. In the old format if it only
+     * exists in that format.
+     */
+    private Path getArchivedPath(String relativeName, int version) {
+        Path target = getArchiveTarget(relativeName, version);
+        if (Files.notExists(target)) {
+            Path oldTarget = getOldArchiveTarget(relativeName, version);
+            if (Files.exists(oldTarget)) {
+                return oldTarget;
+            }
+        }
+        return target;
+    }
+
     private void checkArchivedFile(Collection<Path> versions)
             throws IOException {
         assert versions != null;
@@ -245,6 +566,9 @@ public class FileArchiver {
             return true;
         }
         boolean check = checkRecursive(archiveDirectory, new HashSet<Path>());
+        index = buildIndex(index);
+        indexDirty = true;
+        saveIndex();
         size = null;
         return check;
     }
@@ -272,7 +596,7 @@ public class FileArchiver {
 
         Map<String, Collection<Path>> fileMap = new HashMap<String, Collection<Path>>();
         for (Path f : flist) {
-            if (f.getFileName().toString().equals(SIZE_INFO_FILE)) {
+            if (dir.equals(archiveDirectory) && isMetaDataFile(f)) {
                 continue;
             }
             if (Files.isDirectory(f)) {
@@ -324,7 +648,11 @@ public class FileArchiver {
     }
 
     private Path getArchiveTarget(FileInfo fileInfo) {
-        String relativeName = fileInfo.getRelativeName();
+        return getArchiveTarget(fileInfo.getRelativeName(),
+                fileInfo.getVersion());
+    }
+
+    private Path getArchiveTarget(String relativeName, int version) {
 
         // Split something like 'file.txt' into 'file' and '.txt', so we can
         // insert the '_K_nnn' stuff.
@@ -340,7 +668,7 @@ public class FileArchiver {
         return archiveDirectory.resolve(FileInfoFactory
                 .encodeIllegalChars(parts[0])
                 + "_K_"
-                + fileInfo.getVersion()
+                + version
                 + FileInfoFactory.encodeIllegalChars(parts[1]));
     }
 
@@ -353,9 +681,13 @@ public class FileArchiver {
      * @return
      */
     private Path getOldArchiveTarget(FileInfo fileInfo) {
+        return getOldArchiveTarget(fileInfo.getRelativeName(),
+                fileInfo.getVersion());
+    }
+
+    private Path getOldArchiveTarget(String relativeName, int version) {
         return archiveDirectory.resolve(FileInfoFactory
-                .encodeIllegalChars(fileInfo.getRelativeName()) + "_K_"
-                + fileInfo.getVersion());
+                .encodeIllegalChars(relativeName) + "_K_" + version);
     }
 
     private String getFileInfoName(Path fileInArchive) {
@@ -403,41 +735,6 @@ public class FileArchiver {
         return Integer.parseInt(lastPart);
     }
 
-    private static List<Path> getArchivedFiles(Path directory,
-                                               final String baseName) {
-        List<Path> ret = new ArrayList<Path>();
-
-        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
-            for (Path file : files) {
-                if (belongsTo(FileInfoFactory.decodeIllegalChars(file.getFileName().toString()), baseName)) {
-                    ret.add(file);
-                }
-            }
-        } catch (IOException ioe) {
-            log.warning(ioe.toString());
-        }
-
-        return ret;
-    }
-
-    /**
-     * Use the {@link FileArchiver#BASE_NAME_PATTERN} to match the name and
-     * extension of the {@code baseName} to match the file's name and extension
-     * of {@code name}.
-     *
-     * @param name     Name of a file in the history
-     * @param baseName Name of the actual file in the folder
-     * @return {@code True} if {@code name} has the same filename and extension
-     * as {@code baseName}
-     */
-    private static boolean belongsTo(String name, String baseName) {
-        Matcher m = BASE_NAME_PATTERN.matcher(name);
-        if (m.matches()) {
-            return Util.equalsRelativeName(m.group(1) + m.group(2), baseName);
-        }
-        return false;
-    }
-
     /**
      * Search the history for an archived file of {@code fileInfo}
      *
@@ -447,44 +744,7 @@ public class FileArchiver {
      */
     public boolean hasArchivedFileInfo(FileInfo fileInfo) {
         Reject.ifNull(fileInfo, "FileInfo is null");
-        Path subdirectory;
-        try {
-            // Find archive subdirectory.
-            subdirectory = archiveDirectory
-                    .resolve(FileInfoFactory
-                            .encodeIllegalChars(fileInfo.getRelativeName()))
-                    .getParent();
-        } catch (InvalidPathException e) {
-            // PFS-2000:
-            log.warning("Unable to resolve versions for file: "
-                    + fileInfo.toDetailString() + ". " + e);
-            return false;
-        }
-        if (Files.notExists(subdirectory)) {
-            return false;
-        }
-
-        try (DirectoryStream<Path> files = Files
-                .newDirectoryStream(subdirectory)) {
-            String fn = fileInfo.getFilenameOnly();
-
-            // get rid of the extension, if present
-            int ind = fn.lastIndexOf('.');
-            if (ind > -1) {
-                fn = fn.substring(0, ind);
-            }
-            fn = FileInfoFactory.encodeIllegalChars(fn);
-
-            for (Path file : files) {
-                if (file.getFileName().toString().startsWith(fn)) {
-                    return true;
-                }
-            }
-        } catch (IOException ioe) {
-            log.warning(ioe.toString());
-        }
-
-        return false;
+        return getIndex().hasVersions(fileInfo.getRelativeName());
     }
 
     /**
@@ -502,41 +762,23 @@ public class FileArchiver {
      */
     public List<FileInfo> getArchivedFilesInfos(FileInfo fileInfo) {
         Reject.ifNull(fileInfo, "FileInfo is null");
-        // Find archive subdirectory.
-        Path subdirectory = PathUtils.buildFileFromRelativeName(
-                archiveDirectory,
-                FileInfoFactory.encodeIllegalChars(fileInfo.getRelativeName()))
-                .getParent();
-        if (Files.notExists(subdirectory)) {
+        FileArchiveIndex versions = getIndex();
+        List<Version> archived = versions.getVersions(fileInfo
+                .getRelativeName());
+        if (archived.isEmpty()) {
             return Collections.emptyList();
         }
-
-        Path target = getArchiveTarget(fileInfo);
-        List<Path> archivedFiles = getArchivedFiles(target.getParent(), fileInfo.getFilenameOnly());
-        if (archivedFiles == null || archivedFiles.size() == 0) {
-            return Collections.emptyList();
-        }
-        List<FileInfo> list = new ArrayList<FileInfo>();
+        List<FileInfo> list = new ArrayList<FileInfo>(archived.size());
         FolderInfo foInfo = fileInfo.getFolderInfo();
-        for (Path file : archivedFiles) {
-            try {
-                int version = getVersionNumber(file);
-                Date modDate = new Date(Files.getLastModifiedTime(file)
-                        .toMillis());
-                String name = getFileInfoName(file);
-                // PFC-2352: TODO: Support ID, hashes and tags
-                String oid = null;
-                String hashes = null;
-                String tags = null;
-                // PFC-2571: TODO: Add/Read modifier from meta-db
-                AccountInfo modAccount = null;
-                FileInfo archiveFile = FileInfoFactory.archivedFile(foInfo,
-                        name, oid, Files.size(file), mySelf, modAccount, modDate,
-                        version, hashes, tags);
-                list.add(archiveFile);
-            } catch (IOException ioe) {
-                log.warning(ioe.toString());
+        for (Version version : archived) {
+            if (Files.notExists(getArchivedPath(version.relativeName,
+                    version.version))) {
+                // Removed from outside.
+                versions.remove(version.relativeName, version.version);
+                indexChanged();
+                continue;
             }
+            list.add(toFileInfo(version, foInfo));
         }
         // Read-only, so others don't trash this.
         return Collections.unmodifiableList(list);
@@ -575,6 +817,15 @@ public class FileArchiver {
         }
     }
 
+    /**
+     * Comparator for comparing indexed versions.
+     */
+    private static class IndexVersionComparator implements Comparator<Version> {
+        public int compare(Version o1, Version o2) {
+            return o1.version - o2.version;
+        }
+    }
+
     /**
      * Restore a file version.
      *
@@ -620,16 +871,8 @@ public class FileArchiver {
 
     public synchronized long getSize() {
         if (size == null) {
-            long s = PathUtils.calculateDirectorySizeAndCount(archiveDirectory)[0];
-            Path sizeFile = archiveDirectory.resolve(SIZE_INFO_FILE);
-            if (Files.exists(sizeFile)) {
-                try {
-                    s -= Files.size(sizeFile);
-                } catch (IOException ioe) {
-                    log.warning(ioe.toString());
-                }
-            }
-            size = s;
+            // Identical versions are counted once.
+            size = getIndex().getStoredSize();
             saveSize();
         }
         return size;
@@ -648,8 +891,10 @@ public class FileArchiver {
         log.info(logMessage);
     }
 
-    private void purge() throws IOException {
+    private synchronized void purge() throws IOException {
         PathUtils.recursiveDelete(archiveDirectory);
+        index = new FileArchiveIndex();
+        indexDirty = false;
         size = 0L;
         saveSize();
     }
@@ -664,38 +909,29 @@ public class FileArchiver {
         log.info("Cleaning up " + archiveDirectory + " for files older than "
                 + cleanupDate);
 
-        if (Files.exists(archiveDirectory)) {
-            cleanupOldArchiveFiles(archiveDirectory, cleanupDate);
+        if (Files.notExists(archiveDirectory)) {
+            return;
         }
-    }
-
-    private static void cleanupOldArchiveFiles(Path file, Date cleanupDate) {
-        if (Files.isDirectory(file)) {
-            try (DirectoryStream<Path> files = Files.newDirectoryStream(file)) {
-                for (Path path : files) {
-                    cleanupOldArchiveFiles(path, cleanupDate);
-                }
-            } catch (IOException ioe) {
-                log.warning(ioe.toString());
+        Long oldSize = size;
+        for (Version version : getIndex().getAll()) {
+            if (version.modifiedDate >= cleanupDate.getTime()) {
+                continue;
+            }
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Deleting old archive file " + version + " ("
+                        + version.getModifiedDate() + ')');
             }
-        } else {
             try {
-                Date age = new Date(Files.getLastModifiedTime(file).toMillis());
-                if (age.before(cleanupDate)) {
-                    if (log.isLoggable(Level.FINE)) {
-                        log.fine("Deleting old archive file " + file + " ("
-                                + age + ')');
-                    }
-                    try {
-                        Files.delete(file);
-                    } catch (SecurityException e) {
-                        log.severe("Could not delete archive file " + file + ". " + e);
-                    }
-                }
+                deleteVersion(version);
             } catch (IOException ioe) {
-                log.warning("Could not read modification time of " + file + ". " + ioe);
+                log.severe("Could not delete archive file " + version + ". "
+                        + ioe);
             }
         }
+        if (size != null && !size.equals(oldSize)) {
+            saveSize();
+        }
+        saveIndex();
     }
 
     private void saveSize() {
@@ -55,6 +55,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static de.dal33t.powerfolder.disk.FolderSettings.PREFIX_V4;
 
@@ -89,6 +92,12 @@ public class Folder extends PFComponent {
      */
     private FileInfoDAO dao;
 
+    /**
+     * Journal of the changes to the own files since the last full write of
+     * the folder database.
+     */
+    private final FolderDBJournal dbJournal = new FolderDBJournal();
+
     /**
      * Date of the last directory scan
      */
@@ -435,6 +444,8 @@ public class Folder extends PFComponent {
 
         archiver = ArchiveMode.FULL_BACKUP.getInstance(this);
         archiver.setVersionsPerFile(folderSettings.getVersions());
+        archiver.setDeduplicate(ConfigurationEntry.ARCHIVE_DEDUPLICATION
+            .getValueBoolean(getController()));
 
         watcher = new FolderWatcher(this);
         
@@ -1130,7 +1141,7 @@ public class Folder extends PFComponent {
             }
 
             // Max
-            if (watcher.isSupported()) {
+            if (watcher.isWatching()) {
                 if (!syncProfile.isCustom() && frequency > FIVE_MINUTES) {
                     frequency = FIVE_MINUTES;
                 }
@@ -1373,7 +1384,8 @@ public class Folder extends PFComponent {
 
         // ignore our database file
         if (file.getFileName().toString().equals(Constants.DB_FILENAME)
-            || file.getFileName().toString().equals(Constants.DB_BACKUP_FILENAME))
+            || file.getFileName().toString().equals(Constants.DB_BACKUP_FILENAME)
+            || file.getFileName().toString().equals(Constants.DB_JOURNAL_FILENAME))
         {
             logFiner("Ignoring folder database file: " + file);
             return null;
@@ -1780,8 +1792,13 @@ public class Folder extends PFComponent {
             // Stop old DAO
             dao.stop();
         }
-        dao = new FileInfoDAOHashMapImpl(getMySelf().getId(),
-            diskItemFilter);
+        FileInfoDAOHashMapImpl hashMapDAO = new FileInfoDAOHashMapImpl(
+            getMySelf().getId(), diskItemFilter);
+        hashMapDAO.setListener(dbJournal);
+        hashMapDAO.setSecondaryIndexMinFiles(
+            ConfigurationEntry.FOLDER_DB_SECONDARY_INDEX_MIN_FILES
+                .getValueInt(getController()));
+        dao = hashMapDAO;
     }
 
     /**
@@ -1805,7 +1822,8 @@ public class Folder extends PFComponent {
             {
                 // load files and scan in
 
-                FileInfo[] files = (FileInfo[]) in.readObject();
+                FileInfo[] files = FileInfoCodec.readObject(in);
+                boolean corrected = false;
                 synchronized (dbAccessLock) {
                     for (int i = 0; i < files.length; i++) {
                         FileInfo fInfo = files[i];
@@ -1813,6 +1831,7 @@ public class Folder extends PFComponent {
                         if (fInfo != files[i]) {
                             // Instance has changes.
                             setDBDirty();
+                            corrected = true;
                         }
                     }
                     // Help with initial capacity info.
@@ -1825,6 +1844,61 @@ public class Folder extends PFComponent {
 
                 // read them always ..
                 MemberInfo[] members1 = (MemberInfo[]) in.readObject();
+
+                // Old blacklist explicit items.
+                // Now disused, but maintained for backward compatability.
+                try {
+                    Object object = in.readObject();
+                    for (FileInfo info : (Collection<FileInfo>) object) {
+                        diskItemFilter.addPattern(info.getRelativeName());
+                        if (isFiner()) {
+                            logFiner("ignore@" + info.getRelativeName());
+                        }
+                    }
+                } catch (EOFException e) {
+                    logFiner("No ignore list");
+                } catch (Exception e) {
+                    logSevere("read ignore error: " + this + e.getMessage(), e);
+                } catch (OutOfMemoryError e) {
+                    logWarning("Read ignore error: " + this + " on " + dbFile
+                        + ": " + e.getMessage());
+                }
+
+                try {
+                    Object object = in.readObject();
+                    if (object instanceof Date) {
+                        lastScan = (Date) object;
+                        if (isFiner()) {
+                            logFiner("lastScan " + lastScan);
+                        }
+                    }
+                } catch (EOFException e) {
+                    // ignore nothing available for ignore
+                    logFine("No last scan date");
+                } catch (Exception e) {
+                    logSevere("read ignore error: " + this + e.getMessage(), e);
+                }
+
+                // Generation of the snapshot. Changes journaled afterwards
+                // belong to the same generation.
+                long generation = FolderDBJournal.NO_GENERATION;
+                try {
+                    Object object = in.readObject();
+                    if (object instanceof Long) {
+                        generation = (Long) object;
+                    }
+                } catch (EOFException e) {
+                    logFiner("No database journal generation");
+                } catch (Exception e) {
+                    logWarning("Read journal generation error: " + this + " "
+                        + e.getMessage());
+                }
+
+                members1 = replayFolderDBJournal(generation, members1);
+                if (corrected) {
+                    dbJournal.invalidate();
+                }
+
                 // Do not load members
                 logFiner("Loading " + members1.length + " members");
                 for (MemberInfo memberInfo : members1) {
@@ -1864,40 +1938,6 @@ public class Folder extends PFComponent {
                     }
                 }
 
-                // Old blacklist explicit items.
-                // Now disused, but maintained for backward compatability.
-                try {
-                    Object object = in.readObject();
-                    for (FileInfo info : (Collection<FileInfo>) object) {
-                        diskItemFilter.addPattern(info.getRelativeName());
-                        if (isFiner()) {
-                            logFiner("ignore@" + info.getRelativeName());
-                        }
-                    }
-                } catch (EOFException e) {
-                    logFiner("No ignore list");
-                } catch (Exception e) {
-                    logSevere("read ignore error: " + this + e.getMessage(), e);
-                } catch (OutOfMemoryError e) {
-                    logWarning("Read ignore error: " + this + " on " + dbFile
-                        + ": " + e.getMessage());
-                }
-
-                try {
-                    Object object = in.readObject();
-                    if (object instanceof Date) {
-                        lastScan = (Date) object;
-                        if (isFiner()) {
-                            logFiner("lastScan " + lastScan);
-                        }
-                    }
-                } catch (EOFException e) {
-                    // ignore nothing available for ignore
-                    logFine("No last scan date");
-                } catch (Exception e) {
-                    logSevere("read ignore error: " + this + e.getMessage(), e);
-                }
-
                 logFine("Loaded folder database (" + files.length
                     + " files) from " + dbFile.toAbsolutePath());
             } catch (Exception e) {
@@ -1911,6 +1951,61 @@ public class Folder extends PFComponent {
         return true;
     }
 
+    /**
+     * Applies the changes of the database journal on top of the loaded
+     * snapshot.
+     *
+     * @param generation
+     *            the generation of the loaded snapshot
+     * @param snapshotMembers
+     *            the members read from the snapshot.
+     * @return the latest members. Either from journal or snapshot.
+     */
+    private MemberInfo[] replayFolderDBJournal(long generation,
+        MemberInfo[] snapshotMembers)
+    {
+        Path journalFile = getSystemSubDir0().resolve(
+            Constants.DB_JOURNAL_FILENAME);
+        AtomicInteger replayed = new AtomicInteger();
+        AtomicBoolean corrected = new AtomicBoolean();
+        AtomicReference<MemberInfo[]> latestMembers = new AtomicReference<>(
+            snapshotMembers);
+        int blocks = dbJournal.replay(journalFile, generation,
+            (stored, deleted, journalMembers, journalLastScan) -> {
+                synchronized (dbAccessLock) {
+                    for (int i = 0; i < stored.length; i++) {
+                        FileInfo fInfo = stored[i];
+                        stored[i] = correctFolderInfo(fInfo);
+                        if (fInfo != stored[i]) {
+                            corrected.set(true);
+                        }
+                    }
+                    dao.store(null, stored);
+                    for (FileInfo fInfo : deleted) {
+                        dao.delete(null, correctFolderInfo(fInfo));
+                    }
+                }
+                if (journalMembers != null) {
+                    latestMembers.set(journalMembers);
+                }
+                if (journalLastScan != null) {
+                    lastScan = journalLastScan;
+                }
+                replayed.addAndGet(stored.length + deleted.length);
+            });
+        dbJournal.loaded(generation, replayed.get());
+        if (corrected.get()) {
+            // Instances have changed. Write them with the next snapshot.
+            setDBDirty();
+            dbJournal.invalidate();
+        }
+        if (blocks > 0) {
+            logFine("Replayed " + replayed.get() + " changes in " + blocks
+                + " blocks from folder database journal " + journalFile);
+        }
+        return latestMembers.get();
+    }
+
     /**
      * Loads the metadata information of this folder. Folder database, ignore
      * patterns and last synchronized date.
@@ -1953,6 +2048,9 @@ public class Folder extends PFComponent {
         if (dirty) {
             persist();
         }
+        if (!checkIfDeviceDisconnected()) {
+            archiver.saveIndex();
+        }
         if (diskItemFilter.isDirty() && !checkIfDeviceDisconnected()) {
             diskItemFilter.savePatternsTo(getSystemSubDir().resolve(
                 DiskItemFilter.PATTERNS_FILENAME), true);
@@ -1979,9 +2077,36 @@ public class Folder extends PFComponent {
     }
 
     /**
-     * Stores the current file-database to disk
+     * Stores the current file-database to disk. Appends the changes to the
+     * database journal if possible, otherwise writes a full snapshot.
      */
     private synchronized boolean storeFolderDB() {
+        if (ConfigurationEntry.FOLDER_DB_JOURNAL_ENABLED
+            .getValueBoolean(getController())
+            && dbJournal.isAppendable(getKnownItemCount(),
+                ConfigurationEntry.FOLDER_DB_JOURNAL_COMPACT_PERCENT
+                    .getValueInt(getController())))
+        {
+            Path journalFile = getSystemSubDir().resolve(
+                Constants.DB_JOURNAL_FILENAME);
+            int records = dbJournal.append(journalFile,
+                Convert.asMemberInfos(getMembersAsCollection().toArray(
+                    new Member[0])), lastScan != null ? lastScan : new Date());
+            if (records >= 0) {
+                if (isFine()) {
+                    logFine(this + ": Appended " + records
+                        + " changes to folder database journal");
+                }
+                return true;
+            }
+        }
+        return storeFolderDBSnapshot();
+    }
+
+    /**
+     * Writes the full file-database to disk. Compacts the database journal.
+     */
+    private synchronized boolean storeFolderDBSnapshot() {
 
         Path dbTempFile = getSystemSubDir().resolve(
             Constants.DB_FILENAME +
@@ -2004,10 +2129,15 @@ public class Folder extends PFComponent {
         }
 
         Path dbFile = getSystemSubDir().resolve(Constants.DB_FILENAME);
+        Path journalFile = getSystemSubDir().resolve(
+            Constants.DB_JOURNAL_FILENAME);
+        long generation;
 
         try {
             FileInfo[] diskItems;
             synchronized (dbAccessLock) {
+                // Changes from now on go into the journal of the new snapshot
+                generation = dbJournal.startSnapshot();
 
                 Collection<FileInfo> files = dao.findAllFiles(null);
                 Collection<DirectoryInfo> dirs = dao.findAllDirectories(null);
@@ -2031,12 +2161,17 @@ public class Folder extends PFComponent {
             } catch (IOException ioe) {
                 logWarning("Failed to create temp database file " + dbTempFile + " for folder: " +
                     this.getName() + "/" + System.identityHashCode(this) + ". Reason: " + ioe);
+                dbJournal.snapshotFailed();
                 return false;
             }
 
-            try (ObjectOutputStream oOut = new ObjectOutputStream(Files.newOutputStream(dbTempFile))) {
+            try (ObjectOutputStream oOut = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(dbTempFile))))
+            {
                 // Store files
-                oOut.writeObject(diskItems);
+                FileInfoCodec.writeObject(oOut, diskItems,
+                    ConfigurationEntry.FOLDER_DB_COMPACT
+                        .getValueBoolean(getController()));
                 // Store members
                 oOut.writeObject(Convert.asMemberInfos(getMembersAsCollection()
                     .toArray(new Member[0])));
@@ -2055,6 +2190,8 @@ public class Folder extends PFComponent {
                     }
                     oOut.writeObject(lastScan);
                 }
+                // Journal generation
+                oOut.writeObject(generation);
             }
 
             // Put in the right place:
@@ -2077,9 +2214,11 @@ public class Folder extends PFComponent {
                     logWarning("Failed to copy database file: " + dbFile
                         + ", temp file: " + dbTempFile + " for folder " + this.getName() + "/" +
                         System.identityHashCode(this));
+                    dbJournal.snapshotFailed();
                     return false;
                 }
             }
+            dbJournal.snapshotWritten(journalFile, generation);
 
             if (isFine()) {
                 logFine(this + ": Successfully wrote folder database file ("
@@ -2093,6 +2232,7 @@ public class Folder extends PFComponent {
             logWarning(this + ": Unable to write database file "
                 + dbFile.toAbsolutePath() + " for folder " + this.getName() + "/" + System.identityHashCode(this));
             logFiner(e);
+            dbJournal.snapshotFailed();
             return false;
         }
     }
@@ -2959,7 +3099,7 @@ public class Folder extends PFComponent {
      */
     public boolean isScanning() {
         return getController().getFolderRepository().getFolderScanner()
-            .getCurrentScanningFolder() == this;
+            .isScanning(this);
     }
 
     /**
@@ -4343,10 +4483,6 @@ public class Folder extends PFComponent {
         // build a temp list
         SortedMap<FileInfo, FileInfo> incomingFiles = new TreeMap<>(
             new FileInfoComparator(FileInfoComparator.BY_RELATIVE_NAME));
-        // add0 expeced files
-        Map<Member, Integer> incomingCount = maxPerMember > 0
-            ? new HashMap<>(getMembersCount())
-            : null;
         boolean revert = isRevertLocalChanges();
         for (Member member : getMembersAsCollection()) {
             if (!member.isCompletelyConnected()) {
@@ -4368,90 +4504,60 @@ public class Folder extends PFComponent {
                 continue;
             }
 
-            Collection<FileInfo> memberFiles = getFilesAsCollection(member);
-            if (incomingCount != null) {
-                incomingCount.put(member, 0);
+            Collection<FileInfo> candidates;
+            if (revert) {
+                // Local files might be ignored. Check all remote items.
+                candidates = new ArrayList<FileInfo>(
+                    getFilesAsCollection(member));
+                candidates.addAll(dao.findAllDirectories(member.getId()));
+            } else {
+                candidates = dao.findIncoming(member.getId());
             }
-            if (memberFiles != null) {
-                for (FileInfo remoteFile : memberFiles) {
-                    if (incomingCount != null
-                        && incomingCount.get(member) > maxPerMember)
-                    {
-                        continue;
-                    }
-                    if (remoteFile.isDeleted() && !includeDeleted) {
-                        continue;
-                    }
-
-                    // Check if remote file is newer
-                    FileInfo localFile = getFile(remoteFile);
-                    if (revert && localFile != null) {
-                        FileInfo newestFileInfo = remoteFile
-                            .getNewestVersion(getController()
-                                .getFolderRepository());
-                        if (localFile.isNewerThan(newestFileInfo)) {
-                            // Ignore/Rever local files
-                            logWarning("Local change detected, but has no write permission: "
-                                + localFile.toDetailString());
-                            localFile = null;
-                        }
-                    }
-                    FileInfo alreadyIncoming = incomingFiles.get(remoteFile);
-                    boolean notLocal = localFile == null;
-                    boolean newerThanLocal = localFile != null
-                        && remoteFile.isNewerThan(localFile);
-                    // Check if this remote file is newer than one we may
-                    // already have.
-                    boolean newestRemote = alreadyIncoming == null
-                        || remoteFile.isNewerThan(alreadyIncoming);
-                    if (notLocal && remoteFile.isDeleted()) {
-                        // A remote deleted file is not incoming!
-                        // TODO Maby download deleted files from archive of
-                        // remote?
-                        // and put it directly into own recycle bin.
-                        continue;
-                    }
-                    if (notLocal || newerThanLocal && newestRemote) {
-                        // Okay this one is expected
-                        if (!diskItemFilter.isExcluded(remoteFile)) {
-                            incomingFiles.put(remoteFile, remoteFile);
-                            if (incomingCount != null) {
-                                Integer i = incomingCount.get(member);
-                                incomingCount.put(member, ++i);
-                            }
-                        }
-                    }
+            int memberCount = 0;
+            for (FileInfo remoteFile : candidates) {
+                boolean isFile = remoteFile.isFile();
+                if (isFile && maxPerMember > 0 && memberCount > maxPerMember)
+                {
+                    continue;
+                }
+                if (remoteFile.isDeleted() && !includeDeleted) {
+                    continue;
                 }
-            }
-            Collection<DirectoryInfo> memberDirs = dao
-                .findAllDirectories(member.getId());
-            if (memberDirs != null) {
-                for (DirectoryInfo remoteDir : memberDirs) {
-                    if (remoteDir.isDeleted() && !includeDeleted) {
-                        continue;
-                    }
 
-                    // Check if remote file is newer
-                    FileInfo localFile = getFile(remoteDir);
-                    FileInfo alreadyIncoming = incomingFiles.get(remoteDir);
-                    boolean notLocal = localFile == null;
-                    boolean newerThanLocal = localFile != null
-                        && remoteDir.isNewerThan(localFile);
-                    // Check if this remote file is newer than one we may
-                    // already have.
-                    boolean newestRemote = alreadyIncoming == null
-                        || remoteDir.isNewerThan(alreadyIncoming);
-                    if (notLocal && remoteDir.isDeleted()) {
-                        // A remote deleted file is not incoming!
-                        // TODO Maby download deleted files from archive of
-                        // remote?
-                        // and put it directly into own recycle bin.
-                        continue;
+                // Check if remote file is newer
+                FileInfo localFile = getFile(remoteFile);
+                if (revert && isFile && localFile != null) {
+                    FileInfo newestFileInfo = remoteFile
+                        .getNewestVersion(getController()
+                            .getFolderRepository());
+                    if (localFile.isNewerThan(newestFileInfo)) {
+                        // Ignore/Rever local files
+                        logWarning("Local change detected, but has no write permission: "
+                            + localFile.toDetailString());
+                        localFile = null;
                     }
-                    if (notLocal || newerThanLocal && newestRemote) {
-                        // Okay this one is expected
-                        if (!diskItemFilter.isExcluded(remoteDir)) {
-                            incomingFiles.put(remoteDir, remoteDir);
+                }
+                FileInfo alreadyIncoming = incomingFiles.get(remoteFile);
+                boolean notLocal = localFile == null;
+                boolean newerThanLocal = localFile != null
+                    && remoteFile.isNewerThan(localFile);
+                // Check if this remote file is newer than one we may
+                // already have.
+                boolean newestRemote = alreadyIncoming == null
+                    || remoteFile.isNewerThan(alreadyIncoming);
+                if (notLocal && remoteFile.isDeleted()) {
+                    // A remote deleted file is not incoming!
+                    // TODO Maby download deleted files from archive of
+                    // remote?
+                    // and put it directly into own recycle bin.
+                    continue;
+                }
+                if (notLocal || newerThanLocal && newestRemote) {
+                    // Okay this one is expected
+                    if (!diskItemFilter.isExcluded(remoteFile)) {
+                        incomingFiles.put(remoteFile, remoteFile);
+                        if (isFile) {
+                            memberCount++;
                         }
                     }
                 }
@@ -4462,7 +4568,7 @@ public class Folder extends PFComponent {
             logFiner("No Incoming files");
         } else {
             if (isFine()) {
-                logFine(getName() + ":" + (incomingCount != null ? "" : "Aprox. ")
+                logFine(getName() + ":" + (maxPerMember > 0 ? "Aprox. " : "")
                     + incomingFiles.size() + " incoming files");
             }
         }
@@ -4481,7 +4587,28 @@ public class Folder extends PFComponent {
      *            the {@link Visitor} to pass the incoming files to.
      */
     public void visitIncomingFiles(Visitor<FileInfo> vistor) {
-        // add0 expeced files
+        visitIncomingFiles(vistor, -1);
+    }
+
+    /**
+     * Visits all remote {@link FileInfo}s and {@link DirectoryInfo}s, that
+     * <p>
+     * 1) Do not exist locally or
+     * <p>
+     * 2) Are newer than the local version.
+     * <p>
+     * Walks the incoming items maintained by the {@link FileInfoDAO} without
+     * copying them.
+     *
+     * @param vistor
+     *            the {@link Visitor} to pass the incoming files to.
+     * @param maxPerMember
+     *            the maximum number of items to visit per member. -1 for no
+     *            limit.
+     */
+    public void visitIncomingFiles(final Visitor<FileInfo> vistor,
+        final int maxPerMember)
+    {
         for (Member member : getMembersAsCollection()) {
             if (!member.isCompletelyConnected()) {
                 // disconnected or myself (=skip)
@@ -4502,51 +4629,36 @@ public class Folder extends PFComponent {
                 continue;
             }
 
-            Collection<FileInfo> memberFiles = getFilesAsCollection(member);
-            if (memberFiles != null) {
-                for (FileInfo fileInfo : memberFiles) {
-                    if (!visitFileIfNewer(fileInfo, vistor)) {
-                        // Stop visiting.
-                        return;
+            final boolean[] stopped = new boolean[1];
+            dao.visitIncoming(member.getId(), new Visitor<FileInfo>() {
+                private int visited;
+
+                public boolean visit(FileInfo fileInfo) {
+                    if (maxPerMember >= 0 && visited >= maxPerMember) {
+                        return false;
                     }
-                }
-            }
-            Collection<DirectoryInfo> memberDirs = dao
-                .findAllDirectories(member.getId());
-            if (memberDirs != null) {
-                for (FileInfo fileInfo : memberDirs) {
-                    if (!visitFileIfNewer(fileInfo, vistor)) {
-                        // Stop visiting.
-                        return;
+                    if (diskItemFilter.isExcluded(fileInfo)) {
+                        return true;
                     }
+                    visited++;
+                    try {
+                        if (!vistor.visit(fileInfo)) {
+                            stopped[0] = true;
+                            return false;
+                        }
+                    } catch (Exception e) {
+                        logSevere("Error while visiting incoming files. "
+                            + e, e);
+                    }
+                    return true;
                 }
+            });
+            if (stopped[0]) {
+                return;
             }
         }
     }
 
-    private boolean visitFileIfNewer(FileInfo fileInfo, Visitor<FileInfo> vistor)
-    {
-        // Check if remote file is newer
-        FileInfo localFile = getFile(fileInfo);
-        boolean notLocal = localFile == null;
-        boolean remoteNewerThanLocal = localFile != null
-            && fileInfo.isNewerThan(localFile);
-        if (notLocal && fileInfo.isDeleted()) {
-            return true;
-        }
-        if (notLocal || remoteNewerThanLocal) {
-            // Okay this one is expected
-            if (!diskItemFilter.isExcluded(fileInfo)) {
-                try {
-                    return vistor.visit(fileInfo);
-                } catch (Exception e) {
-                    logSevere("Error while visiting incoming files. " + e, e);
-                }
-            }
-        }
-        return true;
-    }
-
     /**
      * @param member
      * @return the list of files from a member as unmodifiable collection
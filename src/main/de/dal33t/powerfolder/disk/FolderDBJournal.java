@@ -0,0 +1,382 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOListener;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Append-only change log of the own {@link FileInfo}s of a {@link Folder}.
+ * <p>
+ * Instead of rewriting the whole folder database on every persist only the
+ * changes since the last persist get appended to the journal file. The full
+ * snapshot is only written when the journal has grown too large (compaction)
+ * or when the changes can't be tracked (e.g. the whole domain was replaced).
+ * <p>
+ * The journal file consists of blocks. Each block is prefixed by its length
+ * and contains the generation of the snapshot it belongs to, the stored and
+ * deleted <code>FileInfo</code>s, the members and the last scan date. Blocks
+ * of a different generation than the loaded snapshot are ignored, a truncated
+ * or corrupt block (e.g. crash while writing) ends the replay. The journal
+ * then gets cut off behind the last good block, so new blocks are not
+ * appended behind the garbage.
+ *
+ * @author sprajc
+ */
+public class FolderDBJournal extends Loggable implements FileInfoDAOListener {
+    /**
+     * Generation of a snapshot that was written without journal support.
+     */
+    static final long NO_GENERATION = 0L;
+
+    /**
+     * The minimum number of journaled changes before compaction is done.
+     */
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private final Map<FileInfo, FileInfo> pendingStored = new LinkedHashMap<>();
+    private final Map<FileInfo, FileInfo> pendingDeleted = new LinkedHashMap<>();
+
+    /**
+     * The generation of the snapshot on disk.
+     */
+    private long generation = NO_GENERATION;
+
+    /**
+     * Number of changes written to the journal file since the last snapshot.
+     */
+    private int journaledRecords;
+
+    /**
+     * True if changes happened that cannot be expressed in the journal. A full
+     * snapshot is required.
+     */
+    private boolean snapshotRequired = true;
+
+    /**
+     * True if the last replay stopped at a damaged block that could not be
+     * cut off the journal file.
+     */
+    private boolean damagedTail;
+
+    // DAO callbacks **********************************************************
+
+    @Override
+    public synchronized void stored(FileInfo fInfo) {
+        pendingDeleted.remove(fInfo);
+        pendingStored.put(fInfo, fInfo);
+    }
+
+    @Override
+    public synchronized void deleted(FileInfo fInfo) {
+        pendingStored.remove(fInfo);
+        pendingDeleted.put(fInfo, fInfo);
+    }
+
+    @Override
+    public synchronized void domainCleared() {
+        snapshotRequired = true;
+    }
+
+    // Persisting *************************************************************
+
+    /**
+     * Forces a full snapshot on the next persist.
+     */
+    synchronized void invalidate() {
+        snapshotRequired = true;
+    }
+
+    /**
+     * @param knownItems
+     *            the number of files and directories in the folder.
+     * @param compactPercent
+     *            the size of the journal in percent of the known items that
+     *            triggers the compaction.
+     * @return true if the pending changes can be appended to the journal.
+     *         false if a full snapshot should be written.
+     */
+    synchronized boolean isAppendable(int knownItems, int compactPercent) {
+        if (snapshotRequired || generation == NO_GENERATION) {
+            return false;
+        }
+        long compactRecords = Math.max(MIN_COMPACT_RECORDS,
+            (long) knownItems * compactPercent / 100);
+        return journaledRecords + pendingStored.size() + pendingDeleted.size() <= compactRecords;
+    }
+
+    /**
+     * Appends all pending changes as one block to the journal file.
+     *
+     * @param journalFile
+     * @param members
+     *            the current members of the folder
+     * @param lastScan
+     *            the last scan date
+     * @return the number of changes written or -1 if failed. A full snapshot
+     *         is required after a failure.
+     */
+    int append(Path journalFile, MemberInfo[] members, Date lastScan) {
+        FileInfo[] stored;
+        FileInfo[] deleted;
+        long gen;
+        synchronized (this) {
+            stored = pendingStored.values().toArray(new FileInfo[0]);
+            deleted = pendingDeleted.values().toArray(new FileInfo[0]);
+            pendingStored.clear();
+            pendingDeleted.clear();
+            gen = generation;
+        }
+
+        try {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(
+                1024 + stored.length * 256);
+            try (ObjectOutputStream oOut = new ObjectOutputStream(bOut)) {
+                oOut.writeLong(gen);
+                FileInfoCodec.writeObject(oOut, stored, true);
+                FileInfoCodec.writeObject(oOut, deleted, true);
+                oOut.writeObject(members);
+                oOut.writeObject(lastScan);
+            }
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(journalFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))))
+            {
+                out.writeInt(bOut.size());
+                bOut.writeTo(out);
+            }
+        } catch (IOException e) {
+            logWarning("Unable to append to folder database journal "
+                + journalFile + ". " + e);
+            invalidate();
+            return -1;
+        }
+
+        int records = stored.length + deleted.length;
+        synchronized (this) {
+            journaledRecords += records;
+        }
+        return records;
+    }
+
+    /**
+     * Starts a new snapshot. All changes pending so far are contained in the
+     * snapshot. Needs to be called while the database is copied for the
+     * snapshot.
+     *
+     * @return the generation to write into the new snapshot.
+     */
+    synchronized long startSnapshot() {
+        pendingStored.clear();
+        pendingDeleted.clear();
+        snapshotRequired = false;
+        long newGeneration;
+        do {
+            newGeneration = ThreadLocalRandom.current().nextLong();
+        } while (newGeneration == NO_GENERATION
+            || newGeneration == generation);
+        return newGeneration;
+    }
+
+    /**
+     * The snapshot has successfully been written. Journal file gets discarded.
+     *
+     * @param journalFile
+     * @param newGeneration
+     *            the generation returned by {@link #startSnapshot()}
+     */
+    void snapshotWritten(Path journalFile, long newGeneration) {
+        synchronized (this) {
+            generation = newGeneration;
+            journaledRecords = 0;
+        }
+        try {
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            // Blocks of the old generation are ignored on replay anyways.
+            logFine("Unable to delete outdated folder database journal "
+                + journalFile + ". " + e);
+        }
+    }
+
+    /**
+     * The snapshot could not be written. Retry with full snapshot next time.
+     */
+    void snapshotFailed() {
+        invalidate();
+    }
+
+    // Loading ****************************************************************
+
+    /**
+     * Called after the snapshot and journal have been loaded into the DAO.
+     *
+     * @param snapshotGeneration
+     *            the generation read from the snapshot.
+     * @param replayedRecords
+     *            the number of changes replayed from the journal.
+     */
+    synchronized void loaded(long snapshotGeneration, int replayedRecords) {
+        pendingStored.clear();
+        pendingDeleted.clear();
+        generation = snapshotGeneration;
+        journaledRecords = replayedRecords;
+        snapshotRequired = snapshotGeneration == NO_GENERATION || damagedTail;
+        damagedTail = false;
+    }
+
+    /**
+     * Reads all blocks of the journal file that belong to the given
+     * generation.
+     *
+     * @param journalFile
+     * @param snapshotGeneration
+     *            the generation of the loaded snapshot
+     * @param visitor
+     *            receives the read blocks in the order they were written.
+     * @return the number of blocks read.
+     */
+    int replay(Path journalFile, long snapshotGeneration, BlockVisitor visitor)
+    {
+        if (snapshotGeneration == NO_GENERATION || Files.notExists(journalFile))
+        {
+            return 0;
+        }
+        int blocks = 0;
+        // End of the last completely read block
+        long goodOffset = 0;
+        long fileSize;
+        try {
+            fileSize = Files.size(journalFile);
+        } catch (IOException e) {
+            logWarning("Unable to read folder database journal " + journalFile
+                + ". " + e);
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(journalFile))))
+        {
+            while (true) {
+                byte[] data;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > fileSize - goodOffset - 4) {
+                        // Also a length beyond the end of the journal
+                        logWarning("Corrupt block in folder database journal "
+                            + journalFile);
+                        break;
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    // End of journal or last block was not written completely
+                    break;
+                }
+                try (ObjectInputStream oIn = new ObjectInputStream(
+                    new ByteArrayInputStream(data)))
+                {
+                    long blockGeneration = oIn.readLong();
+                    if (blockGeneration == snapshotGeneration) {
+                        FileInfo[] stored = FileInfoCodec.readObject(oIn);
+                        FileInfo[] deleted = FileInfoCodec.readObject(oIn);
+                        MemberInfo[] members = (MemberInfo[]) oIn
+                            .readObject();
+                        Date lastScan = (Date) oIn.readObject();
+                        visitor.visit(stored, deleted, members, lastScan);
+                        blocks++;
+                    }
+                }
+                goodOffset += 4 + data.length;
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logWarning("Unable to read folder database journal " + journalFile
+                + ". Read " + blocks + " blocks. " + e);
+        }
+        cutDamagedTail(journalFile, goodOffset);
+        return blocks;
+    }
+
+    /**
+     * Removes everything behind the last good block. Otherwise blocks appended
+     * later would be unreachable on the next replay.
+     *
+     * @param journalFile
+     * @param goodOffset
+     *            the end of the last completely read block.
+     */
+    private void cutDamagedTail(Path journalFile, long goodOffset) {
+        try {
+            long size = Files.size(journalFile);
+            if (size <= goodOffset) {
+                return;
+            }
+            logWarning("Cutting off damaged folder database journal "
+                + journalFile + " at " + goodOffset + " of " + size + " bytes");
+            try (FileChannel channel = FileChannel.open(journalFile,
+                StandardOpenOption.WRITE))
+            {
+                channel.truncate(goodOffset);
+            }
+        } catch (IOException e) {
+            logWarning("Unable to cut off damaged folder database journal "
+                + journalFile + ". Forcing full snapshot. " + e);
+            synchronized (this) {
+                damagedTail = true;
+            }
+        }
+    }
+
+    /**
+     * Receives the blocks read from the journal.
+     */
+    interface BlockVisitor {
+        void visit(FileInfo[] stored, FileInfo[] deleted,
+            MemberInfo[] members, Date lastScan);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FolderDBJournal gen " + generation + ": " + journaledRecords
+            + " journaled, " + pendingStored.size() + " stored, "
+            + pendingDeleted.size() + " deleted pending";
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.LatencyHistogram;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Loads the folders of the config at startup.
+ * <p>
+ * Folders are first registered only with their {@link FolderInfo}. A bounded
+ * pool of loaders creates the folders and loads their database in
+ * background. A registered folder is loaded immediately in the calling
+ * thread on first demand, e.g. by {@link FolderRepository#getFolder(FolderInfo)}.
+ * Folders demanded or prioritized are loaded before the others, which are
+ * loaded in the order of the config.
+ *
+ * @author sprajc
+ */
+public class FolderLoader extends PFComponent {
+
+    private final FolderRepository repository;
+    private final int maxLoaders;
+
+    /** The folders registered but not yet loaded */
+    private final Map<FolderInfo, Registration> registrations = Util
+        .createConcurrentHashMap();
+    /** The registered folders by configured directory */
+    private final Map<Path, Registration> registeredDirs = Util
+        .createConcurrentHashMap();
+    private final AtomicLong sequence = new AtomicLong();
+    private ThreadPoolExecutor executor;
+
+    private final AtomicInteger registered = new AtomicInteger();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final LatencyHistogram timeToReady = new LatencyHistogram();
+    private final LatencyHistogram loadDuration = new LatencyHistogram();
+    private volatile long startedNanos;
+    private volatile long readyNanos;
+
+    /**
+     * Do not use this constructor, the loader is created by the
+     * {@link FolderRepository}.
+     *
+     * @param controller
+     * @param repository
+     *            the repository to load the folders into.
+     */
+    FolderLoader(Controller controller, FolderRepository repository) {
+        super(controller);
+        Reject.ifNull(repository, "Repository is null");
+        this.repository = repository;
+        // Load on many processors
+        maxLoaders = Math.max(1,
+            Runtime.getRuntime().availableProcessors() - 2);
+    }
+
+    /**
+     * Registers a folder of the config to be loaded.
+     *
+     * @param entryId
+     *            the id of the folder entry in the config
+     * @param foInfo
+     */
+    void register(String entryId, FolderInfo foInfo) {
+        Reject.ifBlank(entryId, "Entry id is blank");
+        Reject.ifNull(foInfo, "FolderInfo is null");
+        Registration registration = new Registration(entryId, foInfo,
+            FolderSettings.loadCommitOrLocalDir(getController(), entryId),
+            sequence.incrementAndGet());
+        if (registrations.putIfAbsent(foInfo, registration) != null) {
+            return;
+        }
+        if (registration.dir != null) {
+            registeredDirs.putIfAbsent(registration.dir, registration);
+        }
+        if (registered.getAndIncrement() == 0) {
+            startedNanos = registration.registered;
+            readyNanos = 0;
+        }
+        synchronized (this) {
+            if (executor != null) {
+                executor.execute(registration);
+            }
+        }
+    }
+
+    /**
+     * Starts loading the registered folders in background.
+     */
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(maxLoaders, maxLoaders, 10,
+            TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new NamedThreadFactory("FolderLoader-"));
+        executor.allowCoreThreadTimeOut(true);
+        for (Registration registration : registrations.values()) {
+            executor.execute(registration);
+        }
+        if (isFine()) {
+            logFine("Loading " + registrations.size() + " folders with "
+                + maxLoaders + " loaders");
+        }
+        checkReady();
+    }
+
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Loads the folder now if it is registered and not loaded yet. Waits if
+     * the folder is currently loaded by another thread.
+     *
+     * @param foInfo
+     * @return the loaded folder or null if not registered or unable to load.
+     */
+    Folder demand(FolderInfo foInfo) {
+        Registration registration = registrations.get(foInfo);
+        if (registration == null
+            || registration.isLoadedBy(Thread.currentThread()))
+        {
+            return null;
+        }
+        if (registration.claim()) {
+            load(registration);
+        }
+        try {
+            return registration.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads the folder before the other registered folders.
+     *
+     * @param foInfo
+     */
+    public void prioritize(FolderInfo foInfo) {
+        Registration registration = registrations.get(foInfo);
+        if (registration == null || registration.prioritized) {
+            return;
+        }
+        synchronized (this) {
+            if (executor != null && executor.remove(registration)) {
+                registration.prioritized = true;
+                executor.execute(registration);
+            } else {
+                registration.prioritized = true;
+            }
+        }
+    }
+
+    /**
+     * @param foInfo
+     * @return true if the folder is registered and waits for loading or is
+     *         loaded by another thread.
+     */
+    boolean isRegistered(FolderInfo foInfo) {
+        Registration registration = registrations.get(foInfo);
+        return registration != null
+            && !registration.isLoadedBy(Thread.currentThread());
+    }
+
+    /**
+     * @param dir
+     * @return the folder registered at the directory that waits for loading
+     *         or is loaded by another thread. null if none.
+     */
+    FolderInfo findRegistered(Path dir) {
+        Registration registration = registeredDirs.get(dir);
+        return registration != null
+            && !registration.isLoadedBy(Thread.currentThread())
+            ? registration.foInfo
+            : null;
+    }
+
+    /**
+     * @return the folders registered but not loaded yet.
+     */
+    Collection<FolderInfo> getRegisteredFolderInfos() {
+        return Collections.unmodifiableSet(registrations.keySet());
+    }
+
+    /**
+     * Waits until all registered folders are loaded.
+     *
+     * @throws InterruptedException
+     */
+    synchronized void waitForReady() throws InterruptedException {
+        while (!registrations.isEmpty() && executor != null) {
+            wait(1000);
+        }
+    }
+
+    /**
+     * @return true if all registered folders are loaded.
+     */
+    public boolean isReady() {
+        return registrations.isEmpty();
+    }
+
+    /**
+     * @return the number of folders registered at all.
+     */
+    public int getRegisteredCount() {
+        return registered.get();
+    }
+
+    /**
+     * @return the number of folders loaded.
+     */
+    public int getLoadedCount() {
+        return loaded.get();
+    }
+
+    /**
+     * @return the number of folders that could not be loaded.
+     */
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of folders waiting to be loaded.
+     */
+    public int getPendingCount() {
+        return registrations.size();
+    }
+
+    /**
+     * @return the time from registration until the folders were loaded.
+     */
+    public LatencyHistogram getTimeToReady() {
+        return timeToReady;
+    }
+
+    /**
+     * @return the time the folders took to load.
+     */
+    public LatencyHistogram getLoadDuration() {
+        return loadDuration;
+    }
+
+    /**
+     * @return the milliseconds from the first registration until all folders
+     *         were loaded or -1 if not ready yet.
+     */
+    public long getStartupMillis() {
+        long ready = readyNanos;
+        if (ready == 0) {
+            return registered.get() == 0 ? 0 : -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(ready - startedNanos);
+    }
+
+    // Internal ***************************************************************
+
+    private void load(Registration registration) {
+        long start = System.nanoTime();
+        Folder folder = null;
+        try {
+            folder = repository.loadFolder(registration.entryId,
+                registration.foInfo);
+        } catch (Exception e) {
+            logWarning("Problem loading/creating folder #"
+                + registration.entryId + ". " + e, e);
+        } finally {
+            long now = System.nanoTime();
+            loadDuration.record(now - start);
+            if (folder != null) {
+                loaded.incrementAndGet();
+                timeToReady.record(now - registration.registered);
+            } else {
+                failed.incrementAndGet();
+            }
+            if (registration.dir != null) {
+                registeredDirs.remove(registration.dir, registration);
+            }
+            registrations.remove(registration.foInfo, registration);
+            registration.future.complete(folder);
+            int done = loaded.get() + failed.get();
+            if (done % 100 == 0) {
+                logInfo("Loaded " + done + "/" + registered.get()
+                    + " folders");
+            }
+            checkReady();
+        }
+    }
+
+    private void checkReady() {
+        if (!registrations.isEmpty() || readyNanos != 0) {
+            return;
+        }
+        synchronized (this) {
+            if (readyNanos == 0 && registered.get() > 0) {
+                readyNanos = System.nanoTime();
+                logInfo("Loaded " + loaded.get() + " folders in "
+                    + getStartupMillis() + "ms. " + failed.get()
+                    + " failed. Time to ready: " + timeToReady);
+            }
+            notifyAll();
+        }
+    }
+
+    private final class Registration implements Runnable,
+        Comparable<Registration>
+    {
+        private final String entryId;
+        private final FolderInfo foInfo;
+        /** The configured directory or null if unknown */
+        private final Path dir;
+        private final long sequence;
+        private final long registered = System.nanoTime();
+        private final AtomicReference<Thread> loader = new AtomicReference<>();
+        private final CompletableFuture<Folder> future = new CompletableFuture<>();
+        private volatile boolean prioritized;
+
+        private Registration(String entryId, FolderInfo foInfo, Path dir,
+            long sequence)
+        {
+            this.entryId = entryId;
+            this.foInfo = foInfo;
+            this.dir = dir;
+            this.sequence = sequence;
+        }
+
+        private boolean claim() {
+            return loader.compareAndSet(null, Thread.currentThread());
+        }
+
+        private boolean isLoadedBy(Thread thread) {
+            return loader.get() == thread;
+        }
+
+        @Override
+        public void run() {
+            if (claim()) {
+                load(this);
+            }
+        }
+
+        @Override
+        public int compareTo(Registration o) {
+            if (prioritized != o.prioritized) {
+                return prioritized ? -1 : 1;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.LatencyHistogram;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.compare.FolderComparator;
+
+/**
+ * Runs the maintenance of folders on a bounded pool of workers.
+ * <p>
+ * The next folder to maintain is the one with the most incoming files. Ties
+ * are broken by the time of the last maintenance, the folder that waits
+ * longest comes first, and finally by the {@link FolderComparator}. A folder
+ * is maintained by one worker at a time and only a limited number of folders
+ * on the same disk are maintained at once.
+ *
+ * @author sprajc
+ */
+public class FolderMaintenanceScheduler extends PFComponent {
+
+    private static final Comparator<Job> PRIORITY = (j1, j2) -> {
+        int c = Integer.compare(j2.incoming, j1.incoming);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compare(j1.lastMaintained, j2.lastMaintained);
+        if (c != 0) {
+            return c;
+        }
+        return FolderComparator.INSTANCE.compare(j1.folder, j2.folder);
+    };
+
+    private final int maxWorkers;
+    private final int maxPerDisk;
+
+    /** Folders waiting for a worker. Guarded by this */
+    private final Map<Folder, Job> queue = new HashMap<>();
+    /** Folders currently maintained. Guarded by this */
+    private final Map<Folder, Job> running = new HashMap<>();
+    /** Number of running maintenances by disk. Guarded by this */
+    private final Map<Object, Integer> runningPerDisk = new HashMap<>();
+    private ThreadPoolExecutor executor;
+
+    /** Disk of the folder base directory. Path -> FileStore */
+    private final Map<Path, Object> disks = Util.createConcurrentHashMap();
+    private final Map<FolderInfo, MaintenanceStats> stats = Util
+        .createConcurrentHashMap();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram duration = new LatencyHistogram();
+
+    /**
+     * Do not use this constructor, the scheduler is created by the
+     * {@link FolderRepository}.
+     *
+     * @param controller
+     */
+    FolderMaintenanceScheduler(Controller controller) {
+        super(controller);
+        maxWorkers = Math.max(1,
+            ConfigurationEntry.FOLDER_MAINTENANCE_MAX_WORKERS
+                .getValueInt(controller));
+        maxPerDisk = Math.max(1,
+            ConfigurationEntry.FOLDER_MAINTENANCE_MAX_PER_DISK
+                .getValueInt(controller));
+    }
+
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new NamedThreadFactory("FolderMaintenance-")
+            {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = super.newThread(r);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        if (isFine()) {
+            logFine("Started with " + maxWorkers + " workers, " + maxPerDisk
+                + " per disk");
+        }
+    }
+
+    synchronized void shutdown() {
+        queue.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Queues the folders for maintenance. Folders already waiting or being
+     * maintained are skipped.
+     *
+     * @param folders
+     */
+    synchronized void schedule(Collection<Folder> folders) {
+        long now = System.nanoTime();
+        for (Folder folder : folders) {
+            if (!queue.containsKey(folder) && !running.containsKey(folder)) {
+                queue.put(folder, createJob(folder, now));
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder waits for or is in maintenance.
+     */
+    synchronized boolean isScheduled(Folder folder) {
+        return queue.containsKey(folder) || running.containsKey(folder);
+    }
+
+    /**
+     * @return one of the folders currently maintained or null if no folder is
+     *         maintained.
+     */
+    public synchronized Folder getMaintainingFolder() {
+        Iterator<Folder> it = running.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @return the number of folders waiting for maintenance.
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of folders currently maintained.
+     */
+    public synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * @return the time folders waited for a worker.
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return the time the maintenance of folders took.
+     */
+    public LatencyHistogram getDuration() {
+        return duration;
+    }
+
+    /**
+     * @param foInfo
+     * @return the stats of the last maintenance of the folder or null if
+     *         never maintained.
+     */
+    public MaintenanceStats getStats(FolderInfo foInfo) {
+        return stats.get(foInfo);
+    }
+
+    /**
+     * Forgets a removed folder.
+     *
+     * @param folder
+     */
+    synchronized void remove(Folder folder) {
+        queue.remove(folder);
+        stats.remove(folder.getInfo());
+        if (folder.getLocalBase() != null) {
+            disks.remove(folder.getLocalBase());
+        }
+    }
+
+    // Internal ***************************************************************
+
+    /**
+     * Starts as many queued folders as workers and disks allow. Must hold
+     * lock on this.
+     */
+    private void dispatch() {
+        if (executor == null || getController().isPaused()) {
+            return;
+        }
+        while (running.size() < maxWorkers) {
+            Job next = null;
+            for (Job job : queue.values()) {
+                Integer onDisk = runningPerDisk.get(job.disk);
+                if (onDisk != null && onDisk >= maxPerDisk) {
+                    continue;
+                }
+                if (next == null || PRIORITY.compare(job, next) < 0) {
+                    next = job;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            Job job = next;
+            queue.remove(job.folder);
+            running.put(job.folder, job);
+            runningPerDisk.merge(job.disk, 1, Integer::sum);
+            executor.execute(() -> maintain(job));
+        }
+    }
+
+    private void maintain(Job job) {
+        Folder folder = job.folder;
+        long start = System.nanoTime();
+        long waited = start - job.queued;
+        queueWait.record(waited);
+        FolderRepository repo = getController().getFolderRepository();
+        repo.fireMaintanceStarted(folder);
+        try {
+            folder.maintain();
+        } catch (RuntimeException e) {
+            // PFS-2000:
+            logWarning("Unable to maintain folder " + folder.getName() + "/"
+                + folder.getId() + ": " + e, e);
+        } finally {
+            long took = System.nanoTime() - start;
+            duration.record(took);
+            stats.put(folder.getInfo(), new MaintenanceStats(waited, took));
+            if (isFiner()) {
+                logFiner("Maintained " + folder + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(took) + "ms, waited "
+                    + TimeUnit.NANOSECONDS.toMillis(waited) + "ms");
+            }
+            synchronized (this) {
+                running.remove(folder);
+                runningPerDisk.computeIfPresent(job.disk,
+                    (disk, count) -> count > 1 ? count - 1 : null);
+                dispatch();
+            }
+            repo.fireMaintenanceFinished(folder);
+        }
+    }
+
+    private Object getDisk(Folder folder) {
+        Path localBase = folder.getLocalBase();
+        if (localBase == null) {
+            return "";
+        }
+        return disks.computeIfAbsent(localBase, path -> {
+            try {
+                return Files.getFileStore(path);
+            } catch (IOException | RuntimeException e) {
+                // Not existing (yet) or disconnected
+                Path root = path.toAbsolutePath().getRoot();
+                return root != null ? root : "";
+            }
+        });
+    }
+
+    private Job createJob(Folder folder, long queued) {
+        FolderStatistic statistic = folder.getStatistic();
+        int incoming = statistic != null
+            ? statistic.getIncomingFilesCount()
+            : 0;
+        MaintenanceStats last = stats.get(folder.getInfo());
+        return new Job(folder, queued, getDisk(folder), incoming,
+            last != null ? last.getFinished() : 0);
+    }
+
+    private static final class Job {
+        private final Folder folder;
+        private final long queued;
+        private final Object disk;
+        private final int incoming;
+        private final long lastMaintained;
+
+        private Job(Folder folder, long queued, Object disk, int incoming,
+            long lastMaintained)
+        {
+            this.folder = folder;
+            this.queued = queued;
+            this.disk = disk;
+            this.incoming = incoming;
+            this.lastMaintained = lastMaintained;
+        }
+    }
+
+    /**
+     * The stats of the last maintenance of a folder.
+     */
+    public static final class MaintenanceStats {
+        private final long queueWait;
+        private final long duration;
+        private final long finished;
+
+        MaintenanceStats(long queueWait, long duration) {
+            Reject.ifTrue(queueWait < 0 || duration < 0, "Negative time");
+            this.queueWait = queueWait;
+            this.duration = duration;
+            this.finished = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the nanoseconds the folder waited for a worker.
+         */
+        public long getQueueWait() {
+            return queueWait;
+        }
+
+        /**
+         * @return the nanoseconds the maintenance took.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the time in ms the maintenance finished.
+         */
+        public long getFinished() {
+            return finished;
+        }
+
+        @Override
+        public String toString() {
+            return "waited " + TimeUnit.NANOSECONDS.toMillis(queueWait)
+                + "ms, took " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms";
+        }
+    }
+}
@@ -42,7 +42,6 @@ import de.dal33t.powerfolder.ui.notices.WarningNotice;
 import de.dal33t.powerfolder.ui.util.UIUtil;
 import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.collection.CompositeCollection;
-import de.dal33t.powerfolder.util.compare.FolderComparator;
 import de.dal33t.powerfolder.util.os.LinuxUtil;
 import de.dal33t.powerfolder.util.os.OSUtil;
 import de.dal33t.powerfolder.util.os.Win32.Spacetree;
@@ -81,7 +80,6 @@ public class FolderRepository extends PFComponent implements Runnable {
     private final Map<FolderInfo, Folder> metaFolders;
     private Thread myThread;
     private final FileRequestor fileRequestor;
-    private Folder currentlyMaintainingFolder;
     private final Set<String> onLoginFolderEntryIds = new HashSet<String>();
     // Flag if the repo is started
     private boolean started;
@@ -101,6 +99,16 @@ public class FolderRepository extends PFComponent implements Runnable {
      */
     private final FolderScanner folderScanner;
 
+    /**
+     * Runs the maintenance of the folders
+     */
+    private final FolderMaintenanceScheduler maintenanceScheduler;
+
+    /**
+     * Loads the folders of the config
+     */
+    private final FolderLoader folderLoader;
+
     /**
      * PFC-1962: For locking files
      */
@@ -156,6 +164,8 @@ public class FolderRepository extends PFComponent implements Runnable {
         loadIgnoredFolders();
 
         folderScanner = new FolderScanner(getController());
+        maintenanceScheduler = new FolderMaintenanceScheduler(getController());
+        folderLoader = new FolderLoader(getController(), this);
         locking = new Locking(getController());
 
         // Create listener support
@@ -209,6 +219,20 @@ public class FolderRepository extends PFComponent implements Runnable {
         return folderScanner;
     }
 
+    /**
+     * @return the scheduler of the folder maintenance
+     */
+    public FolderMaintenanceScheduler getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
+
+    /**
+     * @return the loader of the folders from the config
+     */
+    public FolderLoader getFolderLoader() {
+        return folderLoader;
+    }
+
     public Locking getLocking() {
         return locking;
     }
@@ -544,6 +568,10 @@ public class FolderRepository extends PFComponent implements Runnable {
     /**
      * Version 4 format is like f.<md5>.XXXX, where md5 is the MD5 of the folder
      * id. This format allows folders with the same name to be stored.
+     * <p>
+     * Registers the folders at the {@link FolderLoader}. Waits for them to be
+     * loaded unless there are more than
+     * {@link ConfigurationEntry#FOLDER_LAZY_LOADING_THRESHOLD}.
      */
     private void processV4Format() {
 
@@ -552,113 +580,96 @@ public class FolderRepository extends PFComponent implements Runnable {
         // Find all folder entries.
         Set<String> entryIds = FolderSettings.loadEntryIds(config);
 
-        // Load on many processors
-        int loaders = Runtime.getRuntime().availableProcessors() - 2;
-        if (loaders <= 0) {
-            loaders = 1;
-        }
-
-        final Semaphore loadPermit = new Semaphore(loaders);
-        final AtomicInteger nCreated = new AtomicInteger();
-
         // Scan config for all found folder MD5s.
         for (final String folderEntryId : entryIds) {
-
-            try {
-                loadPermit.acquire();
-            } catch (InterruptedException e) {
-                logFiner(e);
-                return;
+            String folderId = config.getProperty(PREFIX_V4 + folderEntryId
+                    + ID);
+            if (StringUtils.isBlank(folderId)) {
+                logWarning("Folder id blank. Removed illegal folder config entry: "
+                        + folderEntryId);
+                removeConfigEntries(folderEntryId);
+                continue;
+            }
+            String folderName = FolderSettings.loadFolderName(
+                    getController().getConfig(), folderEntryId);
+            if (StringUtils.isBlank(folderName)) {
+                logWarning("Foldername not found."
+                        + "Removed illegal folder config entry: "
+                        + folderName + '/' + folderEntryId);
+                removeConfigEntries(folderEntryId);
+                continue;
             }
 
-            Runnable folderCreator = () -> {
-                try {
-                    String folderId = config
-                            .getProperty(PREFIX_V4
-                                    + folderEntryId + ID);
-                    if (StringUtils.isBlank(folderId)) {
-                        logWarning("Folder id blank. Removed illegal folder config entry: "
-                                + folderEntryId);
-                        removeConfigEntries(folderEntryId);
-                        return;
-                    }
-                    String folderName = FolderSettings.loadFolderName(
-                            getController().getConfig(), folderEntryId);
-                    if (StringUtils.isBlank(folderName)) {
-                        logWarning("Foldername not found."
-                                + "Removed illegal folder config entry: "
-                                + folderName + '/' + folderEntryId);
-                        removeConfigEntries(folderEntryId);
-                        return;
-                    }
-
-                    // #2203 Load later if folder id should be taken from
-                    // account.
-                    if (folderId
-                            .contains(FolderSettings.FOLDER_ID_FROM_ACCOUNT)) {
-                        logFine("Folder load scheduled after first login: "
-                                + folderName + '/' + folderEntryId);
-                        onLoginFolderEntryIds.add(folderEntryId);
-                        return;
-                    }
+            // #2203 Load later if folder id should be taken from
+            // account.
+            if (folderId.contains(FolderSettings.FOLDER_ID_FROM_ACCOUNT)) {
+                logFine("Folder load scheduled after first login: "
+                        + folderName + '/' + folderEntryId);
+                onLoginFolderEntryIds.add(folderEntryId);
+                continue;
+            }
 
-                    FolderInfo foInfo = new FolderInfo(folderName, folderId)
-                            .intern();
-                    FolderSettings folderSettings = FolderSettings.load(
-                            getController(), folderEntryId);
+            FolderInfo foInfo = new FolderInfo(folderName, folderId).intern();
+            // Do not add0 if already added
+            if (!hasJoinedFolder(foInfo)) {
+                folderLoader.register(folderEntryId, foInfo);
+            }
+        }
 
-                    if (folderSettings == null) {
-                        logWarning("Unable to load folder settings."
-                                + "Removed folder config entry: " + folderName
-                                + '/' + folderEntryId);
-                        removeConfigEntries(folderEntryId);
-                        return;
-                    }
+        folderLoader.start();
+        int registered = folderLoader.getRegisteredCount();
+        if (registered > ConfigurationEntry.FOLDER_LAZY_LOADING_THRESHOLD
+                .getValueInt(getController())) {
+            logInfo("Loading " + registered
+                    + " folders in background or on demand");
+            return;
+        }
 
-                    // Fix for PFS-2319: Repair broken encrypted folders
-                    if (folderSettings.getLocalBaseDirString().equals(Constants.FOLDER_ENCRYPTED_CONTAINER_ROOT_DIR)) {
+        // Wait for loaders to complete
+        try {
+            folderLoader.waitForReady();
+        } catch (InterruptedException e) {
+            logFiner(e);
+            return;
+        }
+        logInfo("Loaded " + getFoldersCount() + " folders");
+    }
 
-                        // Construct temporary basePath
-                        folderName = folderName + Constants.FOLDER_ENCRYPTION_SUFFIX;
-                        Path folderDirectoryForRecoveredFolders = getFoldersBasedir().resolve("RECOVERED").resolve(folderName);
-                        Path temporaryBasePath = PathUtils.createEmptyDirectory(folderDirectoryForRecoveredFolders);
+    /**
+     * Creates a folder of the config. Called by the {@link FolderLoader}.
+     *
+     * @param folderEntryId
+     *            the id of the folder entry in the config
+     * @param foInfo
+     * @return the folder or null if the folder entry is illegal.
+     */
+    Folder loadFolder(String folderEntryId, FolderInfo foInfo) {
+        String folderName = foInfo.getName();
+        FolderSettings folderSettings = FolderSettings.load(getController(),
+                folderEntryId);
+
+        if (folderSettings == null) {
+            logWarning("Unable to load folder settings."
+                    + "Removed folder config entry: " + folderName
+                    + '/' + folderEntryId);
+            removeConfigEntries(folderEntryId);
+            return null;
+        }
 
-                        folderSettings = folderSettings.changeBaseDir(temporaryBasePath);
-                        logWarning("Repaired broken encrypted Folder " + folderName + "/" + foInfo.getId() +
-                                ". New storage path: " + temporaryBasePath);
-                    }
+        // Fix for PFS-2319: Repair broken encrypted folders
+        if (folderSettings.getLocalBaseDirString().equals(Constants.FOLDER_ENCRYPTED_CONTAINER_ROOT_DIR)) {
 
-                    // Do not add0 if already added
-                    if (!hasJoinedFolder(foInfo)
-                            && folderSettings != null) {
-                        createFolder(foInfo, folderSettings, false, true);
-                    }
-                } catch (Exception e) {
-                    logWarning("Problem loading/creating folder #" + folderEntryId + ". " + e, e);
-                } finally {
-                    loadPermit.release();
-                    synchronized (nCreated) {
-                        nCreated.incrementAndGet();
-                        nCreated.notify();
-                    }
-                }
-            };
+            // Construct temporary basePath
+            folderName = folderName + Constants.FOLDER_ENCRYPTION_SUFFIX;
+            Path folderDirectoryForRecoveredFolders = getFoldersBasedir().resolve("RECOVERED").resolve(folderName);
+            Path temporaryBasePath = PathUtils.createEmptyDirectory(folderDirectoryForRecoveredFolders);
 
-            getController().getIOProvider().startIO(folderCreator);
+            folderSettings = folderSettings.changeBaseDir(temporaryBasePath);
+            logWarning("Repaired broken encrypted Folder " + folderName + "/" + foInfo.getId() +
+                    ". New storage path: " + temporaryBasePath);
         }
 
-        // Wait for creators to complete
-        while (nCreated.get() < entryIds.size()) {
-            synchronized (nCreated) {
-                try {
-                    nCreated.wait(10);
-                } catch (InterruptedException e) {
-                    logFiner(e);
-                    return;
-                }
-            }
-        }
-        logInfo("Loaded " + getFoldersCount() + " folders");
+        return createFolder(foInfo, folderSettings, false, true);
     }
 
     /**
@@ -672,6 +683,7 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
 
         folderScanner.start();
+        maintenanceScheduler.start();
 
         // Now start thread
         myThread = new Thread(this, getClass().getName());
@@ -721,7 +733,9 @@ public class FolderRepository extends PFComponent implements Runnable {
                 folderMembershipSynchronizer.canceled.set(true);
             }
         }
+        folderLoader.shutdown();
         folderScanner.shutdown();
+        maintenanceScheduler.shutdown();
 
         if (myThread != null) {
             myThread.interrupt();
@@ -810,7 +824,8 @@ public class FolderRepository extends PFComponent implements Runnable {
      */
     public boolean hasJoinedFolder(FolderInfo info) {
         if (!info.isMetaFolder()) {
-            return folders.containsKey(info);
+            return folders.containsKey(info)
+                    || folderLoader.isRegistered(info);
         }
         for (Folder folder : metaFolders.values()) {
             if (folder.getInfo().equals(info)) {
@@ -830,11 +845,13 @@ public class FolderRepository extends PFComponent implements Runnable {
 
     /**
      * @param info
-     * @return the folder by info, or null if folder is not found
+     * @return the folder by info, or null if folder is not found. Loads the
+     * folder if it is not loaded yet.
      */
     public Folder getFolder(FolderInfo info) {
         if (!info.isMetaFolder()) {
-            return folders.get(info);
+            Folder folder = folders.get(info);
+            return folder != null ? folder : folderLoader.demand(info);
         }
         // #1548: Speed this up.
         for (Folder metaFolder : metaFolders.values()) {
@@ -901,7 +918,13 @@ public class FolderRepository extends PFComponent implements Runnable {
      * folders, does NOT include meta-folders (#1548)
      */
     public Collection<FolderInfo> getJoinedFolderInfos() {
-        return Collections.unmodifiableCollection(folders.keySet());
+        if (folderLoader.isReady()) {
+            return Collections.unmodifiableCollection(folders.keySet());
+        }
+        // Also the folders registered but not loaded yet
+        Set<FolderInfo> joined = new HashSet<FolderInfo>(folders.keySet());
+        joined.addAll(folderLoader.getRegisteredFolderInfos());
+        return Collections.unmodifiableSet(joined);
     }
 
     /**
@@ -1041,8 +1064,10 @@ public class FolderRepository extends PFComponent implements Runnable {
         Reject.ifNull(folderInfo, "FolderInfo is null");
         Reject.ifNull(folderSettings, "FolderSettings is null");
 
-        if (hasJoinedFolder(folderInfo)) {
-            Folder existingFolder = folders.get(folderInfo);
+        Folder existingFolder = hasJoinedFolder(folderInfo)
+                ? getFolder(folderInfo)
+                : null;
+        if (existingFolder != null) {
             if (!existingFolder.getLocalBase().equals(folderSettings.getLocalBaseDir())) {
                 logWarning("Tried to create new folder " + folderInfo.getName() + " @ " +
                         folderSettings.getLocalBaseDirString() + ", but already existing @ " +
@@ -1051,6 +1076,23 @@ public class FolderRepository extends PFComponent implements Runnable {
             return existingFolder;
         }
 
+        // Check before the loaded folders: A loading folder is added to them
+        // before it gets unregistered.
+        FolderInfo registered = folderLoader.findRegistered(folderSettings
+                .getLocalBaseDir());
+        if (registered != null && !registered.equals(folderInfo)) {
+            logWarning("Tried to create duplicate folder "
+                    + registered.getName() + ". at "
+                    + folderSettings.getLocalBaseDir()
+                    + ". Existing folder ID: " + registered.getId()
+                    + ". Requested folder ID: " + folderInfo.getId());
+            throw new IllegalStateException(
+                    "Tried to create duplicate folder " + registered.getName()
+                            + ". at " + folderSettings.getLocalBaseDir()
+                            + ". Existing folder ID: " + registered.getId()
+                            + ". Requested folder ID: " + folderInfo.getId());
+        }
+
         for (Folder folder : folders.values()) {
             if (folder.getCommitOrLocalDir().equals(
                     folderSettings.getLocalBaseDir())) {
@@ -1344,11 +1386,8 @@ public class FolderRepository extends PFComponent implements Runnable {
             triggerSynchronizeAllFolderMemberships();
 
             // Abort scanning
-            boolean folderCurrentlyScannng = folder.equals(folderScanner
-                    .getCurrentScanningFolder());
-            if (folderCurrentlyScannng) {
-                folderScanner.abortScan();
-            }
+            folderScanner.abortScan(folder);
+            maintenanceScheduler.remove(folder);
 
             // Delete the .PowerFolder dir and contents
             if (deleteSystemSubDir) {
@@ -1515,11 +1554,11 @@ public class FolderRepository extends PFComponent implements Runnable {
     }
 
     /**
-     * @return the folder that currently gets maintainted or null if not
-     * maintaining any folder.
+     * @return one of the folders that currently get maintainted or null if
+     * not maintaining any folder.
      */
     public Folder getCurrentlyMaintainingFolder() {
-        return currentlyMaintainingFolder;
+        return maintenanceScheduler.getMaintainingFolder();
     }
 
     /**
@@ -1537,7 +1576,8 @@ public class FolderRepository extends PFComponent implements Runnable {
     }
 
     /**
-     * Mainenance thread for the folders
+     * Mainenance thread for the folders. Schedules the folders that require
+     * maintenance.
      */
     public void run() {
         // Wait to build up ui
@@ -1564,53 +1604,23 @@ public class FolderRepository extends PFComponent implements Runnable {
             if (!controller.isPaused()) {
                 scanningFolders.clear();
                 for (Folder folder : folders.values()) {
-                    if (folder.isMaintenanceRequired()) {
+                    if (!maintenanceScheduler.isScheduled(folder)
+                            && folder.isMaintenanceRequired()) {
                         scanningFolders.add(folder);
                     }
                 }
                 for (Folder metaFolder : metaFolders.values()) {
-                    if (metaFolder.isMaintenanceRequired()) {
+                    if (!maintenanceScheduler.isScheduled(metaFolder)
+                            && metaFolder.isMaintenanceRequired()) {
                         scanningFolders.add(metaFolder);
                     }
                 }
-                scanningFolders.sort(FolderComparator.INSTANCE);
                 if (isFiner()) {
-                    logFiner("Maintaining " + scanningFolders.size()
-                            + " folders...");
-                }
-                for (Folder folder : scanningFolders) {
-                    currentlyMaintainingFolder = folder;
-                    // Fire event
-                    fireMaintanceStarted(currentlyMaintainingFolder);
-                    try {
-                        currentlyMaintainingFolder.maintain();
-                    } catch (RuntimeException e) {
-                        // PFS-2000:
-                        logWarning("Unable to maintain folder "
-                                + currentlyMaintainingFolder.getName() + "/"
-                                + currentlyMaintainingFolder.getId() + ": " + e, e);
-                    }
-                    Folder maintainedFolder = currentlyMaintainingFolder;
-                    currentlyMaintainingFolder = null;
-                    // Fire event
-                    fireMaintenanceFinished(maintainedFolder);
-
-                    if (controller.isPaused() || myThread.isInterrupted()) {
-                        break;
-                    }
-
-                    // Wait a bit to give other waiting sync processes time...
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
-
-                if (isFiner()) {
-                    logFiner("Maintained " + scanningFolders.size()
-                            + " folder(s)");
+                    logFiner("Scheduling maintenance of "
+                            + scanningFolders.size() + " folders...");
                 }
+                // Workers pick the folders by priority
+                maintenanceScheduler.schedule(scanningFolders);
             }
 
             if (!triggered) {
@@ -1670,6 +1680,10 @@ public class FolderRepository extends PFComponent implements Runnable {
         if (suspendNewFolderSearch.get() > 0) {
             return false;
         }
+        // Directories of folders not loaded yet are no new folders
+        if (!folderLoader.isReady()) {
+            return false;
+        }
         // sync with #handleDeviceDisconnectd(Folder)
         scanBasedirLock.lock();
         boolean ok = false;
@@ -2100,6 +2114,8 @@ public class FolderRepository extends PFComponent implements Runnable {
             Files.deleteIfExists(systemSubdir.resolve(Constants.DB_FILENAME));
             Files.deleteIfExists(
                     systemSubdir.resolve(Constants.DB_BACKUP_FILENAME));
+            Files.deleteIfExists(
+                    systemSubdir.resolve(Constants.DB_JOURNAL_FILENAME));
             // remove locks
             PathUtils.recursiveDelete(
                     metaSubfolder.resolve(Folder.METAFOLDER_LOCKS_DIR));
@@ -2958,12 +2974,12 @@ public class FolderRepository extends PFComponent implements Runnable {
                 .folderMoved(new FolderRepositoryEvent(this, newFolder, oldFolder));
     }
 
-    private void fireMaintanceStarted(Folder folder) {
+    void fireMaintanceStarted(Folder folder) {
         folderRepositoryListenerSupport
                 .maintenanceStarted(new FolderRepositoryEvent(this, folder));
     }
 
-    private void fireMaintenanceFinished(Folder folder) {
+    void fireMaintenanceFinished(Folder folder) {
         folderRepositoryListenerSupport
                 .maintenanceFinished(new FolderRepositoryEvent(this, folder));
     }
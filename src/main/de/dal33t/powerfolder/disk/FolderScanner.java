@@ -21,6 +21,7 @@ package de.dal33t.powerfolder.disk;
 
 import de.dal33t.powerfolder.*;
 import de.dal33t.powerfolder.disk.ScanResult.ResultState;
+import de.dal33t.powerfolder.disk.ScanResult.ScanPhase;
 import de.dal33t.powerfolder.disk.problem.FilenameProblemHelper;
 import de.dal33t.powerfolder.disk.problem.Problem;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -34,69 +35,58 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.Semaphore;
 
 /**
  * Disk Scanner for a folder. It compares the curent database of files agains
- * the ones availeble on disk and produces a ScanResult. MultiThreading is used,
- * for each subfolder of the root a DirectoryCrawler is used with a maximum of
- * MAX_CRAWLERS.<BR>
+ * the ones availeble on disk and produces a ScanResult. The directory tree is
+ * crawled on a shared work-stealing pool: Every directory is a
+ * DirectoryCrawler task which scans its files and forks one task per
+ * subdirectory. Idle crawler threads steal pending subtrees from busy ones.
+ * The parallelism of the pool (FOLDER_SCANNER_MAX_CRAWLERS) is the global cap
+ * for concurrent disk I/O of all scans together. Up to
+ * FOLDER_SCANNER_MAX_FOLDERS folders can be scanned at the same time.<BR>
  * On succes the resultState of ScanResult is ScanResult.ResultState.SCANNED.<BR>
  * If the user aborted the scan (by selecting paused mode) the resultState =
  * ScanResult.ResultState.USER_ABORT.<BR>
  * If during scanning files dare deleted when scanning, the whole folder is
  * deleted or in practice the harddisk fails the resultState is
  * ScanResult.ResultState.HARDWARE_FAILURE. <BR>
+ * If the folder is already being scanned or the maximum number of concurrent
+ * scans is reached the resultState is ScanResult.ResultState.BUSY.<BR>
  * usage:<BR>
  * <code>
  * ScanResult result = folderScannner.scanFolder(folder);
  * </code>
  */
 public class FolderScanner extends PFComponent {
-    /** The folder that is being scanned */
-    private Folder currentScanningFolder;
-    private ScanResult currentScanResult;
 
-    /**
-     * This is the list of knownfiles, if a file is found on disk the file is
-     * removed from this list. The files that are left in this list after
-     * scanning are deleted from disk.
-     */
-    private Map<String, FileInfo> remaining = Util.createConcurrentHashMap();
-
-    /** DirectoryCrawler threads that are idle */
-    private final List<DirectoryCrawler> directoryCrawlersPool = new CopyOnWriteArrayList<DirectoryCrawler>();
+    /** The scans currently running. Folder -> Scan */
+    private final ConcurrentMap<Folder, FolderScan> currentScans = Util
+        .createConcurrentHashMap();
 
-    /** Where crawling DirectoryCrawlers are */
-    private final List<DirectoryCrawler> activeDirectoryCrawlers = new CopyOnWriteArrayList<DirectoryCrawler>();
     /**
-     * Maximum number of DirectoryCrawlers after test of a big folder this seams
-     * the optimum number.
+     * Maximum number of crawler threads of all scans together.
      */
-    private int maxCrawlers = 3;
+    private final int maxCrawlers;
 
     /**
-     * The files which could not be scanned
+     * The permit to acquire = means this thread got a scan slot now.
      */
-    private List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
+    private final Semaphore scanPermits;
 
     /**
-     * Because of multi threading we use a flag to indicate a failed besides
-     * returning false
+     * The work-stealing pool all DirectoryCrawlers run in. Lazily created,
+     * threads are only spawned on demand.
      */
-    private volatile boolean failure = false;
+    private ForkJoinPool crawlerPool;
 
-    /**
-     * when set to true the scanning process will be aborted and the resultState
-     * of the scan will be ScanResult.ResultState.USER_ABORT
-     */
-    private volatile boolean abort = false;
-
-    /**
-     * The semaphore to acquire = means this thread got the folder scan now.
-     */
-    private Semaphore threadOwnership;
+    private volatile boolean shutdown;
 
     /**
      * Do not use this constructor, this should only be done by the Folder
@@ -108,58 +98,95 @@ public class FolderScanner extends PFComponent {
      */
     FolderScanner(Controller controller) {
         super(controller);
-        threadOwnership = new Semaphore(1);
-        maxCrawlers = ConfigurationEntry.FOLDER_SCANNER_MAX_CRAWLERS
-            .getValueInt(getController());
+        maxCrawlers = Math.max(1,
+            ConfigurationEntry.FOLDER_SCANNER_MAX_CRAWLERS
+                .getValueInt(getController()));
+        scanPermits = new Semaphore(Math.max(1,
+            ConfigurationEntry.FOLDER_SCANNER_MAX_FOLDERS
+                .getValueInt(getController())));
     }
 
     /**
-     * Starts the folder scanner, creates MAX_CRAWLERS number of
-     * DirectoryCrawler
+     * Starts the folder scanner, creates the pool for the DirectoryCrawlers
      */
     public void start() {
-        // start directoryCrawlers
-        for (int i = 0; i < maxCrawlers; ++i) {
-            DirectoryCrawler directoryCrawler = new DirectoryCrawler();
-            Thread thread = new Thread(directoryCrawler,
-                "FolderScanner.DirectoryCrawler #" + i);
-            thread.setPriority(Thread.MIN_PRIORITY);
-            thread.start();
-            directoryCrawlersPool.add(directoryCrawler);
-        }
-        currentScanResult = new ScanResult(true);
+        getCrawlerPool();
     }
 
     /**
-     * sets aborted to true (user probably closed the program), and shutsdown
-     * the DirectoryCrawlers
+     * Aborts all running scans (user probably closed the program), and
+     * shutsdown the DirectoryCrawlers
      */
     public void shutdown() {
-        abort = true;
-        synchronized (directoryCrawlersPool) {
-            for (DirectoryCrawler directoryCrawler : directoryCrawlersPool) {
-                directoryCrawler.shutdown();
-            }
-            for (DirectoryCrawler directoryCrawler : activeDirectoryCrawlers) {
-                directoryCrawler.shutdown();
+        ForkJoinPool pool;
+        synchronized (this) {
+            shutdown = true;
+            pool = crawlerPool;
+            crawlerPool = null;
+        }
+        abortScan();
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private synchronized ForkJoinPool getCrawlerPool() {
+        if (crawlerPool == null && !shutdown) {
+            crawlerPool = new ForkJoinPool(maxCrawlers,
+                new CrawlerThreadFactory(), null, false);
+            if (isFine()) {
+                logFine("Started with " + maxCrawlers + " crawlers, "
+                    + scanPermits.availablePermits() + " concurrent scans");
             }
         }
-        // waitForCrawlersToStop();
+        return crawlerPool;
     }
 
+    /**
+     * @return one of the folders currently being scanned or null if no scan
+     *         is running.
+     * @see #isScanning(Folder)
+     */
     public Folder getCurrentScanningFolder() {
-        return currentScanningFolder;
+        Iterator<Folder> it = currentScans.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
     }
 
     /**
-     * Abort scanning. when called the scanning process will be aborted and the
-     * resultState of the scan will be ScanResult.ResultState.USER_ABORT
+     * @param folder
+     * @return true if the given folder is currently being scanned.
+     */
+    public boolean isScanning(Folder folder) {
+        return folder != null && currentScans.containsKey(folder);
+    }
+
+    /**
+     * Abort all scans. when called the scanning process will be aborted and
+     * the resultState of the scan will be ScanResult.ResultState.USER_ABORT
      *
      * @return true if abort has been initiated, false if not currently scanning
      */
     public boolean abortScan() {
-        if (currentScanningFolder != null) {
-            abort = true;
+        boolean aborted = false;
+        for (FolderScan scan : currentScans.values()) {
+            scan.abort = true;
+            aborted = true;
+        }
+        return aborted;
+    }
+
+    /**
+     * Abort the scan of the given folder. The resultState of the scan will be
+     * ScanResult.ResultState.USER_ABORT
+     *
+     * @param folder
+     * @return true if abort has been initiated, false if the folder is not
+     *         currently scanned
+     */
+    public boolean abortScan(Folder folder) {
+        FolderScan scan = folder != null ? currentScans.get(folder) : null;
+        if (scan != null) {
+            scan.abort = true;
             return true;
         }
         return false;
@@ -172,632 +199,571 @@ public class FolderScanner extends PFComponent {
      *            The folder to scan.
      * @return a ScanResult the scan result.
      */
-    public synchronized ScanResult scanFolder(Folder folder) {
+    public ScanResult scanFolder(Folder folder) {
         Reject.ifNull(folder, "folder cannot be null");
 
-        if (!threadOwnership.tryAcquire()) {
+        if (!scanPermits.tryAcquire()) {
             return new ScanResult(ScanResult.ResultState.BUSY);
         }
-
         try {
-            currentScanningFolder = folder;
-            if (isFiner()) {
-                logFiner("Scan of folder: " + folder.getName() + " start");
+            FolderScan scan = new FolderScan(folder);
+            if (currentScans.putIfAbsent(folder, scan) != null) {
+                return new ScanResult(ScanResult.ResultState.BUSY);
             }
-            long started = System.currentTimeMillis();
-            // Debug.dumpThreadStacks();
-
-            Path base = currentScanningFolder.getLocalBase();
-            remaining.clear();
-            for (FileInfo fInfo : currentScanningFolder.getKnownFiles()) {
-                remaining.put(fInfo.getRelativeName(), fInfo);
-            }
-            for (FileInfo fInfo : currentScanningFolder.getKnownDirectories()) {
-                remaining.put(fInfo.getRelativeName(), fInfo);
-            }
-            if (!scan(base) || failure) {
-                // if false there was an IOError
-                reset();
-                return new ScanResult(ScanResult.ResultState.FAILURE);
-            }
-            if (abort) {
-                reset();
-                return new ScanResult(ScanResult.ResultState.USER_ABORT);
-            }
-            // from , to
-            tryFindMovementsInCurrentScan();
-            tryFindProblemsInCurrentScan();
-
-            // Remove the files that where unable to read.
-
-            int n = unableToScanFiles.size();
-            for (int i = 0; i < n; i++) {
-                Path file = unableToScanFiles.get(i);
-                FileInfo fInfo = FileInfoFactory.lookupInstance(
-                    currentScanningFolder, file);
-                remaining.remove(fInfo.getRelativeName());
-                // TRAC #523
-                if (Files.isDirectory(file)) {
-                    String dirPath = file.toAbsolutePath().toString().replace(
-                        file.getFileSystem().getSeparator(), "/");
-                    // Is a directory. Remove all from remaining that are in
-                    // that
-                    // dir.
-                    logFiner("Checking unreadable folder for files that were not scanned: "
-                        + dirPath);
-                    for (Iterator<FileInfo> it = remaining.values().iterator(); it
-                        .hasNext();)
-                    {
-                        FileInfo fInfo2 = it.next();
-                        String locationInFolder = fInfo2
-                            .getLowerCaseFilenameOnly();
-                        if (dirPath.endsWith(locationInFolder)) {
-                            logWarning("Found file in unreadable folder. Unable to scan: "
-                                + fInfo2);
-                            it.remove();
-                            unableToScanFiles.add(fInfo2
-                                .getDiskFile(getController()
-                                    .getFolderRepository()));
-                        }
-                    }
-                }
-            }
-
-            if (isWarning()) {
-                if (unableToScanFiles.isEmpty()) {
-                    logFiner("Unable to scan " + unableToScanFiles.size()
-                        + " file(s)");
-                } else {
-                    logWarning("Unable to scan " + unableToScanFiles.size()
-                        + " file(s)");
-                }
-            }
-            // Remaining files = deleted! But only if they are not already
-            // flagged
-            // as deleted or if the could not be scanned
-            for (Iterator<FileInfo> it = remaining.values().iterator(); it
-                .hasNext();)
-            {
-                FileInfo fInfo = it.next();
-                if (fInfo.isDeleted()) {
-                    // This file was already flagged as deleted,
-                    // = not a freshly deleted file
-                    it.remove();
-                } else {
-                    logFine("Deleted file detected: " + fInfo.toDetailString());
-                }
-            }
-
-            // Build scanresult
-
-            for (FileInfo fileInfo : remaining.values()) {
-                // Do not perform FileInfo.syncFromDiskIfRequired
-                // This would leave to extra I/O for all files that had been
-                // deleted in the past on every scan.
-                FileInfo deletedFileInfo = FileInfoFactory.deletedFile(
-                    fileInfo, getController().getMySelf().getInfo(),
-                    getController().getMySelf().getAccountInfo(), new Date());
-                currentScanResult.deletedFiles.add(deletedFileInfo);
-            }
-
-            // result.setMovedFiles(moved);
-            // result.setProblemFiles(problemFiles);
-            // result.setRestoredFiles(restoredFiles);
-            // currentScanResult.totalFilesCount = totalFilesCount;
-            // result.setResultState(ScanResult.ResultState.SCANNED);
-
-            // prepare for next scan
-            ScanResult myResult = currentScanResult;
-            reset();
-            if (isWarning()) {
-                long took = System.currentTimeMillis() - started;
-                if (currentScanResult.getResultState() == ResultState.SCANNED
-                    || took > 1000L * 60 * 5)
-                {
-                    logFiner("Scan of folder " + folder.getName() + " done in "
-                        + took + "ms. Result: "
-                        + currentScanResult.getResultState());
-                } else {
-                    logWarning("Scan of folder " + folder.getName()
-                        + " done in " + took + "ms. Result: "
-                        + currentScanResult.getResultState());
+            try {
+                ForkJoinPool pool = getCrawlerPool();
+                if (pool == null) {
+                    // Already shut down.
+                    return new ScanResult(ScanResult.ResultState.USER_ABORT);
                 }
+                return scan.scan(pool);
+            } finally {
+                // Not longer scanning
+                currentScans.remove(folder, scan);
             }
-            return myResult;
-        } catch (RuntimeException re) {
-            logSevere("Folder scanner crashed at " + currentScanningFolder, re);
-            failure = true;
-            reset();
-            return new ScanResult(ScanResult.ResultState.FAILURE);
         } finally {
-            // Not longer scanning
-            currentScanningFolder = null;
             // Remove ownership for this thread
-            threadOwnership.release();
+            scanPermits.release();
         }
     }
 
-    /** after scanning the state of this scanning should be reset */
-    private void reset() {
-        // Ensure gracful stop
-        waitForCrawlersToStop();
-        abort = false;
-        failure = false;
-        // changedFiles.clear();
-        // newFiles.clear();
-        // allFiles.clear();
-        // restoredFiles.clear();
-        unableToScanFiles.clear();
-        // totalFilesCount = 0;
-        currentScanResult = new ScanResult(true);
-    }
+    /**
+     * The state of a single folder scan. Shared by all DirectoryCrawlers
+     * working on the folder.
+     */
+    private class FolderScan {
+        /** The folder that is being scanned */
+        private final Folder currentScanningFolder;
+        private final ScanResult currentScanResult = new ScanResult(true);
 
-    private void waitForCrawlersToStop() {
-        while (!activeDirectoryCrawlers.isEmpty()) {
-            logFine("Waiting for " + activeDirectoryCrawlers.size()
-                + " crawlers to stop");
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                }
-            }
+        /**
+         * This is the list of knownfiles, if a file is found on disk the file
+         * is removed from this list. The files that are left in this list
+         * after scanning are deleted from disk.
+         */
+        private final Map<String, FileInfo> remaining = Util
+            .createConcurrentHashMap();
+
+        /**
+         * #1531: Secondary index of remaining by lower case relative name.
+         * Only maintained while crawling if {@link FileInfo#IGNORE_CASE}.
+         */
+        private final Map<String, FileInfo> remainingIgnoreCase = Util
+            .createConcurrentHashMap();
+
+        /**
+         * The files which could not be scanned
+         */
+        private final List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
+
+        /**
+         * Because of multi threading we use a flag to indicate a failed
+         * besides returning false
+         */
+        private volatile boolean failure;
+
+        /**
+         * when set to true the scanning process will be aborted and the
+         * resultState of the scan will be ScanResult.ResultState.USER_ABORT
+         */
+        private volatile boolean abort;
+
+        private long phaseStarted;
+
+        FolderScan(Folder folder) {
+            currentScanningFolder = folder;
         }
-    }
 
-    /**
-     * Produces a list of FilenameProblems per FileInfo that has problems.
-     * Public for testing
-     */
-    private void tryFindProblemsInCurrentScan() {
-        if (!PreferencesEntry.FILE_NAME_CHECK.getValueBoolean(getController()))
-        {
-            return;
+        private void addRemaining(FileInfo fInfo) {
+            remaining.put(fInfo.getRelativeName(), fInfo);
+            if (FileInfo.IGNORE_CASE) {
+                remainingIgnoreCase.put(fInfo.getLowerCaseFilenameOnly(),
+                    fInfo);
+            }
         }
-        tryToFindProblemsInCurrentScan(currentScanResult.getChangedFiles());
-        tryToFindProblemsInCurrentScan(currentScanResult.getRestoredFiles());
-        tryToFindProblemsInCurrentScan(currentScanResult.getNewFiles());
-    }
 
-    private void tryToFindProblemsInCurrentScan(Collection<FileInfo> files)
-    {
-        for (FileInfo fileInfo : files) {
-            currentScanResult
-                .putFileProblems(fileInfo, FilenameProblemHelper.getProblems(
-                    getController(), fileInfo));
+        /**
+         * Removes the known file with the given relative name from remaining.
+         * Falls back to a lookup ignoring the case if
+         * {@link FileInfo#IGNORE_CASE}.
+         *
+         * @return the known file or null if the file is new.
+         */
+        private FileInfo takeRemaining(String filename, Path fileToScan) {
+            FileInfo exists = remaining.remove(filename);
+            if (!FileInfo.IGNORE_CASE) {
+                return exists;
+            }
+            if (exists != null) {
+                remainingIgnoreCase.remove(exists.getLowerCaseFilenameOnly(),
+                    exists);
+                return exists;
+            }
+            // #1531 / #1804: Try harder, same file with different name-case.
+            exists = remainingIgnoreCase.remove(filename.toLowerCase());
+            if (exists != null
+                && remaining.remove(exists.getRelativeName(), exists))
+            {
+                if (isFiner()) {
+                    logFiner("Found local diskfile with diffrent name-case in db. file: "
+                        + fileToScan.toAbsolutePath().toString()
+                        + ", dbFile: " + exists.toDetailString());
+                }
+                return exists;
+            }
+            return null;
         }
-    }
 
-    /**
-     * Scans folder from the local base folder as root
-     *
-     * @param folderBase
-     *            The file root of the folder to scan from.
-     * @returns true on success, false on failure (hardware not found?)
-     */
-    private boolean scan(Path folderBase) {
-        if (folderBase == null) {
-            failure = true;
-            return false;
+        private void phaseDone(ScanPhase phase) {
+            long now = System.currentTimeMillis();
+            currentScanResult.setPhaseTime(phase, now - phaseStarted);
+            phaseStarted = now;
         }
 
-        try (DirectoryStream<Path> stream = Files
-            .newDirectoryStream(folderBase)) {
+        ScanResult scan(ForkJoinPool pool) {
+            Folder folder = currentScanningFolder;
+            try {
+                if (isFiner()) {
+                    logFiner("Scan of folder: " + folder.getName() + " start");
+                }
+                long started = System.currentTimeMillis();
+                phaseStarted = started;
 
-            if (stream == null) {
-                failure = true;
-                return false;
-            }
+                Path base = currentScanningFolder.getLocalBase();
+                for (FileInfo fInfo : currentScanningFolder.getKnownFiles()) {
+                    addRemaining(fInfo);
+                }
+                for (FileInfo fInfo : currentScanningFolder
+                    .getKnownDirectories())
+                {
+                    addRemaining(fInfo);
+                }
+                phaseDone(ScanPhase.PREPARE);
 
-            for (Path path : stream) {
+                if (base == null) {
+                    return new ScanResult(ScanResult.ResultState.FAILURE);
+                }
+                pool.invoke(new DirectoryCrawler(base, null));
+                remainingIgnoreCase.clear();
+                phaseDone(ScanPhase.CRAWL);
                 if (failure) {
-                    return false;
+                    // There was an IOError
+                    return new ScanResult(ScanResult.ResultState.FAILURE);
                 }
                 if (abort) {
-                    break;
+                    return new ScanResult(ScanResult.ResultState.USER_ABORT);
                 }
-                if (Files.exists(path) && Files.isRegularFile(path)) {
-                    if (PathUtils.isScannable(path, currentScanningFolder)) {
-                        if (!scanFile(path, "")) {
-                            failure = true;
-                            return false;
-                        }
-                    }
-                } else if (Files.isDirectory(path)) {
-                    if (!PathUtils.isScannable(path, currentScanningFolder)
-                        || currentScanningFolder.isSystemSubDir(path))
-                    {
-                        continue;
-                    }
-                    while (directoryCrawlersPool.isEmpty()) {
-                        synchronized (this) {
-                            try {
-                                wait();
-                            } catch (InterruptedException e) {
+                // from , to
+                tryFindMovementsInCurrentScan();
+                phaseDone(ScanPhase.MOVEMENTS);
+                tryFindProblemsInCurrentScan();
+                phaseDone(ScanPhase.PROBLEMS);
+
+                // Remove the files that where unable to read.
+
+                int n = unableToScanFiles.size();
+                for (int i = 0; i < n; i++) {
+                    Path file = unableToScanFiles.get(i);
+                    FileInfo fInfo = FileInfoFactory.lookupInstance(
+                        currentScanningFolder, file);
+                    remaining.remove(fInfo.getRelativeName());
+                    // TRAC #523
+                    if (Files.isDirectory(file)) {
+                        String dirPath = file.toAbsolutePath().toString()
+                            .replace(file.getFileSystem().getSeparator(), "/");
+                        // Is a directory. Remove all from remaining that are in
+                        // that
+                        // dir.
+                        logFiner("Checking unreadable folder for files that were not scanned: "
+                            + dirPath);
+                        for (Iterator<FileInfo> it = remaining.values()
+                            .iterator(); it.hasNext();)
+                        {
+                            FileInfo fInfo2 = it.next();
+                            String locationInFolder = fInfo2
+                                .getLowerCaseFilenameOnly();
+                            if (dirPath.endsWith(locationInFolder)) {
+                                logWarning("Found file in unreadable folder. Unable to scan: "
+                                    + fInfo2);
+                                it.remove();
+                                unableToScanFiles.add(fInfo2
+                                    .getDiskFile(getController()
+                                        .getFolderRepository()));
                             }
                         }
                     }
-                    synchronized (directoryCrawlersPool) {
-                        DirectoryCrawler crawler = directoryCrawlersPool
-                            .remove(0);
-                        activeDirectoryCrawlers.add(crawler);
-                        crawler.scan(path);
+                }
+
+                if (isWarning()) {
+                    if (unableToScanFiles.isEmpty()) {
+                        logFiner("Unable to scan " + unableToScanFiles.size()
+                            + " file(s)");
+                    } else {
+                        logWarning("Unable to scan "
+                            + unableToScanFiles.size() + " file(s)");
                     }
-                } else {
-                    boolean deviceDisconnected = currentScanningFolder
-                        .checkIfDeviceDisconnected();
-                    logWarning("Unable to scan file: " + path.toAbsolutePath()
-                        + ". Folder device disconnected? " + deviceDisconnected);
-                    if (deviceDisconnected) {
-                        // Hardware not longer available? BREAK scan!
-                        failure = true;
-                        return false;
+                }
+                // Remaining files = deleted! But only if they are not already
+                // flagged
+                // as deleted or if the could not be scanned
+                for (Iterator<FileInfo> it = remaining.values().iterator(); it
+                    .hasNext();)
+                {
+                    FileInfo fInfo = it.next();
+                    if (fInfo.isDeleted()) {
+                        // This file was already flagged as deleted,
+                        // = not a freshly deleted file
+                        it.remove();
+                    } else {
+                        logFine("Deleted file detected: "
+                            + fInfo.toDetailString());
                     }
-                    unableToScanFiles.add(path);
                 }
-            }
-        } catch (IOException ioe) {
-            return false;
-        }
 
-        while (!isReady()) {
-            try {
-                synchronized (this) {
-                    wait();
+                // Build scanresult
+
+                for (FileInfo fileInfo : remaining.values()) {
+                    // Do not perform FileInfo.syncFromDiskIfRequired
+                    // This would leave to extra I/O for all files that had been
+                    // deleted in the past on every scan.
+                    FileInfo deletedFileInfo = FileInfoFactory.deletedFile(
+                        fileInfo, getController().getMySelf().getInfo(),
+                        getController().getMySelf().getAccountInfo(),
+                        new Date());
+                    currentScanResult.deletedFiles.add(deletedFileInfo);
                 }
-            } catch (InterruptedException e) {
-                logFiner(e);
-                return false;
-            }
-        }
-        return true;
-    }
+                phaseDone(ScanPhase.DELETIONS);
 
-    /** @return true if all directory Crawler are idle. */
-    private boolean isReady() {
-        boolean ready;
-        synchronized (directoryCrawlersPool) {
-            ready = activeDirectoryCrawlers.isEmpty()
-                && directoryCrawlersPool.size() == maxCrawlers;
-        }
-        return ready;
-    }
-
-    /**
-     * if a file is in the knownFilesNotOnDisk list and in the newlyFoundFiles
-     * list with the same size and modification date the file is for 99% sure
-     * moved. Map<from , to>
-     */
-    private void tryFindMovementsInCurrentScan() {
-        if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
-            return;
-        }
-        for (FileInfo deletedFile : remaining.values()) {
-            long size = deletedFile.getSize();
-            long modificationDate = deletedFile.getModifiedDate().getTime();
-            for (FileInfo newFile : currentScanResult.newFiles) {
-                if (newFile.getSize() == size
-                    && newFile.getModifiedDate().getTime() == modificationDate)
-                {
-                    // possible movement detected
-                    if (isFine()) {
-                        logFine("Movement from: " + deletedFile + " to: "
-                            + newFile);
+                if (isWarning()) {
+                    long took = System.currentTimeMillis() - started;
+                    if (currentScanResult.getResultState() == ResultState.SCANNED
+                        || took > 1000L * 60 * 5)
+                    {
+                        logFiner("Scan of folder " + folder.getName()
+                            + " done in " + took + "ms. Result: "
+                            + currentScanResult);
+                    } else {
+                        logWarning("Scan of folder " + folder.getName()
+                            + " done in " + took + "ms. Result: "
+                            + currentScanResult);
                     }
-                    currentScanResult.movedFiles.put(deletedFile, newFile);
                 }
+                return currentScanResult;
+            } catch (RuntimeException re) {
+                logSevere("Folder scanner crashed at " + currentScanningFolder,
+                    re);
+                failure = true;
+                return new ScanResult(ScanResult.ResultState.FAILURE);
             }
         }
-    }
 
-    /**
-     * scans a single file.
-     *
-     * @param fileToScan
-     *            the disk file to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanFile(Path fileToScan, String currentDirName) {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-        currentScanResult.incrementTotalFilesCount();
-        String filename;
-        if (currentDirName.length() == 0) {
-            filename = fileToScan.getFileName().toString();
-        } else {
-            filename = currentDirName + '/' + fileToScan.getFileName().toString();
+        /**
+         * Produces a list of FilenameProblems per FileInfo that has problems.
+         * Public for testing
+         */
+        private void tryFindProblemsInCurrentScan() {
+            if (!PreferencesEntry.FILE_NAME_CHECK
+                .getValueBoolean(getController()))
+            {
+                return;
+            }
+            tryToFindProblemsInCurrentScan(currentScanResult.getChangedFiles());
+            tryToFindProblemsInCurrentScan(currentScanResult.getRestoredFiles());
+            tryToFindProblemsInCurrentScan(currentScanResult.getNewFiles());
         }
-        return scanDiskItem(fileToScan, FileInfoFactory.decodeIllegalChars(filename), false);
-    }
 
-    /**
-     * scans a single directory.
-     *
-     * @param dirToScan
-     *            the disk directory to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanDirectory(Path dirToScan, String currentDirName) {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-        if (isFiner()) {
-            logFiner("Scanning subdir " + dirToScan + " / " + currentDirName);
+        private void tryToFindProblemsInCurrentScan(Collection<FileInfo> files)
+        {
+            for (FileInfo fileInfo : files) {
+                currentScanResult.putFileProblems(fileInfo,
+                    FilenameProblemHelper.getProblems(getController(),
+                        fileInfo));
+            }
         }
-        currentScanResult.incrementTotalFilesCount();
-        return scanDiskItem(dirToScan, FileInfoFactory.decodeIllegalChars(currentDirName), true);
-    }
 
-    /**
-     * scans a single file.
-     *
-     * @param fileToScan
-     *            the disk file to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanDiskItem(Path fileToScan, String filename,
-        boolean directory)
-    {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-
-        // #1531 / #1804
-        FileInfo exists = remaining.remove(filename);
-        if (exists == null && FileInfo.IGNORE_CASE) {
-            // Try harder, same file with the
-            for (FileInfo otherFInfo : remaining.values()) {
-                if (otherFInfo.getRelativeName().equalsIgnoreCase(filename)) {
-                    if (isFiner()) {
-                        logFiner("Found local diskfile with diffrent name-case in db. file: "
-                            + fileToScan.toAbsolutePath().toString()
-                            + ", dbFile: "
-                            + otherFInfo.toDetailString());
-                    }
-                    // if (fInfo.getRelativeName().equals(
-                    // otherFInfo.getRelativeName())
-                    // && !fInfo.equals(otherFInfo))
-                    // {
-                    // throw new RuntimeException(
-                    // "Bad failure: FileInfos not equal. "
-                    // + fInfo.toDetailString() + " and "
-                    // + otherFInfo.toDetailString()
-                    // + " Probably FolderInfo objects are not equal?");
-                    // }
-                    remaining.remove(otherFInfo.getRelativeName());
-                    exists = otherFInfo;
-                }
+        /**
+         * if a file is in the knownFilesNotOnDisk list and in the
+         * newlyFoundFiles list with the same size and modification date the
+         * file is for 99% sure moved. Map<from , to>
+         *
+         * @see MovementDetector
+         */
+        private void tryFindMovementsInCurrentScan() {
+            if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
+                return;
             }
-        }
-        try {
-            if (exists != null) {// file was known
-                if (exists.isDeleted()) {
-                    // file restored
-                    FileInfo restoredFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
-                    if (restoredFile != null) {
-                        if (isInfo()) {
-                            logInfo("Restored detected: "
-                                + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
-                        }
-                        restoredFile.setPreviousSize(exists.getSize());
-                        currentScanResult.restoredFiles.add(restoredFile);
-                    }
-                } else {
-                    FileInfo changedFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
-                    if (changedFile != null) {
-                        if (isInfo()
-                            && currentScanningFolder.getDiskItemFilter()
-                                .isRetained(changedFile))
-                        {
-                            logInfo("Change detected: "
-                                + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
-                        }
-                        changedFile.setPreviousSize(exists.getSize());
-                        currentScanResult.changedFiles.add(changedFile);
-                    }
-                }
-            } else {
-                // file is new
-                // PFC-2352: TODO Generate ID / Hashes
-                FileInfo info = FileInfoFactory.newFile(currentScanningFolder,
-                    fileToScan, null, getController().getMySelf().getInfo(),
-                    getController().getMySelf().getAccountInfo(), null,
-                    directory, null);
-                currentScanResult.newFiles.add(info);
-                if (isFiner()) {
-                    logFiner("New found: " + info.toDetailString());
-                }
+            Map<FileInfo, FileInfo> moves;
+            synchronized (currentScanResult.newFiles) {
+                moves = MovementDetector.findMovements(remaining.values(),
+                    currentScanResult.newFiles);
             }
-
-        } catch (Exception e) {
-            logWarning("Unable to scan: " + fileToScan + ". " + e);
-            unableToScanFiles.add(fileToScan);
-        }
-        return true;
-    }
-
-    /**
-     * calculates the subdir of this file relative to the location of the folder
-     */
-    private static String getCurrentDirName(Folder folder, Path subFile) {
-        String fileName = subFile.getFileName().toString();
-        Path parent = subFile.getParent();
-        Path folderBase = folder.getLocalBase();
-        while (!folderBase.equals(parent)) {
-            if (parent == null) {
-                throw new NullPointerException(
-                    "Local file seems not to be in a subdir of the local powerfolder copy");
+            if (isFine()) {
+                for (Map.Entry<FileInfo, FileInfo> move : moves.entrySet()) {
+                    logFine("Movement from: " + move.getKey() + " to: "
+                        + move.getValue());
+                }
             }
-            fileName = parent.getFileName().toString() + '/' + fileName;
-            parent = parent.getParent();
+            currentScanResult.movedFiles.putAll(moves);
         }
-        return fileName;
-    }
-
-    /** A Thread that scans a directory */
-    private class DirectoryCrawler implements Runnable {
-        private Path root;
-        private boolean shutdown = false;
 
-        private void scan(Path aRoot) {
-            if (root != null) {
-                throw new IllegalStateException(
-                    "cannot scan 2 directories at once");
-            }
-            synchronized (this) {
-                root = aRoot;
-                notify();
+        /**
+         * scans a single file.
+         *
+         * @param fileToScan
+         *            the disk file to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo. This is
+         *            that same for each file in the same directory and so not
+         *            neccesary to "calculate" this per file.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanFile(Path fileToScan, String currentDirName) {
+            currentScanResult.incrementTotalFilesCount();
+            String filename;
+            if (currentDirName == null) {
+                filename = fileToScan.getFileName().toString();
+            } else {
+                filename = currentDirName + '/'
+                    + fileToScan.getFileName().toString();
             }
+            return scanDiskItem(fileToScan,
+                FileInfoFactory.decodeIllegalChars(filename), false);
         }
 
-        public void shutdown() {
-            shutdown = true;
-            synchronized (this) {
-                notify();
+        /**
+         * scans a single directory.
+         *
+         * @param dirToScan
+         *            the disk directory to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanDirectory(Path dirToScan, String currentDirName) {
+            if (isFiner()) {
+                logFiner("Scanning subdir " + dirToScan + " / "
+                    + currentDirName);
             }
+            currentScanResult.incrementTotalFilesCount();
+            return scanDiskItem(dirToScan,
+                FileInfoFactory.decodeIllegalChars(currentDirName), true);
         }
 
-        public void run() {
-            while (true) {
-                try {
-                    while (root == null) {
-                        synchronized (this) {
-                            if (root != null) {
-                                // Make sure that we don't wait with root!
-                                continue;
+        /**
+         * scans a single file.
+         *
+         * @param fileToScan
+         *            the disk file to examine.
+         * @param filename
+         *            the relative name of the file in the folder.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanDiskItem(Path fileToScan, String filename,
+            boolean directory)
+        {
+            FileInfo exists = takeRemaining(filename, fileToScan);
+            try {
+                if (exists != null) {// file was known
+                    if (exists.isDeleted()) {
+                        // file restored
+                        FileInfo restoredFile = exists.syncFromDiskIfRequired(
+                            currentScanningFolder, fileToScan);
+                        if (restoredFile != null) {
+                            if (isInfo()) {
+                                logInfo("Restored detected: "
+                                    + exists.toDetailString()
+                                    + ". On disk: size: "
+                                    + Files.size(fileToScan) + ", lastMod: "
+                                    + Files.getLastModifiedTime(fileToScan));
                             }
-                            try {
-                                wait();
-                                if (shutdown) {
-                                    return;
-                                }
-                            } catch (InterruptedException e) {
-                                logFiner(e.getMessage());
-                                return;
+                            restoredFile.setPreviousSize(exists.getSize());
+                            currentScanResult.restoredFiles.add(restoredFile);
+                        }
+                    } else {
+                        FileInfo changedFile = exists.syncFromDiskIfRequired(
+                            currentScanningFolder, fileToScan);
+                        if (changedFile != null) {
+                            if (isInfo()
+                                && currentScanningFolder.getDiskItemFilter()
+                                    .isRetained(changedFile))
+                            {
+                                logInfo("Change detected: "
+                                    + exists.toDetailString()
+                                    + ". On disk: size: "
+                                    + Files.size(fileToScan) + ", lastMod: "
+                                    + Files.getLastModifiedTime(fileToScan));
                             }
+                            changedFile.setPreviousSize(exists.getSize());
+                            currentScanResult.changedFiles.add(changedFile);
                         }
                     }
-                    if (!scanDir(root)) {
-                        // hardware failure
-                        failure = true;
-                    }
-                    root = null;
-
-                    synchronized (directoryCrawlersPool) {
-                        activeDirectoryCrawlers.remove(this);
-                        directoryCrawlersPool.add(this);
-                    }
-
-                } catch (RuntimeException e) {
-                    logSevere("Folder scanner crashed @ " + root + ". " + e, e);
-                    failure = true;
-                } finally {
-                    // scan of this directory is ready, notify FolderScanner we
-                    // are ready for the next folder.
-                    synchronized (FolderScanner.this) {
-                        FolderScanner.this.notify();
+                } else {
+                    // file is new
+                    // PFC-2352: TODO Generate ID / Hashes
+                    FileInfo info = FileInfoFactory.newFile(
+                        currentScanningFolder, fileToScan, null,
+                        getController().getMySelf().getInfo(),
+                        getController().getMySelf().getAccountInfo(), null,
+                        directory, null);
+                    currentScanResult.newFiles.add(info);
+                    if (isFiner()) {
+                        logFiner("New found: " + info.toDetailString());
                     }
                 }
+
+            } catch (Exception e) {
+                logWarning("Unable to scan: " + fileToScan + ". " + e);
+                unableToScanFiles.add(fileToScan);
             }
+            return true;
         }
 
         /**
-         * Scans a directory, will recurse into subdirectories
+         * Handles a disk item that is neither a regular file nor a
+         * directory.
          *
-         * @param dirToScan
-         *            The directory to scan
-         * @return true or succes or false is failed (harware failure or
-         *         directory or file removed in the meantime)
+         * @return false if the device got disconnected = hardware failure.
          */
-        private boolean scanDir(Path dirToScan) {
-            if (failure) {
-                return false;
-            }
-            if (currentScanningFolder == null) {
+        private boolean unableToScan(Path path, boolean dir) {
+            boolean deviceDisconnected = currentScanningFolder
+                .checkIfDeviceDisconnected();
+            logWarning("Unable to scan " + (dir ? "dir" : "file") + ": "
+                + path.toAbsolutePath() + ". Folder device disconnected? "
+                + deviceDisconnected);
+            if (deviceDisconnected) {
+                // hardware failure
                 failure = true;
-                logWarning("Current scanning folder must not be null. Scanning path "
-                    + dirToScan);
                 return false;
             }
-            String currentDirName = getCurrentDirName(currentScanningFolder,
-                dirToScan);
-            try {
-                // Give CPU room to breath. Don't consume 100% CPU.
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+            unableToScanFiles.add(path);
+            return true;
+        }
+
+        /**
+         * A task that scans a directory. Scans the files of the directory
+         * itself and forks one crawler for each subdirectory.
+         */
+        private class DirectoryCrawler extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Path dirToScan;
+            /**
+             * The relative name of the directory in the folder or null for
+             * the base directory of the folder.
+             */
+            private final String currentDirName;
+
+            private DirectoryCrawler(Path dirToScan, String currentDirName) {
+                this.dirToScan = dirToScan;
+                this.currentDirName = currentDirName;
             }
-            scanDirectory(dirToScan, currentDirName);
 
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirToScan)) {
-                for (Path path : stream) {
-                    if (failure) {
-                        return false;
-                    }
-                    if (abort) {
-                        break;
+            @Override
+            protected void compute() {
+                try {
+                    if (!scanDir()) {
+                        // hardware failure
+                        failure = true;
                     }
-                    if (Files.isRegularFile(path)) {
-                        if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanFile(path, currentDirName)) {
-                            failure = true;
+                } catch (RuntimeException e) {
+                    logSevere("Folder scanner crashed @ " + dirToScan + ". "
+                        + e, e);
+                    failure = true;
+                }
+            }
+
+            /**
+             * Scans the directory, forks into subdirectories
+             *
+             * @return true or succes or false is failed (harware failure or
+             *         directory or file removed in the meantime)
+             */
+            private boolean scanDir() {
+                if (failure || abort) {
+                    return !failure;
+                }
+                boolean baseDir = currentDirName == null;
+                if (!baseDir) {
+                    scanDirectory(dirToScan, currentDirName);
+                }
+
+                List<DirectoryCrawler> subCrawlers = null;
+                try (DirectoryStream<Path> stream = Files
+                    .newDirectoryStream(dirToScan))
+                {
+                    for (Path path : stream) {
+                        if (failure) {
                             return false;
                         }
-                    } else if (Files.isDirectory(path) && !PathUtils.isReplicatedSubdir(path)) {
-                        if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanDir(path)) {
-                            failure = true;
-                            return false;
+                        if (abort) {
+                            break;
                         }
-                    } else {
-                        boolean deviceDisconnected = currentScanningFolder
-                            .checkIfDeviceDisconnected();
-                        logWarning("Unable to scan file: "
-                            + path.toAbsolutePath()
-                            + ". Folder device disconnected? " + deviceDisconnected);
-                        if (deviceDisconnected) {
-                            // hardware failure
-                            failure = true;
+                        if (Files.isRegularFile(path)) {
+                            if (PathUtils.isScannable(path,
+                                currentScanningFolder)
+                                && !scanFile(path, currentDirName))
+                            {
+                                return false;
+                            }
+                        } else if (Files.isDirectory(path)
+                            && (baseDir || !PathUtils.isReplicatedSubdir(path)))
+                        {
+                            if (!PathUtils.isScannable(path,
+                                currentScanningFolder)
+                                || baseDir
+                                && currentScanningFolder.isSystemSubDir(path))
+                            {
+                                continue;
+                            }
+                            String subDirName = path.getFileName().toString();
+                            if (!baseDir) {
+                                subDirName = currentDirName + '/' + subDirName;
+                            }
+                            if (subCrawlers == null) {
+                                subCrawlers = new ArrayList<DirectoryCrawler>();
+                            }
+                            subCrawlers.add(new DirectoryCrawler(path,
+                                subDirName));
+                        } else if (!unableToScan(path, false)) {
                             return false;
                         }
-                        unableToScanFiles.add(path);
                     }
+                } catch (IOException ioe) {
+                    if (baseDir) {
+                        logWarning("Unable to scan folder base dir: "
+                            + dirToScan.toAbsolutePath() + ". " + ioe);
+                        return false;
+                    }
+                    return unableToScan(dirToScan, true);
                 }
 
-                return true;
-            }
-            catch (IOException ioe) {
-                boolean deviceDisconnected = currentScanningFolder
-                    .checkIfDeviceDisconnected();
-                logWarning("Unable to scan dir: " + dirToScan.toAbsolutePath()
-                    + ". Folder device disconnected? " + deviceDisconnected);
-                if (deviceDisconnected) {
-                    // hardware failure
-                    failure = true;
-                    return false;
+                if (subCrawlers != null) {
+                    // Idle crawlers steal the subtrees
+                    invokeAll(subCrawlers);
                 }
-                unableToScanFiles.add(dirToScan);
-                return true;
+                return !failure;
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates the low priority daemon threads of the crawler pool.
+     */
+    private static class CrawlerThreadFactory implements
+        ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                .newThread(pool);
+            thread.setName("FolderScanner.DirectoryCrawler #"
+                + thread.getPoolIndex());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -223,6 +223,28 @@ public class FolderSettings {
         return properties.getProperty(PREFIX_V4 + entryId + ID);
     }
 
+    /**
+     * Reads only the directory of a folder entry without loading the other
+     * settings.
+     *
+     * @param c
+     * @param entryId
+     * @return the commit directory or else the local base directory of the
+     *         folder entry. null if not configured.
+     */
+    public static Path loadCommitOrLocalDir(Controller c, String entryId) {
+        Reject.ifBlank(entryId, "EntryId");
+        Properties properties = c.getConfig();
+        String dirStr = properties.getProperty(PREFIX_V4 + entryId
+            + COMMIT_DIR);
+        if (StringUtils.isBlank(dirStr)) {
+            dirStr = properties.getProperty(PREFIX_V4 + entryId + DIR);
+        }
+        return translateFolderDir(dirStr,
+            ConfigurationEntry.FOLDER_MAP_USER_DIRECTORIES.getValueBoolean(c),
+            false);
+    }
+
     /**
      * @param properties
      *            the config properties
@@ -22,6 +22,8 @@ package de.dal33t.powerfolder.disk;
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.SyncStatistics;
 import de.dal33t.powerfolder.event.*;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FolderStatisticInfo;
@@ -33,8 +35,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Class to hold pre-calculated static data for a folder. Only freshly
@@ -44,9 +44,6 @@ import java.util.logging.Logger;
  * @version $Revision: 1.22 $
  */
 public class FolderStatistic extends PFComponent {
-    private static final Logger LOG = Logger.getLogger(FolderStatistic.class
-        .getName());
-
     public static final int UNKNOWN_SYNC_STATUS = -1;
 
     /**
@@ -74,6 +71,11 @@ public class FolderStatistic extends PFComponent {
     // Used to calculate ETA
     private TransferCounter downloadCounter;
     private volatile MyCalculatorTask calculatorTask;
+    /**
+     * If the sync statistics of the DAO have to be counted from scratch, e.g.
+     * after the patterns changed.
+     */
+    private volatile boolean rebuildRequired;
     private NodeManagerListener nodeManagerListener;
 
     FolderStatistic(Folder folder) {
@@ -177,17 +179,17 @@ public class FolderStatistic extends PFComponent {
         calculating = new FolderStatisticInfo(folder.getInfo());
 
         Collection<Member> members = folder.getMembersAsCollection();
-        Collection<Member> membersCalulated = new ArrayList<Member>(
-            members.size());
+        SyncStatistics stats = getSyncStatistics(members);
 
         // Calc member stats.
         for (Member member : members) {
             if (member.isCompletelyConnected() || member.isMySelf()) {
-                if (calculateMemberStats(member, membersCalulated)) {
-                    membersCalulated.add(member);
-                }
+                calculateMemberStats(member, stats);
             }
         }
+        calculating.setTotalFilesCount(stats.getTotalFilesCount());
+        calculating.setTotalSize(stats.getTotalSize());
+        calculating.setIncomingFilesCount(stats.getIncomingFilesCount());
 
         // Update the estimator with the new total sync.
         calculating.setEstimatedSyncDate(estimator.updateEstimate(calculating
@@ -229,17 +231,8 @@ public class FolderStatistic extends PFComponent {
             }
         }
 
-        // Recalculate the last modified date of the folder.
-        Date date = null;
-        for (FileInfo fileInfo : folder.getKnownFiles()) {
-            if (fileInfo.getModifiedDate() != null) {
-                if (date == null
-                    || date.compareTo(fileInfo.getModifiedDate()) < 0)
-                {
-                    date = fileInfo.getModifiedDate();
-                }
-            }
-        }
+        // The last modified date of the folder.
+        Date date = stats.getLastModifiedDate(getMySelf().getId());
         if (date != null) {
             lastFileChangeDate = date;
         }
@@ -263,162 +256,77 @@ public class FolderStatistic extends PFComponent {
         return lastFileChangeDate;
     }
 
-    private static boolean inSync(Member member, FileInfo fileInfo,
-        FileInfo newestFileInfo)
-    {
-        if (newestFileInfo == null) {
-            // It is intended not to use Reject.ifNull for performance reasons.
-            throw new NullPointerException("Newest FileInfo not found of "
-                + fileInfo.toDetailString());
-        }
-        if (fileInfo == null) {
-            return false;
+    /**
+     * @param members
+     *            the members of the folder
+     * @return the sync statistics maintained by the DAO. Rebuilt if the
+     *         members with write permission or the patterns changed.
+     */
+    private SyncStatistics getSyncStatistics(Collection<Member> members) {
+        Set<String> versionSources = new HashSet<String>(members.size());
+        for (Member member : members) {
+            if (folder.hasWritePermission(member)) {
+                versionSources.add(member.getId());
+            }
         }
-        boolean insync = !newestFileInfo.isNewerThan(fileInfo)
-            && !fileInfo.isNewerThan(newestFileInfo);
-        if (insync && newestFileInfo.getSize() != fileInfo.getSize()
-            && !fileInfo.getFolderInfo().isMetaFolder()
-            && LOG.isLoggable(Level.WARNING))
+        FileInfoDAO dao = folder.getDAO();
+        SyncStatistics stats = dao.getSyncStatistics();
+        if (stats == null || rebuildRequired
+            || !stats.getVersionSources().equals(versionSources))
         {
-            LOG.warning("File in sync, but size differs. " + "Newest: "
-                + newestFileInfo.toDetailString() + "\n@" + member.getNick()
-                + ":" + fileInfo.toDetailString());
+            rebuildRequired = false;
+            stats = dao.rebuildSyncStatistics(versionSources);
         }
-        return insync;
+        return stats;
+    }
+
+    private static boolean inSync(FileInfo fileInfo, FileInfo newestFileInfo)
+    {
+        return newestFileInfo != null && fileInfo != null
+            && !newestFileInfo.isNewerThan(fileInfo)
+            && !fileInfo.isNewerThan(newestFileInfo);
     }
 
     /**
+     * Takes over the counters of a member and drops the partial sync stats of
+     * files which got in sync.
+     *
      * @param member
-     * @param alreadyConsidered
-     * @return true if the member stats could be calced. false if filelist is
-     *         missing.
+     * @param stats
      */
-    private boolean calculateMemberStats(Member member,
-        Collection<Member> alreadyConsidered)
-    {
-        Collection<FileInfo> files = folder.getFilesAsCollection(member);
-        if (files == null) {
-            logWarning("Unable to calc stats on member, no filelist yet: "
-                + member);
-            return false;
-        }
-
-        FolderRepository repo = getController().getFolderRepository();
-        int memberFilesCount = 0;
-        int memberFilesCountInSync = 0;
-        // The total size of the folder at the member (including files not in
-        // sync).
-        long memberSize = 0;
-        // Total size of files completely in sync at the member.
-        long memberSizeInSync = 0;
-        for (FileInfo fileInfo : files) {
-            if (!folder.isStarted()) {
-                return false;
-            }
-            calculating.setAnalyzedFiles(calculating.getAnalyzedFiles() + 1);
-            if (fileInfo.isDeleted()) {
-                continue;
-            }
-            if (folder.getDiskItemFilter().isExcluded(fileInfo)) {
-                continue;
-            }
-
-            FileInfo newestFileInfo = fileInfo.getNewestVersion(repo);
-            FileInfo myFileInfo = folder.getFile(fileInfo);
-
-            if (newestFileInfo == null) {
-                if (folder.hasWritePermission(member)) {
-                    logWarning("Newest version not found for "
-                        + fileInfo.toDetailString());
-                }
-                // newestFileInfo = fileInfo;
-                continue;
-            }
-            boolean inSync = inSync(member, fileInfo, newestFileInfo);
+    private void calculateMemberStats(Member member, SyncStatistics stats) {
+        String id = member.getId();
+        calculating.setAnalyzedFiles(calculating.getAnalyzedFiles()
+            + folder.getFilesAsCollection(member).size());
 
-            if (inSync) {
-                // Remove partial stat for this member / file, if it exists.
-                Map<FileInfo, Long> memberMap = current.getPartialSyncStatMap()
-                    .get(member.getInfo());
-                if (memberMap != null) {
+        Map<FileInfo, Long> memberMap = current.getPartialSyncStatMap().get(
+            member.getInfo());
+        if (memberMap != null && !memberMap.isEmpty()) {
+            FolderRepository repo = getController().getFolderRepository();
+            for (FileInfo fileInfo : new ArrayList<FileInfo>(
+                memberMap.keySet()))
+            {
+                if (inSync(member.getFile(fileInfo), fileInfo
+                    .getNewestVersion(repo)))
+                {
                     Long removedBytes = memberMap.remove(fileInfo);
-                    if (removedBytes != null) {
-                        if (isFiner()) {
-                            logFiner("Removed partial stat for "
-                                + member.getInfo().nick + ", "
-                                + fileInfo.getRelativeName() + ", "
-                                + removedBytes);
-                        }
+                    if (removedBytes != null && isFiner()) {
+                        logFiner("Removed partial stat for "
+                            + member.getInfo().nick + ", "
+                            + fileInfo.getRelativeName() + ", "
+                            + removedBytes);
                     }
                 }
             }
-
-            if (inSync && !newestFileInfo.isDeleted()) {
-                boolean incoming = true;
-                for (Member alreadyMember : alreadyConsidered) {
-                    FileInfo otherMemberFile = alreadyMember.getFile(fileInfo);
-                    if (otherMemberFile == null) {
-                        continue;
-                    }
-
-                    boolean otherInSync = inSync(alreadyMember,
-                        otherMemberFile, newestFileInfo);
-                    if (otherInSync) {
-                        incoming = false;
-                        break;
-                    }
-                }
-                if (incoming
-                    && (myFileInfo == null || newestFileInfo
-                        .isNewerThan(myFileInfo)))
-                {
-                    calculating.setIncomingFilesCount(calculating
-                        .getIncomingFilesCount() + 1);
-                }
-            }
-
-            // Count file
-            memberFilesCount++;
-            memberSize += fileInfo.getSize();
-            if (inSync) {
-                memberFilesCountInSync++;
-                memberSizeInSync += fileInfo.getSize();
-            }
-
-            if (!inSync) {
-                // Not in sync, therefore not added to totals
-                continue;
-            }
-
-            boolean addToTotals = !newestFileInfo.isDeleted();
-            for (Member alreadyM : alreadyConsidered) {
-                FileInfo otherMemberFile = alreadyM.getFile(fileInfo);
-                if (otherMemberFile == null) {
-                    continue;
-                }
-                boolean otherInSync = inSync(alreadyM, otherMemberFile,
-                    newestFileInfo);
-                if (otherInSync) {
-                    // File already added to totals
-                    addToTotals = false;
-                    break;
-                }
-            }
-            if (addToTotals) {
-                calculating
-                    .setTotalFilesCount(calculating.getTotalFilesCount() + 1);
-                calculating.setTotalSize(calculating.getTotalSize()
-                    + fileInfo.getSize());
-            }
         }
 
-        calculating.getFilesCount().put(member.getInfo(), memberFilesCount);
+        calculating.getFilesCount().put(member.getInfo(),
+            stats.getFilesCount(id));
         calculating.getFilesCountInSync().put(member.getInfo(),
-            memberFilesCountInSync);
-        calculating.getSizes().put(member.getInfo(), memberSize);
-        // logWarning("put: " + member + ", sizeinSync: " + memberSizeInSync);
-        calculating.getSizesInSync().put(member.getInfo(), memberSizeInSync);
-        return true;
+            stats.getFilesCountInSync(id));
+        calculating.getSizes().put(member.getInfo(), stats.getSize(id));
+        calculating.getSizesInSync().put(member.getInfo(),
+            stats.getSizeInSync(id));
     }
 
     public String toString() {
@@ -741,10 +649,12 @@ public class FolderStatistic extends PFComponent {
         }
 
         public void patternAdded(PatternChangedEvent e) {
+            rebuildRequired = true;
             scheduleCalculate();
         }
 
         public void patternRemoved(PatternChangedEvent e) {
+            rebuildRequired = true;
             scheduleCalculate();
         }
 
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Pure Java backend of {@link FolderWatcher} if the native JNotify library is
+ * not available.
+ * <p>
+ * All folders share one {@link WatchService} and dispatcher thread, since
+ * operating systems limit the number of watch instances per user (e.g. 128 by
+ * default with inotify). Every watched directory has its own {@link WatchKey},
+ * the {@link FolderWatcher} registers and cancels them.
+ *
+ * @author sprajc
+ */
+final class FolderWatchService implements Runnable {
+    private static final Logger log = Logger.getLogger(FolderWatchService.class
+        .getName());
+    private static FolderWatchService instance;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, FolderWatcher> watchers = Util
+        .createConcurrentHashMap();
+
+    private FolderWatchService(WatchService watchService) {
+        this.watchService = watchService;
+    }
+
+    /**
+     * @return the shared instance. Started on first use.
+     * @throws IOException
+     *             if the file system does not support watching.
+     */
+    static synchronized FolderWatchService getInstance() throws IOException {
+        if (instance == null) {
+            instance = new FolderWatchService(FileSystems.getDefault()
+                .newWatchService());
+            Thread thread = new Thread(instance, "FolderWatchService");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Watches a single directory (not recursive).
+     *
+     * @param watcher
+     *            the watcher to notify about events in the directory.
+     * @param dir
+     * @return the key of the watch.
+     * @throws IOException
+     *             e.g. if the OS limit of watches has been reached.
+     */
+    WatchKey register(FolderWatcher watcher, Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE,
+            ENTRY_MODIFY);
+        watchers.put(key, watcher);
+        return key;
+    }
+
+    void cancel(WatchKey key) {
+        key.cancel();
+        watchers.remove(key);
+    }
+
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            FolderWatcher watcher = watchers.get(key);
+            List<WatchEvent<?>> events = key.pollEvents();
+            if (watcher != null) {
+                try {
+                    watcher.watchEvents((Path) key.watchable(), events);
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Unable to process file system events in "
+                        + key.watchable() + ". " + e, e);
+                }
+            }
+            if (!key.reset()) {
+                // Directory deleted or watch cancelled.
+                watchers.remove(key);
+            }
+        }
+    }
+}
@@ -19,6 +19,21 @@
  */
 package de.dal33t.powerfolder.disk;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +47,7 @@ import net.contentobjects.jnotify.JNotifyException;
 import net.contentobjects.jnotify.JNotifyListener;
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.PathUtils;
@@ -43,6 +59,11 @@ import de.dal33t.powerfolder.util.os.OSUtil;
  * TRAC #711: Automatic change detection by watching the filesystem.
  * <p>
  * Does NOT watch Meta Folders.
+ * <p>
+ * Uses the native JNotify library if available, otherwise the
+ * {@link FolderWatchService} of Java. The latter watches every directory on
+ * its own and reports the content of directories that got created, deleted or
+ * lost events (overflow).
  *
  * @author sprajc
  */
@@ -50,8 +71,23 @@ public class FolderWatcher extends PFComponent {
 
     private static Boolean LIB_LOADED;
 
+    /**
+     * Maximum number of dirty files. A full scan is cheaper for more changes.
+     */
+    private static final int MAX_DIRTY_FILES = 50000;
+
+    /**
+     * Number of dirty files scanned at once.
+     */
+    private static final int SCAN_BATCH_SIZE = 1000;
+
     private Folder folder;
     private volatile int watchID = -1;
+    private FolderWatchService watchService;
+    /**
+     * The watched directories if {@link FolderWatchService} is used.
+     */
+    private volatile Map<Path, WatchKey> watchKeys;
     private NotifyListener listener;
     private Map<String, FileInfo> dirtyFiles = Util.createConcurrentHashMap();
     private volatile boolean ignoreAll;
@@ -69,8 +105,21 @@ public class FolderWatcher extends PFComponent {
     }
 
     public boolean isSupported() {
-        return ConfigurationEntry.FOLDER_WATCHER_ENABLED
-            .getValueBoolean(getController()) && isLibLoaded();
+        if (!ConfigurationEntry.FOLDER_WATCHER_ENABLED
+            .getValueBoolean(getController()))
+        {
+            return false;
+        }
+        return isLibLoaded()
+            || ConfigurationEntry.FOLDER_WATCHER_NIO
+                .getValueBoolean(getController());
+    }
+
+    /**
+     * @return true if the folder is actually being watched right now.
+     */
+    public boolean isWatching() {
+        return watchID >= 0 || watchKeys != null;
     }
 
     /**
@@ -137,8 +186,12 @@ public class FolderWatcher extends PFComponent {
     }
 
     synchronized void remove() {
-        if (!isLibLoaded()) {
-            return;
+        Map<Path, WatchKey> keys = watchKeys;
+        if (keys != null) {
+            watchKeys = null;
+            for (WatchKey key : keys.values()) {
+                watchService.cancel(key);
+            }
         }
         if (watchID >= 0) {
             try {
@@ -181,12 +234,29 @@ public class FolderWatcher extends PFComponent {
             remove();
             return;
         }
-        if (watchID >= 0) {
+        if (isWatching()) {
             // Do not re-register again.
             return;
         }
         delay = 1000L * ConfigurationEntry.FOLDER_WATCHER_DELAY
             .getValueInt(getController());
+        if (!isLibLoaded()) {
+            try {
+                watchService = FolderWatchService.getInstance();
+            } catch (IOException e) {
+                logWarning("Unable to initialize filesystem watch for "
+                    + folder + ". " + e);
+                return;
+            }
+            watchKeys = Util.createConcurrentHashMap();
+            watchTree(folder.getLocalBase());
+            if (watchKeys != null) {
+                logFine("Initialized filesystem watch service ("
+                    + watchKeys.size() + " directories) on " + path + " / "
+                    + folder);
+            }
+            return;
+        }
         try {
             watchID = JNotify.addWatch(path, JNotify.FILE_ANY, true,
                 listener);
@@ -200,6 +270,261 @@ public class FolderWatcher extends PFComponent {
         }
     }
 
+    // WatchService backend **************************************************
+
+    /**
+     * Watches the directory and all its scannable subdirectories.
+     *
+     * @param dir
+     */
+    private void watchTree(final Path dir) {
+        final Map<Path, WatchKey> keys = watchKeys;
+        if (keys == null) {
+            return;
+        }
+        final Path base = folder.getLocalBase();
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subDir,
+                    BasicFileAttributes attrs) throws IOException
+                {
+                    if (!subDir.equals(base)
+                        && !PathUtils.isScannable(subDir, folder))
+                    {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (!keys.containsKey(subDir)) {
+                        keys.put(subDir,
+                            watchService.register(FolderWatcher.this, subDir));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                    IOException exc)
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // E.g. OS limit of watches reached. Fall back to regular scans.
+            logWarning("Unable to watch " + dir + " of " + folder
+                + ". Stopped filesystem watch. " + e);
+            remove();
+        }
+    }
+
+    /**
+     * Stops watching the directory and its subdirectories.
+     *
+     * @param dir
+     */
+    private void unwatchTree(Path dir) {
+        Map<Path, WatchKey> keys = watchKeys;
+        if (keys == null) {
+            return;
+        }
+        for (Iterator<Entry<Path, WatchKey>> it = keys.entrySet().iterator(); it
+            .hasNext();)
+        {
+            Entry<Path, WatchKey> entry = it.next();
+            if (entry.getKey().startsWith(dir)) {
+                watchService.cancel(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Callback from {@link FolderWatchService}.
+     *
+     * @param dir
+     *            the watched directory
+     * @param events
+     *            the events that occurred in the directory.
+     */
+    void watchEvents(Path dir, List<WatchEvent<?>> events) {
+        Map<Path, WatchKey> keys = watchKeys;
+        if (keys == null) {
+            return;
+        }
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == OVERFLOW) {
+                // Events lost: Check everything below this directory.
+                subtreeChanged(dir);
+                continue;
+            }
+            Path file = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE
+                && Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS))
+            {
+                // Content might have been created before we watch it.
+                watchTree(file);
+                subtreeChanged(file);
+            } else if (event.kind() == ENTRY_DELETE && keys.containsKey(file))
+            {
+                unwatchTree(file);
+                subtreeChanged(file);
+            } else {
+                pathChanged(file);
+            }
+        }
+    }
+
+    private void pathChanged(Path file) {
+        Path base = folder.getLocalBase();
+        fileChanged(base.toString(), base.relativize(file).toString());
+    }
+
+    /**
+     * Marks the directory and everything below it dirty: Items on disk and
+     * the items known in the database, which might have been deleted.
+     *
+     * @param dir
+     */
+    private void subtreeChanged(Path dir) {
+        final Path base = folder.getLocalBase();
+        if (dir.equals(base)) {
+            // The whole folder
+            folder.recommendScanOnNextMaintenance();
+            return;
+        }
+        pathChanged(dir);
+        if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path subDir,
+                        BasicFileAttributes attrs)
+                    {
+                        if (subDir.equals(dir)) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        if (!PathUtils.isScannable(subDir, folder)) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        pathChanged(subDir);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs)
+                    {
+                        pathChanged(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file,
+                        IOException exc)
+                    {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                logFine("Unable to list changed directory " + dir + ". " + e);
+                folder.recommendScanOnNextMaintenance();
+            }
+        }
+        FileInfoCriteria criteria = new FileInfoCriteria();
+        criteria.addMySelf(folder);
+        criteria.setPath(lookupInstance(base.toString(),
+            base.relativize(dir).toString()).getRelativeName());
+        criteria.setRecursive(true);
+        for (FileInfo known : folder.getDAO().findFilesFast(criteria)) {
+            fileChanged(base.toString(), known.getRelativeName());
+        }
+    }
+
+    // Dirty files ************************************************************
+
+    private void fileChanged(String rootPath, String name) {
+        if (!isWatching()) {
+            // Illegal / Useless
+            return;
+        }
+        if (!isSupported()) {
+            // No supported
+            return;
+        }
+        if (!folder.isStarted()) {
+            return;
+        }
+        if (!folder.scanAllowedNow()) {
+            // Not allowed
+            return;
+        }
+        if (!PathUtils.isScannable(name, folder)) {
+            return;
+        }
+        if (ignoreAll) {
+            return;
+        }
+        if (OSUtil.isMacOS() && name.contains("?")) {
+            // Skip
+            return;
+        }
+        // For linux
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+
+        name = PathUtils.getDiskFileName(rootPath, name);
+        name = FileInfoFactory.decodeIllegalChars(name);
+        if (dirtyFiles.containsKey(name)) {
+            // Skipping already dirty file
+            return;
+        }
+        try {
+            FileInfo lookup = lookupInstance(rootPath, name);
+            if (ignoreFiles.containsKey(lookup)) {
+                // Skipping ignored file
+                return;
+            }
+            synchronized (dirtyFiles) {
+                if (dirtyFiles.size() >= MAX_DIRTY_FILES) {
+                    // Too many changes. Scan all at once.
+                    logFine("Too many changed files (" + dirtyFiles.size()
+                        + "). Scanning " + folder + " completely");
+                    dirtyFiles.clear();
+                    folder.recommendScanOnNextMaintenance();
+                    return;
+                }
+                dirtyFiles.put(name, lookup);
+            }
+            if (!scannerLock.isLocked()) {
+                if (scheduled.compareAndSet(false, true)) {
+                    getController().schedule(new Runnable() {
+                        public void run() {
+                            scheduled.set(false);
+                            new DirtyFilesScanner().run();
+                        }
+                    }, delay);
+                }
+            }
+        } catch (Exception e) {
+            logSevere("Unable to enqueue changed file for scan: " + rootPath
+                + ", " + name + ". " + e, e);
+        }
+    }
+
+    private FileInfo lookupInstance(String rootPath, String rawName) {
+        String name = rawName;
+        if (name.contains("\\")) {
+            name = name.replace('\\', '/');
+        }
+        if (name.contains("//")) {
+            name = name.replace("//", "/");
+        }
+        if (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return FileInfoFactory.lookupInstance(folder.getInfo(), name);
+    }
+
     // Logger methods *********************************************************
 
 //    @Override
@@ -210,14 +535,10 @@ public class FolderWatcher extends PFComponent {
     private class DirtyFilesScanner implements Runnable {
 
         public void run() {
-            if (watchID < 0) {
+            if (!isWatching()) {
                 // Illegal / Useless
                 return;
             }
-            if (!scannerLock.tryLock()) {
-                // Already locked
-                return;
-            }
             if (dirtyFiles.isEmpty()) {
                 return;
             }
@@ -227,7 +548,12 @@ public class FolderWatcher extends PFComponent {
             if (!folder.isStarted()) {
                 return;
             }
+            if (!scannerLock.tryLock()) {
+                // Already locked
+                return;
+            }
             FileInfo dirtyFile = null;
+            int scanned = 0;
             try {
                 List<FileInfo> fileInfos = new LinkedList<FileInfo>();
                 if (folder.checkIfDeviceDisconnected()) {
@@ -252,9 +578,23 @@ public class FolderWatcher extends PFComponent {
                     }
                     dirtyFiles.clear();
                 }
-                if (!fileInfos.isEmpty()) {
-                    folder.scanChangedFiles(fileInfos);
-                    for (FileInfo fileInfo : fileInfos) {
+                // The WatchService backend reports the content of changed
+                // directories itself.
+                boolean scanDirectories = watchKeys == null;
+                while (!fileInfos.isEmpty()) {
+                    List<FileInfo> batch = new ArrayList<FileInfo>(
+                        Math.min(fileInfos.size(), SCAN_BATCH_SIZE));
+                    while (!fileInfos.isEmpty()
+                        && batch.size() < SCAN_BATCH_SIZE)
+                    {
+                        batch.add(fileInfos.remove(0));
+                    }
+                    scanned += batch.size();
+                    folder.scanChangedFiles(batch);
+                    if (!scanDirectories) {
+                        continue;
+                    }
+                    for (FileInfo fileInfo : batch) {
                         if (!fileInfo.isLookupInstance()
                             && fileInfo.isDiretory())
                         {
@@ -262,8 +602,8 @@ public class FolderWatcher extends PFComponent {
                         }
                     }
                 }
-                if (fileInfos.size() > 0 && isFine()) {
-                    logFine("Scanned " + fileInfos.size() + " changed files");
+                if (scanned > 0 && isFine()) {
+                    logFine("Scanned " + scanned + " changed files");
                 }
             } catch (Exception e) {
                 logSevere(
@@ -306,82 +646,6 @@ public class FolderWatcher extends PFComponent {
         public void fileCreated(int wd, String rootPath, String name) {
             fileChanged(rootPath, name);
         }
-
-        private void fileChanged(String rootPath, String name) {
-            if (watchID < 0) {
-                // Illegal / Useless
-                return;
-            }
-            if (!isSupported()) {
-                // No supported
-                return;
-            }
-            if (!folder.isStarted()) {
-                return;
-            }
-            if (!folder.scanAllowedNow()) {
-                // Not allowed
-                return;
-            }
-            if (!PathUtils.isScannable(name, folder)) {
-                return;
-            }
-            if (ignoreAll) {
-                return;
-            }
-            if (OSUtil.isMacOS() && name.contains("?")) {
-                // Skip
-                return;
-            }
-            // For linux
-            if (name.endsWith("/")) {
-                name = name.substring(0, name.length() - 1);
-            }
-
-            name = PathUtils.getDiskFileName(rootPath, name);
-            name = FileInfoFactory.decodeIllegalChars(name);
-            if (dirtyFiles.containsKey(name)) {
-                // Skipping already dirty file
-                return;
-            }
-            try {
-                FileInfo lookup = lookupInstance(rootPath, name);
-                if (ignoreFiles.containsKey(lookup)) {
-                    // Skipping ignored file
-                    return;
-                }
-                synchronized (dirtyFiles) {
-                    dirtyFiles.put(name, lookup);                    
-                }
-                if (!scannerLock.isLocked()) {
-                    if (scheduled.compareAndSet(false, true)) {
-                        getController().schedule(new Runnable() {
-                            public void run() {
-                                scheduled.set(false);
-                                new DirtyFilesScanner().run();
-                            }
-                        }, delay);
-                    }
-                }
-            } catch (Exception e) {
-                logSevere("Unable to enqueue changed file for scan: "
-                    + rootPath + ", " + name + ". " + e, e);
-            }
-        }
-
-        private FileInfo lookupInstance(String rootPath, String rawName) {
-            String name = rawName;
-            if (name.contains("\\")) {
-                name = name.replace('\\', '/');
-            }
-            if (name.contains("//")) {
-                name = name.replace("//", "/");
-            }
-            if (name.startsWith("/")) {
-                name = name.substring(1);
-            }
-            return FileInfoFactory.lookupInstance(folder.getInfo(), name);
-        }
     }
 
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.StringUtils;
+
+/**
+ * Detects moved files and directories in the result of a folder scan.
+ * <p>
+ * Files that disappeared are matched against newly found files by an index on
+ * (size, modification date) in linear time. If OID or hashes are known on
+ * both sides they must match. If all moved files below a disappeared directory
+ * ended up below the same new directory, the directory move is reported as one
+ * subtree move instead of one move per file.
+ *
+ * @author sprajc
+ */
+final class MovementDetector {
+
+    /** Marks a directory whose files were moved to different places */
+    private static final String SCATTERED = "";
+
+    private MovementDetector() {
+    }
+
+    /**
+     * @param gone
+     *            the known files and directories no longer found on disk. Items
+     *            already flagged as deleted are ignored.
+     * @param found
+     *            the new files and directories found on disk.
+     * @return the moves. from -> to.
+     */
+    static Map<FileInfo, FileInfo> findMovements(Collection<FileInfo> gone,
+        Collection<FileInfo> found)
+    {
+        Map<MoveKey, List<FileInfo>> foundFiles = new HashMap<MoveKey, List<FileInfo>>();
+        Map<String, FileInfo> foundDirs = new HashMap<String, FileInfo>();
+        for (FileInfo fInfo : found) {
+            if (fInfo.isDiretory()) {
+                foundDirs.put(fInfo.getRelativeName(), fInfo);
+                continue;
+            }
+            MoveKey key = new MoveKey(fInfo);
+            List<FileInfo> candidates = foundFiles.get(key);
+            if (candidates == null) {
+                candidates = new ArrayList<FileInfo>(1);
+                foundFiles.put(key, candidates);
+            }
+            candidates.add(fInfo);
+        }
+
+        Map<FileInfo, FileInfo> moves = new HashMap<FileInfo, FileInfo>();
+        Map<String, FileInfo> goneDirs = new HashMap<String, FileInfo>();
+        for (FileInfo from : gone) {
+            if (from.isDeleted()) {
+                continue;
+            }
+            if (from.isDiretory()) {
+                goneDirs.put(from.getRelativeName(), from);
+                continue;
+            }
+            List<FileInfo> candidates = foundFiles.get(new MoveKey(from));
+            if (candidates == null) {
+                continue;
+            }
+            FileInfo to = takeBestCandidate(from, candidates);
+            if (to != null) {
+                moves.put(from, to);
+            }
+        }
+        if (moves.isEmpty() || goneDirs.isEmpty() || foundDirs.isEmpty()) {
+            return moves;
+        }
+
+        // Find the topmost directory pair of each file move.
+        Map<FileInfo, String> fromDirOfMove = new HashMap<FileInfo, String>();
+        Map<String, String> dirMoves = new HashMap<String, String>();
+        for (Map.Entry<FileInfo, FileInfo> move : moves.entrySet()) {
+            String[] dirs = movedDirs(move.getKey().getRelativeName(), move
+                .getValue().getRelativeName());
+            if (dirs == null) {
+                continue;
+            }
+            fromDirOfMove.put(move.getKey(), dirs[0]);
+            String to = dirMoves.get(dirs[0]);
+            if (to == null) {
+                dirMoves.put(dirs[0], dirs[1]);
+            } else if (!to.equals(dirs[1])) {
+                dirMoves.put(dirs[0], SCATTERED);
+            }
+        }
+        // Parts of a subtree moved elsewhere: Not a single subtree move.
+        for (String fromDir : new ArrayList<String>(dirMoves.keySet())) {
+            int i = fromDir.lastIndexOf('/');
+            while (i > 0) {
+                String parent = fromDir.substring(0, i);
+                if (dirMoves.containsKey(parent)) {
+                    dirMoves.put(parent, SCATTERED);
+                }
+                i = parent.lastIndexOf('/');
+            }
+        }
+
+        Map<String, String> subtreeMoves = new HashMap<String, String>();
+        for (Map.Entry<String, String> dirMove : dirMoves.entrySet()) {
+            FileInfo fromDir = goneDirs.get(dirMove.getKey());
+            FileInfo toDir = foundDirs.get(dirMove.getValue());
+            if (fromDir != null && toDir != null) {
+                moves.put(fromDir, toDir);
+                subtreeMoves.put(dirMove.getKey(), dirMove.getValue());
+            }
+        }
+        if (subtreeMoves.isEmpty()) {
+            return moves;
+        }
+        for (Iterator<FileInfo> it = moves.keySet().iterator(); it.hasNext();)
+        {
+            String fromDir = fromDirOfMove.get(it.next());
+            if (fromDir != null && subtreeMoves.containsKey(fromDir)) {
+                // Covered by the subtree move
+                it.remove();
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * Removes and returns the best match for the given file from the list of
+     * candidates. Identical OID or hashes win, then identical filenames.
+     *
+     * @return the best candidate or null if all candidates are known to be
+     *         different files.
+     */
+    private static FileInfo takeBestCandidate(FileInfo from,
+        List<FileInfo> candidates)
+    {
+        int best = -1;
+        boolean bestSameName = false;
+        for (int i = 0; i < candidates.size(); i++) {
+            FileInfo candidate = candidates.get(i);
+            Boolean identical = isIdentical(from, candidate);
+            if (identical == null) {
+                if (best < 0 || !bestSameName
+                    && from.getFilenameOnly().equals(
+                        candidate.getFilenameOnly()))
+                {
+                    best = i;
+                    bestSameName = from.getFilenameOnly().equals(
+                        candidate.getFilenameOnly());
+                }
+            } else if (identical) {
+                best = i;
+                break;
+            }
+        }
+        return best >= 0 ? candidates.remove(best) : null;
+    }
+
+    /**
+     * @return true if OID or hashes match, false if they are known on both
+     *         sides but differ, null if unknown.
+     */
+    private static Boolean isIdentical(FileInfo a, FileInfo b) {
+        if (StringUtils.isNotBlank(a.getOID())
+            && StringUtils.isNotBlank(b.getOID()))
+        {
+            return a.getOID().equals(b.getOID());
+        }
+        if (StringUtils.isNotBlank(a.getHashes())
+            && StringUtils.isNotBlank(b.getHashes()))
+        {
+            return a.getHashes().equals(b.getHashes());
+        }
+        return null;
+    }
+
+    /**
+     * Strips the common trailing path elements of both names.
+     * <p>
+     * Example: "a/x/file.txt" -> "b/x/file.txt" results in "a" -> "b".
+     *
+     * @return the directories from, to or null if there is no common trailing
+     *         element or the file was moved from/to the base dir.
+     */
+    static String[] movedDirs(String from, String to) {
+        int i = from.length();
+        int j = to.length();
+        int fromCut = -1;
+        int toCut = -1;
+        while (i > 0 && j > 0) {
+            int fi = from.lastIndexOf('/', i - 1);
+            int tj = to.lastIndexOf('/', j - 1);
+            if (fi < 0 || tj < 0
+                || !from.regionMatches(fi + 1, to, tj + 1, i - fi - 1)
+                || i - fi != j - tj)
+            {
+                break;
+            }
+            fromCut = fi;
+            toCut = tj;
+            i = fi;
+            j = tj;
+        }
+        if (fromCut <= 0 || toCut <= 0) {
+            return null;
+        }
+        return new String[]{from.substring(0, fromCut),
+            to.substring(0, toCut)};
+    }
+
+    /**
+     * Index key of a moved file: Size and modification date.
+     */
+    private static final class MoveKey {
+        private final long size;
+        private final long modifiedDate;
+
+        MoveKey(FileInfo fInfo) {
+            size = fInfo.getSize();
+            modifiedDate = fInfo.getModifiedDate().getTime();
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ (size >>> 32)) * 31
+                + (int) (modifiedDate ^ (modifiedDate >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MoveKey)) {
+                return false;
+            }
+            MoveKey other = (MoveKey) obj;
+            return size == other.size && modifiedDate == other.modifiedDate;
+        }
+    }
+}
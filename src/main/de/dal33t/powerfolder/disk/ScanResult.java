@@ -22,9 +22,11 @@ package de.dal33t.powerfolder.disk;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.dal33t.powerfolder.disk.problem.Problem;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -39,6 +41,22 @@ public class ScanResult {
         SCANNED, USER_ABORT, FAILURE, BUSY
     }
 
+    /**
+     * The phases of a folder scan, in order of execution.
+     */
+    public enum ScanPhase {
+        /** Building the index of known files */
+        PREPARE,
+        /** Crawling the directory tree on disk */
+        CRAWL,
+        /** Detecting moved files */
+        MOVEMENTS,
+        /** Checking filenames for problems */
+        PROBLEMS,
+        /** Collecting deleted files */
+        DELETIONS
+    }
+
     private ResultState resultState;
     /** Files not in the database (remaining) and are NEW are collected here. */
     Collection<FileInfo> newFiles;
@@ -59,7 +77,11 @@ public class ScanResult {
     /** files with potential problems in filenames (like 2 long or illegal chars) */
     private Map<FileInfo, List<Problem>> problemFiles;
 
-    private volatile int totalFilesCount;
+    private final AtomicInteger totalFilesCount = new AtomicInteger();
+
+    /** Phase -> duration in ms */
+    private final Map<ScanPhase, Long> phaseTimes = Collections
+        .synchronizedMap(new EnumMap<ScanPhase, Long>(ScanPhase.class));
 
     public ScanResult(ResultState result) {
         this(false);
@@ -138,7 +160,7 @@ public class ScanResult {
     }
 
     public int getTotalFilesCount() {
-        return totalFilesCount;
+        return totalFilesCount.get();
     }
 
     // public void setTotalFilesCount(int totalFilesCount) {
@@ -166,14 +188,42 @@ public class ScanResult {
     }
 
     public void incrementTotalFilesCount() {
-            totalFilesCount++;
+        totalFilesCount.incrementAndGet();
+    }
+
+    /**
+     * @param phase
+     * @return the time in ms the phase took or -1 if the phase was not
+     *         executed.
+     */
+    public long getPhaseTime(ScanPhase phase) {
+        Long took = phaseTimes.get(phase);
+        return took != null ? took : -1;
+    }
+
+    /**
+     * @return the times in ms of all executed phases.
+     */
+    public Map<ScanPhase, Long> getPhaseTimes() {
+        synchronized (phaseTimes) {
+            return new EnumMap<ScanPhase, Long>(phaseTimes);
+        }
+    }
+
+    public void setPhaseTime(ScanPhase phase, long took) {
+        Reject.ifNull(phase, "Phase is null");
+        phaseTimes.put(phase, took);
     }
 
     public String toString() {
+        if (newFiles == null) {
+            return String.valueOf(resultState);
+        }
         return resultState + ", Total files: " + totalFilesCount
             + ", Newfiles: " + newFiles.size() + ", changed files: "
             + changedFiles.size() + ", deleted files: " + deletedFiles.size()
             + " restoredFiles: " + restoredFiles.size() + ", movedFiles: "
-            + movedFiles.size() + ", problemFiles: " + problemFiles.size();
+            + movedFiles.size() + ", problemFiles: " + problemFiles.size()
+            + ", phase times (ms): " + getPhaseTimes();
     }
 }
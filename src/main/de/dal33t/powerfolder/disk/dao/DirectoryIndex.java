@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.Visitor;
+
+/**
+ * Parent directory to children index of the files and directories of one
+ * domain. Directories are identified by their exact relative name without
+ * trailing slash, the base directory by "". Parent directories are kept in
+ * the tree even if there is no {@link FileInfo} for them.
+ * <p>
+ * Changes are synchronized, visiting is not blocked by changes.
+ *
+ * @author sprajc
+ */
+final class DirectoryIndex {
+    private final ConcurrentMap<String, Node> nodes = Util
+        .createConcurrentHashMap(16);
+
+    /**
+     * Adds an item or replaces the equal item in its directory.
+     *
+     * @param info
+     */
+    synchronized void add(FileInfo info) {
+        String path = getParentPath(info.getRelativeName());
+        Node node = nodes.get(path);
+        if (node == null) {
+            node = new Node();
+            nodes.put(path, node);
+            linkToParents(path);
+        }
+        node.children.put(info, info);
+    }
+
+    /**
+     * Replaces an item by an equal item. The old item might be in a directory
+     * with a name differing in case only.
+     *
+     * @param old
+     *            the replaced item or null
+     * @param info
+     */
+    synchronized void replace(FileInfo old, FileInfo info) {
+        if (old != null
+            && !getParentPath(old.getRelativeName()).equals(
+                getParentPath(info.getRelativeName())))
+        {
+            remove(old);
+        }
+        add(info);
+    }
+
+    /**
+     * Removes an item. Directories left empty are removed from the tree.
+     *
+     * @param info
+     */
+    synchronized void remove(FileInfo info) {
+        String path = getParentPath(info.getRelativeName());
+        Node node = nodes.get(path);
+        if (node == null || node.children.remove(info) == null) {
+            return;
+        }
+        while (node != null && node.isEmpty() && path.length() > 0) {
+            nodes.remove(path);
+            String childPath = path;
+            path = getParentPath(path);
+            node = nodes.get(path);
+            if (node != null) {
+                node.subdirs.remove(childPath);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        nodes.clear();
+    }
+
+    /**
+     * Visits the items in a directory. With recursion all items of a
+     * directory are visited before the items of its sub directories.
+     *
+     * @param path
+     *            the directory relative name without trailing slash. "" for
+     *            the base directory.
+     * @param recursive
+     *            if the items in sub directories should be visited too.
+     * @param visitor
+     * @return false if the visitor stopped the visit.
+     */
+    boolean visit(String path, boolean recursive, Visitor<FileInfo> visitor)
+    {
+        Deque<String> paths = new ArrayDeque<String>();
+        paths.add(path);
+        while (!paths.isEmpty()) {
+            Node node = nodes.get(paths.poll());
+            if (node == null) {
+                continue;
+            }
+            for (FileInfo info : node.children.values()) {
+                if (!visitor.visit(info)) {
+                    return false;
+                }
+            }
+            if (recursive) {
+                paths.addAll(node.subdirs);
+            }
+        }
+        return true;
+    }
+
+    // Internals **************************************************************
+
+    private void linkToParents(String path) {
+        while (path.length() > 0) {
+            String parentPath = getParentPath(path);
+            Node parent = nodes.get(parentPath);
+            boolean created = parent == null;
+            if (created) {
+                parent = new Node();
+                nodes.put(parentPath, parent);
+            }
+            parent.subdirs.add(path);
+            if (!created) {
+                return;
+            }
+            path = parentPath;
+        }
+    }
+
+    private static String getParentPath(String relativeName) {
+        int i = relativeName.lastIndexOf('/');
+        return i < 0 ? "" : relativeName.substring(0, i);
+    }
+
+    private static class Node {
+        private final ConcurrentMap<FileInfo, FileInfo> children = Util
+            .createConcurrentHashMap(4);
+        private final Set<String> subdirs = ConcurrentHashMap.newKeySet();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && subdirs.isEmpty();
+        }
+    }
+}
@@ -25,8 +25,10 @@ import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.FileHistory;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Visitor;
 
 import java.util.Collection;
+import java.util.Set;
 
 /**
  * Describes a Folder database access object. Offers basic CRUD and advanced
@@ -216,27 +218,43 @@ public interface FileInfoDAO {
      */
     int count(String domain, boolean includeDirs, boolean excludeIgnored);
 
+    boolean hasDomainWithFiles(String domain);
+
     /**
-     * Counts all {@link FileInfo} objects of the given domain that are in sync.
+     * Finds the incoming items of a remote domain: Files and directories which
+     * are newer than mine or which I don't have. Deleted items I don't have
+     * are not incoming. Maintained on every change.
      *
      * @param domain
-     * @param includeDirs
-     *            if directories should be included in counting or not
-     * @param excludeIgnored
-     *            If files should be counted that are ignored by
-     *            {@link DiskItemFilter}
-     * @return the number of FileInfos in this domain that are in sync
+     * @return a snapshot of the incoming items of the domain.
      */
-    int countInSync(String domain, boolean includeDirs, boolean excludeIgnored);
+    Collection<FileInfo> findIncoming(String domain);
 
     /**
-     * Counts the total size of all {@link FileInfo} objects of the given domain
-     * that are in sync. Ignored files won't be included in the result.
+     * Visits the incoming items of a remote domain without copying them.
      *
      * @param domain
-     * @return the total number of bytes in this domain that are in sync
+     * @param visitor
+     * @return false if the visitor stopped the visit.
+     * @see #findIncoming(String)
      */
-    long bytesInSync(String domain);
+    boolean visitIncoming(String domain, Visitor<FileInfo> visitor);
 
-    boolean hasDomainWithFiles(String domain);
+    /**
+     * @return the incrementally maintained sync statistics or null if not
+     *         built yet.
+     * @see #rebuildSyncStatistics(Set)
+     */
+    SyncStatistics getSyncStatistics();
+
+    /**
+     * Counts the sync statistics from scratch. Required after changes not
+     * visible to the DAO, like the version sources or the ignore patterns.
+     * Afterwards the statistics are maintained on every change.
+     *
+     * @param versionSources
+     *            the domains to consider for the newest version of a file.
+     * @return the new statistics
+     */
+    SyncStatistics rebuildSyncStatistics(Set<String> versionSources);
 }
\ No newline at end of file
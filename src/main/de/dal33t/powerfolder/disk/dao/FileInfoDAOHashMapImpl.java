@@ -8,11 +8,13 @@ import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.StringUtils;
 import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.Visitor;
 import de.dal33t.powerfolder.util.logging.Loggable;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 
 /**
  * A {@link FileInfoDAO} implementation based on fast, in-memory
@@ -26,6 +28,16 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
 
     private String selfDomain;
     private DiskItemFilter filter;
+    private volatile FileInfoDAOListener listener;
+    private volatile int secondaryIndexMinFiles = -1;
+
+    /**
+     * Guard the sync statistics and incoming files of a file against
+     * concurrent changes of the domains. Striped by file, changes of different
+     * files don't wait for each other.
+     */
+    private final Object[] changeLocks = new Object[64];
+    private volatile SyncStatistics syncStatistics;
 
     public FileInfoDAOHashMapImpl(String selfDomain, DiskItemFilter filter) {
         super();
@@ -34,6 +46,28 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         if (filter == null) {
             this.filter = new DiskItemFilter();
         }
+        for (int i = 0; i < changeLocks.length; i++) {
+            changeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param listener
+     *            the listener to inform about changes of the domain of myself.
+     *            <code>null</code> to remove.
+     */
+    public void setListener(FileInfoDAOListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param minFiles
+     *            the minimum number of files and directories of a domain to
+     *            maintain OID and hash indexes for it. 0 to index all domains,
+     *            negative to find by OID and hash by scanning the domain.
+     */
+    public void setSecondaryIndexMinFiles(int minFiles) {
+        this.secondaryIndexMinFiles = minFiles;
     }
 
     public int count(String domain, boolean includeDirs, boolean excludeIgnored)
@@ -59,80 +93,61 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         }
     }
 
-    public int countInSync(String domain, boolean includeDirs,
-        boolean excludeIgnored)
-    {
+    public void delete(String domain, FileInfo info) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         Domain d = getDomain(domain);
-        int c = 0;
-        for (FileInfo fInfo : d.files.values()) {
-            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                continue;
-            }
-            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
-            if (inSync(fInfo, newestFileInfo)) {
-                c++;
-            }
-        }
-        if (includeDirs) {
-            for (FileInfo fInfo : d.directories.values()) {
-                if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                    continue;
-                }
-                FileInfo newestFileInfo = findNewestVersion(fInfo,
-                    domains.keySet());
-                if (inSync(fInfo, newestFileInfo)) {
-                    c++;
-                }
-            }
+        if (!info.isFile()) {
+            logWarning("Deleting directory: " + info.toDetailString());
         }
-        return c;
-    }
-
-    public long bytesInSync(String domain) {
-        Domain d = getDomain(domain);
-        long bytes = 0;
-        for (FileInfo fInfo : d.files.values()) {
-            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                continue;
+        synchronized (getChangeLock(info)) {
+            FileInfo before = d.files.get(info);
+            d.delete(info);
+            SyncStatistics stats = syncStatistics;
+            if (stats != null) {
+                updateSyncStatistics(stats, theDomain, info, before,
+                    d.files.get(info));
             }
-            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
-            if (inSync(fInfo, newestFileInfo)) {
-                bytes += fInfo.getSize();
-            }
-        }
-        return bytes;
-    }
-
-    private static boolean inSync(FileInfo fileInfo, FileInfo newestFileInfo) {
-        if (newestFileInfo == null) {
-            // It is intended not to use Reject.ifNull for performance reasons.
-            throw new NullPointerException("Newest FileInfo not found of "
-                + fileInfo.toDetailString());
+            updateIncoming(d, info);
         }
-        if (fileInfo == null) {
-            return false;
-        }
-        return !newestFileInfo.isNewerThan(fileInfo);
-    }
-
-    public void delete(String domain, FileInfo info) {
-        if (info.isFile()) {
-            getDomain(domain).files.remove(info);
-        } else {
-            logWarning("Deleting directory: " + info.toDetailString());
-            getDomain(domain).directories.remove(info);
+        FileInfoDAOListener l = listener;
+        if (l != null && isSelfDomain(domain)) {
+            l.deleted(info);
         }
     }
 
     public void deleteDomain(String domain, int newInitialSize) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
-        domains.remove(theDomain);
-        if (newInitialSize > 0) {
-            domains.put(theDomain, new Domain(newInitialSize));
-            if (isFiner()) {
-                logFiner("Created new domain (" + theDomain
-                    + ") with initial capacity " + newInitialSize);
+        withAllChangeLocks(() -> {
+            SyncStatistics stats = syncStatistics;
+            Domain removed = domains.remove(theDomain);
+            if (stats != null && removed != null) {
+                for (FileInfo fInfo : removed.files.values()) {
+                    updateSyncStatistics(stats, theDomain, fInfo, fInfo, null);
+                }
+                stats.removeDomain(theDomain);
             }
+            if (newInitialSize > 0) {
+                domains.put(theDomain, new Domain(newInitialSize));
+                if (isFiner()) {
+                    logFiner("Created new domain (" + theDomain
+                        + ") with initial capacity " + newInitialSize);
+                }
+            }
+            if (isSelfDomain(theDomain)) {
+                // All remote items got incoming
+                for (Domain d : domains.values()) {
+                    for (FileInfo fInfo : d.files.keySet()) {
+                        updateIncoming(d, fInfo);
+                    }
+                    for (FileInfo dInfo : d.directories.keySet()) {
+                        updateIncoming(d, dInfo);
+                    }
+                }
+            }
+        });
+        FileInfoDAOListener l = listener;
+        if (l != null && isSelfDomain(theDomain)) {
+            l.domainCleared();
         }
     }
 
@@ -150,62 +165,61 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         FileInfo newestVersion = null;
         for (String domain : domains) {
             Domain d = getDomain(domain);
+            if (isSecondaryIndexed(d)) {
+                newestVersion = newer(d.oids.findNewest(oid), newestVersion);
+                continue;
+            }
             for (FileInfo candidateFile : d.files.values()) {
-                if (StringUtils.isBlank(candidateFile.getOID())) {
-                    continue;
-                }
-                if (candidateFile.getOID().equals(oid)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
+                if (oid.equals(candidateFile.getOID())) {
+                    newestVersion = newer(candidateFile, newestVersion);
                 }
             }
             for (FileInfo candidateFile : d.directories.values()) {
-                if (StringUtils.isBlank(candidateFile.getOID())) {
-                    continue;
-                }
-                if (candidateFile.getOID().equals(oid)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
+                if (oid.equals(candidateFile.getOID())) {
+                    newestVersion = newer(candidateFile, newestVersion);
                 }
             }
         }
         return newestVersion;
     }
 
+    /**
+     * Only complete hashes of {@link FileInfo#getHashes()} are found.
+     */
     @Override
     public FileInfo findNewestByHash(String hash, String... domains) {
         Reject.ifBlank(hash, "Hash");
         FileInfo newestVersion = null;
         for (String domain : domains) {
             Domain d = getDomain(domain);
+            if (isSecondaryIndexed(d)) {
+                newestVersion = newer(d.hashes.findNewest(hash), newestVersion);
+                continue;
+            }
             for (FileInfo candidateFile : d.files.values()) {
                 if (candidateFile.isMatchingHash(hash)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
+                    newestVersion = newer(candidateFile, newestVersion);
                 }
             }
             for (FileInfo candidateFile : d.directories.values()) {
                 if (candidateFile.isMatchingHash(hash)) {
-                    if (newestVersion == null
-                        || candidateFile.isNewerThan(newestVersion))
-                    {
-                        newestVersion = candidateFile;
-                    }
+                    newestVersion = newer(candidateFile, newestVersion);
                 }
             }
         }
         return newestVersion;
     }
 
+    private static FileInfo newer(FileInfo candidate, FileInfo newestVersion) {
+        if (candidate == null) {
+            return newestVersion;
+        }
+        if (newestVersion == null || candidate.isNewerThan(newestVersion)) {
+            return candidate;
+        }
+        return newestVersion;
+    }
+
     public Collection<FileInfo> findAllFiles(String domain) {
         return Collections.unmodifiableCollection(getDomain(domain).files
             .values());
@@ -251,7 +265,10 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void stop() {
-        domains.clear();
+        withAllChangeLocks(() -> {
+            domains.clear();
+            syncStatistics = null;
+        });
     }
 
     public void store(String domain, FileInfo... infos) {
@@ -259,21 +276,29 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void store(String domain, Collection<FileInfo> infos) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         Domain d = getDomain(domain);
+        FileInfoDAOListener l = isSelfDomain(domain) ? listener : null;
 
         for (FileInfo fileInfo : infos) {
-            if (fileInfo.isFile()) {
-                d.files.put(fileInfo, fileInfo);
-                // Make sure not dir is left with name name.
-                d.directories.remove(fileInfo);
-            } else {
-                if (isFiner()) {
-                    logFiner("Storing directory: " + fileInfo.toDetailString());
+            if (!fileInfo.isFile() && isFiner()) {
+                logFiner("Storing directory: " + fileInfo.toDetailString());
+            }
+            synchronized (getChangeLock(fileInfo)) {
+                FileInfo before = d.files.get(fileInfo);
+                d.store(fileInfo);
+                SyncStatistics stats = syncStatistics;
+                if (stats != null) {
+                    updateSyncStatistics(stats, theDomain, fileInfo, before,
+                        d.files.get(fileInfo));
+                    if (fileInfo.isFile()) {
+                        stats.modified(theDomain, fileInfo);
+                    }
                 }
-                d.directories.put((DirectoryInfo) fileInfo,
-                    (DirectoryInfo) fileInfo);
-                // Make sure not file is left with name name.
-                d.files.remove(fileInfo);
+                updateIncoming(d, fileInfo);
+            }
+            if (l != null) {
+                l.stored(fileInfo);
             }
         }
     }
@@ -299,121 +324,66 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public Collection<FileInfo> findFiles(FileInfoCriteria criteria) {
-        Reject.ifTrue(criteria.getDomains().isEmpty(),
-            "No domains/members selected in criteria");
-        String path = criteria.getPath();
-        if (path == null) {
-            path = "";
-        }
-        if (path.equals("/")) {
-            path = "";
-        }
-        if (path.length() > 0 && !path.endsWith("/")) {
-            path += "/";
-        }
-        boolean recursive = criteria.isRecursive();
-        Collection<FileInfo> items = new HashSet<FileInfo>();
-        for (String domainStr : criteria.getDomains()) {
-            Domain domain = getDomain(domainStr);
-            if (domain == null) {
-                continue;
-            }
-            if (criteria.getType() == Type.DIRECTORIES_ONLY
-                || criteria.getType() == Type.FILES_AND_DIRECTORIES)
-            {
-                for (DirectoryInfo dInfo : domain.directories.values()) {
-                    // if (filter.isExcluded(dInfo)) {
-                    // continue;
-                    // }
-
-                    if (criteria.getMaxResults() > 0
-                        && items.size() >= criteria.getMaxResults())
-                    {
-                        return items;
-                    }
-
-                    if (isInSubDir(dInfo, path, recursive)
-                        && !Util.equalsRelativeName(dInfo.getRelativeName(),
-                            path))
-                    {
-                        if (!items.contains(dInfo)
-                            && matches(dInfo, criteria.getKeyWords()))
-                        {
-                            items.add(dInfo);
-                        }
-                    }
-                }
-            }
+        Type type = criteria.getType();
+        return findFiles(criteria, type != Type.FILES_ONLY,
+            type != Type.DIRECTORIES_ONLY, true, false);
+    }
 
-            if (criteria.getType() == Type.FILES_ONLY
-                || criteria.getType() == Type.FILES_AND_DIRECTORIES)
-            {
-                for (FileInfo fInfo : domain.files.values()) {
-                    // if (filter.isExcluded(fInfo)) {
-                    // continue;
-                    // }
-
-                    if (criteria.getMaxResults() > 0
-                        && items.size() >= criteria.getMaxResults())
-                    {
-                        return items;
-                    }
+    public Collection<FileInfo> findFilesFast(FileInfoCriteria criteria) {
+        Type type = criteria.getType();
+        return findFiles(criteria, true, type != Type.DIRECTORIES_ONLY,
+            criteria.includeDeleted(), true);
+    }
 
-                    if (isInSubDir(fInfo, path, recursive)) {
-                        if (!items.contains(fInfo)
-                            && matches(fInfo, criteria.getKeyWords()))
-                        {
-                            items.add(fInfo);
-                        }
-                    }
-                }
+    public boolean visitIncoming(String domain, Visitor<FileInfo> visitor) {
+        Domain d = getDomain(domain);
+        for (FileInfo key : d.incoming.keySet()) {
+            FileInfo remoteFile = d.find(key);
+            if (remoteFile != null && !visitor.visit(remoteFile)) {
+                return false;
             }
         }
-        return items;
+        return true;
     }
 
-    public Collection<FileInfo> findFilesFast(FileInfoCriteria criteria) {
-        Reject.ifTrue(criteria.getDomains().isEmpty(), "No domains/members selected in criteria");
-        String relativePath = criteria.getPath();
-        if (relativePath == null || relativePath.equals("/")) {
-            relativePath = "";
-        }
-        if (relativePath.length() > 0 && !relativePath.endsWith("/")) {
-            relativePath += "/";
-        }
-        Collection<FileInfo> fileInfos = new HashSet<>();
-        for (String domainString : criteria.getDomains()) {
-            Domain domain = getDomain(domainString);
-            if (domain == null) {
-                continue;
-            }
-            if (criteria.getMaxResults() > 0 && fileInfos.size() >= criteria.getMaxResults()) {
-                break;
+    public Collection<FileInfo> findIncoming(String domain) {
+        Domain d = getDomain(domain);
+        List<FileInfo> incoming = new ArrayList<FileInfo>(d.incoming.size());
+        for (FileInfo key : d.incoming.keySet()) {
+            FileInfo remoteFile = d.find(key);
+            if (remoteFile != null) {
+                incoming.add(remoteFile);
             }
-            for (DirectoryInfo directoryInfo : domain.directories.values()) {
-                if (criteria.getMaxResults() > 0 && fileInfos.size() >= criteria.getMaxResults()) {
-                    break;
-                }
-                if ((!directoryInfo.isDeleted() || criteria.includeDeleted()) && isInSubDir(directoryInfo, relativePath, criteria.isRecursive()) && !Util.equalsRelativeName(directoryInfo.getRelativeName(), relativePath)) {
-                    if (!fileInfos.contains(directoryInfo) && matchesName(directoryInfo, criteria.getKeyWords())) {
-                        fileInfos.add(directoryInfo);
+        }
+        return incoming;
+    }
+
+    public SyncStatistics getSyncStatistics() {
+        return syncStatistics;
+    }
+
+    public SyncStatistics rebuildSyncStatistics(Set<String> versionSources) {
+        Reject.ifNull(versionSources, "Version sources");
+        return withAllChangeLocks(() -> {
+            SyncStatistics stats = new SyncStatistics(new HashSet<String>(
+                versionSources));
+            Set<FileInfo> counted = new HashSet<FileInfo>();
+            for (Map.Entry<String, Domain> entry : domains.entrySet()) {
+                for (FileInfo fInfo : entry.getValue().files.values()) {
+                    stats.modified(entry.getKey(), fInfo);
+                    if (counted.add(fInfo) && !filter.isExcluded(fInfo)) {
+                        FileInfo newest = findNewestSource(stats, fInfo);
+                        stats.setNewest(fInfo, newest);
+                        countInAllDomains(stats, fInfo, newest, null, 1);
                     }
                 }
             }
-            if (criteria.getType() == Type.FILES_ONLY || criteria.getType() == Type.FILES_AND_DIRECTORIES) {
-                for (FileInfo fileInfo : domain.files.values()) {
-                    if (criteria.getMaxResults() > 0 && fileInfos.size() >= criteria.getMaxResults()) {
-                        break;
-                    }
-                    if ((!fileInfo.isDeleted() || criteria.includeDeleted()) && isInSubDir(fileInfo, relativePath, criteria.isRecursive())) {
-                        if (!fileInfos.contains(fileInfo) && matchesName(fileInfo, criteria.getKeyWords())) {
-                            fileInfos.add(fileInfo);
-                        }
-                    }
-                }
+            syncStatistics = stats;
+            if (isFine()) {
+                logFine("Rebuilt " + stats);
             }
-        }
-        return fileInfos;
+            return stats;
+        });
     }
 
     public FileHistory getFileHistory(FileInfo fileInfo) {
@@ -433,6 +403,215 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
 
     // Internals **************************************************************
 
+    /**
+     * Updates the incoming state of an item after it changed in a domain.
+     * Changes of myself affect the incoming state in all other domains. Called
+     * with the change lock of the item held.
+     */
+    private void updateIncoming(Domain changed, FileInfo key) {
+        Domain self = domains.get(selfDomain);
+        if (changed != self) {
+            updateIncoming(changed, key, self != null ? self.find(key) : null);
+            return;
+        }
+        FileInfo local = self.find(key);
+        for (Domain d : domains.values()) {
+            if (d != self) {
+                updateIncoming(d, key, local);
+            }
+        }
+    }
+
+    private static void updateIncoming(Domain d, FileInfo key, FileInfo local)
+    {
+        FileInfo remote = d.find(key);
+        boolean incoming = remote != null
+            && (local == null ? !remote.isDeleted() : remote
+                .isNewerThan(local));
+        if (incoming) {
+            d.incoming.put(key, key);
+        } else {
+            d.incoming.remove(key);
+        }
+    }
+
+    /**
+     * Updates the sync statistics after a file changed in one domain. Only
+     * the entry of the changed domain is counted again, the other domains
+     * only if the newest version of the file changed. Called with the change
+     * lock of the file held.
+     *
+     * @param domain
+     *            the changed domain
+     * @param key
+     *            any instance of the file
+     * @param before
+     *            the file in the domain before the change or null
+     * @param after
+     *            the file in the domain after the change or null
+     */
+    private void updateSyncStatistics(SyncStatistics stats, String domain,
+        FileInfo key, FileInfo before, FileInfo after)
+    {
+        if ((before == null && after == null) || filter.isExcluded(key)) {
+            return;
+        }
+        FileInfo oldNewest = stats.getNewest(key);
+        FileInfo newNewest = oldNewest;
+        if (stats.isVersionSource(domain)) {
+            FileInfo candidate = after != null && after.isValid()
+                ? after
+                : null;
+            if (before != null && before == oldNewest) {
+                // Replaced the newest version
+                newNewest = candidate != null
+                    && !oldNewest.isNewerThan(candidate)
+                    ? candidate
+                    : findNewestSource(stats, key);
+            } else {
+                newNewest = newer(candidate, oldNewest);
+            }
+            stats.setNewest(key, newNewest);
+        }
+
+        Domain self = domains.get(selfDomain);
+        FileInfo mineAfter = self != null ? self.files.get(key) : null;
+        FileInfo mineBefore = domain.equals(selfDomain) ? before : mineAfter;
+        if (!sameVersion(oldNewest, newNewest)) {
+            // In sync state of the other domains changed
+            countInAllDomains(stats, key, oldNewest, domain, -1);
+            countInAllDomains(stats, key, newNewest, domain, 1);
+        }
+        countInDomain(stats, domain, before, oldNewest, -1);
+        countInDomain(stats, domain, after, newNewest, 1);
+        countNewest(stats, oldNewest, mineBefore, -1);
+        countNewest(stats, newNewest, mineAfter, 1);
+    }
+
+    /**
+     * Adds or subtracts the files of all domains except one. Adds the newest
+     * version if no domain is skipped.
+     *
+     * @param skipDomain
+     *            the domain not to count or null to count all domains.
+     * @param sign
+     *            1 to add, -1 to subtract
+     */
+    private void countInAllDomains(SyncStatistics stats, FileInfo key,
+        FileInfo newest, String skipDomain, int sign)
+    {
+        for (Map.Entry<String, Domain> entry : domains.entrySet()) {
+            if (!entry.getKey().equals(skipDomain)) {
+                countInDomain(stats, entry.getKey(), entry.getValue().files
+                    .get(key), newest, sign);
+            }
+        }
+        if (skipDomain == null) {
+            Domain self = domains.get(selfDomain);
+            countNewest(stats, newest, self != null
+                ? self.files.get(key)
+                : null, sign);
+        }
+    }
+
+    private static void countInDomain(SyncStatistics stats, String domain,
+        FileInfo fInfo, FileInfo newest, int sign)
+    {
+        if (fInfo == null || fInfo.isDeleted() || newest == null) {
+            return;
+        }
+        boolean inSync = sameVersion(newest, fInfo);
+        stats.count(domain, fInfo, inSync, sign);
+    }
+
+    private static void countNewest(SyncStatistics stats, FileInfo newest,
+        FileInfo mine, int sign)
+    {
+        if (newest == null || newest.isDeleted()) {
+            return;
+        }
+        stats.countNewest(newest, mine == null || newest.isNewerThan(mine),
+            sign);
+    }
+
+    /**
+     * @return the newest valid version of the file in the version sources.
+     */
+    private FileInfo findNewestSource(SyncStatistics stats, FileInfo key) {
+        FileInfo newest = null;
+        for (Map.Entry<String, Domain> entry : domains.entrySet()) {
+            if (!stats.isVersionSource(entry.getKey())) {
+                continue;
+            }
+            FileInfo candidate = entry.getValue().files.get(key);
+            if (candidate != null && candidate.isValid()) {
+                newest = newer(candidate, newest);
+            }
+        }
+        return newest;
+    }
+
+    private static boolean sameVersion(FileInfo a, FileInfo b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return !a.isNewerThan(b) && !b.isNewerThan(a);
+    }
+
+    private Object getChangeLock(FileInfo key) {
+        int h = key.hashCode();
+        return changeLocks[(h ^ (h >>> 16)) & (changeLocks.length - 1)];
+    }
+
+    /**
+     * Runs the action while holding the change locks of all files. For
+     * changes of whole domains.
+     */
+    private void withAllChangeLocks(Runnable action) {
+        withAllChangeLocks(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private <T> T withAllChangeLocks(Supplier<T> action) {
+        return withChangeLocks(0, action);
+    }
+
+    private <T> T withChangeLocks(int i, Supplier<T> action) {
+        if (i == changeLocks.length) {
+            return action.get();
+        }
+        synchronized (changeLocks[i]) {
+            return withChangeLocks(i + 1, action);
+        }
+    }
+
+    /**
+     * Builds the OID and hash indexes of the domain once it got big enough.
+     *
+     * @return true if the domain has secondary indexes.
+     */
+    private boolean isSecondaryIndexed(Domain d) {
+        if (d.oids != null) {
+            return true;
+        }
+        int minFiles = secondaryIndexMinFiles;
+        if (minFiles < 0 || d.files.size() + d.directories.size() < minFiles)
+        {
+            return false;
+        }
+        d.buildSecondaryIndexes();
+        if (isFine()) {
+            logFine("Built secondary indexes: " + d);
+        }
+        return true;
+    }
+
+    private boolean isSelfDomain(String domain) {
+        return StringUtils.isBlank(domain) || domain.equals(selfDomain);
+    }
+
     private Domain getDomain(String domain) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         synchronized (domains) {
@@ -449,6 +628,87 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         }
     }
 
+    /**
+     * Walks the directory index of each domain. Directories of a domain are
+     * collected before its files.
+     */
+    private Collection<FileInfo> findFiles(FileInfoCriteria criteria,
+        boolean includeDirs, boolean includeFiles, boolean includeDeleted,
+        boolean matchName)
+    {
+        Reject.ifTrue(criteria.getDomains().isEmpty(),
+            "No domains/members selected in criteria");
+        String path = criteria.getPath();
+        if (path == null) {
+            path = "";
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        boolean recursive = criteria.isRecursive();
+        Collection<FileInfo> items = new HashSet<FileInfo>();
+        ItemCollector dirCollector = new ItemCollector(criteria, items, true,
+            includeDeleted, matchName);
+        ItemCollector fileCollector = new ItemCollector(criteria, items,
+            false, includeDeleted, matchName);
+        for (String domainStr : criteria.getDomains()) {
+            Domain domain = getDomain(domainStr);
+            if (includeDirs
+                && !domain.index.visit(path, recursive, dirCollector))
+            {
+                break;
+            }
+            if (includeFiles
+                && !domain.index.visit(path, recursive, fileCollector))
+            {
+                break;
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Collects the directories or files matching a criteria until the
+     * maximum number of results is reached.
+     */
+    private class ItemCollector implements Visitor<FileInfo> {
+        private final Collection<FileInfo> items;
+        private final Set<String> keyWords;
+        private final int maxResults;
+        private final boolean dirs;
+        private final boolean includeDeleted;
+        private final boolean matchName;
+
+        private ItemCollector(FileInfoCriteria criteria,
+            Collection<FileInfo> items, boolean dirs, boolean includeDeleted,
+            boolean matchName)
+        {
+            this.items = items;
+            this.keyWords = criteria.getKeyWords();
+            this.maxResults = criteria.getMaxResults();
+            this.dirs = dirs;
+            this.includeDeleted = includeDeleted;
+            this.matchName = matchName;
+        }
+
+        public boolean visit(FileInfo info) {
+            if (maxResults > 0 && items.size() >= maxResults) {
+                return false;
+            }
+            if (info.isFile() == dirs
+                || (!includeDeleted && info.isDeleted()))
+            {
+                return true;
+            }
+            if (matchName ? matchesName(info, keyWords) : matches(info,
+                keyWords))
+            {
+                items.add(info);
+            }
+            return maxResults <= 0 || items.size() < maxResults;
+        }
+    }
+
     /*
      * TODO: Performance optimization
      */
@@ -478,33 +738,138 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return true;
     }
 
-    private boolean isInSubDir(FileInfo fInfo, String path, boolean recursive) {
-        if (!fInfo.getRelativeName().startsWith(path)) {
-            return false;
-        }
-        if (recursive) {
-            return true;
-        }
-        int offset = path.length() + 1;
-        int i = fInfo.getRelativeName().indexOf('/', offset);
-        // No other subdirectory at end.
-        return i < 0;
-    }
-
+    /**
+     * The files and directories of one member. #1531: The keys hash and
+     * compare their relative name ignoring the case if
+     * {@link FileInfo#IGNORE_CASE}. This makes {@link #find(FileInfo, String)}
+     * a case-insensitive lookup in constant time without a separate index.
+     */
     private static class Domain {
-
         private final ConcurrentMap<FileInfo, FileInfo> files;
         private final ConcurrentMap<DirectoryInfo, DirectoryInfo> directories = Util
             .createConcurrentHashMap(4);
+        /**
+         * Parent to children index for listings in O(children)
+         */
+        private final DirectoryIndex index = new DirectoryIndex();
+        /**
+         * Optional indexes by OID and hash. Built on demand for big domains.
+         */
+        private volatile SecondaryIndex oids;
+        private volatile SecondaryIndex hashes;
+        /**
+         * The items of a remote domain which are newer than mine or which I
+         * don't have. Deleted items I don't have are not incoming.
+         */
+        private final ConcurrentMap<FileInfo, FileInfo> incoming = Util
+            .createConcurrentHashMap(4);
 
         public Domain(int suggestedSize) {
             super();
             files = Util.createConcurrentHashMap(suggestedSize);
         }
 
+        private FileInfo find(FileInfo key) {
+            FileInfo fInfo = files.get(key);
+            return fInfo != null ? fInfo : directories.get(key);
+        }
+
+        private synchronized void store(FileInfo fileInfo) {
+            FileInfo old;
+            FileInfo other;
+            if (fileInfo.isFile()) {
+                old = files.put(fileInfo, fileInfo);
+                // Make sure not dir is left with name name.
+                other = directories.remove(fileInfo);
+            } else {
+                old = directories.put((DirectoryInfo) fileInfo,
+                    (DirectoryInfo) fileInfo);
+                // Make sure not file is left with name name.
+                other = files.remove(fileInfo);
+            }
+            if (other != null) {
+                index.replace(other, fileInfo);
+                removeSecondaryKeys(other);
+            }
+            index.replace(old, fileInfo);
+            if (old != null) {
+                removeSecondaryKeys(old);
+            }
+            addSecondaryKeys(fileInfo);
+        }
+
+        private synchronized void delete(FileInfo info) {
+            FileInfo removed = info.isFile()
+                ? files.remove(info)
+                : directories.remove(info);
+            if (removed != null) {
+                index.remove(removed);
+                removeSecondaryKeys(removed);
+            }
+        }
+
+        private synchronized void buildSecondaryIndexes() {
+            if (oids != null) {
+                return;
+            }
+            int size = files.size() + directories.size();
+            SecondaryIndex newOIDs = new SecondaryIndex(size);
+            SecondaryIndex newHashes = new SecondaryIndex(size);
+            for (FileInfo fileInfo : files.values()) {
+                addSecondaryKeys(fileInfo, newOIDs, newHashes);
+            }
+            for (FileInfo dirInfo : directories.values()) {
+                addSecondaryKeys(dirInfo, newOIDs, newHashes);
+            }
+            // Publish complete indexes only
+            hashes = newHashes;
+            oids = newOIDs;
+        }
+
+        private void addSecondaryKeys(FileInfo fileInfo) {
+            if (oids != null) {
+                addSecondaryKeys(fileInfo, oids, hashes);
+            }
+        }
+
+        private static void addSecondaryKeys(FileInfo fileInfo,
+            SecondaryIndex oidIndex, SecondaryIndex hashIndex)
+        {
+            if (StringUtils.isNotBlank(fileInfo.getOID())) {
+                oidIndex.add(fileInfo.getOID(), fileInfo);
+            }
+            if (StringUtils.isNotBlank(fileInfo.getHashes())) {
+                StringTokenizer nizer = new StringTokenizer(
+                    fileInfo.getHashes(), FileInfo.HASH_SEPARATORS);
+                while (nizer.hasMoreTokens()) {
+                    hashIndex.add(nizer.nextToken(), fileInfo);
+                }
+            }
+        }
+
+        private void removeSecondaryKeys(FileInfo fileInfo) {
+            if (oids == null) {
+                return;
+            }
+            if (StringUtils.isNotBlank(fileInfo.getOID())) {
+                oids.remove(fileInfo.getOID(), fileInfo);
+            }
+            if (StringUtils.isNotBlank(fileInfo.getHashes())) {
+                StringTokenizer nizer = new StringTokenizer(
+                    fileInfo.getHashes(), FileInfo.HASH_SEPARATORS);
+                while (nizer.hasMoreTokens()) {
+                    hashes.remove(nizer.nextToken(), fileInfo);
+                }
+            }
+        }
+
         public String toString() {
+            SecondaryIndex o = oids;
+            SecondaryIndex h = hashes;
             return "Domain: " + files.size() + " files, " + directories.size()
-                + " dirs";
+                + " dirs"
+                + (o != null ? ", " + o.size() + " OIDs, " + h.size()
+                    + " hashes" : "");
         }
     }
 
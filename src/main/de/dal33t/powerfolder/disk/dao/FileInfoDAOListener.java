@@ -0,0 +1,51 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Gets informed about changes to the domain of myself in a
+ * {@link FileInfoDAO}. Changes of other domains are NOT reported.
+ * <p>
+ * Callbacks are made synchronously by the thread that changed the DAO and
+ * should therefore return quickly.
+ *
+ * @author sprajc
+ */
+public interface FileInfoDAOListener {
+
+    /**
+     * @param fInfo
+     *            the <code>FileInfo</code> that has been added or updated.
+     */
+    void stored(FileInfo fInfo);
+
+    /**
+     * @param fInfo
+     *            the <code>FileInfo</code> that has been removed.
+     */
+    void deleted(FileInfo fInfo);
+
+    /**
+     * The whole domain has been cleared or replaced.
+     */
+    void domainCleared();
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Index from a secondary key like the OID or a content hash to the files and
+ * directories of one domain carrying it.
+ * <p>
+ * Changes have to be synchronized by the caller. Lookups are not blocked.
+ *
+ * @author sprajc
+ */
+final class SecondaryIndex {
+    private final ConcurrentMap<String, ConcurrentMap<FileInfo, FileInfo>> entries;
+    private final AtomicInteger size = new AtomicInteger();
+
+    SecondaryIndex(int initialSize) {
+        entries = Util.createConcurrentHashMap(initialSize);
+    }
+
+    void add(String key, FileInfo info) {
+        ConcurrentMap<FileInfo, FileInfo> infos = entries.get(key);
+        if (infos == null) {
+            infos = Util.createConcurrentHashMap(2);
+            entries.put(key, infos);
+        }
+        if (infos.put(info, info) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    void remove(String key, FileInfo info) {
+        ConcurrentMap<FileInfo, FileInfo> infos = entries.get(key);
+        if (infos == null || infos.remove(info) == null) {
+            return;
+        }
+        size.decrementAndGet();
+        if (infos.isEmpty()) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the newest (highest version) item with the key or null if not
+     *         found.
+     */
+    FileInfo findNewest(String key) {
+        ConcurrentMap<FileInfo, FileInfo> infos = entries.get(key);
+        if (infos == null) {
+            return null;
+        }
+        FileInfo newest = null;
+        for (FileInfo info : infos.values()) {
+            if (newest == null || info.isNewerThan(newest)) {
+                newest = info;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return the number of key to item entries.
+     */
+    int size() {
+        return size.get();
+    }
+}
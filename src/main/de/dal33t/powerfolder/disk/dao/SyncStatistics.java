@@ -0,0 +1,224 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Sync counters of the files in a {@link FileInfoDAO}. Maintained by the DAO
+ * on every change, so reading them costs O(1) per domain.
+ * <p>
+ * A file is in sync in a domain if it is neither newer nor older than the
+ * newest version of all version source domains. Deleted and ignored files are
+ * not counted.
+ *
+ * @author sprajc
+ */
+public final class SyncStatistics {
+    private final Set<String> versionSources;
+    private final ConcurrentMap<String, Counts> counts = Util
+        .createConcurrentHashMap(4);
+    /**
+     * The newest version of each file in the version sources.
+     */
+    private final ConcurrentMap<FileInfo, FileInfo> newest = Util
+        .createConcurrentHashMap();
+    private final LongAdder totalFilesCount = new LongAdder();
+    private final LongAdder totalSize = new LongAdder();
+    private final LongAdder incomingFilesCount = new LongAdder();
+
+    SyncStatistics(Set<String> versionSources) {
+        this.versionSources = Collections.unmodifiableSet(versionSources);
+    }
+
+    /**
+     * @return the domains considered for the newest version of a file.
+     */
+    public Set<String> getVersionSources() {
+        return versionSources;
+    }
+
+    boolean isVersionSource(String domain) {
+        return versionSources.contains(domain);
+    }
+
+    // Reading ****************************************************************
+
+    /**
+     * @param domain
+     * @return the number of existing files in the domain
+     */
+    public int getFilesCount(String domain) {
+        Counts c = counts.get(domain);
+        return c != null ? c.files.intValue() : 0;
+    }
+
+    /**
+     * @param domain
+     * @return the number of existing files in the domain which are in sync.
+     */
+    public int getFilesCountInSync(String domain) {
+        Counts c = counts.get(domain);
+        return c != null ? c.filesInSync.intValue() : 0;
+    }
+
+    /**
+     * @param domain
+     * @return the size of all existing files in the domain
+     */
+    public long getSize(String domain) {
+        Counts c = counts.get(domain);
+        return c != null ? c.bytes.sum() : 0;
+    }
+
+    /**
+     * @param domain
+     * @return the size of the existing files in the domain which are in sync.
+     */
+    public long getSizeInSync(String domain) {
+        Counts c = counts.get(domain);
+        return c != null ? c.bytesInSync.sum() : 0;
+    }
+
+    /**
+     * @param domain
+     * @return the newest modification date of all files in the domain,
+     *         including deleted ones. null if unknown.
+     */
+    public Date getLastModifiedDate(String domain) {
+        Counts c = counts.get(domain);
+        long lastModified = c != null ? c.lastModified.get() : Long.MIN_VALUE;
+        return lastModified != Long.MIN_VALUE ? new Date(lastModified) : null;
+    }
+
+    /**
+     * @return the number of files whose newest version exists.
+     */
+    public int getTotalFilesCount() {
+        return totalFilesCount.intValue();
+    }
+
+    /**
+     * @return the size of the newest version of all existing files.
+     */
+    public long getTotalSize() {
+        return totalSize.sum();
+    }
+
+    /**
+     * @return the number of files whose newest version exists but is missing
+     *         or outdated in the domain of myself.
+     */
+    public int getIncomingFilesCount() {
+        return incomingFilesCount.intValue();
+    }
+
+    // Counting ***************************************************************
+
+    FileInfo getNewest(FileInfo key) {
+        return newest.get(key);
+    }
+
+    void setNewest(FileInfo key, FileInfo newestVersion) {
+        if (newestVersion != null) {
+            newest.put(key, newestVersion);
+        } else {
+            newest.remove(key);
+        }
+    }
+
+    /**
+     * Adds or subtracts a file of a domain.
+     *
+     * @param sign
+     *            1 to add, -1 to subtract.
+     */
+    void count(String domain, FileInfo fInfo, boolean inSync, int sign) {
+        Counts c = getCounts(domain);
+        c.files.add(sign);
+        c.bytes.add(sign * fInfo.getSize());
+        if (inSync) {
+            c.filesInSync.add(sign);
+            c.bytesInSync.add(sign * fInfo.getSize());
+        }
+    }
+
+    /**
+     * Adds or subtracts the newest version of a file.
+     *
+     * @param sign
+     *            1 to add, -1 to subtract.
+     */
+    void countNewest(FileInfo newestVersion, boolean incoming, int sign) {
+        totalFilesCount.add(sign);
+        totalSize.add(sign * newestVersion.getSize());
+        if (incoming) {
+            incomingFilesCount.add(sign);
+        }
+    }
+
+    void modified(String domain, FileInfo fInfo) {
+        Date modDate = fInfo.getModifiedDate();
+        if (modDate == null) {
+            return;
+        }
+        getCounts(domain).lastModified.accumulate(modDate.getTime());
+    }
+
+    void removeDomain(String domain) {
+        counts.remove(domain);
+    }
+
+    private Counts getCounts(String domain) {
+        Counts c = counts.get(domain);
+        if (c == null) {
+            c = new Counts();
+            Counts existing = counts.putIfAbsent(domain, c);
+            if (existing != null) {
+                c = existing;
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStatistics: " + totalFilesCount + " files, " + totalSize
+            + " bytes, " + incomingFilesCount + " incoming, domains: "
+            + counts.keySet();
+    }
+
+    private static class Counts {
+        private final LongAdder files = new LongAdder();
+        private final LongAdder filesInSync = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder bytesInSync = new LongAdder();
+        private final LongAccumulator lastModified = new LongAccumulator(
+            Math::max, Long.MIN_VALUE);
+    }
+}
@@ -41,6 +41,7 @@ import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.util.Date;
 import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,6 +55,10 @@ import java.util.logging.Logger;
 public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
 
     public static final String UNIX_SEPARATOR = "/";
+    /**
+     * Separate the single hashes in {@link #getHashes()}
+     */
+    public static final String HASH_SEPARATORS = " \t\r\n,;|";
     private static final Logger log = Logger
             .getLogger(FileInfo.class.getName());
 
@@ -790,14 +795,20 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      * PFC-2352.
      *
      * @param hash
-     * @return true if the hash matches any of the file hashes.
+     * @return true if the hash equals any of the file hashes.
      */
     public boolean isMatchingHash(String hash) {
         Reject.ifBlank(hash, "Hash");
         if (StringUtils.isBlank(hashes)) {
             return false;
         }
-        return hashes.contains(hash);
+        StringTokenizer nizer = new StringTokenizer(hashes, HASH_SEPARATORS);
+        while (nizer.hasMoreTokens()) {
+            if (hash.equals(nizer.nextToken())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -1055,6 +1066,114 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         // PFC-2571: End
     }
 
+    // Compact encoding, see FileInfoCodec **********************************
+
+    private static final int COMPACT_DIRECTORY = 1;
+    private static final int COMPACT_DELETED = 1 << 1;
+    private static final int COMPACT_OID = 1 << 2;
+    private static final int COMPACT_HASHES = 1 << 3;
+    private static final int COMPACT_TAGS = 1 << 4;
+    private static final int COMPACT_REUPLOAD = 1 << 5;
+    private static final int COMPACT_NO_SIZE = 1 << 6;
+    private static final int COMPACT_NO_DATE = 1 << 7;
+    private static final int COMPACT_NO_PREVIOUS_SIZE = 1 << 8;
+
+    void writeCompact(ObjectOutput out, FileInfoCodec.Context ctx)
+            throws IOException {
+        int flags = 0;
+        if (!isFile()) {
+            flags |= COMPACT_DIRECTORY;
+        }
+        if (deleted) {
+            flags |= COMPACT_DELETED;
+        }
+        if (oid != null) {
+            flags |= COMPACT_OID;
+        }
+        if (hashes != null) {
+            flags |= COMPACT_HASHES;
+        }
+        if (tags != null) {
+            flags |= COMPACT_TAGS;
+        }
+        if (reupload) {
+            flags |= COMPACT_REUPLOAD;
+        }
+        if (size == null) {
+            flags |= COMPACT_NO_SIZE;
+        }
+        if (previousSize == null) {
+            flags |= COMPACT_NO_PREVIOUS_SIZE;
+        }
+        if (lastModifiedDate == null) {
+            flags |= COMPACT_NO_DATE;
+        }
+        ExternalizableUtil.writeVarInt(out, flags);
+        ctx.writeName(out, fileName);
+        if (size != null) {
+            ExternalizableUtil.writeSignedVarLong(out, size);
+        }
+        if (previousSize != null) {
+            ExternalizableUtil.writeSignedVarLong(out, previousSize);
+        }
+        if (lastModifiedDate != null) {
+            ExternalizableUtil.writeSignedVarLong(out,
+                    lastModifiedDate.getTime());
+        }
+        ExternalizableUtil.writeSignedVarLong(out, version);
+        ctx.writeFolderInfo(out, folderInfo);
+        ctx.writeMemberInfo(out, modifiedBy);
+        ctx.writeAccountInfo(out, modifiedByAccount);
+        if (oid != null) {
+            ExternalizableUtil.writeVarString(out, oid);
+        }
+        if (hashes != null) {
+            ExternalizableUtil.writeVarString(out, hashes);
+        }
+        if (tags != null) {
+            ExternalizableUtil.writeVarString(out, tags);
+        }
+    }
+
+    static FileInfo readCompact(ObjectInput in, FileInfoCodec.Context ctx)
+            throws IOException, ClassNotFoundException {
+        int flags = ExternalizableUtil.readVarInt(in);
+        FileInfo fInfo = (flags & COMPACT_DIRECTORY) == 0
+                ? new FileInfo()
+                : new DirectoryInfo();
+        fInfo.fileName = ctx.readName(in);
+        if ((flags & COMPACT_NO_SIZE) == 0) {
+            fInfo.size = ExternalizableUtil.readSignedVarLong(in);
+        }
+        fInfo.previousSize = (flags & COMPACT_NO_PREVIOUS_SIZE) == 0
+                ? ExternalizableUtil.readSignedVarLong(in)
+                : null;
+        if ((flags & COMPACT_NO_DATE) == 0) {
+            fInfo.lastModifiedDate = new Date(
+                    ExternalizableUtil.readSignedVarLong(in));
+        }
+        long version = ExternalizableUtil.readSignedVarLong(in);
+        if (version < Integer.MIN_VALUE || version > Integer.MAX_VALUE) {
+            throw new IOException("Version out of range: " + version);
+        }
+        fInfo.version = (int) version;
+        fInfo.deleted = (flags & COMPACT_DELETED) != 0;
+        fInfo.reupload = (flags & COMPACT_REUPLOAD) != 0;
+        fInfo.folderInfo = ctx.readFolderInfo(in);
+        fInfo.modifiedBy = ctx.readMemberInfo(in);
+        fInfo.modifiedByAccount = ctx.readAccountInfo(in);
+        if ((flags & COMPACT_OID) != 0) {
+            fInfo.oid = ExternalizableUtil.readVarString(in);
+        }
+        if ((flags & COMPACT_HASHES) != 0) {
+            fInfo.hashes = ExternalizableUtil.readVarString(in);
+        }
+        if ((flags & COMPACT_TAGS) != 0) {
+            fInfo.tags = ExternalizableUtil.readVarString(in);
+        }
+        return fInfo;
+    }
+
     /**
      * Utility method for changing the fileName part of a relative file path.
      * Example renameRelativeFileName('directory/subdirectory/myFile.txt',
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.util.ExternalizableUtil;
+
+/**
+ * Compact binary encoding of lists of {@link FileInfo}s. Used by the folder
+ * database and the {@link java.io.Externalizable} file list messages.
+ * <p>
+ * Compared to plain serialization or
+ * {@link FileInfo#writeExternal(ObjectOutput)}:
+ * <ul>
+ * <li>{@link FolderInfo}, {@link MemberInfo} and {@link AccountInfo} are
+ * written once per list and then referenced by index</li>
+ * <li>Relative names only contain the part that differs from the previous
+ * name (prefix compression)</li>
+ * <li>Sizes, versions and modification dates (epoch millis) are written as
+ * variable length numbers</li>
+ * </ul>
+ *
+ * @author sprajc
+ */
+public final class FileInfoCodec {
+    /**
+     * The current version of the encoding. Written in front of each list.
+     */
+    public static final int VERSION_1 = 1;
+
+    /**
+     * Written in front of the encoded list by
+     * {@link #writeObject(ObjectOutput, FileInfo[], boolean)} to distinguish it from a
+     * serialized <code>FileInfo[]</code>.
+     */
+    private static final String OBJECT_STREAM_MARKER = "FileInfoCodec";
+
+    private FileInfoCodec() {
+        // No instance allowed
+    }
+
+    /**
+     * Writes the list into a stream that otherwise contains serialized
+     * objects. Read with {@link #readObject(ObjectInput)}.
+     *
+     * @param out
+     * @param fInfos
+     * @param compact
+     *            true to use the compact encoding, false to write the plain
+     *            serialized array.
+     * @throws IOException
+     */
+    public static void writeObject(ObjectOutput out, FileInfo[] fInfos,
+        boolean compact) throws IOException
+    {
+        if (compact) {
+            out.writeObject(OBJECT_STREAM_MARKER);
+            write(out, fInfos);
+        } else {
+            out.writeObject(fInfos);
+        }
+    }
+
+    /**
+     * Reads a list written by
+     * {@link #writeObject(ObjectOutput, FileInfo[], boolean)}. Also reads a
+     * plain serialized <code>FileInfo[]</code>.
+     *
+     * @param in
+     * @return the files and directories read.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static FileInfo[] readObject(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        Object object = in.readObject();
+        if (object instanceof FileInfo[]) {
+            return (FileInfo[]) object;
+        }
+        if (OBJECT_STREAM_MARKER.equals(object)) {
+            return read(in);
+        }
+        throw new InvalidClassException(FileInfoCodec.class.getName(),
+            "Unable to read. Expected FileInfo list, got: " + object);
+    }
+
+    /**
+     * @param out
+     * @param fInfos
+     *            the files and directories to write.
+     * @throws IOException
+     */
+    public static void write(ObjectOutput out, FileInfo[] fInfos)
+        throws IOException
+    {
+        ExternalizableUtil.writeVarInt(out, VERSION_1);
+        ExternalizableUtil.writeVarInt(out, fInfos.length);
+        Context ctx = new Context();
+        for (FileInfo fInfo : fInfos) {
+            fInfo.writeCompact(out, ctx);
+        }
+    }
+
+    /**
+     * @param in
+     * @return the files and directories read.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static FileInfo[] read(ObjectInput in) throws IOException,
+        ClassNotFoundException
+    {
+        int version = ExternalizableUtil.readVarInt(in);
+        if (version != VERSION_1) {
+            throw new InvalidClassException(FileInfoCodec.class.getName(),
+                "Unable to read. Version(stream): " + version + ", expected: "
+                    + VERSION_1);
+        }
+        FileInfo[] fInfos = new FileInfo[ExternalizableUtil.readVarInt(in)];
+        Context ctx = new Context();
+        for (int i = 0; i < fInfos.length; i++) {
+            fInfos[i] = FileInfo.readCompact(in, ctx);
+        }
+        return fInfos;
+    }
+
+    /**
+     * State shared by all entries of one encoded list.
+     */
+    static final class Context {
+        private final Map<Object, Integer> written = new IdentityHashMap<>();
+        private final List<FolderInfo> folders = new ArrayList<>(1);
+        private final List<MemberInfo> members = new ArrayList<>();
+        private final List<AccountInfo> accounts = new ArrayList<>();
+        private String previousName = "";
+
+        void writeName(ObjectOutput out, String name) throws IOException {
+            int max = Math.min(name.length(), previousName.length());
+            int prefix = 0;
+            while (prefix < max
+                && name.charAt(prefix) == previousName.charAt(prefix))
+            {
+                prefix++;
+            }
+            // Never split a surrogate pair between prefix and suffix
+            if (prefix > 0
+                && Character.isHighSurrogate(name.charAt(prefix - 1)))
+            {
+                prefix--;
+            }
+            ExternalizableUtil.writeVarInt(out, prefix);
+            ExternalizableUtil.writeVarString(out, name.substring(prefix));
+            previousName = name;
+        }
+
+        String readName(ObjectInput in) throws IOException {
+            int prefix = ExternalizableUtil.readVarInt(in);
+            if (prefix > previousName.length()) {
+                throw new IOException("Illegal name prefix length " + prefix
+                    + " of previous name " + previousName);
+            }
+            String name = previousName.substring(0, prefix)
+                + ExternalizableUtil.readVarString(in);
+            previousName = name;
+            return name;
+        }
+
+        void writeFolderInfo(ObjectOutput out, FolderInfo foInfo)
+            throws IOException
+        {
+            if (writeReference(out, foInfo, folders.size())) {
+                folders.add(foInfo);
+                foInfo.writeExternal(out);
+            }
+        }
+
+        FolderInfo readFolderInfo(ObjectInput in) throws IOException,
+            ClassNotFoundException
+        {
+            int ref = readReference(in, folders.size());
+            if (ref < 0) {
+                FolderInfo foInfo = FolderInfo.readExt(in).intern();
+                folders.add(foInfo);
+                return foInfo;
+            }
+            return ref == 0 ? null : folders.get(ref - 1);
+        }
+
+        void writeMemberInfo(ObjectOutput out, MemberInfo mInfo)
+            throws IOException
+        {
+            if (writeReference(out, mInfo, members.size())) {
+                members.add(mInfo);
+                mInfo.writeExternal(out);
+            }
+        }
+
+        MemberInfo readMemberInfo(ObjectInput in) throws IOException,
+            ClassNotFoundException
+        {
+            int ref = readReference(in, members.size());
+            if (ref < 0) {
+                MemberInfo mInfo = MemberInfo.readExt(in).intern();
+                members.add(mInfo);
+                return mInfo;
+            }
+            return ref == 0 ? null : members.get(ref - 1);
+        }
+
+        void writeAccountInfo(ObjectOutput out, AccountInfo aInfo)
+            throws IOException
+        {
+            if (writeReference(out, aInfo, accounts.size())) {
+                accounts.add(aInfo);
+                aInfo.writeExternal(out);
+            }
+        }
+
+        AccountInfo readAccountInfo(ObjectInput in) throws IOException,
+            ClassNotFoundException
+        {
+            int ref = readReference(in, accounts.size());
+            if (ref < 0) {
+                AccountInfo aInfo = AccountInfo.readExt(in).intern();
+                accounts.add(aInfo);
+                return aInfo;
+            }
+            return ref == 0 ? null : accounts.get(ref - 1);
+        }
+
+        /**
+         * Reference encoding: 0 = null, 1..n = index + 1 of an already
+         * written value, n + 1 = a new value follows.
+         *
+         * @return true if the value has to be written after the reference.
+         */
+        private boolean writeReference(ObjectOutput out, Object value,
+            int tableSize) throws IOException
+        {
+            if (value == null) {
+                ExternalizableUtil.writeVarInt(out, 0);
+                return false;
+            }
+            Integer index = written.get(value);
+            if (index != null) {
+                ExternalizableUtil.writeVarInt(out, index + 1);
+                return false;
+            }
+            written.put(value, tableSize);
+            ExternalizableUtil.writeVarInt(out, tableSize + 1);
+            return true;
+        }
+
+        /**
+         * @return the reference or -1 if a new value follows.
+         */
+        private static int readReference(ObjectInput in, int tableSize)
+            throws IOException
+        {
+            int ref = ExternalizableUtil.readVarInt(in);
+            if (ref == tableSize + 1) {
+                return -1;
+            }
+            if (ref > tableSize) {
+                throw new IOException("Illegal reference " + ref
+                    + ", table size " + tableSize);
+            }
+            return ref;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.util.ExternalizableUtil;
@@ -35,7 +36,17 @@ import de.dal33t.powerfolder.util.ExternalizableUtil;
  */
 public class FileListExt extends FileList implements Externalizable {
     private static final long serialVersionUID = -299244748325976914L;
-    private static final long extVersionUID = 100L;
+    private static final long extVersion100UID = 100L;
+    /**
+     * Files encoded by {@link FileInfoCodec}
+     */
+    private static final long extVersionCurrentUID = 101L;
+
+    /**
+     * False to write ext version 100 for peers that do not support the
+     * {@link FileInfoCodec}.
+     */
+    private transient boolean useCodec = true;
 
     public FileListExt() {
         super();
@@ -53,32 +64,53 @@ public class FileListExt extends FileList implements Externalizable {
         ClassNotFoundException
     {
         long extUID = in.readLong();
-        if (extUID != extVersionUID) {
+        if (extUID != extVersion100UID && extUID != extVersionCurrentUID) {
             throw new InvalidClassException(this.getClass().getName(),
                 "Unable to read. extVersionUID(steam): " + extUID
-                    + ", expected: " + extVersionUID);
+                    + ", supported: " + extVersion100UID + ", "
+                    + extVersionCurrentUID);
         }
         folder = ExternalizableUtil.readFolderInfo(in);
         nFollowingDeltas = in.readInt();
         if (in.readBoolean()) {
-            files = new FileInfo[in.readInt()];
-            for (int i = 0; i < files.length; i++) {
-                files[i] = FileInfoFactory.readExt(in);
+            if (extUID == extVersion100UID) {
+                files = new FileInfo[in.readInt()];
+                for (int i = 0; i < files.length; i++) {
+                    files[i] = FileInfoFactory.readExt(in);
+                }
+            } else {
+                files = FileInfoCodec.read(in);
             }
         } else {
             files = null;
         }
     }
 
+    /**
+     * @return a copy of this message that is written in ext version 100. For
+     *         peers below {@link Identity#PROTOCOL_VERSION_113}.
+     */
+    public FileListExt withoutCodec() {
+        FileListExt msg = new FileListExt(folder);
+        msg.files = files;
+        msg.nFollowingDeltas = nFollowingDeltas;
+        msg.useCodec = false;
+        return msg;
+    }
+
     public void writeExternal(ObjectOutput out) throws IOException {
-        out.writeLong(extVersionUID);
+        out.writeLong(useCodec ? extVersionCurrentUID : extVersion100UID);
         ExternalizableUtil.writeFolderInfo(out, folder);
         out.writeInt(nFollowingDeltas);
         out.writeBoolean(files != null);
         if (files != null) {
-            out.writeInt(files.length);
-            for (FileInfo fInfo : files) {
-                fInfo.writeExternal(out);
+            if (useCodec) {
+                FileInfoCodec.write(out, files);
+            } else {
+                out.writeInt(files.length);
+                for (FileInfo fInfo : files) {
+                    fInfo.writeExternal(out);
+                }
             }
         }
     }
@@ -28,6 +28,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.util.ExternalizableUtil;
@@ -43,7 +44,16 @@ public class FolderFilesChangedExt extends FolderFilesChanged implements
     Externalizable
 {
     private static final long serialVersionUID = -2047091337743391978L;
-    private static final long extVersionUID = 100L;
+    private static final long extVersion100UID = 100L;
+    /**
+     * Files encoded by {@link FileInfoCodec}
+     */
+    private static final long extVersionCurrentUID = 101L;
+    /**
+     * False to write ext version 100 for peers that do not support the
+     * {@link FileInfoCodec}.
+     */
+    private transient boolean useCodec = true;
     private static final Logger LOG = Logger
         .getLogger(FolderFilesChangedExt.class.getName());
 
@@ -68,30 +78,52 @@ public class FolderFilesChangedExt extends FolderFilesChanged implements
         ClassNotFoundException
     {
         long extUID = in.readLong();
-        if (extUID != extVersionUID) {
+        if (extUID != extVersion100UID && extUID != extVersionCurrentUID) {
             throw new InvalidClassException(this.getClass().getName(),
                 "Unable to read. extVersionUID(steam): " + extUID
-                    + ", expected: " + extVersionUID);
+                    + ", supported: " + extVersion100UID + ", "
+                    + extVersionCurrentUID);
         }
         folder = ExternalizableUtil.readFolderInfo(in);
         if (in.readBoolean()) {
-            int len = in.readInt();
-            added = new FileInfo[len];
-            for (int i = 0; i < added.length; i++) {
-                added[i] = FileInfoFactory.readExt(in);
+            if (extUID == extVersion100UID) {
+                int len = in.readInt();
+                added = new FileInfo[len];
+                for (int i = 0; i < added.length; i++) {
+                    added[i] = FileInfoFactory.readExt(in);
+                }
+            } else {
+                added = FileInfoCodec.read(in);
             }
         }
     }
 
+    /**
+     * @return a copy of this message that is written in ext version 100. For
+     *         peers below {@link Identity#PROTOCOL_VERSION_113}.
+     */
+    @SuppressWarnings("deprecation")
+    public FolderFilesChangedExt withoutCodec() {
+        FolderFilesChangedExt msg = new FolderFilesChangedExt(folder);
+        msg.added = added;
+        msg.removed = removed;
+        msg.useCodec = false;
+        return msg;
+    }
+
     @SuppressWarnings("deprecation")
     public void writeExternal(ObjectOutput out) throws IOException {
-        out.writeLong(extVersionUID);
+        out.writeLong(useCodec ? extVersionCurrentUID : extVersion100UID);
         ExternalizableUtil.writeFolderInfo(out, folder);
         out.writeBoolean(added != null);
         if (added != null) {
-            out.writeInt(added.length);
-            for (int i = 0; i < added.length; i++) {
-                added[i].writeExternal(out);
+            if (useCodec) {
+                FileInfoCodec.write(out, added);
+            } else {
+                out.writeInt(added.length);
+                for (int i = 0; i < added.length; i++) {
+                    added[i].writeExternal(out);
+                }
             }
         }
         if (removed != null && removed.length > 0
@@ -25,6 +25,7 @@ import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.d2d.D2DEvent;
 import de.dal33t.powerfolder.d2d.D2DObject;
 import de.dal33t.powerfolder.d2d.NodeEvent;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.protocol.IdentityProto;
@@ -123,6 +124,12 @@ public class Identity extends Message implements D2DObject, D2DEvent
      * {@link FolderFilesChanged}
      * <p>
      * 111: PFC-2455: Include federation folders when returning Account to node.
+     * <p>
+     * 113: {@link FileListExt} {@link FolderFilesChangedExt} encode the
+     * contained FileInfos with {@link FileInfoCodec}
+     * <p>
+     * 114: {@link FileChunkExt} may be sent as file chunk frame: Header
+     * message followed by the raw file data.
      */
     public static final int PROTOCOL_VERSION_106 = 106;
     public static final int PROTOCOL_VERSION_107 = 107;
@@ -131,9 +138,11 @@ public class Identity extends Message implements D2DObject, D2DEvent
     public static final int PROTOCOL_VERSION_110 = 110;
     public static final int PROTOCOL_VERSION_111 = 111;
     public static final int PROTOCOL_VERSION_112 = 112;
+    public static final int PROTOCOL_VERSION_113 = 113;
+    public static final int PROTOCOL_VERSION_114 = 114;
 
     // Never make this static
-    private int protocolVersion = PROTOCOL_VERSION_112;
+    private int protocolVersion = PROTOCOL_VERSION_114;
 
     private boolean requestFullFolderlist;
 
@@ -20,6 +20,7 @@
 package de.dal33t.powerfolder.net;
 
 import de.dal33t.powerfolder.*;
+import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.message.*;
 import de.dal33t.powerfolder.transfer.LimitedInputStream;
 import de.dal33t.powerfolder.transfer.LimitedOutputStream;
@@ -28,9 +29,15 @@ import de.dal33t.powerfolder.util.net.NetworkUtil;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,8 +48,24 @@ import java.util.concurrent.locks.ReentrantLock;
  * @version $Revision: 1.72 $
  */
 public abstract class AbstractSocketConnectionHandler extends PFComponent
-    implements ConnectionHandler
+    implements ConnectionHandler, FileChunkStreamer
 {
+    /**
+     * Paket header of a file chunk frame instead of the total length: [header
+     * length][serialized FileChunkExt without data][data length][raw data]
+     */
+    private static final int FILE_CHUNK_FRAME = -2;
+
+    /** Maximum size of the raw data of a file chunk frame */
+    private static final int MAX_FILE_CHUNK_FRAME_DATA = 10 * 1024 * 1024;
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    /**
+     * Maximum number of queued messages the sender takes at once. Small ones
+     * are written together in one buffer.
+     */
+    private static final int MAX_BATCH_MESSAGES = 64;
 
     /** The basic io socket */
     protected final Socket socket;
@@ -66,6 +89,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     // The send buffer
     protected Queue<Message> messagesToSendQueue;
 
+    // Send metrics
+    private final AtomicInteger sendQueueSize = new AtomicInteger();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong sendWrites = new AtomicLong();
+
     protected boolean started;
     // Flag if client is on lan
     private boolean onLAN;
@@ -154,6 +183,17 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         return false;
     }
 
+    /**
+     * (Optional) If the {@link Receiver} of this handler is used and the
+     * remote side is able to read file chunk frames.
+     *
+     * @return true if file chunks may be streamed on this connection.
+     * @see #sendFileChunk(FileInfo, long, FileChannel, int)
+     */
+    protected boolean isFileChunkStreamingSupported() {
+        return false;
+    }
+
     /**
      * @return an identity that gets send to the remote side.
      */
@@ -198,6 +238,11 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
             out = new LimitedOutputStream(getController().getTransferManager()
                 .getOutputLimiter(this), socket.getOutputStream());
 
+            if (socket.getChannel() != null) {
+                // Zero-copy transfer of file chunks
+                out.setTargetChannel(socket.getChannel());
+            }
+
             in = new LimitedInputStream(getController().getTransferManager()
                 .getInputLimiter(this), socket.getInputStream());
             if (isFiner()) {
@@ -309,6 +354,7 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         setMember(null);
         // Clear send queue
         messagesToSendQueue.clear();
+        sendQueueSize.set(0);
 
         getController().getIOProvider().removeKeepAliveCheck(this);
 
@@ -438,93 +484,279 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 .with(this);
         }
 
+        sendMessages(Collections.singletonList(message));
+    }
+
+    /**
+     * Sends the messages in the given order. All messages are serialized
+     * before the send lock is taken. Small messages are then written
+     * together through a pooled buffer, so a batch of messages ideally costs
+     * only one write to the socket.
+     *
+     * @param messages
+     *            the messages to send
+     * @throws ConnectionException
+     */
+    private void sendMessages(List<Message> messages)
+        throws ConnectionException
+    {
         // break if remote peer did no identitfy
-        if (identity == null && !(message instanceof Identity)) {
-            throw new ConnectionException(
-                "Unable to send message, peer did not identify yet").with(this);
+        for (Message message : messages) {
+            if (identity == null && !(message instanceof Identity)) {
+                throw new ConnectionException(
+                    "Unable to send message, peer did not identify yet")
+                    .with(this);
+            }
         }
 
+        long frameBytes = 0;
+        long inFlight = 0;
         try {
-            synchronized (sendLock) {
-                if (isFiner()) {
-                    logFiner("-- (sending) -> " + message);
+            // Serialize outside the send lock
+            byte[][] frames = new byte[messages.size()][];
+            for (int i = 0; i < frames.length; i++) {
+                Message message = messages.get(i);
+                frames[i] = serialize(message);
+                if (frames[i] == null) {
+                    throw new IllegalStateException(
+                        "Got null while serializing message: " + message);
                 }
-                // if (isServer()) {
-                // logWarning("-- (sending) -> " + message);
-                // }
+                frameBytes += frames[i].length + 4;
+            }
+            bytesInFlight.addAndGet(frameBytes);
+            inFlight = frameBytes;
+
+            synchronized (sendLock) {
                 if (!isConnected() || !started) {
                     throw new ConnectionException(
                         "Connection to remote peer closed").with(this);
                 }
 
                 long start = System.currentTimeMillis();
-                // Not limit some pakets
-                boolean omittBandwidthLimit = !(message instanceof LimitBandwidth)
-                    || this.omitBandwidthLimit;
-
-                byte[] data = serialize(message);
+                byte[] buf = SendBufferPool.acquire();
+                try {
+                    int pos = 0;
+                    boolean bufUnlimited = false;
+                    for (int i = 0; i < frames.length; i++) {
+                        Message message = messages.get(i);
+                        byte[] data = frames[i];
+                        if (isFiner()) {
+                            logFiner("-- (sending) -> " + message);
+                        }
+                        // Not limit some pakets
+                        boolean unlimited = !(message instanceof LimitBandwidth)
+                            || omitBandwidthLimit;
+                        int frameLength = data.length + 4;
+                        if (pos > 0
+                            && (unlimited != bufUnlimited
+                                || pos + frameLength > buf.length))
+                        {
+                            write(buf, 0, pos, bufUnlimited);
+                            pos = 0;
+                        }
+                        if (frameLength > buf.length) {
+                            // Too big to coalesce
+                            write(Convert.convert2Bytes(data.length), 0, 4,
+                                unlimited);
+                            write(data, 0, data.length, unlimited);
+                            continue;
+                        }
+                        bufUnlimited = unlimited;
+                        Convert.convert2Bytes(data.length, buf, pos);
+                        System.arraycopy(data, 0, buf, pos + 4, data.length);
+                        pos += frameLength;
+                    }
+                    if (pos > 0) {
+                        write(buf, 0, pos, bufUnlimited);
+                    }
+                } finally {
+                    SendBufferPool.release(buf);
+                }
+                // No Flush since we are not using bufferstreams no more.
+                sentMessages.addAndGet(frames.length);
 
-                // Write paket header / total length
-                if(null == data) {
-                    throw new IllegalStateException("Got null while serializing message: "
-                        + message);
+                long took = System.currentTimeMillis() - start;
+                if (took > 40000) {
+                    logWarning("Sending (" + frameBytes + " bytes) took "
+                        + took + "ms: " + messages);
                 }
+            }
+            // Outside the lock, the counter does not need it
+            getController().getTransferManager()
+                .getTotalUploadTrafficCounter().bytesTransferred(frameBytes);
+        } catch (IOException e) {
+            // shutdown this peer
+            shutdownWithMember();
+            throw new ConnectionException(
+                "Unable to send message to peer, connection closed: "
+                    + e.toString(), e).with(member).with(this);
+        } catch (ConnectionException e) {
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        } catch (RuntimeException e) {
+            logSevere("Runtime exception while serializing: " + messages, e);
+            // Ensure shutdown
+            shutdownWithMember();
+            throw e;
+        } finally {
+            bytesInFlight.addAndGet(-inFlight);
+        }
+    }
+
+    /**
+     * Writes into the socket. Caller has to hold the send lock.
+     */
+    private void write(byte[] data, int offset, int length, boolean unlimited)
+        throws IOException, ConnectionException
+    {
+        if (!started) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection shutdown").with(
+                member).with(this);
+        }
+        out.write(data, offset, length, unlimited);
+        sendWrites.incrementAndGet();
+    }
 
-                out.write(Convert.convert2Bytes(data.length));
-                getController().getTransferManager()
-                    .getTotalUploadTrafficCounter()
-                    .bytesTransferred(data.length + 4);
-                // out.flush();
+    /**
+     * @return the number of messages waiting in the asynchronous send queue.
+     */
+    public int getSendQueueSize() {
+        return Math.max(0, sendQueueSize.get());
+    }
 
-                // Do some calculations before send
-                int offset = 0;
+    /**
+     * @return the number of serialized bytes currently waiting for or being
+     *         written into the socket.
+     */
+    public long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
 
-                // if (message instanceof Ping) {
-                // logWarning("Ping packet size: " + data.length);
-                // }
+    /**
+     * @return the total number of messages sent over this connection.
+     */
+    public long getSentMessagesCount() {
+        return sentMessages.get();
+    }
 
-                int remaining = data.length;
-                // synchronized (out) {
-                while (remaining > 0) {
-                    int allowed = remaining;
-                    if (!started) {
-                        throw new ConnectionException(
-                            "Unable to send message to peer, connection shutdown")
-                            .with(member).with(this);
-                    }
-                    out.write(data, offset, allowed, omittBandwidthLimit);
-                    offset += allowed;
-                    remaining -= allowed;
-                }
-                // }
+    /**
+     * @return the total number of writes into the socket for messages. Lower
+     *         than {@link #getSentMessagesCount()} if messages got coalesced.
+     */
+    public long getSendWritesCount() {
+        return sendWrites.get();
+    }
 
-                // No Flush since we are not using bufferstreams no more.
-                // out.flush();
+    @Override
+    public boolean isFileChunkStreaming() {
+        Identity remote = identity;
+        return remote != null
+            && remote.getProtocolVersion() >= Identity.PROTOCOL_VERSION_114
+            && isFileChunkStreamingSupported()
+            && ConfigurationEntry.TRANSFER_CHUNK_STREAMING
+                .getValueBoolean(getController());
+    }
+
+    @Override
+    public void sendFileChunk(FileInfo file, long offset, FileChannel channel,
+        int length) throws ConnectionException
+    {
+        Reject.ifNull(file, "File is null");
+        Reject.ifNull(channel, "Channel is null");
+        Reject.ifFalse(length >= 0 && length <= MAX_FILE_CHUNK_FRAME_DATA,
+            "Illegal chunk length: " + length);
+        if (!isConnected()) {
+            throw new ConnectionException("Connection to remote peer closed")
+                .with(this);
+        }
+        FileChunk header = new FileChunkExt(file, offset, NO_DATA);
+        try {
+            long streamed;
+            synchronized (sendLock) {
+                if (isFiner()) {
+                    logFiner("-- (streaming " + length + " bytes) -> "
+                        + header);
+                }
+                if (!isConnected() || !started) {
+                    throw new ConnectionException(
+                        "Connection to remote peer closed").with(this);
+                }
+                long start = System.currentTimeMillis();
+                byte[] data = serialize(header);
+                if (data == null) {
+                    throw new IllegalStateException(
+                        "Got null while serializing message: " + header);
+                }
+                out.write(Convert.convert2Bytes(FILE_CHUNK_FRAME), 0, 4,
+                    true);
+                out.write(Convert.convert2Bytes(data.length), 0, 4, true);
+                out.write(data, 0, data.length, omitBandwidthLimit);
+                out.write(Convert.convert2Bytes(length), 0, 4, true);
+                out.transferFrom(channel, offset, length, omitBandwidthLimit);
+                streamed = data.length + length + 12;
 
                 long took = System.currentTimeMillis() - start;
                 if (took > 40000) {
-                    logWarning("Sending (" + data.length + " bytes) took "
-                        + took + "ms: " + message);
+                    logWarning("Streaming (" + length + " bytes) took " + took
+                        + "ms: " + header);
                 }
             }
+            getController().getTransferManager()
+                .getTotalUploadTrafficCounter().bytesTransferred(streamed);
         } catch (IOException e) {
             // shutdown this peer
             shutdownWithMember();
             throw new ConnectionException(
-                "Unable to send message to peer, connection closed: "
+                "Unable to send file chunk to peer, connection closed: "
                     + e.toString(), e).with(member).with(this);
         } catch (ConnectionException e) {
             // Ensure shutdown
             shutdownWithMember();
             throw e;
         } catch (RuntimeException e) {
-            logSevere("Runtime exception while serializing: " + message, e);
+            logSevere("Runtime exception while streaming: " + header, e);
             // Ensure shutdown
             shutdownWithMember();
             throw e;
         }
     }
 
+    /**
+     * Reads the rest of a file chunk frame after the frame header.
+     *
+     * @return the received file chunk. Only the traffic of the frame headers
+     *         is already counted.
+     * @see #sendFileChunk(FileInfo, long, FileChannel, int)
+     */
+    private FileChunk readFileChunkFrame(byte[] sizeArr) throws IOException,
+        ConnectionException, ClassNotFoundException
+    {
+        StreamUtils.read(in, sizeArr, 0, sizeArr.length);
+        int headerSize = Convert.convert2Int(sizeArr);
+        if (headerSize <= 0) {
+            throw new IOException("Illegal file chunk header size: "
+                + headerSize);
+        }
+        byte[] data = serializer.read(in, headerSize);
+        Object obj = deserialize(data, headerSize);
+        if (!(obj instanceof FileChunk)) {
+            throw new IOException("Illegal file chunk header: " + obj);
+        }
+        StreamUtils.read(in, sizeArr, 0, sizeArr.length);
+        int dataSize = Convert.convert2Int(sizeArr);
+        if (dataSize < 0 || dataSize > MAX_FILE_CHUNK_FRAME_DATA) {
+            throw new IOException("Illegal file chunk size: " + dataSize);
+        }
+        FileChunk chunk = (FileChunk) obj;
+        chunk.data = new byte[dataSize];
+        StreamUtils.read(in, chunk.data, 0, dataSize);
+        getController().getTransferManager().getTotalDownloadTrafficCounter()
+            .bytesTransferred(headerSize + 8);
+        return chunk;
+    }
+
     @Override
     public void sendMessagesAsynchron(Message... messages) {
         for (Message message : messages) {
@@ -547,12 +779,12 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         senderSpawnLock.lock();
         try {
             messagesToSendQueue.offer(message);
-            if (messagesToSendQueue
-                .size() > Constants.WARN_MESSAGES_IN_SEND_QUEUE
+            int queueSize = sendQueueSize.incrementAndGet();
+            if (queueSize > Constants.WARN_MESSAGES_IN_SEND_QUEUE
                 && isWarning())
             {
                 String msg = "Many messages in send queue: "
-                    + messagesToSendQueue.size() + ": " + messagesToSendQueue;
+                    + queueSize + ": " + messagesToSendQueue;
                 if (msg.length() > 300) {
                     msg = msg.substring(0, 300);
                     msg += "...";
@@ -560,12 +792,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 logWarning(msg);
             }
             // PFC-2591/PFC-2742: Start
-            if (messagesToSendQueue
-                .size() > Constants.MAX_MESSAGES_IN_SEND_QUEUE)
-            {
+            if (queueSize > Constants.MAX_MESSAGES_IN_SEND_QUEUE) {
                 String msg = "Disconnecting " + getIdentity()
-                    + ": Too many messages in send queue: "
-                    + messagesToSendQueue.size();
+                    + ": Too many messages in send queue: " + queueSize;
                 logWarning(msg);
                 Runnable shutdownWithMember = new Runnable() {
                     @Override
@@ -856,19 +1085,27 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 return;
             }
 
-            Message msg;
+            List<Message> batch = new ArrayList<Message>();
             while (true) {
                 senderSpawnLock.lock();
-                msg = messagesToSendQueue.poll();
-                if (msg == null) {
-                    sender = null;
+                try {
+                    Message msg;
+                    while (batch.size() < MAX_BATCH_MESSAGES
+                        && (msg = messagesToSendQueue.poll()) != null)
+                    {
+                        sendQueueSize.decrementAndGet();
+                        batch.add(msg);
+                    }
+                    if (batch.isEmpty()) {
+                        sender = null;
+                        break;
+                    }
+                } finally {
                     senderSpawnLock.unlock();
-                    break;
                 }
-                senderSpawnLock.unlock();
 
                 if (!started) {
-                    logFine("Peer shutdown while sending: " + msg);
+                    logFine("Peer shutdown while sending: " + batch);
                     senderSpawnLock.lock();
                     sender = null;
                     senderSpawnLock.unlock();
@@ -876,7 +1113,8 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     break;
                 }
                 try {
-                    sendMessage(msg);
+                    sendMessages(batch);
+                    batch.clear();
                 } catch (ConnectionException e) {
                     logFine("Unable to send message asynchronly. " + e);
                     logFiner("ConnectionException", e);
@@ -929,14 +1167,19 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                     if (totalSize == -1) {
                         break;
                     }
-                    if (totalSize <= 0) {
+                    Object obj;
+                    if (totalSize == FILE_CHUNK_FRAME) {
+                        FileChunk chunk = readFileChunkFrame(sizeArr);
+                        totalSize = chunk.data.length;
+                        obj = chunk;
+                    } else if (totalSize <= 0) {
                         throw new IOException("Illegal paket size: "
                             + totalSize);
+                    } else {
+                        byte[] data = serializer.read(in, totalSize);
+                        obj = deserialize(data, totalSize);
                     }
 
-                    byte[] data = serializer.read(in, totalSize);
-                    Object obj = deserialize(data, totalSize);
-
                     lastKeepaliveMessage = new Date();
                     getController().getTransferManager()
                         .getTotalDownloadTrafficCounter()
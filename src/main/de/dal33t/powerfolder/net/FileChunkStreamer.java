@@ -0,0 +1,58 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.nio.channels.FileChannel;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+
+/**
+ * A connection handler that is able to send {@link FileChunk}s directly from
+ * a file without building the message in memory first.
+ *
+ * @author sprajc
+ */
+public interface FileChunkStreamer {
+
+    /**
+     * @return true if file chunks can currently be streamed to the remote
+     *         peer.
+     */
+    boolean isFileChunkStreaming();
+
+    /**
+     * Sends a {@link FileChunk}. The data gets read from the channel while
+     * writing to the remote peer. Received as ordinary {@link FileChunk}
+     * message on the remote side.
+     *
+     * @param file
+     *            the file the chunk belongs to
+     * @param offset
+     *            the offset of the chunk in the file
+     * @param channel
+     *            the channel to read the data from. Positional reads only.
+     * @param length
+     *            the length of the chunk
+     * @throws ConnectionException
+     */
+    void sendFileChunk(FileInfo file, long offset, FileChannel channel,
+        int length) throws ConnectionException;
+}
@@ -69,6 +69,11 @@ public class IOProvider extends PFComponent {
      */
     private UDTSocketConnectionManager udtConManager;
 
+    /**
+     * Executes the handling of received messages
+     */
+    private MessageDispatcher messageDispatcher;
+
     /**
      * The list of connection handlers to check for keepalive
      */
@@ -84,12 +89,14 @@ public class IOProvider extends PFComponent {
         relayedConManager = new RelayedConnectionManager(controller);
         udtConManager = new UDTSocketConnectionManager(controller,
             Range.getRangeByNumbers(1024, 65535));
+        messageDispatcher = new MessageDispatcher(controller);
     }
 
     public void start() {
         // For basic IO
         ioThreadPool = new WrapperExecutorService(
             Executors.newCachedThreadPool(new NamedThreadFactory("IOThread-")));
+        messageDispatcher.start();
         started = true;
         getController().scheduleAndRepeat(new KeepAliveChecker(),
             TIME_WITHOUT_KEEPALIVE_UNTIL_PING);
@@ -102,6 +109,7 @@ public class IOProvider extends PFComponent {
             logFine("Shutting down connection I/O threadpool");
             ioThreadPool.shutdownNow();
         }
+        messageDispatcher.shutdown();
     }
 
     /**
@@ -137,6 +145,13 @@ public class IOProvider extends PFComponent {
         return udtConManager;
     }
 
+    /**
+     * @return the dispatcher to handle received messages.
+     */
+    public MessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
+    }
+
     /**
      * Starts a general connection handling working.
      *
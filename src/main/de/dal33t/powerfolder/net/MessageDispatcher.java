@@ -0,0 +1,250 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Executes the handling of received messages off the reading thread of the
+ * connection. Each category of messages has its own bounded thread pool, so
+ * e.g. a slow file list does not delay the transfer of file chunks.
+ * <p>
+ * Messages of one node and category are handled in the order they were
+ * received through a {@link Lane}. The lane is bounded, the reading thread of
+ * the connection blocks if the node sends faster than its messages can be
+ * handled.
+ *
+ * @author sprajc
+ */
+public class MessageDispatcher extends PFComponent {
+
+    /**
+     * The categories of messages, each handled by its own thread pool.
+     */
+    public enum Category {
+        /** Messages of up- and downloads, e.g. file chunks */
+        TRANSFER,
+        /** File lists and changes of file lists */
+        FILE_LIST,
+        /** All other messages */
+        CONTROL
+    }
+
+    /**
+     * Maximum number of queued messages per lane. Only exceeded by messages
+     * queued by a thread of the dispatcher.
+     */
+    private static final int LANE_CAPACITY = 500;
+
+    /**
+     * Maximum number of messages handled by a lane before giving other lanes
+     * a chance.
+     */
+    private static final int LANE_BATCH_SIZE = 50;
+
+    private static final ThreadLocal<Boolean> DISPATCHER_THREAD = new ThreadLocal<>();
+
+    private final Map<Category, ExecutorService> executors = new EnumMap<>(
+        Category.class);
+    private volatile boolean started;
+
+    public MessageDispatcher(Controller controller) {
+        super(controller);
+    }
+
+    public synchronized void start() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (Category category : Category.values()) {
+            int threads = category == Category.FILE_LIST
+                ? Math.max(2, cpus / 2)
+                : Math.max(2, cpus);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(
+                    "Messages-" + category.name().toLowerCase() + "-"));
+            executor.allowCoreThreadTimeOut(true);
+            executors.put(category, executor);
+        }
+        started = true;
+    }
+
+    public synchronized void shutdown() {
+        started = false;
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdownNow();
+        }
+        executors.clear();
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return true if the current thread handles messages of a lane.
+     */
+    public static boolean isDispatcherThread() {
+        return Boolean.TRUE.equals(DISPATCHER_THREAD.get());
+    }
+
+    /**
+     * @param category
+     * @return a new lane to handle the messages of one node in that category.
+     */
+    public Lane createLane(Category category) {
+        Reject.ifNull(category, "Category is null");
+        return new Lane(category);
+    }
+
+    private synchronized ExecutorService getExecutor(Category category) {
+        return executors.get(category);
+    }
+
+    /**
+     * Handles tasks one after another in the order of
+     * {@link #execute(Runnable)}.
+     */
+    public class Lane {
+        private final Category category;
+        private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Object spaceLock = new Object();
+        /**
+         * Number of threads waiting for space in the lane.
+         */
+        private volatile int waiting;
+
+        private Lane(Category category) {
+            this.category = category;
+        }
+
+        public Category getCategory() {
+            return category;
+        }
+
+        /**
+         * @return the number of tasks waiting in this lane.
+         */
+        public int getQueued() {
+            return tasks.size();
+        }
+
+        /**
+         * Queues the task. Blocks while the lane is full. A thread of the
+         * dispatcher never blocks, it could otherwise end in waiting for
+         * itself. Its task is queued behind the full lane instead.
+         *
+         * @param task
+         * @throws InterruptedException
+         *             if interrupted while waiting for space in the lane.
+         */
+        public void execute(Runnable task) throws InterruptedException {
+            Reject.ifNull(task, "Task is null");
+            if (isDispatcherThread()) {
+                tasks.add(task);
+            } else {
+                synchronized (spaceLock) {
+                    waiting++;
+                    try {
+                        while (tasks.size() >= LANE_CAPACITY) {
+                            spaceLock.wait();
+                        }
+                    } finally {
+                        waiting--;
+                    }
+                    tasks.add(task);
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Wakes up threads waiting for space in the lane.
+         */
+        private void spaceFreed() {
+            if (waiting == 0) {
+                return;
+            }
+            synchronized (spaceLock) {
+                if (tasks.size() < LANE_CAPACITY) {
+                    spaceLock.notifyAll();
+                }
+            }
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            ExecutorService executor = getExecutor(category);
+            try {
+                if (executor == null) {
+                    throw new RejectedExecutionException("Not started");
+                }
+                executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                if (isFine()) {
+                    logFine("Dropping " + tasks.size() + " " + category
+                        + " messages. Dispatcher not running");
+                }
+                tasks.clear();
+                spaceFreed();
+            }
+        }
+
+        private void run() {
+            DISPATCHER_THREAD.set(Boolean.TRUE);
+            try {
+                Runnable task;
+                for (int i = 0; i < LANE_BATCH_SIZE
+                    && (task = tasks.poll()) != null; i++)
+                {
+                    spaceFreed();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logSevere("Exception while handling " + category
+                            + " message. " + e, e);
+                    }
+                }
+            } finally {
+                DISPATCHER_THREAD.remove();
+                scheduled.set(false);
+                if (!tasks.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -91,6 +91,11 @@ public class PlainSocketConnectionHandler extends
         }
     }
 
+    @Override
+    protected boolean isFileChunkStreamingSupported() {
+        return true;
+    }
+
     @Override
     protected Identity createOwnIdentity() {
         return new Identity(getController(), getController().getMySelf()
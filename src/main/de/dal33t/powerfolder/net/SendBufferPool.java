@@ -0,0 +1,77 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size buffers the senders of all connections coalesce
+ * outgoing messages into. Keeps the number of idle buffers bounded, so a
+ * server with many connections does not hold one buffer per connection.
+ *
+ * @author sprajc
+ */
+final class SendBufferPool {
+
+    /**
+     * Size of each buffer. Messages (including frame header) bigger than this
+     * are written without coalescing.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_IDLE_BUFFERS = 32;
+
+    private static final Queue<byte[]> IDLE = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger IDLE_COUNT = new AtomicInteger();
+
+    private SendBufferPool() {
+    }
+
+    /**
+     * @return a buffer of {@link #BUFFER_SIZE} bytes. Content is undefined.
+     */
+    static byte[] acquire() {
+        byte[] buf = IDLE.poll();
+        if (buf == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        IDLE_COUNT.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Dropped if enough buffers are idle.
+     *
+     * @param buf
+     *            the buffer obtained by {@link #acquire()}
+     */
+    static void release(byte[] buf) {
+        if (buf == null || buf.length != BUFFER_SIZE) {
+            return;
+        }
+        if (IDLE_COUNT.incrementAndGet() > MAX_IDLE_BUFFERS) {
+            IDLE_COUNT.decrementAndGet();
+            return;
+        }
+        IDLE.offer(buf);
+    }
+}
@@ -28,7 +28,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
@@ -44,6 +49,7 @@ import de.dal33t.powerfolder.event.ListenerSupportFactory;
 import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.LatencyHistogram;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
 
@@ -59,6 +65,14 @@ public class SecurityManagerClient extends PFComponent implements
 
     private static final boolean CACHE_ENABLED = true;
     private static final int MAX_REQUEST_ACCOUNT_INFOS = 21;
+    /**
+     * Cached permissions older than this are refreshed in background (ms).
+     */
+    static final long PERMISSION_REFRESH_AFTER = 5L * 60 * 1000;
+    /**
+     * Cached permissions older than this are retrieved again (ms).
+     */
+    static final long PERMISSION_EXPIRE_AFTER = 10L * 60 * 1000;
 
     private static final AccountInfo NULL_ACCOUNT = new AccountInfo(null, null)
     {
@@ -112,8 +126,6 @@ public class SecurityManagerClient extends PFComponent implements
         client.logout();
     }
 
-    private final Object requestPermissionLock = new Object();
-
     public boolean hasPermission(MemberInfo memberInfo, Permission permission) {
         Member m = memberInfo.getNode(getController(), true);
         if (m.isServer()) {
@@ -151,53 +163,41 @@ public class SecurityManagerClient extends PFComponent implements
                 return true;
             }
         }
+        PermissionsCacheSegment cache = permissionsCacheAccounts
+            .computeIfAbsent(nullSafeGet(accountInfo),
+                a -> new PermissionsCacheSegment());
         try {
-            Boolean hasPermission;
-            PermissionsCacheSegment cache = permissionsCacheAccounts
-                .get(nullSafeGet(accountInfo));
-            if (cache != null) {
-                hasPermission = cache.hasPermission(permission);
-            } else {
-                // Create cache
-                hasPermission = null;
-                cache = new PermissionsCacheSegment();
-                permissionsCacheAccounts.put(nullSafeGet(accountInfo), cache);
-            }
-            String source;
-            if (!CACHE_ENABLED) {
-                hasPermission = null;
-            }
-            if (hasPermission == null) {
-                if (client.isConnected() && client.isLoggedIn()) {
-                    synchronized (requestPermissionLock) {
-                        // Re-check cache
-                        PermissionsCacheSegment secondCheck = permissionsCacheAccounts
-                            .get(nullSafeGet(accountInfo));
-                        hasPermission = secondCheck != null ? secondCheck
-                            .hasPermission(permission) : null;
-                        if (!CACHE_ENABLED) {
-                            hasPermission = null;
-                        }
-                        if (hasPermission == null) {
-                            hasPermission = retrievePermission(accountInfo,
+            boolean connected = client.isConnected() && client.isLoggedIn();
+            // Expired entries are still used while disconnected
+            Boolean hasPermission = CACHE_ENABLED ? cache.hasPermission(
+                permission, connected) : null;
+            if (hasPermission != null) {
+                if (connected) {
+                    // Refresh in background before the entry expires
+                    cache.refreshIfRequired(permission, () -> {
+                        try {
+                            return retrievePermission(accountInfo,
                                 permission, cache);
-                            source = "recvd";
-                            if (isFine()) {
-                                logFine("(" + source + ") "
-                                    + nullSafeGet(accountInfo) + " has "
-                                    + (hasPermission ? "" : "NOT ")
-                                    + permission);
-                            }
-                        } else {
-                            source = "cache";
+                        } catch (RemoteCallException e) {
+                            logFine("Unable to refresh " + permission
+                                + " for " + nullSafeGet(accountInfo) + ". "
+                                + e);
+                            throw e;
                         }
-                    }
-                } else {
-                    hasPermission = hasPermissionDisconnected(permission);
-                    source = "nocon";
+                    }, getController().getIOProvider()::startIO);
                 }
-            } else {
-                source = "cache";
+                return hasPermission;
+            }
+            if (!connected) {
+                return hasPermissionDisconnected(permission);
+            }
+            // Concurrent misses on the same folder share one bulk request.
+            // Lookups of other accounts or folders are not blocked.
+            hasPermission = cache.retrieve(permission,
+                () -> retrievePermission(accountInfo, permission, cache));
+            if (isFine()) {
+                logFine("(recvd) " + nullSafeGet(accountInfo) + " has "
+                    + (hasPermission ? "" : "NOT ") + permission);
             }
             return hasPermission;
         } catch (RemoteCallException e) {
@@ -209,6 +209,11 @@ public class SecurityManagerClient extends PFComponent implements
                 logFiner(e);
             }
 
+            Boolean lastKnown = CACHE_ENABLED ? cache.hasPermission(
+                permission, false) : null;
+            if (lastKnown != null) {
+                return lastKnown;
+            }
             return hasPermissionDisconnected(permission).booleanValue();
         }
     }
@@ -247,6 +252,7 @@ public class SecurityManagerClient extends PFComponent implements
                 List<Boolean> result = client.getSecurityService()
                     .hasPermissions(aInfo, permissions);
 
+                cache.set(permission, result.get(0));
                 cache.set(FolderPermission.read(foInfo), result.get(1));
                 cache.set(FolderPermission.readWrite(foInfo), result.get(2));
                 cache.set(FolderPermission.admin(foInfo), result.get(3));
@@ -684,17 +690,236 @@ public class SecurityManagerClient extends PFComponent implements
         }
     }
 
-    final class PermissionsCacheSegment {
-        Map<Permission, Boolean> permissions = new ConcurrentHashMap<Permission, Boolean>();
+    /**
+     * The cached permissions of one account.
+     * <p>
+     * Concurrent retrievals of permissions on the same folder are coalesced
+     * into one request. Entries are refreshed in background after
+     * {@link #PERMISSION_REFRESH_AFTER} and retrieved again after
+     * {@link #PERMISSION_EXPIRE_AFTER}. Expired entries are kept and still
+     * used while the server is not reachable.
+     */
+    static final class PermissionsCacheSegment {
+        private final long refreshAfter;
+        private final long expireAfter;
+        private final Map<Permission, CachedPermission> permissions = Util
+            .createConcurrentHashMap();
+        /**
+         * The running retrievals by folder or permission.
+         */
+        private final Map<Object, CompletableFuture<Boolean>> retrievals = Util
+            .createConcurrentHashMap();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        PermissionsCacheSegment() {
+            this(PERMISSION_REFRESH_AFTER, PERMISSION_EXPIRE_AFTER);
+        }
+
+        PermissionsCacheSegment(long refreshAfter, long expireAfter) {
+            Reject.ifTrue(refreshAfter > expireAfter,
+                "Refresh after expiry: " + refreshAfter + " > " + expireAfter);
+            this.refreshAfter = refreshAfter;
+            this.expireAfter = expireAfter;
+        }
 
         void set(Permission permission, Boolean hasPermission) {
             Reject.ifNull(permission, "Permission is null");
-            permissions.put(permission, hasPermission);
+            permissions.put(permission, new CachedPermission(hasPermission));
         }
 
+        /**
+         * @param permission
+         * @return the cached permission or null if not cached or expired.
+         */
         Boolean hasPermission(Permission permission) {
+            return hasPermission(permission, true);
+        }
+
+        /**
+         * @param permission
+         * @param connected
+         *            true if the permission can be retrieved from the server.
+         *            false to also return expired entries.
+         * @return the cached permission or null if not cached or expired
+         *         while connected.
+         */
+        Boolean hasPermission(Permission permission, boolean connected) {
+            Boolean hasPermission = getCached(permission, connected
+                ? expireAfter
+                : Long.MAX_VALUE);
+            if (hasPermission != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            return hasPermission;
+        }
+
+        /**
+         * Retrieves the permission. Waits for a running retrieval on the same
+         * folder instead of starting another one.
+         *
+         * @param permission
+         * @param retriever
+         *            retrieves the permission and caches the results.
+         * @return the retrieved permission.
+         */
+        Boolean retrieve(Permission permission, Supplier<Boolean> retriever)
+        {
+            Object key = getRetrievalKey(permission);
+            CompletableFuture<Boolean> retrieval = new CompletableFuture<>();
+            CompletableFuture<Boolean> running = retrievals.putIfAbsent(key,
+                retrieval);
+            if (running == null) {
+                return execute(key, retrieval, retriever);
+            }
+            Boolean result;
+            try {
+                result = running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            if (key.equals(permission)) {
+                return result;
+            }
+            // The running retrieval was for another permission on the folder.
+            Boolean cached = getCached(permission, expireAfter);
+            if (cached != null) {
+                return cached;
+            }
+            long start = System.nanoTime();
+            try {
+                return retriever.get();
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Retrieves the permission in background if the cached entry is older
+         * than the refresh time and no retrieval is running.
+         *
+         * @param permission
+         * @param retriever
+         *            retrieves the permission and caches the results.
+         * @param executor
+         *            to run the retrieval.
+         * @return true if a refresh was started.
+         */
+        boolean refreshIfRequired(Permission permission,
+            Supplier<Boolean> retriever, Executor executor)
+        {
+            CachedPermission cached = permissions.get(permission);
+            if (cached == null || cached.getAge() < refreshAfter) {
+                return false;
+            }
+            Object key = getRetrievalKey(permission);
+            CompletableFuture<Boolean> retrieval = new CompletableFuture<>();
+            if (retrievals.putIfAbsent(key, retrieval) != null) {
+                return false;
+            }
+            refreshes.increment();
+            executor.execute(() -> {
+                try {
+                    execute(key, retrieval, retriever);
+                } catch (RuntimeException e) {
+                    // Keep the cached entry until it expires.
+                }
+            });
+            return true;
+        }
+
+        /**
+         * @return the number of lookups answered from the cache.
+         */
+        long getHits() {
+            return hits.sum();
+        }
+
+        /**
+         * @return the number of lookups not answered from the cache.
+         */
+        long getMisses() {
+            return misses.sum();
+        }
+
+        /**
+         * @return the number of background refreshes started.
+         */
+        long getRefreshes() {
+            return refreshes.sum();
+        }
+
+        /**
+         * @return the latencies of the permission retrievals.
+         */
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "PermissionsCacheSegment [" + permissions.size()
+                + " permissions, hits=" + getHits() + ", misses="
+                + getMisses() + ", refreshes=" + getRefreshes()
+                + ", latency=" + latency + "]";
+        }
+
+        private Boolean getCached(Permission permission, long maxAge) {
             Reject.ifNull(permission, "Permission is null");
-            return permissions.get(permission);
+            CachedPermission cached = permissions.get(permission);
+            if (cached == null || cached.getAge() >= maxAge) {
+                return null;
+            }
+            return cached.hasPermission;
+        }
+
+        private Boolean execute(Object key,
+            CompletableFuture<Boolean> retrieval, Supplier<Boolean> retriever)
+        {
+            long start = System.nanoTime();
+            try {
+                Boolean result = retriever.get();
+                retrieval.complete(result);
+                return result;
+            } catch (RuntimeException | Error e) {
+                retrieval.completeExceptionally(e);
+                throw e;
+            } finally {
+                latency.record(System.nanoTime() - start);
+                retrievals.remove(key, retrieval);
+            }
+        }
+
+        /**
+         * Permissions on one folder are retrieved in bulk.
+         */
+        private static Object getRetrievalKey(Permission permission) {
+            if (permission instanceof FolderPermission
+                && ((FolderPermission) permission).folder != null)
+            {
+                return ((FolderPermission) permission).folder;
+            }
+            return permission;
+        }
+    }
+
+    private static final class CachedPermission {
+        private final Boolean hasPermission;
+        private final long cached = System.currentTimeMillis();
+
+        private CachedPermission(Boolean hasPermission) {
+            this.hasPermission = hasPermission;
+        }
+
+        private long getAge() {
+            return System.currentTimeMillis() - cached;
         }
     }
 }
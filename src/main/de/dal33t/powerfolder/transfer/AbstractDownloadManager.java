@@ -57,6 +57,7 @@ import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
 import de.dal33t.powerfolder.util.delta.MatchCopyWorker;
 import de.dal33t.powerfolder.util.delta.MatchInfo;
 import de.dal33t.powerfolder.util.delta.MatchResultWorker;
+import de.dal33t.powerfolder.util.delta.ResumableMD5;
 
 /**
  * Shared implementation of download managers. This class leaves details on what
@@ -105,7 +106,32 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
     protected FilePartsRecord remotePartRecord;
 
+    /**
+     * Maximum number of bytes read back from the tempfile per received chunk
+     * to advance {@link #tempFileDigest} over data that arrived out of order.
+     */
+    private static final int MAX_DIGEST_CATCH_UP = 1024 * 1024;
+
+    /**
+     * MD5 of the contiguous range of the tempfile starting at offset 0. Only
+     * maintained if a {@link #remotePartRecord} is present.
+     */
+    private ResumableMD5 tempFileDigest;
+
+    /**
+     * Number and size of the blocks read from the tempfile to check that a
+     * persisted digest still matches the tempfile on resume.
+     */
+    private static final int DIGEST_SAMPLE_BLOCKS = 16;
+    private static final int DIGEST_SAMPLE_BLOCK_SIZE = 4096;
+
     private volatile TransferCounter counter;
+
+    /**
+     * If the local file was matched against a remote record. Plain downloads
+     * are used to measure the transfer rate against delta sync.
+     */
+    private boolean deltaSyncUsed;
     private State transferState = new State();
 
     private final FileInfo fileInfo;
@@ -305,8 +331,18 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         // logFine("Verifying file hash for " + this);
         try {
             FilePartsRecord thisRemotePartRecord = remotePartRecord;
+            ResumableMD5 thisDigest = tempFileDigest;
             byte[] tempFileHash = null;
-            if (thisRemotePartRecord != null) {
+            if (thisRemotePartRecord != null && thisDigest != null) {
+                // Only hash the part not yet covered by received chunks
+                if (isFine() && thisDigest.getLength() < fileInfo.getSize()) {
+                    logFine("Hashing remaining "
+                        + Format.formatBytes(fileInfo.getSize()
+                            - thisDigest.getLength()) + " of "
+                        + fileInfo.toDetailString());
+                }
+                tempFileHash = finishDigest(thisDigest);
+            } else if (thisRemotePartRecord != null) {
                 tempFileHash = PathUtils.digest(getTempFile(),
                     MessageDigest.getInstance("MD5"), new ProgressListener() {
                         public void progressReached(double percentageReached) {
@@ -332,6 +368,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             filePartsState = null;
             // Maybe part record was bogus.
             remotePartRecord = null;
+            tempFileDigest = null;
 
             return false;
         } catch (NoSuchAlgorithmException e) {
@@ -388,13 +425,9 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             logFiner("Init tempfile at " + getTempFile());
         }
 
-        try {
-            tempFileChannel = FileChannel.open(tempFile,
-                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
-        } catch (FileAlreadyExistsException e) {
-            tempFileChannel = FileChannel.open(tempFile,
-                    StandardOpenOption.APPEND, StandardOpenOption.WRITE);
-        }
+        // Readable to let the digest catch up on out of order chunks
+        tempFileChannel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
     }
 
     protected boolean isNeedingFilePartsRecord() {
@@ -415,10 +448,13 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     setTransferState(percentageReached);
                 }
             };
-            Callable<List<MatchInfo>> mInfoWorker = new MatchResultWorker(
-                remotePartRecord, src, transferObs);
-            List<MatchInfo> mInfoRes = null;
-            mInfoRes = mInfoWorker.call();
+            deltaSyncUsed = true;
+            MatchResultWorker mInfoWorker = new MatchResultWorker(
+                remotePartRecord, src, transferObs, tm.getDeltaMatchPool(),
+                tm.getDeltaSyncMaxMatchers());
+            List<MatchInfo> mInfoRes = mInfoWorker.call();
+            tm.getDeltaSyncAdvisor().matchMeasured(
+                mInfoWorker.getBytesPerSecond());
 
             if (isFine()) {
                 logFine("Matches: "
@@ -552,6 +588,13 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             }
         }
 
+        if (!deltaSyncUsed && hasSources()) {
+            TransferCounter c = getCounter();
+            tm.getDeltaSyncAdvisor().downloadMeasured(
+                getSources().iterator().next().getPartner().isOnLAN(),
+                c.getBytesTransferred(), c.calculateAverageCPS());
+        }
+
         setTransferState(TransferState.DONE, 1);
         setState(InternalState.COMPLETED);
         shutdown();
@@ -648,6 +691,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         // stored "somewhere" - like in the
         // folders database or so)
         remotePartRecord = null;
+        tempFileDigest = null;
         updateTempFile();
 
         assert tempFileChannel == null;
@@ -691,6 +735,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         Range range = Range.getRangeByLength(chunk.offset, chunk.data.length);
         filePartsState.setPartState(range, PartState.AVAILABLE);
+        updateDigest(chunk);
 
         long avs = filePartsState.countPartStates(filePartsState.getRange(),
             PartState.AVAILABLE);
@@ -706,6 +751,119 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
     }
 
+    /**
+     * Advances the tempfile digest after a chunk has been written. Chunks
+     * directly following the hashed range are added without reading them
+     * back. Data behind that, which arrived earlier, is read back from the
+     * tempfile up to {@link #MAX_DIGEST_CATCH_UP} bytes per call.
+     *
+     * @param chunk
+     *            the chunk just written
+     */
+    private void updateDigest(FileChunk chunk) {
+        ResumableMD5 digest = tempFileDigest;
+        if (digest == null) {
+            return;
+        }
+        if (chunk.offset == digest.getLength()) {
+            digest.update(chunk.data);
+        }
+        long pos = digest.getLength();
+        if (pos >= filePartsState.getFileLength()) {
+            return;
+        }
+        Range available = filePartsState.findPart(
+            Range.getRangeByLength(pos, filePartsState.getFileLength() - pos),
+            PartState.AVAILABLE);
+        if (available == null || available.getStart() != pos) {
+            // Gap
+            return;
+        }
+        int len = (int) Math.min(available.getLength(), MAX_DIGEST_CATCH_UP);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(len);
+            while (buf.hasRemaining()) {
+                if (tempFileChannel.read(buf, pos + buf.position()) < 0) {
+                    throw new EOFException("Tempfile shorter than expected");
+                }
+            }
+            digest.update(buf.array());
+        } catch (IOException e) {
+            logFine("Unable to update digest from tempfile " + getTempFile()
+                + ". " + e);
+            // Hash it completely on completion
+            tempFileDigest = null;
+        }
+    }
+
+    /**
+     * Hashes some blocks spread over the beginning of the tempfile. Stored
+     * together with the digest to detect a tempfile modified while the
+     * download was not running.
+     *
+     * @param length
+     *            the length of the sampled range starting at offset 0
+     * @return the MD5 of the sampled blocks or null if not readable.
+     */
+    private byte[] sampleTempFile(long length) {
+        Path file = getTempFile();
+        if (file == null || Files.notExists(file)) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            ByteBuffer buf = ByteBuffer.allocate(DIGEST_SAMPLE_BLOCK_SIZE);
+            long step = Math.max(DIGEST_SAMPLE_BLOCK_SIZE, length
+                / DIGEST_SAMPLE_BLOCKS);
+            for (long pos = 0; pos < length; pos += step) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), length - pos));
+                while (buf.hasRemaining()) {
+                    if (in.read(buf, pos + buf.position()) < 0) {
+                        return null;
+                    }
+                }
+                md5.update(buf.array(), 0, buf.limit());
+            }
+            return md5.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            logFine("Unable to sample tempfile " + file + ". " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the remaining, not yet hashed part of the tempfile.
+     *
+     * @param digest
+     *            the digest covering the beginning of the tempfile.
+     * @return the MD5 of the complete tempfile.
+     * @throws IOException
+     */
+    private byte[] finishDigest(ResumableMD5 digest) throws IOException {
+        long size = fileInfo.getSize();
+        long start = digest.getLength();
+        if (start >= size) {
+            return digest.digest();
+        }
+        try (FileChannel in = FileChannel.open(getTempFile(),
+            StandardOpenOption.READ))
+        {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            long pos = start;
+            int read;
+            while ((read = in.read(buf, pos)) > 0) {
+                digest.update(buf.array(), 0, read);
+                pos += read;
+                buf.clear();
+                setTransferState((double) (pos - start) / (size - start));
+            }
+        }
+        return digest.digest();
+    }
+
     /**
      * @return true, if the download was actually requested from the source.
      */
@@ -948,6 +1106,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             return;
         }
 
+        byte[] digestSample = null;
         try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(mf)))) {
             FileInfo fi = (FileInfo) in.readObject();
             if (fi.isVersionDateAndSizeIdentical(fileInfo)) {
@@ -957,6 +1116,10 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                         setFilePartsState((FilePartsState) o);
                     } else if (o.getClass() == FilePartsRecord.class) {
                         remotePartRecord = (FilePartsRecord) o;
+                    } else if (o.getClass() == ResumableMD5.class) {
+                        tempFileDigest = (ResumableMD5) o;
+                    } else if (o.getClass() == byte[].class) {
+                        digestSample = (byte[]) o;
                     }
                 }
             } else {
@@ -967,9 +1130,25 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         } catch (Exception e) {
             remotePartRecord = null;
             filePartsState = null;
+            tempFileDigest = null;
             deleteMetaData();
         }
 
+        if (remotePartRecord == null) {
+            tempFileDigest = null;
+        } else if (tempFileDigest == null || filePartsState == null
+            || tempFileDigest.getLength() > 0
+            && (filePartsState.countPartStates(
+                Range.getRangeByLength(0, tempFileDigest.getLength()),
+                PartState.AVAILABLE) != tempFileDigest.getLength()
+                || digestSample == null || !Arrays
+                .equals(digestSample,
+                    sampleTempFile(tempFileDigest.getLength()))))
+        {
+            // Missing or not matching the data: Start over
+            tempFileDigest = new ResumableMD5();
+        }
+
         if (filePartsState != null) {
             if (isInfo()) {
                 logInfo("Resuming download " + getFileInfo().toDetailString() + " - already got "
@@ -1009,7 +1188,9 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 break;
             case WAITING_FOR_UPLOAD_READY :
                 if (isNeedingFilePartsRecord()
-                    && Util.useDeltaSync(getController(), download))
+                    && Util.useDeltaSync(getController(), download)
+                    && tm.getDeltaSyncAdvisor().isDeltaSyncFaster(
+                        download.getPartner().isOnLAN()))
                 {
                     setState(InternalState.WAITING_FOR_FILEPARTSRECORD);
                     requestFilePartsRecord(download);
@@ -1092,6 +1273,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 }
                 setState(InternalState.MATCHING_AND_COPYING);
                 remotePartRecord = record;
+                tempFileDigest = new ResumableMD5();
 
                 tm.doWork(new Runnable() {
                     public void run() {
@@ -1201,6 +1383,13 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             if (remotePartRecord != null) {
                 list.add(remotePartRecord);
             }
+            if (tempFileDigest != null) {
+                list.add(tempFileDigest);
+                byte[] sample = sampleTempFile(tempFileDigest.getLength());
+                if (sample != null) {
+                    list.add(sample);
+                }
+            }
             out.writeObject(list);
         }
     }
@@ -19,14 +19,29 @@
 */
 package de.dal33t.powerfolder.transfer;
 
+import java.util.Comparator;
 import java.util.Date;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+import de.dal33t.powerfolder.transfer.TransferPriorities.TransferPriority;
 
 /**
  * Convenient class to limit bandwidth (for example for streams). A
- * BandwidthLimiter starts out with 0 available and doesn't increase that. So it
- * needs some kind of "provider" which sets the amount of available bandwidth.
- * The BandwidthProvider class is an example of such. Instances start with no
- * limit. $Id$
+ * BandwidthLimiter is a token bucket: It starts out with 0 available and
+ * doesn't increase that unless a rate is set. The BandwidthProvider class sets
+ * the rate, the bucket then refills itself in millisecond steps whenever
+ * bandwidth is requested. Instances start with no limit.
+ * <p>
+ * Limiters can be nested: A limiter with a parent only grants bandwidth that
+ * was granted by the parent too. If requests have to wait, the waiting
+ * requests are served by start-time fair queuing. Each child limiter is a flow
+ * at its parent which gets a share according to its weight. $Id$
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 1.3 $
@@ -44,28 +59,137 @@ public class BandwidthLimiter {
     public static final BandwidthLimiter LAN_INPUT_BANDWIDTH_LIMITER =
             new BandwidthLimiter(BandwidthLimiterInfo.LAN_INPUT);
 
+    /**
+     * The smallest step the bucket gets refilled in.
+     */
+    private static final long REFILL_GRANULARITY = TimeUnit.MILLISECONDS
+        .toNanos(1);
+
+    /**
+     * The longest time a waiting request sleeps before checking again.
+     */
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS
+        .toNanos(BandwidthProvider.PERIOD);
+
+    /**
+     * The weight of a limiter is recalculated after this time.
+     */
+    private static final long WEIGHT_VALIDITY = TimeUnit.MILLISECONDS
+        .toNanos(BandwidthProvider.PERIOD);
+
+    /**
+     * Requests are accounted with at most this size for fair queuing.
+     */
+    private static final long MAX_TAGGED_SIZE = 1024 * 1024;
+
     /**
      * The amount of bandwidth initially set by setAvailable().
      * This is used to create stats and is NOT modified by bandwidth requests.
      */
-    private long initialAvailable = UNLIMITED;
+    private volatile long initialAvailable = UNLIMITED;
 
     /**
      * The amount of bandwidth remaining.
      */
-    private long available = UNLIMITED;
+    private final AtomicLong available = new AtomicLong(UNLIMITED);
+
+    /**
+     * Bytes per second the bucket is refilled with. 0 = no refill.
+     */
+    private volatile long rate;
+
+    /**
+     * The maximum amount the bucket is refilled to.
+     */
+    private volatile long capacity;
+
+    /**
+     * System.nanoTime() up to which the bucket is refilled.
+     */
+    private final AtomicLong refilledUntil = new AtomicLong(System.nanoTime());
+
+    /**
+     * The bandwidth granted since the last stat.
+     */
+    private final LongAdder consumed = new LongAdder();
+
+    private final PriorityBlockingQueue<Waiter> waiters = new PriorityBlockingQueue<>(
+        11, Comparator.comparingLong(Waiter::getStartTag).thenComparingLong(
+            Waiter::getSequence));
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong waiterSequence = new AtomicLong();
+    private final AtomicLong virtualTime = new AtomicLong();
+
+    /**
+     * The finish tag of the last request of this limiter at its parent.
+     */
+    private volatile long finishTag;
 
-    private final Object monitor = new Object();
     private final BandwidthLimiterInfo id;
+    private final BandwidthLimiter parent;
+    private final IntSupplier weight;
+    private volatile int cachedWeight;
+    /**
+     * System.nanoTime() up to which the cached weight is used.
+     */
+    private volatile long weightValidUntil = System.nanoTime();
 
     public BandwidthLimiter(BandwidthLimiterInfo id) {
+        this(id, null, null);
+    }
+
+    /**
+     * Creates a limiter which takes its bandwidth from a parent limiter. The
+     * limiter itself starts with no limit.
+     *
+     * @param id
+     * @param parent
+     *            the limiter to take the bandwidth from. null for none.
+     * @param weight
+     *            supplies the share of this limiter at the parent. Usually the
+     *            weight of a {@link TransferPriority}. null for the weight of
+     *            {@link TransferPriority#NORMAL}.
+     */
+    public BandwidthLimiter(BandwidthLimiterInfo id, BandwidthLimiter parent,
+        IntSupplier weight)
+    {
         this.id = id;
+        this.parent = parent;
+        this.weight = weight;
     }
 
     public BandwidthLimiterInfo getId() {
         return id;
     }
 
+    /**
+     * @return the limiter this one takes its bandwidth from or null.
+     */
+    public BandwidthLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * The weight gets requested on every waiting request. The supplier is
+     * asked at most once per {@link BandwidthProvider#PERIOD}.
+     *
+     * @return the current share of this limiter at its parent.
+     */
+    public int getWeight() {
+        if (weight == null) {
+            return TransferPriority.NORMAL.getWeight();
+        }
+        long now = System.nanoTime();
+        int w = cachedWeight;
+        if (w > 0 && now - weightValidUntil < 0) {
+            return w;
+        }
+        w = Math.max(1, weight.getAsInt());
+        cachedWeight = w;
+        weightValidUntil = now + WEIGHT_VALIDITY;
+        return w;
+    }
+
     /**
      * Requests bandwidth on a medium. Blocks until bandwidth is available.
      *
@@ -75,25 +199,164 @@ public class BandwidthLimiter {
      */
     public long requestBandwidth(long size)
         throws InterruptedException
+    {
+        return acquire(size, null);
+    }
+
+    private long acquire(long size, BandwidthLimiter flow)
+        throws InterruptedException
+    {
+        long granted = take(size, flow);
+        if (parent != null) {
+            long passed = parent.acquire(granted, this);
+            release(granted - passed);
+            granted = passed;
+        }
+        return granted;
+    }
+
+    /**
+     * Takes bandwidth from this bucket only. Requests are served directly as
+     * long as nobody is waiting, otherwise in order of their start tags.
+     */
+    private long take(long size, BandwidthLimiter flow)
+        throws InterruptedException
     {
         if (isUnlimited()) {
             return size;
         }
-    	synchronized (monitor) {
-            while (available == 0) {
-                monitor.wait();
+        if (waiting.get() == 0) {
+            long amount = tryTake(size);
+            if (amount > 0) {
+                return amount;
+            }
+        }
+
+        Waiter waiter = new Waiter(startTag(size, flow),
+            waiterSequence.incrementAndGet());
+        waiting.incrementAndGet();
+        waiters.add(waiter);
+        try {
+            while (true) {
+                if (waiters.peek() == waiter) {
+                    long amount = tryTake(size);
+                    if (amount > 0) {
+                        virtualTime.accumulateAndGet(waiter.startTag,
+                            Math::max);
+                        return amount;
+                    }
+                    LockSupport.parkNanos(this, nanosUntilAvailable(size));
+                } else {
+                    LockSupport.parkNanos(this, MAX_WAIT);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
             }
-	        long amount = available < 0 ? size : Math.min(available, size);
-	        if (available >= 0) {
-	            available -= amount;
-	        }
-	        return amount;
-		}
+        } finally {
+            waiters.remove(waiter);
+            waiting.decrementAndGet();
+            signal();
+        }
+    }
+
+    private long tryTake(long size) {
+        refill();
+        while (true) {
+            long avail = available.get();
+            if (avail == UNLIMITED) {
+                return size;
+            }
+            if (avail <= 0) {
+                return 0;
+            }
+            long amount = Math.min(avail, size);
+            if (available.compareAndSet(avail, avail - amount)) {
+                consumed.add(amount);
+                return amount;
+            }
+        }
+    }
+
+    /**
+     * Adds the bandwidth accumulated since the last refill. Only the thread
+     * which moves the refill time forward adds the bandwidth.
+     */
+    private void refill() {
+        long r = rate;
+        if (r <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = refilledUntil.get();
+        long elapsed = now - last;
+        if (elapsed < REFILL_GRANULARITY) {
+            return;
+        }
+        long until;
+        long amount;
+        if (elapsed >= MAX_WAIT) {
+            // Bucket is full anyway
+            until = now;
+            amount = capacity;
+        } else {
+            amount = elapsed * r / TimeUnit.SECONDS.toNanos(1);
+            if (amount == 0) {
+                return;
+            }
+            // Keep the remainder for the next refill
+            until = last + amount * TimeUnit.SECONDS.toNanos(1) / r;
+        }
+        if (!refilledUntil.compareAndSet(last, until)) {
+            return;
+        }
+        long max = capacity;
+        available.accumulateAndGet(amount, (avail, add) -> avail < 0
+            ? avail
+            : Math.max(avail, Math.min(max, avail + add)));
+    }
+
+    private long nanosUntilAvailable(long size) {
+        long r = rate;
+        if (r <= 0) {
+            return MAX_WAIT;
+        }
+        long needed = Math.min(size, Math.max(1, capacity));
+        long nanos = needed * TimeUnit.SECONDS.toNanos(1) / r;
+        return Math.max(REFILL_GRANULARITY, Math.min(MAX_WAIT, nanos));
+    }
+
+    /**
+     * Start-time fair queuing: A request of a flow starts when the previous
+     * request of the flow finished, but not before the current virtual time.
+     */
+    private long startTag(long size, BandwidthLimiter flow) {
+        long start = virtualTime.get();
+        if (flow == null) {
+            return start;
+        }
+        start = Math.max(start, flow.finishTag);
+        flow.finishTag = start + Math.min(size, MAX_TAGGED_SIZE)
+            / flow.getWeight();
+        return start;
+    }
+
+    /**
+     * Wakes the first waiting request.
+     */
+    private void signal() {
+        if (waiting.get() == 0) {
+            return;
+        }
+        Waiter next = waiters.peek();
+        if (next != null) {
+            LockSupport.unpark(next.thread);
+        }
     }
 
     /**
      * Sets the amount of available "bandwidth". As a side-effect this call will
-     * wake Threads waiting in requestBandwidth().
+     * wake the first Thread waiting in requestBandwidth().
      *
      * @param amount
      *            the amount to set available. An amount < 0 states that there
@@ -102,25 +365,66 @@ public class BandwidthLimiter {
      * and how much was left over.
      */
     public BandwidthStat setAvailable(long amount) {
-        BandwidthStat bandwidthStat;
+        // Create a stat of how much bandwidth there was initially
+        // and how much there is now.
+        BandwidthStat bandwidthStat = new BandwidthStat(new Date(), id,
+            initialAvailable, available.get());
 
-        synchronized (monitor) {
-            // Create a stat of how much bandwidth there was initially
-            // and how much there is now.
-            bandwidthStat = new BandwidthStat(new Date(), id,
-                    initialAvailable, available);
+        // Set the new amount
+        initialAvailable = amount;
+        available.set(amount < 0 ? UNLIMITED : amount);
+        consumed.reset();
 
-            // Set the new amount
-            initialAvailable = amount;
-            available = amount;
+        // Let the next one know.
+        signal();
+        return bandwidthStat;
+    }
 
-            // Let everyone know.
-            if (available != 0) {
-                monitor.notifyAll();
+    /**
+     * Sets the rate the bucket is refilled with. The bucket holds at most the
+     * bandwidth of one {@link BandwidthProvider#PERIOD}.
+     *
+     * @param bps
+     *            the bytes per second. 0 to stop the refill,
+     *            {@link #UNLIMITED} for no limit.
+     */
+    void setRate(long bps) {
+        if (bps > 0 ? bps == rate && !isUnlimited() : bps < 0 && rate == 0
+            && isUnlimited())
+        {
+            // Unchanged
+            return;
+        }
+        refill();
+        if (bps < 0) {
+            rate = 0;
+            available.set(UNLIMITED);
+        } else {
+            long newCapacity = bps * BandwidthProvider.PERIOD / 1000;
+            capacity = newCapacity;
+            refilledUntil.set(System.nanoTime());
+            rate = bps;
+            if (bps > 0) {
+                available.getAndUpdate(avail -> avail < 0 ? newCapacity : Math
+                    .min(avail, newCapacity));
             }
-		}
+        }
+        signal();
+    }
 
-        return bandwidthStat;
+    /**
+     * @return the stat of the period since the last call.
+     */
+    BandwidthStat pollStat() {
+        long spent = consumed.sumThenReset();
+        long r = rate;
+        if (r > 0 && !isUnlimited()) {
+            long initial = r * BandwidthProvider.PERIOD / 1000;
+            return new BandwidthStat(new Date(), id, initial, Math.max(0,
+                initial - spent));
+        }
+        return new BandwidthStat(new Date(), id, initialAvailable,
+            available.get());
     }
 
     /**
@@ -129,9 +433,8 @@ public class BandwidthLimiter {
      * @return the "bandwidth"
      */
     public long getAvailable() {
-    	synchronized (monitor) {
-            return available;
-		}
+        refill();
+        return available.get();
     }
 
     /**
@@ -142,50 +445,53 @@ public class BandwidthLimiter {
      * @param amount
      */
     public void returnAvailable(int amount) {
+        release(amount);
+        if (parent != null) {
+            parent.returnAvailable(amount);
+        }
+    }
+
+    private void release(long amount) {
         if (isUnlimited()) {
             return;
         }
         if (amount == 0) {
             return;
         }
-    	synchronized (monitor) {
-            if (available >= 0) {
-                available += amount;
-            }
-		}
+        available.accumulateAndGet(amount, (avail, add) -> avail < 0
+            ? avail
+            : avail + add);
+        consumed.add(-amount);
+        signal();
     }
 
     private boolean isUnlimited() {
-        return available == UNLIMITED;
+        return available.get() == UNLIMITED;
     }
 
     @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
-        }
-        if (obj == null || getClass() != obj.getClass()) {
-            return false;
-        }
+    public String toString() {
+        return "BandwidthLimiter{" +
+                "id=" + id +
+                '}';
+    }
 
-        BandwidthLimiter that = (BandwidthLimiter) obj;
+    private static class Waiter {
+        private final Thread thread = Thread.currentThread();
+        private final long startTag;
+        private final long sequence;
 
-        if (id != that.id) {
-            return false;
+        Waiter(long startTag, long sequence) {
+            this.startTag = startTag;
+            this.sequence = sequence;
         }
 
-        return true;
-    }
-
-    @Override
-    public int hashCode() {
-        return id != null ? id.hashCode() : 0;
-    }
+        long getStartTag() {
+            return startTag;
+        }
 
-    @Override
-    public String toString() {
-        return "BandwidthLimiter{" +
-                "id=" + id +
-                '}';
+        long getSequence() {
+            return sequence;
+        }
     }
 }
@@ -32,16 +32,17 @@ import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.logging.Loggable;
 
 /**
- * A BandwidthProvider can be used to periodically assign BandwidthLimiters a
- * given amount of bandwidth. It uses a one Thread solution to perform this.
- * $Id$
+ * A BandwidthProvider can be used to assign BandwidthLimiters a given amount
+ * of bandwidth per second. The limiters refill themselves, the provider only
+ * collects the bandwidth stats once per period. It uses a one Thread solution
+ * to perform this. $Id$
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 1.5 $
  */
 public class BandwidthProvider extends Loggable {
 
-    // ms between bandwidth "pushs"
+    // ms between bandwidth stats. Limiters hold the bandwidth of one period.
     public static final int PERIOD = 1000;
 
     private final Map<BandwidthLimiter, Long> limits = new WeakHashMap<BandwidthLimiter, Long>();
@@ -64,13 +65,14 @@ public class BandwidthProvider extends Loggable {
                         continue;
                     }
 
-                    // Set new limit and distribute the stat from the
+                    // Re-apply the limit and distribute the stat from the
                     // previous period.
                     Long value = me.getValue();
-                    BandwidthStat stat = limiter.setAvailable(value > 0
-                        ? PERIOD * value / 1000
+                    limiter.setRate(value > 0
+                        ? value
                         : BandwidthLimiter.UNLIMITED);
-                    statListenerSupport.handleBandwidthStat(stat);
+                    statListenerSupport.handleBandwidthStat(limiter
+                        .pollStat());
                 }
             }
         } , 0, PERIOD, TimeUnit.MILLISECONDS);
@@ -97,6 +99,7 @@ public class BandwidthProvider extends Loggable {
             synchronized (limits) {
                 limits.put(limiter, bps);
             }
+            limiter.setRate(bps > 0 ? bps : BandwidthLimiter.UNLIMITED);
             logFiner("Bandwidth limiter " + limiter + " initalized, max CPS: " + bps);
         }
     }
@@ -130,6 +133,7 @@ public class BandwidthProvider extends Loggable {
         synchronized (limits) {
             limits.remove(limiter);
         }
+        limiter.setRate(0);
     }
 
     public void addBandwidthStatListener(BandwidthStatsListener listener) {
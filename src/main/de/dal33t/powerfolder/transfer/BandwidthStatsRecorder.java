@@ -34,11 +34,13 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
 import de.dal33t.powerfolder.util.DateUtil;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
 
 /**
  * Class to allow the transfer manager to record bandwidth stats.
@@ -46,10 +48,11 @@ import de.dal33t.powerfolder.util.Reject;
 public class BandwidthStatsRecorder extends PFComponent implements BandwidthStatsListener {
 
     /**
-     * Map of stats by info-hour.
+     * Map of stats by info-hour. Updated without locks, so reading the stats
+     * never blocks the bandwidth provider.
      */
-    private final Map<StatKey, StatValue> coalescedStats =
-            new HashMap<StatKey, StatValue>();
+    private final Map<StatKey, StatValue> coalescedStats = Util
+        .createConcurrentHashMap();
 
     /**
      * Constructor.
@@ -93,21 +96,14 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
 
         StatKey key = new StatKey(stat.getInfo(), stat.getDate());
 
-        // Synchronize on the map so that we do not get concurrent updates to
-        // stats.
-        synchronized (coalescedStats) {
-            StatValue value = coalescedStats.get(key);
-
-            // Create a new entry if required.
-            if (value == null) {
-                value = new StatValue();
-                coalescedStats.put(key, value);
-            }
-
-            // Update the stat data.
-            value.update(stat.getInitialBandwidth(),
-                    stat.getResidualBandwidth());
+        // Create a new entry if required.
+        StatValue value = coalescedStats.get(key);
+        if (value == null) {
+            value = coalescedStats.computeIfAbsent(key, k -> new StatValue());
         }
+
+        // Update the stat data.
+        value.update(stat.getInitialBandwidth(), stat.getResidualBandwidth());
     }
 
     /**
@@ -116,15 +112,13 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
     public void pruneStats(Date date) {
 
         int prunedCount = 0;
-        synchronized (coalescedStats) {
-            for (Iterator<StatKey> iterator =
-                    coalescedStats.keySet().iterator();
-                 iterator.hasNext();) {
-                StatKey statKey = iterator.next();
-                if (statKey.date.before(date)) {
-                    iterator.remove();
-                    prunedCount++;
-                }
+        for (Iterator<StatKey> iterator = coalescedStats.keySet().iterator(); iterator
+            .hasNext();)
+        {
+            StatKey statKey = iterator.next();
+            if (statKey.date.before(date)) {
+                iterator.remove();
+                prunedCount++;
             }
         }
         logFiner("Pruned " + prunedCount + " stats.");
@@ -136,20 +130,15 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
      * @return
      */
     public Set<CoalescedBandwidthStat> getBandwidthStats() {
-        synchronized (coalescedStats) {
-            Set<CoalescedBandwidthStat> stats = new TreeSet<CoalescedBandwidthStat>();
-            for (Map.Entry<StatKey, StatValue> entry :
-                    coalescedStats.entrySet()) {
-                CoalescedBandwidthStat stat = new CoalescedBandwidthStat(entry.getKey().getDate(),
-                        entry.getKey().getInfo(),
-                        entry.getValue().getInitial(),
-                        entry.getValue().getResidual(),
-                        entry.getValue().getPeak(),
-                        entry.getValue().getCount());
-                stats.add(stat);
-            }
-            return stats;
+        Set<CoalescedBandwidthStat> stats = new TreeSet<CoalescedBandwidthStat>();
+        for (Map.Entry<StatKey, StatValue> entry : coalescedStats.entrySet()) {
+            CoalescedBandwidthStat stat = new CoalescedBandwidthStat(entry
+                .getKey().getDate(), entry.getKey().getInfo(), entry
+                .getValue().getInitial(), entry.getValue().getResidual(),
+                entry.getValue().getPeak(), entry.getValue().getCount());
+            stats.add(stat);
         }
+        return stats;
     }
 
     public boolean fireInEventDispatchThread() {
@@ -157,7 +146,7 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
     }
 
     public void persistStats() {
-        synchronized (coalescedStats) {
+        synchronized (this) {
             String filename = getController().getConfigName() + ".stats";
             Path file = Controller.getMiscFilesLocation().resolve(filename);
             boolean interrupted = Thread.interrupted();
@@ -165,7 +154,9 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
                 new BufferedOutputStream(Files.newOutputStream(file)))) {
                 logInfo("There are " + coalescedStats.size()
                     + " stats to persist.");
-                outputStream.writeUnshared(coalescedStats);
+                // Stored as plain map, as always
+                outputStream.writeUnshared(new HashMap<StatKey, StatValue>(
+                    coalescedStats));
             } catch (FileNotFoundException e) {
                 logSevere("FileNotFoundException", e);
             } catch (IOException e) {
@@ -248,16 +239,25 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
     }
 
     /**
-     * Inner class to hold cumulative stat details.
+     * Inner class to hold cumulative stat details. Updated lock-free.
      */
     private static class StatValue implements Serializable {
 
         private static final long serialVersionUID = 1L;
 
-        private long initial;
-        private long residual;
-        private long peak;
-        private long count;
+        private static final AtomicLongFieldUpdater<StatValue> INITIAL = AtomicLongFieldUpdater
+            .newUpdater(StatValue.class, "initial");
+        private static final AtomicLongFieldUpdater<StatValue> RESIDUAL = AtomicLongFieldUpdater
+            .newUpdater(StatValue.class, "residual");
+        private static final AtomicLongFieldUpdater<StatValue> PEAK = AtomicLongFieldUpdater
+            .newUpdater(StatValue.class, "peak");
+        private static final AtomicLongFieldUpdater<StatValue> COUNT = AtomicLongFieldUpdater
+            .newUpdater(StatValue.class, "count");
+
+        private volatile long initial;
+        private volatile long residual;
+        private volatile long peak;
+        private volatile long count;
 
         public long getInitial() {
             return initial;
@@ -278,15 +278,16 @@ public class BandwidthStatsRecorder extends PFComponent implements BandwidthStat
         public void update(long initialValue, long residualValue) {
             // Check > 0 to fix for the initial UNLIMITED (-1) stat values.
             if (initialValue >= 0) {
-                initial += initialValue;
+                INITIAL.addAndGet(this, initialValue);
             }
             if (residualValue >= 0) {
-                residual += residualValue;
+                RESIDUAL.addAndGet(this, residualValue);
             }
             if (initialValue >= 0 && residualValue >= 0) {
-                peak = Math.max(peak, initialValue - residualValue);
+                PEAK.accumulateAndGet(this, initialValue - residualValue,
+                    Math::max);
             }
-            count++;
+            COUNT.incrementAndGet(this);
         }
 
         public String toString() {
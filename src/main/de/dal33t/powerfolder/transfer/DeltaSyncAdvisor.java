@@ -0,0 +1,111 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides between delta sync and a plain download based on measured
+ * throughput.
+ * <p>
+ * Delta sync has to read the complete local file before the first missing
+ * part can be requested. If the local file can be matched slower than the
+ * file downloads from the same kind of network, a plain download is faster
+ * even if all parts match. Every {@link #PROBE_INTERVAL}th decision still
+ * allows delta sync to keep the match rate measurement up to date.
+ *
+ * @author sprajc
+ */
+final class DeltaSyncAdvisor {
+    /** Downloads smaller than this are not measured */
+    static final long MIN_MEASURE_SIZE = 4L * 1024 * 1024;
+    static final int PROBE_INTERVAL = 20;
+
+    /** Weight of a new measurement in the moving averages */
+    private static final double WEIGHT = 0.3;
+
+    private double matchCPS = -1;
+    private double lanCPS = -1;
+    private double internetCPS = -1;
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * @param bytesPerSecond
+     *            the rate a local file was matched at.
+     */
+    synchronized void matchMeasured(double bytesPerSecond) {
+        if (bytesPerSecond > 0) {
+            matchCPS = average(matchCPS, bytesPerSecond);
+        }
+    }
+
+    /**
+     * @param onLAN
+     *            if the source was on LAN
+     * @param size
+     *            the size of the downloaded file
+     * @param bytesPerSecond
+     *            the average rate of a plain download
+     */
+    synchronized void downloadMeasured(boolean onLAN, long size,
+        double bytesPerSecond)
+    {
+        if (size < MIN_MEASURE_SIZE || bytesPerSecond <= 0) {
+            return;
+        }
+        if (onLAN) {
+            lanCPS = average(lanCPS, bytesPerSecond);
+        } else {
+            internetCPS = average(internetCPS, bytesPerSecond);
+        }
+    }
+
+    /**
+     * @param onLAN
+     *            if the source is on LAN
+     * @return true if delta sync is expected to be faster or there are no
+     *         measurements yet.
+     */
+    boolean isDeltaSyncFaster(boolean onLAN) {
+        double match;
+        double download;
+        synchronized (this) {
+            match = matchCPS;
+            download = onLAN ? lanCPS : internetCPS;
+        }
+        if (match <= 0 || download <= 0 || match > download) {
+            return true;
+        }
+        return rejected.incrementAndGet() % PROBE_INTERVAL == 0;
+    }
+
+    private static double average(double current, double measured) {
+        if (current <= 0) {
+            return measured;
+        }
+        return current * (1 - WEIGHT) + measured * WEIGHT;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DeltaSyncAdvisor [match=" + (long) matchCPS + " B/s, lan="
+            + (long) lanCPS + " B/s, internet=" + (long) internetCPS + " B/s]";
+    }
+}
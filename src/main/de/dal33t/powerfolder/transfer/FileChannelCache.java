@@ -0,0 +1,376 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Shares read-only {@link FileChannel}s of files being uploaded. All uploads of
+ * the same file (e.g. to several members of a swarm) read through one open
+ * channel. Channels must only be accessed by positional reads/transfers since
+ * the position is shared.
+ * <p>
+ * Channels are cached per path, size, modification date and file key. A file
+ * that was replaced on disk gets a new channel while the uploads of the old
+ * one keep reading the old channel until they release it.
+ * <p>
+ * The underlying channel gets closed by the JVM if a thread is interrupted
+ * while reading from it. The shared channel then transparently reopens the
+ * file for the other users. Only the interrupted thread sees the
+ * {@link ClosedByInterruptException}.
+ * <p>
+ * A channel is closed when the last upload released it.
+ *
+ * @author sprajc
+ */
+public class FileChannelCache extends Loggable {
+    private final Map<Key, SharedChannel> channels = new HashMap<>();
+
+    /**
+     * Opens the channel of the file or returns the already open one. Every
+     * call has to be followed by {@link #release(FileChannel)}.
+     *
+     * @param file
+     * @return the channel opened for reading.
+     * @throws IOException
+     */
+    public FileChannel acquire(Path file) throws IOException {
+        Reject.ifNull(file, "File is null");
+        Key key = new Key(file,
+            Files.readAttributes(file, BasicFileAttributes.class));
+        synchronized (channels) {
+            SharedChannel channel = channels.get(key);
+            if (channel == null) {
+                channel = new SharedChannel(key);
+                channels.put(key, channel);
+            }
+            channel.users++;
+            if (isFiner()) {
+                logFiner("Acquired channel of " + file + ", users: "
+                    + channel.users);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Releases a channel acquired by {@link #acquire(Path)}. Closes the
+     * channel if not longer used.
+     *
+     * @param channel
+     *            the channel returned by {@link #acquire(Path)}
+     */
+    public void release(FileChannel channel) {
+        if (!(channel instanceof SharedChannel)) {
+            return;
+        }
+        SharedChannel shared = (SharedChannel) channel;
+        synchronized (channels) {
+            if (shared.users <= 0 || --shared.users > 0) {
+                return;
+            }
+            if (channels.get(shared.key) == shared) {
+                channels.remove(shared.key);
+            }
+        }
+        close(shared);
+    }
+
+    /**
+     * @return the number of open channels.
+     */
+    public int size() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    /**
+     * Closes all channels.
+     */
+    public void shutdown() {
+        List<SharedChannel> open;
+        synchronized (channels) {
+            open = new ArrayList<>(channels.values());
+            channels.clear();
+        }
+        for (SharedChannel channel : open) {
+            close(channel);
+        }
+    }
+
+    private void close(SharedChannel channel) {
+        try {
+            if (isFiner()) {
+                logFiner("Closing channel of " + channel.key.file);
+            }
+            channel.close();
+        } catch (IOException e) {
+            logWarning("Unable to close channel of " + channel.key.file
+                + ". " + e);
+        }
+    }
+
+    /**
+     * Identifies one version of a file on disk.
+     */
+    private static final class Key {
+        private final Path file;
+        private final long size;
+        private final long lastModified;
+        private final Object fileKey;
+
+        private Key(Path file, BasicFileAttributes attrs) {
+            this.file = file;
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+            this.fileKey = attrs.fileKey();
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() ^ (int) (size ^ lastModified);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return size == other.size && lastModified == other.lastModified
+                && file.equals(other.file)
+                && Objects.equals(fileKey, other.fileKey);
+        }
+    }
+
+    /**
+     * Read-only channel shared by several uploads. Reopens the underlying
+     * channel of the same file version if it was closed by the interrupt of
+     * another thread.
+     */
+    private static final class SharedChannel extends FileChannel {
+        private final Key key;
+        /** Guarded by the channels map of the cache */
+        private int users;
+        private volatile FileChannel delegate;
+
+        private SharedChannel(Key key) throws IOException {
+            this.key = key;
+            this.delegate = open(key);
+        }
+
+        private static FileChannel open(Key key) throws IOException {
+            FileChannel channel = FileChannel.open(key.file,
+                StandardOpenOption.READ);
+            try {
+                Key current = new Key(key.file, Files.readAttributes(
+                    key.file, BasicFileAttributes.class));
+                if (!key.equals(current)) {
+                    throw new IOException("File has been changed: "
+                        + key.file);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+
+        /**
+         * @param failed
+         *            the underlying channel that was found closed
+         * @param e
+         *            the exception of the failed access
+         * @return the channel to retry with
+         * @throws ClosedChannelException
+         *             if this channel was closed or the current thread has
+         *             been interrupted.
+         */
+        private FileChannel reopen(FileChannel failed, ClosedChannelException e)
+            throws IOException
+        {
+            if (e instanceof ClosedByInterruptException || !isOpen()) {
+                throw e;
+            }
+            synchronized (this) {
+                if (!isOpen()) {
+                    throw e;
+                }
+                if (delegate == failed) {
+                    delegate = open(key);
+                }
+                return delegate;
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            FileChannel channel = delegate;
+            while (true) {
+                try {
+                    return channel.read(dst, position);
+                } catch (ClosedChannelException e) {
+                    channel = reopen(channel, e);
+                }
+            }
+        }
+
+        @Override
+        public long transferTo(long position, long count,
+            WritableByteChannel target) throws IOException
+        {
+            FileChannel channel = delegate;
+            while (true) {
+                try {
+                    return channel.transferTo(position, count, target);
+                } catch (ClosedChannelException e) {
+                    channel = reopen(channel, e);
+                }
+            }
+        }
+
+        @Override
+        public long size() throws IOException {
+            FileChannel channel = delegate;
+            while (true) {
+                try {
+                    return channel.size();
+                } catch (ClosedChannelException e) {
+                    channel = reopen(channel, e);
+                }
+            }
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size)
+            throws IOException
+        {
+            FileChannel channel = delegate;
+            while (true) {
+                try {
+                    return channel.map(mode, position, size);
+                } catch (ClosedChannelException e) {
+                    channel = reopen(channel, e);
+                }
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length)
+            throws IOException
+        {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position,
+            long count)
+        {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared)
+            throws IOException
+        {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared)
+            throws IOException
+        {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            synchronized (this) {
+                delegate.close();
+            }
+        }
+    }
+}
@@ -19,9 +19,13 @@
 */
 package de.dal33t.powerfolder.transfer;
 
+import java.io.EOFException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * $Id$
@@ -29,8 +33,19 @@ import java.io.OutputStream;
  * @version $Revision: 1.1 $
  */
 public class LimitedOutputStream extends FilterOutputStream implements LimitedStream {
+    /** Size of the buffer used by {@link #transferFrom} */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
     protected BandwidthLimiter limiter;
 
+    /**
+     * The channel of the underlying stream. If set file data is transferred
+     * directly into it.
+     */
+    private WritableByteChannel targetChannel;
+    /** Re-used for all {@link #transferFrom} calls of this stream */
+    private byte[] transferBuffer;
+
     public LimitedOutputStream(BandwidthLimiter limiter, OutputStream arg0) {
         super(arg0);
         this.limiter = limiter;
@@ -68,6 +83,81 @@ public class LimitedOutputStream extends FilterOutputStream implements LimitedSt
     }
 
 
+    /**
+     * Writes a region of a file into the stream without copying it into a
+     * message first. Uses {@link FileChannel#transferTo} if a target channel is
+     * set or a re-used transfer buffer otherwise. Bandwidth is accounted as
+     * with {@link #write(byte[], int, int, boolean)}.
+     * <p>
+     * Not thread-safe, callers have to synchronize writes on this stream.
+     * The position of the source channel is not changed.
+     *
+     * @param src
+     *            the channel to read from
+     * @param position
+     *            the position of the region in the file
+     * @param count
+     *            the number of bytes to transfer
+     * @param unlimited
+     *            true to bypass the bandwidth limiter
+     * @throws IOException
+     */
+    public void transferFrom(FileChannel src, long position, long count,
+        boolean unlimited) throws IOException
+    {
+        while (count > 0) {
+            long allowed = count;
+            if (!unlimited) {
+                try {
+                    allowed = limiter.requestBandwidth(count);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            transferFrom0(src, position, allowed);
+            position += allowed;
+            count -= allowed;
+        }
+    }
+
+    private void transferFrom0(FileChannel src, long position, long count)
+        throws IOException
+    {
+        while (count > 0) {
+            long written;
+            if (targetChannel != null) {
+                written = src.transferTo(position, count, targetChannel);
+                if (written <= 0 && position >= src.size()) {
+                    throw new EOFException("Unexpected end of file at "
+                        + position);
+                }
+            } else {
+                if (transferBuffer == null) {
+                    transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+                }
+                int len = (int) Math.min(count, transferBuffer.length);
+                written = src.read(ByteBuffer.wrap(transferBuffer, 0, len),
+                    position);
+                if (written < 0) {
+                    throw new EOFException("Unexpected end of file at "
+                        + position);
+                }
+                out.write(transferBuffer, 0, (int) written);
+            }
+            position += written;
+            count -= written;
+        }
+    }
+
+    /**
+     * @param targetChannel
+     *            the channel of the underlying stream. Must be in blocking
+     *            mode. null to write through the stream.
+     */
+    public void setTargetChannel(WritableByteChannel targetChannel) {
+        this.targetChannel = targetChannel;
+    }
+
     @Override
     public void write(int arg0) throws IOException {
         try {
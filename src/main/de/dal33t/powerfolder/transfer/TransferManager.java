@@ -40,6 +40,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -80,6 +81,7 @@ import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestDownload;
 import de.dal33t.powerfolder.message.TransferStatus;
 import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.transfer.TransferPriorities.TransferPriority;
 import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.VolatileFileRecordProvider;
 import de.dal33t.powerfolder.util.Filter;
@@ -159,6 +161,15 @@ public class TransferManager extends PFComponent {
     /** Threadpool for Upload Threads */
     private ExecutorService threadPool;
 
+    /** The open files of the uploads */
+    private final FileChannelCache fileChannelCache = new FileChannelCache();
+
+    /**
+     * Bounded pool to match segments of big files for delta sync.
+     */
+    private ExecutorService deltaMatchPool;
+    private final DeltaSyncAdvisor deltaSyncAdvisor = new DeltaSyncAdvisor();
+
     /** the counter for uploads (effecitve) */
     private final TransferCounter uploadCounter;
     /** the counter for downloads (effecitve) */
@@ -289,6 +300,9 @@ public class TransferManager extends PFComponent {
 
         threadPool = new WrapperExecutorService(
             Executors.newCachedThreadPool(new NamedThreadFactory("TMThread-")));
+        deltaMatchPool = Executors.newFixedThreadPool(
+            getDeltaSyncMaxMatchers(),
+            new NamedThreadFactory("DeltaMatcher-"));
 
         myThread = new Thread(new TransferChecker(), "Transfer manager");
         myThread.start();
@@ -395,12 +409,16 @@ public class TransferManager extends PFComponent {
         if (threadPool != null) {
             threadPool.shutdownNow();
         }
+        if (deltaMatchPool != null) {
+            deltaMatchPool.shutdownNow();
+        }
 
         // shutdown active uploads
         for (Upload upload : activeUploads) {
             upload.abort();
             upload.shutdown();
         }
+        fileChannelCache.shutdown();
 
         bandwidthProvider.shutdown();
 
@@ -461,18 +479,87 @@ public class TransferManager extends PFComponent {
         return bandwidthProvider;
     }
 
+    /**
+     * @param handler
+     * @return a new limiter for the output of the connection. Takes its
+     *         bandwidth from the shared LAN or WAN limiter, weighted by the
+     *         priorities of the uploads to the member.
+     */
     public BandwidthLimiter getOutputLimiter(ConnectionHandler handler) {
-        if (handler.isOnLAN()) {
-            return sharedLANOutputHandler;
-        }
-        return sharedWANOutputHandler;
+        BandwidthLimiter shared = handler.isOnLAN()
+            ? sharedLANOutputHandler
+            : sharedWANOutputHandler;
+        return new BandwidthLimiter(shared.getId(), shared,
+            () -> getUploadWeight(handler.getMember()));
     }
 
+    /**
+     * @param handler
+     * @return a new limiter for the input of the connection. Takes its
+     *         bandwidth from the shared LAN or WAN limiter, weighted by the
+     *         priorities of the downloads from the member.
+     */
     public BandwidthLimiter getInputLimiter(ConnectionHandler handler) {
-        if (handler.isOnLAN()) {
-            return sharedLANInputHandler;
+        BandwidthLimiter shared = handler.isOnLAN()
+            ? sharedLANInputHandler
+            : sharedWANInputHandler;
+        return new BandwidthLimiter(shared.getId(), shared,
+            () -> getDownloadWeight(handler.getMember()));
+    }
+
+    /**
+     * @param member
+     * @return the weight of the highest priority of all active uploads to
+     *         the member.
+     */
+    private int getUploadWeight(Member member) {
+        TransferPriority priority = null;
+        if (member != null) {
+            for (Upload upload : activeUploads) {
+                if (member.equals(upload.getPartner())) {
+                    priority = max(priority, getPriority(upload.getFile()));
+                }
+            }
         }
-        return sharedWANInputHandler;
+        return priority != null
+            ? priority.getWeight()
+            : TransferPriority.NORMAL.getWeight();
+    }
+
+    /**
+     * @param member
+     * @return the weight of the highest priority of all active downloads from
+     *         the member.
+     */
+    private int getDownloadWeight(Member member) {
+        TransferPriority priority = null;
+        if (member != null) {
+            for (DownloadManager man : dlManagers.values()) {
+                if (man.getSourceFor(member) != null) {
+                    priority = max(priority, getPriority(man.getFileInfo()));
+                }
+            }
+        }
+        return priority != null
+            ? priority.getWeight()
+            : TransferPriority.NORMAL.getWeight();
+    }
+
+    private TransferPriority getPriority(FileInfo fInfo) {
+        Folder folder = fInfo.getFolder(getController().getFolderRepository());
+        if (folder == null) {
+            return TransferPriority.NORMAL;
+        }
+        return folder.getTransferPriorities().getPriority(fInfo);
+    }
+
+    private static TransferPriority max(TransferPriority p1,
+        TransferPriority p2)
+    {
+        if (p1 == null || p2.compareTo(p1) > 0) {
+            return p2;
+        }
+        return p1;
     }
 
     /**
@@ -1188,6 +1275,30 @@ public class TransferManager extends PFComponent {
             .getValueInt(getController());
     }
 
+    /**
+     * @return the cache of the open files being uploaded.
+     */
+    FileChannelCache getFileChannelCache() {
+        return fileChannelCache;
+    }
+
+    /**
+     * @return the pool to match segments of local files for delta sync on.
+     *         null if not started.
+     */
+    ExecutorService getDeltaMatchPool() {
+        return deltaMatchPool;
+    }
+
+    int getDeltaSyncMaxMatchers() {
+        return Math.max(1, ConfigurationEntry.DELTA_SYNC_MAX_MATCHERS
+            .getValueInt(getController()));
+    }
+
+    DeltaSyncAdvisor getDeltaSyncAdvisor() {
+        return deltaSyncAdvisor;
+    }
+
     /**
      * @return the counter for upload speed
      */
@@ -1603,6 +1714,23 @@ public class TransferManager extends PFComponent {
         return totalDownloadTrafficCounter;
     }
 
+    /**
+     * Reads the global counters without blocking any transfer.
+     *
+     * @return the current values of the upload, download and total traffic
+     *         counters by name.
+     */
+    public Map<String, TransferCounter.Snapshot> getTransferMetrics() {
+        Map<String, TransferCounter.Snapshot> metrics = new LinkedHashMap<String, TransferCounter.Snapshot>();
+        metrics.put("upload", uploadCounter.getSnapshot());
+        metrics.put("download", downloadCounter.getSnapshot());
+        metrics.put("totalUploadTraffic", totalUploadTrafficCounter
+            .getSnapshot());
+        metrics.put("totalDownloadTraffic", totalDownloadTrafficCounter
+            .getSnapshot());
+        return metrics;
+    }
+
     /**
      * Adds a file for download if source is not known
      *
@@ -45,15 +45,29 @@ public class TransferPriorities implements Serializable {
         /**
          * Files with this priority should be requested at last.
          */
-        LOW,
+        LOW(1),
         /**
          * Files with this priority should be requested after all HIGH priority files are done.
          */
-        NORMAL,
+        NORMAL(2),
         /**
          * Files with this priority should be requested at first.
          */
-        HIGH;
+        HIGH(4);
+
+        private final int weight;
+
+        TransferPriority(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * @return the share of bandwidth transfers of this priority get
+         *         relative to other priorities.
+         */
+        public int getWeight() {
+            return weight;
+        }
     }
 
     private transient Comparator<FileInfo> priorityComparator;
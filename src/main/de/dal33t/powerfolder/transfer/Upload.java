@@ -36,7 +36,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -53,6 +52,8 @@ public class Upload extends Transfer {
     private boolean aborted;
     private transient Queue<Message> pendingRequests = new LinkedList<Message>();
     protected transient FileChannel fileChannel;
+    /** The channel acquired from the {@link FileChannelCache} */
+    private transient FileChannel cachedChannel;
     protected transient InputStream in;
     private long inpos;
     private String debugState;
@@ -201,10 +202,13 @@ public class Upload extends Transfer {
                         Path inputFile = null;
                         try {
                             inputFile = getFile().getDiskFile(getController().getFolderRepository());
-                            fileChannel = FileChannel.open(inputFile, StandardOpenOption.READ);
+                            fileChannel = getTransferManager()
+                                .getFileChannelCache().acquire(inputFile);
+                            cachedChannel = fileChannel;
 
                             int bufferSize = ConfigurationEntry.TRANSFER_BUFFER_THRESHOLD.getValueInt(getController());
-                            long fileSize = Files.size(inputFile);
+                            // Size of the file version the channel reads
+                            long fileSize = fileChannel.size();
 
                             if (fileSize <= bufferSize) {
                                 logFine("Using buffer to upload file");
@@ -212,8 +216,7 @@ public class Upload extends Transfer {
                                 FileChannel thisFileChannel = fileChannel;
                                 if (thisFileChannel != null) {
                                     thisFileChannel.read(tempBuffer, 0);
-                                    thisFileChannel.close();
-                                    fileChannel = null;
+                                    releaseFileChannel();
                                 }
                                 buffer = tempBuffer.array();
                             }
@@ -329,22 +332,25 @@ public class Upload extends Transfer {
             }
         }
         if (fileChannel != null) {
-            try {
-                if (isFiner()) {
-                    logFiner("Closing fileChannel for "
-                        + getFile().toDetailString());
-                }
-                fileChannel.close();
-                fileChannel = null;
-            } catch (IOException e) {
-                logSevere("IOException", e);
+            if (isFiner()) {
+                logFiner("Releasing fileChannel for "
+                    + getFile().toDetailString());
             }
+            releaseFileChannel();
         }
         if (buffer != null) {
             buffer = null;
         }
     }
 
+    private synchronized void releaseFileChannel() {
+        fileChannel = null;
+        if (cachedChannel != null) {
+            getTransferManager().getFileChannelCache().release(cachedChannel);
+            cachedChannel = null;
+        }
+    }
+
     protected boolean checkForFilePartsRecordRequest() throws TransferException
     {
         RequestFilePartsRecord r = null;
@@ -438,11 +444,29 @@ public class Upload extends Transfer {
         Path f = pr.getFile()
             .getDiskFile(getController().getFolderRepository());
         try {
-            byte[] data = new byte[(int) pr.getRange().getLength()];
             long startOffset = pr.getRange().getStart();
-            if (fileChannel != null) {
-                fileChannel.position(startOffset);
-            } else if (in != null) {
+            FileChannel channel = fileChannel;
+            if (buffer == null && channel != null) {
+                int length = (int) pr.getRange().getLength();
+                if (startOffset + length > channel.size()) {
+                    logWarning("Requested part exceeds filesize!");
+                    throw new TransferException(
+                        "Requested part exceeds filesize!");
+                }
+                // Zero-copy: Stream directly from the file
+                if (getPartner().sendFileChunk(pr.getFile(), startOffset,
+                    channel, length))
+                {
+                    getCounter().bytesTransferred(length);
+                    getTransferManager().getUploadCounter().bytesTransferred(
+                        length);
+                    checkLastModificationDate(pr.getFile(), f);
+                    return true;
+                }
+            }
+
+            byte[] data = new byte[(int) pr.getRange().getLength()];
+            if (channel == null && in != null) {
                 long skip = startOffset - inpos;
                 if (skip >= 0) {
                     inpos += in.skip(skip);
@@ -473,8 +497,10 @@ public class Upload extends Transfer {
                     data = Arrays.copyOfRange(buffer, (int) startOffset,
                             (int) (startOffset + pr.getRange().getLength()));
                     read = data.length;
-                } else if (fileChannel != null) {
-                    read = fileChannel.read(ByteBuffer.wrap(data, pos, readLen));
+                } else if (channel != null) {
+                    // Positional read: The channel is shared
+                    read = channel.read(ByteBuffer.wrap(data, pos, readLen),
+                        startOffset + pos);
                 } else if (in != null) {
                     read = in.read(data, pos, readLen);
                     inpos += read;
@@ -59,14 +59,26 @@ public class Convert {
      */
     public static byte[] convert2Bytes(int i) {
         byte[] b = new byte[4];
-
-        b[3] = (byte) (i & 0xFF);
-        b[2] = (byte) (0xFF & (i >> 8));
-        b[1] = (byte) (0xFF & (i >> 16));
-        b[0] = (byte) (0xFF & (i >> 24));
+        convert2Bytes(i, b, 0);
         return b;
     }
 
+    /**
+     * Writes an int as 4 bytes into an existing array
+     *
+     * @param i
+     * @param b
+     *            the target array
+     * @param offset
+     *            the position of the first byte in the target array
+     */
+    public static void convert2Bytes(int i, byte[] b, int offset) {
+        b[offset + 3] = (byte) (i & 0xFF);
+        b[offset + 2] = (byte) (0xFF & (i >> 8));
+        b[offset + 1] = (byte) (0xFF & (i >> 16));
+        b[offset] = (byte) (0xFF & (i >> 24));
+    }
+
     /**
      * Converts an arry of bytes to an int
      *
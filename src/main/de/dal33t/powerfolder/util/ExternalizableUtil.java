@@ -25,6 +25,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 import de.dal33t.powerfolder.light.FolderInfo;
@@ -85,6 +86,107 @@ public class ExternalizableUtil {
         return new Date(time);
     }
 
+    /**
+     * Writes a non-negative long using 7 bits per byte. Small values take
+     * less space than {@link ObjectOutput#writeLong(long)}.
+     *
+     * @param out
+     * @param value
+     *            the value. Must not be negative.
+     * @throws IOException
+     */
+    public static void writeVarLong(ObjectOutput out, long value)
+        throws IOException
+    {
+        Reject.ifTrue(value < 0, "Negative value: " + value);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(ObjectInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length long");
+    }
+
+    public static void writeVarInt(ObjectOutput out, int value)
+        throws IOException
+    {
+        writeVarLong(out, value);
+    }
+
+    public static int readVarInt(ObjectInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("Variable length int out of range: "
+                + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Writes a long that may be negative using zig-zag encoding. Small
+     * absolute values take less space than {@link ObjectOutput#writeLong(long)}.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeSignedVarLong(ObjectOutput out, long value)
+        throws IOException
+    {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+
+    public static long readSignedVarLong(ObjectInput in) throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new IOException("Malformed variable length long");
+    }
+
+    /**
+     * Writes the string UTF-8 encoded with a variable length prefix. Unlike
+     * {@link ObjectOutput#writeUTF(String)} not limited to 64k. Value must not
+     * be null.
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    public static void writeVarString(ObjectOutput out, String value)
+        throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readVarString(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     public static void writeAddress(ObjectOutput out, InetSocketAddress value)
         throws IOException
     {
@@ -15,6 +15,7 @@ import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.disk.FolderSettings;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoCodec;
 import de.dal33t.powerfolder.light.FolderInfo;
 
 public class FolderConfigRestore {
@@ -94,7 +95,7 @@ public class FolderConfigRestore {
         // load files and scan in
         ObjectInputStream in = new ObjectInputStream(
             Files.newInputStream(dbFile));
-        FileInfo[] files = (FileInfo[]) in.readObject();
+        FileInfo[] files = FileInfoCodec.readObject(in);
         // LOG.info("Got " + files.length + " files in " + baseDir);
         if (files.length <= 0) {
             return null;
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latencies with buckets of powers of two
+ * microseconds. Bucket 0 holds everything below 1µs, bucket n holds latencies
+ * from 2^(n-1) to 2^n µs.
+ *
+ * @author sprajc
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos
+     *            the latency to record
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = Math.min(BUCKETS - 1,
+            64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while ((max = maxNanos.get()) < nanos) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getAverageNanos() {
+        long c = count.get();
+        return c > 0 ? totalNanos.get() / c : 0;
+    }
+
+    /**
+     * @param percentile
+     *            the percentile, between 0 and 100.
+     * @return the upper bound of the bucket containing the percentile in
+     *         nanoseconds.
+     */
+    public long getPercentileNanos(double percentile) {
+        Reject.ifTrue(percentile < 0 || percentile > 100,
+            "Illegal percentile: " + percentile);
+        long[] counts = getBuckets();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= threshold && seen > 0) {
+                return Math.min(TimeUnit.MICROSECONDS.toNanos(1L << i),
+                    maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * @return a snapshot of the counts per bucket.
+     */
+    public long[] getBuckets() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", avg="
+            + Format.formatDecimal(getAverageNanos() / 1000000d) + "ms, p50<="
+            + Format.formatDecimal(getPercentileNanos(50) / 1000000d)
+            + "ms, p99<="
+            + Format.formatDecimal(getPercentileNanos(99) / 1000000d)
+            + "ms, max=" + Format.formatDecimal(getMaxNanos() / 1000000d)
+            + "ms";
+    }
+}
@@ -19,14 +19,24 @@
  */
 package de.dal33t.powerfolder.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import de.dal33t.powerfolder.message.FileChunk;
 
 /**
- * A helper class to determine process status of a transfer TODO: calculate
- * current CPS
+ * A helper class to determine process status of a transfer.
+ * <p>
+ * Lock-free: The transferred bytes are counted in a striped {@link LongAdder},
+ * so concurrent senders never block each other. The current rate is
+ * calculated over a sliding window of samples of the total, which are taken
+ * by the readers.
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.12 $
@@ -35,14 +45,36 @@ public class TransferCounter implements Serializable {
     private static final long serialVersionUID = 100L;
     private static final long CURRENT_CPS_CALCULATION_PERIOD = 10000;
 
-    private Date since;
-    private long bytesTransferred;
+    /**
+     * Number of samples within the calculation period.
+     */
+    private static final int WINDOW_SAMPLES = 10;
+    private static final long SAMPLE_INTERVAL = CURRENT_CPS_CALCULATION_PERIOD
+        / WINDOW_SAMPLES;
+
+    /**
+     * The serialized form of former versions.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("since", Date.class),
+        new ObjectStreamField("bytesTransferred", Long.TYPE),
+        new ObjectStreamField("bytesAlreadyTransferred", Long.TYPE),
+        new ObjectStreamField("bytesExpected", Long.TYPE),
+        new ObjectStreamField("counter1Since", Date.class),
+        new ObjectStreamField("counter2Since", Date.class),
+        new ObjectStreamField("counter1Bytes", Long.TYPE),
+        new ObjectStreamField("counter2Bytes", Long.TYPE),
+        new ObjectStreamField("counter1Active", Boolean.TYPE)};
+
+    private volatile long since;
+    private LongAdder bytesTransferred = new LongAdder();
     private long bytesAlreadyTransferred;
     private long bytesExpected;
 
-    private Date counter1Since, counter2Since;
-    private long counter1Bytes, counter2Bytes;
-    private boolean counter1Active;
+    /**
+     * The samples of the current rate, <code>null</code> if not transferring.
+     */
+    private transient AtomicReference<Window> window = new AtomicReference<>();
 
     public TransferCounter() {
 
@@ -65,18 +97,19 @@ public class TransferCounter implements Serializable {
     /**
      * Called when a transfer bound to this counter has been started.
      */
-    public synchronized void startedTransfer() {
-        counter1Since = new Date();
-        counter2Since = new Date();
-        counter1Bytes = 0;
-        counter2Bytes = 0;
+    public void startedTransfer() {
+        startedTransfer(System.currentTimeMillis());
+    }
+
+    void startedTransfer(long now) {
+        window.set(new Window(now, bytesTransferred.sum()));
     }
 
     /**
      * Called when a transfer bound to this counter has stopped
      */
-    public synchronized void stoppedTransfer() {
-        counter1Since = counter2Since = null;
+    public void stoppedTransfer() {
+        window.set(null);
     }
 
     /**
@@ -84,8 +117,8 @@ public class TransferCounter implements Serializable {
      *
      * @return true if a transfer is in progress
      */
-    public synchronized boolean isTransferring() {
-        return counter1Since != null && counter2Since != null;
+    public boolean isTransferring() {
+        return window.get() != null;
     }
 
     /**
@@ -105,21 +138,17 @@ public class TransferCounter implements Serializable {
      *            the transferred bytes count
      */
     public void bytesTransferred(long count) {
-        if (since == null) {
-            since = new Date();
+        if (since == 0) {
+            since = System.currentTimeMillis();
         }
-
-        if (!isTransferring()) {
+        bytesTransferred.add(count);
+        if (window.get() == null) {
             // Actually startedTransfer should have been called before,
             // but somehow it wasn't. So start it now and ignore the first
             // transferred bytes for the calculations.
-            startedTransfer();
-        } else {
-            counter1Bytes += count;
-            counter2Bytes += count;
+            window.compareAndSet(null, new Window(System.currentTimeMillis(),
+                bytesTransferred.sum()));
         }
-
-        this.bytesTransferred += count;
     }
 
     /**
@@ -128,7 +157,7 @@ public class TransferCounter implements Serializable {
      * @return
      */
     public long getBytesTransferred() {
-        return bytesTransferred;
+        return bytesTransferred.sum();
     }
 
     /**
@@ -146,11 +175,12 @@ public class TransferCounter implements Serializable {
      * @return
      */
     public double calculateAverageCPS() {
-        if (since == null) {
+        long started = since;
+        if (started == 0) {
             return 0;
         }
-        long took = System.currentTimeMillis() - since.getTime();
-        return ((double) bytesTransferred) * 1000 / took;
+        long took = System.currentTimeMillis() - started;
+        return ((double) bytesTransferred.sum()) * 1000 / took;
     }
 
     /**
@@ -164,28 +194,36 @@ public class TransferCounter implements Serializable {
     }
 
     /**
-     * Calculates the current cps rate
+     * Calculates the current cps rate over the last
+     * {@link #CURRENT_CPS_CALCULATION_PERIOD}.
      *
      * @return
      */
-    public synchronized double calculateCurrentCPS() {
-        if (counter1Since == null || counter1Since == null) {
+    public double calculateCurrentCPS() {
+        return calculateCurrentCPS(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now
+     *            the current time in milliseconds
+     * @return the current cps rate at the given time.
+     */
+    double calculateCurrentCPS(long now) {
+        Window w = window.get();
+        if (w == null) {
             return 0;
         }
-        long bytes = (counter1Active) ? counter1Bytes : counter2Bytes;
-        Date activeSince = (counter1Active) ? counter1Since : counter2Since;
-        Date counterSince = (counter1Active) ? counter2Since : counter1Since;
-
-        long took = System.currentTimeMillis() - activeSince.getTime();
-        if (System.currentTimeMillis() - counterSince.getTime() > CURRENT_CPS_CALCULATION_PERIOD)
-        {
-            switchActiveCounter();
+        long bytes = bytesTransferred.sum();
+        if (now - w.getLatestTime() >= SAMPLE_INTERVAL) {
+            // Failing is ok, another reader just took the sample.
+            window.compareAndSet(w, w.add(now, bytes));
         }
-        if (took == 0) {
+        int oldest = w.getOldest(now - CURRENT_CPS_CALCULATION_PERIOD);
+        long took = now - w.times[oldest];
+        if (took <= 0) {
             return 0;
-        } else {
-            return ((double) bytes) * 1000 / took;
         }
+        return ((double) (bytes - w.bytes[oldest])) * 1000 / took;
     }
 
     /**
@@ -209,7 +247,7 @@ public class TransferCounter implements Serializable {
         }
 
         double bytesTransferredTotal = bytesAlreadyTransferred
-            + bytesTransferred;
+            + bytesTransferred.sum();
         return bytesTransferredTotal / bytesExpected * 100;
     }
 
@@ -220,30 +258,45 @@ public class TransferCounter implements Serializable {
      */
     public long calculateEstimatedMillisToCompletion() {
         // TODO: Maybe improve the formula below.
-        if (calculateAverageCPS() < 0.00001)
+        double cps = calculateAverageCPS();
+        if (cps < 0.00001)
             return 0;
-        long result = (long) ((bytesExpected - bytesAlreadyTransferred - bytesTransferred) * 1000 / calculateAverageCPS());
+        long result = (long) ((bytesExpected - bytesAlreadyTransferred - bytesTransferred
+            .sum()) * 1000 / cps);
         return result > 0 ? result : 0;
     }
 
     /**
-     * Switches the active counter, and resets it. used for calculating the
-     * current cps rate
+     * @return the current values of this counter. Does not block any
+     *         concurrent transfer.
      */
-    private void switchActiveCounter() {
-        if (counter1Active) {
-            // now use counter 2
-            counter1Active = false;
-            // and reset counter 1
-            counter1Bytes = 0;
-            counter1Since.setTime(System.currentTimeMillis());
-        } else {
-            // now use counter 1
-            counter1Active = true;
-            // and reset counter 2
-            counter2Bytes = 0;
-            counter2Since.setTime(System.currentTimeMillis());
-        }
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    // Serialization **********************************************************
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        long started = since;
+        fields.put("since", started != 0 ? new Date(started) : null);
+        fields.put("bytesTransferred", bytesTransferred.sum());
+        fields.put("bytesAlreadyTransferred", bytesAlreadyTransferred);
+        fields.put("bytesExpected", bytesExpected);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        Date started = (Date) fields.get("since", null);
+        since = started != null ? started.getTime() : 0;
+        bytesTransferred = new LongAdder();
+        bytesTransferred.add(fields.get("bytesTransferred", 0L));
+        bytesAlreadyTransferred = fields.get("bytesAlreadyTransferred", 0L);
+        bytesExpected = fields.get("bytesExpected", 0L);
+        window = new AtomicReference<>();
     }
 
     // General ****************************************************************
@@ -254,4 +307,114 @@ public class TransferCounter implements Serializable {
             + Format.formatBytesShort((long) (1024L * calculateCurrentKBS()))
             + "/s}";
     }
-}
\ No newline at end of file
+
+    // Inner classes **********************************************************
+
+    /**
+     * Immutable ring of samples of the transferred bytes. Replaced as a whole
+     * on every new sample.
+     */
+    private static final class Window {
+        private final long[] times;
+        private final long[] bytes;
+        private final int latest;
+
+        private Window(long time, long transferred) {
+            times = new long[WINDOW_SAMPLES + 1];
+            bytes = new long[WINDOW_SAMPLES + 1];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = time;
+                bytes[i] = transferred;
+            }
+            latest = 0;
+        }
+
+        private Window(long[] times, long[] bytes, int latest) {
+            this.times = times;
+            this.bytes = bytes;
+            this.latest = latest;
+        }
+
+        private long getLatestTime() {
+            return times[latest];
+        }
+
+        private Window add(long time, long transferred) {
+            long[] newTimes = times.clone();
+            long[] newBytes = bytes.clone();
+            int next = (latest + 1) % times.length;
+            newTimes[next] = time;
+            newBytes[next] = transferred;
+            return new Window(newTimes, newBytes, next);
+        }
+
+        /**
+         * @param notBefore
+         * @return the index of the oldest sample not before the given time or
+         *         the latest sample if all are older.
+         */
+        private int getOldest(long notBefore) {
+            int i = (latest + 1) % times.length;
+            while (i != latest) {
+                if (times[i] >= notBefore) {
+                    return i;
+                }
+                i = (i + 1) % times.length;
+            }
+            return latest;
+        }
+    }
+
+    /**
+     * The values of a counter at one point in time.
+     */
+    public static final class Snapshot implements Serializable {
+        private static final long serialVersionUID = 100L;
+
+        private final long time;
+        private final long bytesTransferred;
+        private final long bytesExpected;
+        private final double averageCPS;
+        private final double currentCPS;
+        private final boolean transferring;
+
+        private Snapshot(TransferCounter counter) {
+            time = System.currentTimeMillis();
+            bytesTransferred = counter.getBytesTransferred();
+            bytesExpected = counter.getBytesExpected();
+            averageCPS = counter.calculateAverageCPS();
+            currentCPS = counter.calculateCurrentCPS();
+            transferring = counter.isTransferring();
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getBytesTransferred() {
+            return bytesTransferred;
+        }
+
+        public long getBytesExpected() {
+            return bytesExpected;
+        }
+
+        public double getAverageCPS() {
+            return averageCPS;
+        }
+
+        public double getCurrentCPS() {
+            return currentCPS;
+        }
+
+        public boolean isTransferring() {
+            return transferring;
+        }
+
+        public String toString() {
+            return "Snapshot {bytes: "
+                + Format.formatBytesShort(bytesTransferred) + " current: "
+                + Format.formatBytesShort((long) currentCPS) + "/s}";
+        }
+    }
+}
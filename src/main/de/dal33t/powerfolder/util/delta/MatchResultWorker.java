@@ -20,55 +20,280 @@
 package de.dal33t.powerfolder.util.delta;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.dal33t.powerfolder.util.CountedInputStream;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
 
+/**
+ * Finds the parts of a {@link FilePartsRecord} in a local file.
+ * <p>
+ * If an executor is given, big files are split into segments which are
+ * matched in parallel. Each segment is read beyond its end by one part
+ * length minus one byte, so no frame starting within the segment is missed.
+ * The results are merged in file order. Matches overlapping a previous match
+ * and repeated matches of the same part are dropped.
+ */
 public class MatchResultWorker implements Callable<List<MatchInfo>> {
+    /**
+     * Files are only split into segments of at least this size.
+     */
+    static final long MIN_SEGMENT_SIZE = 32L * 1024 * 1024;
+
     private final FilePartsRecord record;
     private final Path inFile;
     private final ProgressListener progressListener;
+    private final ExecutorService executor;
+    private final int maxSegments;
+    private final long minSegmentSize;
+
+    private volatile long bytesPerSecond = -1;
 
     public MatchResultWorker(FilePartsRecord record, Path inFile,
         ProgressListener obs)
+    {
+        this(record, inFile, obs, null, 1);
+    }
+
+    /**
+     * @param record
+     *            the record of the remote file
+     * @param inFile
+     *            the local file
+     * @param obs
+     *            the progress listener or null
+     * @param executor
+     *            the executor to match segments on or null to match in the
+     *            calling thread.
+     * @param maxSegments
+     *            the maximum number of segments to split the file into.
+     */
+    public MatchResultWorker(FilePartsRecord record, Path inFile,
+        ProgressListener obs, ExecutorService executor, int maxSegments)
+    {
+        this(record, inFile, obs, executor, maxSegments, MIN_SEGMENT_SIZE);
+    }
+
+    MatchResultWorker(FilePartsRecord record, Path inFile,
+        ProgressListener obs, ExecutorService executor, int maxSegments,
+        long minSegmentSize)
     {
         Reject.noNullElements(record, inFile);
+        Reject.ifTrue(maxSegments < 1, "Illegal number of segments: "
+            + maxSegments);
         this.record = record;
         this.inFile = inFile;
         this.progressListener = obs;
+        this.executor = executor;
+        this.maxSegments = maxSegments;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * @return the bytes of the local file matched per second or -1 if not
+     *         completed yet.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
     }
 
     public List<MatchInfo> call() throws Exception {
-        CountedInputStream in = new CountedInputStream(new BufferedInputStream(Files.newInputStream(inFile)));
-        PartInfoMatcher matcher = null;
+        long start = System.currentTimeMillis();
+        final long fsize = Files.size(inFile);
+        List<MatchInfo> matches;
+        int nSegments = (int) Math.min(maxSegments, fsize / minSegmentSize);
+        if (executor == null || nSegments < 2) {
+            matches = matchSegment(0, fsize, fsize, new AtomicLong());
+        } else {
+            matches = matchParallel(fsize, nSegments);
+        }
+        long took = Math.max(1, System.currentTimeMillis() - start);
+        bytesPerSecond = fsize * 1000 / took;
+        return matches;
+    }
+
+    private List<MatchInfo> matchParallel(final long fsize, int nSegments)
+        throws Exception
+    {
+        int partLength = record.getPartLength();
+        long segmentSize = (fsize + nSegments - 1) / nSegments;
+        // Align to part length. Unchanged files match without overlaps.
+        segmentSize = (segmentSize + partLength - 1) / partLength * partLength;
+
+        final AtomicLong readBytes = new AtomicLong();
+        List<Future<List<MatchInfo>>> futures = new ArrayList<Future<List<MatchInfo>>>();
         try {
-            final long fsize = Files.size(inFile);
+            for (long segStart = 0; segStart < fsize; segStart += segmentSize)
+            {
+                final long from = segStart;
+                final long to = Math.min(fsize, segStart + segmentSize);
+                futures.add(executor.submit(new Callable<List<MatchInfo>>() {
+                    public List<MatchInfo> call() throws Exception {
+                        return matchSegment(from, to, fsize, readBytes);
+                    }
+                }));
+            }
+
+            List<MatchInfo> matches = new LinkedList<MatchInfo>();
+            BitSet matchedParts = new BitSet();
+            long matchedUntil = 0;
+            for (Future<List<MatchInfo>> future : futures) {
+                List<MatchInfo> segmentMatches = null;
+                while (segmentMatches == null) {
+                    try {
+                        segmentMatches = future.get(500, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        reportProgress(readBytes.get(), fsize);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof Exception) {
+                            throw (Exception) e.getCause();
+                        }
+                        throw e;
+                    }
+                }
+                for (MatchInfo match : segmentMatches) {
+                    int index = (int) match.getMatchedPart().getIndex();
+                    if (match.getMatchedPosition() < matchedUntil
+                        || matchedParts.get(index))
+                    {
+                        continue;
+                    }
+                    matchedParts.set(index);
+                    matchedUntil = match.getMatchedPosition() + partLength;
+                    matches.add(match);
+                }
+                reportProgress(readBytes.get(), fsize);
+            }
+            return matches;
+        } finally {
+            for (Future<List<MatchInfo>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
 
+    /**
+     * Matches all frames starting in [from, to).
+     */
+    private List<MatchInfo> matchSegment(long from, long to, long fsize,
+        AtomicLong readBytes) throws Exception
+    {
+        boolean lastSegment = to >= fsize;
+        long readEnd = lastSegment ? fsize : Math.min(fsize, to
+            + record.getPartLength() - 1);
+        InputStream fileIn = Files.newInputStream(inFile);
+        CountedInputStream in;
+        try {
+            in = new CountedInputStream(new BufferedInputStream(
+                new RangeInputStream(fileIn, from, readEnd - from)));
+        } catch (IOException | RuntimeException e) {
+            fileIn.close();
+            throw e;
+        }
+        PartInfoMatcher matcher = null;
+        try {
             matcher = new PartInfoMatcher(in,
                 new RollingAdler32(record.getPartLength()), MessageDigest
                     .getInstance("SHA-256"), record.getInfos());
 
             List<MatchInfo> matches = new LinkedList<MatchInfo>();
             MatchInfo match = null;
+            long reported = 0;
             while ((match = matcher.nextMatch()) != null) {
-                if (progressListener != null) {
-                    progressListener.progressReached(fsize > 0 ? (double) in
-                        .getReadBytes()
-                        / fsize : 1);
+                long pos = from + match.getMatchedPosition();
+                if (pos >= to) {
+                    break;
                 }
-                matches.add(match);
+                if (!lastSegment && pos + record.getPartLength() > readEnd) {
+                    // Padded last part at the end of the segment
+                    continue;
+                }
+                long read = in.getReadBytes();
+                readBytes.addAndGet(read - reported);
+                reported = read;
+                if (lastSegment && from == 0) {
+                    // Single segment: Report directly
+                    reportProgress(readBytes.get(), fsize);
+                }
+                matches.add(new MatchInfo(match.getMatchedPart(), pos));
             }
+            readBytes.addAndGet(in.getReadBytes() - reported);
             return matches;
         } finally {
             in.close();
-            matcher.close();
+            if (matcher != null) {
+                matcher.close();
+            }
+        }
+    }
+
+    private void reportProgress(long read, long fsize) {
+        if (progressListener != null) {
+            progressListener.progressReached(fsize > 0
+                ? (double) read / fsize
+                : 1);
+        }
+    }
+
+    /**
+     * Reads a region of a stream.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long skip, long length)
+            throws IOException
+        {
+            super(in);
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    throw new IOException("Unable to skip to " + skip);
+                }
+                skip -= skipped;
+            }
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
         }
     }
 }
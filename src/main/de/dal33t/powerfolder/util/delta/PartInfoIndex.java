@@ -0,0 +1,146 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.util.Arrays;
+
+/**
+ * Lookup of {@link PartInfo}s by their rolling checksum without boxing.
+ * <p>
+ * The checksums are stored in an open addressing table of primitive longs.
+ * Since most lookups of a sliding match are misses a small bloom filter is
+ * checked first. It stays in the CPU caches even for records with millions of
+ * parts, the table is only touched for probable hits.
+ * <p>
+ * Immutable after construction and thus Thread-safe.
+ *
+ * @author sprajc
+ */
+final class PartInfoIndex {
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private final PartInfo[] infos;
+
+    /** The distinct checksums. Slot is empty if head is -1 */
+    private final long[] keys;
+    /** Index of the first part in infos for the checksum in keys */
+    private final int[] heads;
+    /** Index of the next part with the same checksum or -1 */
+    private final int[] next;
+    private final int tableMask;
+
+    private final long[] bloom;
+    private final int bloomMask;
+
+    PartInfoIndex(PartInfo[] infos) {
+        this.infos = infos;
+        int tableSize = tableSizeFor(Math.max(2, infos.length * 2));
+        keys = new long[tableSize];
+        heads = new int[tableSize];
+        Arrays.fill(heads, -1);
+        tableMask = tableSize - 1;
+        next = new int[infos.length];
+
+        // ~16 bits per part, at least one long
+        int bloomBits = tableSizeFor(Math.max(64, infos.length * 16));
+        bloom = new long[bloomBits >>> 6];
+        bloomMask = bloomBits - 1;
+
+        int[] tails = new int[tableSize];
+        for (int i = 0; i < infos.length; i++) {
+            long checksum = infos[i].getChecksum();
+            long h = mix(checksum);
+            int slot = (int) (h >>> 20) & tableMask;
+            while (heads[slot] != -1 && keys[slot] != checksum) {
+                slot = (slot + 1) & tableMask;
+            }
+            next[i] = -1;
+            if (heads[slot] == -1) {
+                keys[slot] = checksum;
+                heads[slot] = i;
+            } else {
+                // Keep order of the record
+                next[tails[slot]] = i;
+            }
+            tails[slot] = i;
+            setBloom(h);
+        }
+    }
+
+    /**
+     * @param checksum
+     * @return the position of the first part with the given checksum or -1 if
+     *         there is none.
+     * @see #get(int)
+     * @see #next(int)
+     */
+    int first(long checksum) {
+        long h = mix(checksum);
+        if (!mightContain(h)) {
+            return -1;
+        }
+        int slot = (int) (h >>> 20) & tableMask;
+        int head;
+        while ((head = heads[slot]) != -1) {
+            if (keys[slot] == checksum) {
+                return head;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param i
+     *            position of a part
+     * @return the position of the next part with the same checksum or -1.
+     */
+    int next(int i) {
+        return next[i];
+    }
+
+    PartInfo get(int i) {
+        return infos[i];
+    }
+
+    private boolean mightContain(long h) {
+        int b1 = (int) h & bloomMask;
+        int b2 = (int) (h >>> 32) & bloomMask;
+        return (bloom[b1 >>> 6] & (1L << b1)) != 0
+            && (bloom[b2 >>> 6] & (1L << b2)) != 0;
+    }
+
+    private void setBloom(long h) {
+        int b1 = (int) h & bloomMask;
+        int b2 = (int) (h >>> 32) & bloomMask;
+        bloom[b1 >>> 6] |= 1L << b1;
+        bloom[b2 >>> 6] |= 1L << b2;
+    }
+
+    private static long mix(long checksum) {
+        long h = checksum * MIX;
+        return h ^ (h >>> 29);
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = Integer.highestOneBit(n);
+        return size < n ? size << 1 : size;
+    }
+}
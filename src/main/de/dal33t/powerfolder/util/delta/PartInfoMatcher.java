@@ -24,31 +24,37 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
 import de.dal33t.powerfolder.util.Reject;
-import de.dal33t.powerfolder.util.RingBuffer;
 
 /**
  * Creates arrays of PartInfos given the algorithms to use and a data set.
+ * <p>
+ * Data is read in blocks into a window buffer the frame slides over, the
+ * rolling checksum is looked up in a {@link PartInfoIndex}.
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 4280 $
  */
 public class PartInfoMatcher extends FilterInputStream {
-	private static final int BUFFER_SIZE = 16384;
+	private static final int BUFFER_SIZE = 65536;
 	private final RollingChecksum chksum;
 	private final MessageDigest digester;
-    private final RingBuffer rbuf;
-    private final byte[] buf = new byte[BUFFER_SIZE];
-    private final Map<Long, List<PartInfo>> partCache =
-        new HashMap<Long, List<PartInfo>>();
-    private final byte[] dbuf;
+    private final PartInfoIndex index;
+    private final int frameSize;
 
-    private long pos;
+    /**
+     * Holds the current frame at [wStart, wStart + frameLen) and data read
+     * ahead up to wEnd.
+     */
+    private final byte[] window;
+    private int wStart;
+    private int wEnd;
+    private int frameLen;
+
+    /** Position of the current frame in the stream */
+    private long frameOffset;
+    private boolean finished;
 
 	public PartInfoMatcher(InputStream in, RollingChecksum chksum, MessageDigest digester, PartInfo[] partInfos) {
 		super(in);
@@ -56,70 +62,66 @@ public class PartInfoMatcher extends FilterInputStream {
 		this.chksum = chksum;
 		this.digester = digester;
 
-        rbuf = new RingBuffer(chksum.getFrameSize());
-        dbuf = new byte[chksum.getFrameSize()];
-        for (PartInfo info: partInfos) {
-            List<PartInfo> pList = partCache.get(info.getChecksum());
-            if (pList == null) {
-                partCache.put(info.getChecksum(), pList = new LinkedList<PartInfo>());
-            }
-            pList.add(info);
-        }
+        frameSize = chksum.getFrameSize();
+        window = new byte[frameSize + BUFFER_SIZE];
+        index = new PartInfoIndex(partInfos);
 	}
 
 	public MatchInfo nextMatch() throws IOException, InterruptedException {
-	    // Step 1: Fill buffer for matching
-	    int rem = rbuf.remaining();
-
-	    while (rem > 0) {
-	        int amount = Math.min(rem, BUFFER_SIZE);
-	        int read = read(buf, 0, amount);
-	        if (read == -1) {
-	            break;
+	    if (finished) {
+	        return null;
+	    }
+	    // Step 1: Fill frame for matching
+	    while (frameLen < frameSize) {
+	        int frameEnd = wStart + frameLen;
+	        if (frameEnd == wEnd) {
+	            if (!fill()) {
+	                break;
+	            }
+	            frameEnd = wStart + frameLen;
 	        }
-	        pos += read;
-	        rem -= read;
-	        chksum.update(buf, 0, read);
-	        rbuf.write(buf, 0, read);
+	        int amount = Math.min(frameSize - frameLen, wEnd - frameEnd);
+	        chksum.update(window, frameEnd, amount);
+	        frameLen += amount;
 	    }
-	    // Step 2: If the buffer is full, try to find a match or EOF
-	    while (rbuf.remaining() == 0) {
-	        if (Thread.interrupted()) {
-	            throw new InterruptedException();
+	    // Step 2: If the frame is full, try to find a match or EOF
+	    while (frameLen == frameSize) {
+	        int i = index.first(chksum.getValue());
+	        if (i >= 0) {
+	            digester.update(window, wStart, frameSize);
+	            byte[] digest = digester.digest();
+	            for (; i >= 0; i = index.next(i)) {
+	                PartInfo info = index.get(i);
+	                if (Arrays.equals(digest, info.getDigest())) {
+	                    MatchInfo retval = new MatchInfo(info, frameOffset);
+	                    wStart += frameSize;
+	                    frameOffset += frameSize;
+	                    frameLen = 0;
+	                    return retval;
+	                }
+	            }
 	        }
-	        List<PartInfo> lookup = partCache.get(chksum.getValue());
-	        if (lookup != null) {
-                rbuf.peek(dbuf, 0, chksum.getFrameSize());
-                byte[] digest = digester.digest(dbuf);
-
-                for (PartInfo info: lookup) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        MatchInfo retval = new MatchInfo(info, pos - chksum.getFrameSize());
-                        rbuf.reset();
-                        return retval;
-                    }
-                }
+	        if (wStart + frameSize == wEnd && !fill()) {
+	            // EOF: Drop the first byte of the frame
+	            wStart++;
+	            frameOffset++;
+	            frameLen--;
+	            break;
 	        }
-	        rbuf.skip(1);
-            int data = read();
-            if (data == -1) {
-                break;
-            }
-	        pos++;
-	        rbuf.write(data);
-	        chksum.update(data);
+	        chksum.update(window[wStart + frameSize]);
+	        wStart++;
+	        frameOffset++;
 	    }
 	    // Step 3: If we got on EOF before try to finalize the result or return null if all is done
-        rem = (int) (pos % chksum.getFrameSize());
+	    finished = true;
+	    long pos = frameOffset + frameLen;
+	    int rem = (int) (pos % frameSize);
         if (rem > 0) {
             pos -= rem;
 
-            int av = rbuf.available();
-            rbuf.peek(dbuf, 0, av);
-            digester.update(dbuf, 0, av);
-
+            digester.update(window, wStart, frameLen);
 
-            rem = chksum.getFrameSize() - rem;
+            rem = frameSize - rem;
 
             for (int i = 0; i < rem; i++) {
                 chksum.update(0);
@@ -127,16 +129,43 @@ public class PartInfoMatcher extends FilterInputStream {
             }
 
             byte[] digest = digester.digest();
-            List<PartInfo> mList = partCache.get(chksum.getValue());
-
-            if (mList != null) {
-                for (PartInfo info: mList) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        return new MatchInfo(info, pos);
-                    }
+            for (int i = index.first(chksum.getValue()); i >= 0; i = index
+                .next(i))
+            {
+                PartInfo info = index.get(i);
+                if (Arrays.equals(digest, info.getDigest())) {
+                    return new MatchInfo(info, pos);
                 }
             }
         }
         return null;
 	}
+
+	/**
+	 * Reads the next block of data into the window. Data before the current
+	 * frame is discarded.
+	 *
+	 * @return false on EOF
+	 * @throws InterruptedException
+	 */
+	private boolean fill() throws IOException, InterruptedException {
+	    if (Thread.interrupted()) {
+	        throw new InterruptedException();
+	    }
+	    if (wEnd == window.length) {
+	        int keep = wEnd - wStart;
+	        System.arraycopy(window, wStart, window, 0, keep);
+	        wStart = 0;
+	        wEnd = keep;
+	    }
+	    int read;
+	    do {
+	        read = read(window, wEnd, window.length - wEnd);
+	    } while (read == 0);
+	    if (read < 0) {
+	        return false;
+	    }
+	    wEnd += read;
+	    return true;
+	}
 }
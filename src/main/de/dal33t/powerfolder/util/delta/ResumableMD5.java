@@ -0,0 +1,192 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.Serializable;
+
+/**
+ * MD5 implementation (RFC 1321) whose intermediate state can be serialized.
+ * <p>
+ * {@link java.security.MessageDigest} can't be persisted, so a partially
+ * hashed file would have to be re-read completely after a restart. This
+ * digest is stored together with the download meta data instead and
+ * continues where it stopped.
+ * <p>
+ * This class is NOT Thread-safe.
+ *
+ * @author sprajc
+ */
+public final class ResumableMD5 implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] S = {7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17,
+        22, 7, 12, 17, 22, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14,
+        20, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 6, 10,
+        15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21};
+
+    private static final int[] K = new int[64];
+    static {
+        for (int i = 0; i < K.length; i++) {
+            K[i] = (int) (long) ((1L << 32) * Math.abs(Math.sin(i + 1)));
+        }
+    }
+
+    private int a = 0x67452301;
+    private int b = 0xefcdab89;
+    private int c = 0x98badcfe;
+    private int d = 0x10325476;
+
+    /** Total number of bytes consumed */
+    private long length;
+
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    /**
+     * Work buffer of {@link #transform(byte[], int)}. Not part of the state.
+     */
+    private transient int[] words;
+
+    /**
+     * @return the number of bytes hashed so far
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    public void update(byte[] data, int ofs, int len) {
+        if (ofs < 0) {
+            throw new IndexOutOfBoundsException("Offset is negative");
+        }
+        if (len < 0) {
+            throw new IndexOutOfBoundsException("Length is negative");
+        }
+        if (ofs + len > data.length) {
+            throw new IndexOutOfBoundsException("Offset + length too large!");
+        }
+        int buffered = (int) (length % BLOCK_SIZE);
+        length += len;
+        if (buffered > 0) {
+            int n = Math.min(BLOCK_SIZE - buffered, len);
+            System.arraycopy(data, ofs, buffer, buffered, n);
+            ofs += n;
+            len -= n;
+            if (buffered + n < BLOCK_SIZE) {
+                return;
+            }
+            transform(buffer, 0);
+        }
+        for (; len >= BLOCK_SIZE; len -= BLOCK_SIZE, ofs += BLOCK_SIZE) {
+            transform(data, ofs);
+        }
+        if (len > 0) {
+            System.arraycopy(data, ofs, buffer, 0, len);
+        }
+    }
+
+    /**
+     * Calculates the digest of the data hashed so far. Unlike
+     * {@link java.security.MessageDigest#digest()} this does not reset the
+     * state, further updates are possible.
+     *
+     * @return the 16 byte MD5 digest
+     */
+    public byte[] digest() {
+        ResumableMD5 tail = copy();
+        int buffered = (int) (length % BLOCK_SIZE);
+        int padLength = buffered < 56 ? 56 - buffered : 120 - buffered;
+        byte[] padding = new byte[padLength + 8];
+        padding[0] = (byte) 0x80;
+        long bits = length << 3;
+        for (int i = 0; i < 8; i++) {
+            padding[padLength + i] = (byte) (bits >>> (8 * i));
+        }
+        tail.update(padding);
+
+        byte[] result = new byte[16];
+        int[] state = {tail.a, tail.b, tail.c, tail.d};
+        for (int i = 0; i < state.length; i++) {
+            for (int j = 0; j < 4; j++) {
+                result[i * 4 + j] = (byte) (state[i] >>> (8 * j));
+            }
+        }
+        return result;
+    }
+
+    private ResumableMD5 copy() {
+        ResumableMD5 copy = new ResumableMD5();
+        copy.a = a;
+        copy.b = b;
+        copy.c = c;
+        copy.d = d;
+        copy.length = length;
+        System.arraycopy(buffer, 0, copy.buffer, 0, BLOCK_SIZE);
+        return copy;
+    }
+
+    private void transform(byte[] block, int ofs) {
+        int[] x = words;
+        if (x == null) {
+            x = new int[16];
+            words = x;
+        }
+        for (int i = 0; i < 16; i++, ofs += 4) {
+            x[i] = (block[ofs] & 0xff) | (block[ofs + 1] & 0xff) << 8
+                | (block[ofs + 2] & 0xff) << 16 | (block[ofs + 3] & 0xff) << 24;
+        }
+        int aa = a, bb = b, cc = c, dd = d;
+        for (int i = 0; i < 64; i++) {
+            int f;
+            int g;
+            if (i < 16) {
+                f = (bb & cc) | (~bb & dd);
+                g = i;
+            } else if (i < 32) {
+                f = (dd & bb) | (~dd & cc);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = bb ^ cc ^ dd;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = cc ^ (bb | ~dd);
+                g = (7 * i) & 15;
+            }
+            int tmp = dd;
+            dd = cc;
+            cc = bb;
+            bb += Integer.rotateLeft(aa + f + K[i] + x[g], S[i]);
+            aa = tmp;
+        }
+        a += aa;
+        b += bb;
+        c += cc;
+        d += dd;
+    }
+
+    @Override
+    public String toString() {
+        return "ResumableMD5 [length=" + length + "]";
+    }
+}
@@ -19,9 +19,6 @@
 */
 package de.dal33t.powerfolder.util.delta;
 
-import de.dal33t.powerfolder.util.RingBuffer;
-
-
 /**
  * Adler32 implementation which supports rolling over data.
  * Although there is a java Adler32 implementation (even done in native code), it lacks
@@ -33,27 +30,42 @@ import de.dal33t.powerfolder.util.RingBuffer;
  */
 public final class RollingAdler32 implements RollingChecksum {
 	private final static int MOD_ADLER = 65521;
-	private final RingBuffer rbuf;
+	private final byte[] frame;
 	private final int n;
+	/** (n * b) % MOD_ADLER for every byte value b */
+	private final int[] outWeight = new int[256];
+
+	/** Position of the oldest byte in frame and number of bytes in it */
+	private int rpos, len;
 
 	/** Adler32 specific */
 	private int A = 1, B;
 
 	public RollingAdler32(int n) {
-		rbuf = new RingBuffer(n);
+		frame = new byte[n];
 		this.n = n;
+		for (int b = 0; b < outWeight.length; b++) {
+			outWeight[b] = (int) ((long) n * b % MOD_ADLER);
+		}
 	}
 
 	public void update(int nd) {
 		int fb = 0;
-		nd &= 0xff; // This allows update to be called with bytes directly
-
-		if (rbuf.remaining() == 0) {
-			fb = rbuf.read();
+		int wpos = rpos + len;
+		if (wpos >= n) {
+			wpos -= n;
+		}
+		if (len == n) {
+			fb = frame[rpos] & 0xff;
+			if (++rpos == n) {
+				rpos = 0;
+			}
 			B--;
+		} else {
+			len++;
 		}
-
-		rbuf.write(nd);
+		frame[wpos] = (byte) nd;
+		nd &= 0xff; // This allows update to be called with bytes directly
 
 		A = A + nd - fb;
 		if (A < 0) {
@@ -61,9 +73,15 @@ public final class RollingAdler32 implements RollingChecksum {
 		} else if (A >= MOD_ADLER) {
 			A -= MOD_ADLER;
 		}
-		B = (B + A - n * fb) % MOD_ADLER;
+		// B - 1 + A is within [-1, 2 * MOD_ADLER), the weight below MOD_ADLER
+		B = B + A - outWeight[fb];
 		if (B < 0) {
 			B += MOD_ADLER;
+			if (B < 0) {
+				B += MOD_ADLER;
+			}
+		} else if (B >= MOD_ADLER) {
+			B -= MOD_ADLER;
 		}
 	}
 
@@ -74,7 +92,8 @@ public final class RollingAdler32 implements RollingChecksum {
 	public void reset() {
 		A = 1;
 		B = 0;
-		rbuf.reset();
+		rpos = 0;
+		len = 0;
 	}
 
 	public void update(byte[] data, int ofs, int len) {
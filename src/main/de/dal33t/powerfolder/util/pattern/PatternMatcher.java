@@ -0,0 +1,418 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.pattern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * Matches texts against a whole set of {@link Pattern}s at once.
+ * <p>
+ * The patterns are compiled into:
+ * <ul>
+ * <li>a hash set of all {@link ExactMatchPattern}s</li>
+ * <li>a trie of all {@link StartMatchPattern}s</li>
+ * <li>a trie of the reversed {@link EndMatchPattern}s</li>
+ * <li>one automaton of all {@link CompiledPattern}s. It is determinized
+ * lazily while matching, so every character is only looked at once.</li>
+ * </ul>
+ * The state of the prefix trie and the automaton after the directory part of a
+ * relative name is remembered. Items of the same directory only need to match
+ * their file name. All other {@link Pattern} implementations are checked one by
+ * one.
+ * <p>
+ * Like the patterns all matching is case-insensitive. Instances are immutable
+ * and thread-safe.
+ *
+ * @author sprajc
+ */
+public class PatternMatcher {
+
+    /**
+     * Maximum number of cached automaton states.
+     */
+    private static final int MAX_STATES = 4096;
+
+    /**
+     * Maximum number of remembered directories.
+     */
+    private static final int MAX_DIRECTORIES = 1024;
+
+    private final Set<String> exact = new HashSet<String>();
+    private final Node prefixes = new Node();
+    private final Node suffixes = new Node();
+    private final Automaton automaton;
+    private final Pattern[] others;
+    private final Position start;
+    private final Map<String, Position> directories = Util
+        .createConcurrentHashMap();
+
+    /**
+     * @param patterns
+     *            the patterns to match on.
+     */
+    public PatternMatcher(@NotNull Collection<? extends Pattern> patterns) {
+        Reject.ifNull(patterns, "Patterns");
+        List<String> globs = new ArrayList<String>();
+        List<Pattern> otherList = new ArrayList<Pattern>();
+        for (Pattern pattern : patterns) {
+            String text = pattern.getPatternText();
+            if (pattern.getClass() == ExactMatchPattern.class) {
+                exact.add(text);
+            } else if (pattern.getClass() == StartMatchPattern.class) {
+                prefixes.add(text, false);
+            } else if (pattern.getClass() == EndMatchPattern.class) {
+                suffixes.add(text, true);
+            } else if (pattern.getClass() == CompiledPattern.class) {
+                globs.add(text);
+            } else {
+                otherList.add(pattern);
+            }
+        }
+        automaton = globs.isEmpty() ? null : new Automaton(globs);
+        others = otherList.toArray(new Pattern[otherList.size()]);
+        start = new Position(prefixes.isEmpty() ? null : prefixes,
+            automaton != null ? automaton.initial : null, prefixes.terminal);
+    }
+
+    /**
+     * @param matchString
+     *            the text to check, usually a relative name.
+     * @return true if any of the patterns matches.
+     */
+    public boolean isMatch(@NotNull String matchString) {
+        if (!exact.isEmpty()
+            && exact.contains(matchString.toLowerCase()))
+        {
+            return true;
+        }
+        if (!suffixes.isEmpty() && suffixes.matchesReverse(matchString)) {
+            return true;
+        }
+        if (start.isActive()) {
+            int nameStart = matchString.lastIndexOf('/') + 1;
+            Position position = start;
+            if (nameStart > 0) {
+                position = directory(matchString.substring(0, nameStart));
+            }
+            position = position.walk(matchString, nameStart,
+                matchString.length());
+            if (position.matched
+                || position.state != null && position.state.accept)
+            {
+                return true;
+            }
+        }
+        for (Pattern pattern : others) {
+            if (pattern.isMatch(matchString)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Position directory(String path) {
+        Position position = directories.get(path);
+        if (position == null) {
+            position = start.walk(path, 0, path.length());
+            if (directories.size() >= MAX_DIRECTORIES) {
+                directories.clear();
+            }
+            directories.put(path, position);
+        }
+        return position;
+    }
+
+    // Internal helper ********************************************************
+
+    /**
+     * The state of the prefix trie and the automaton after reading a part of
+     * the text.
+     */
+    private static final class Position {
+        /**
+         * Current node in the prefix trie or null if no prefix matches
+         * anymore.
+         */
+        final Node node;
+        /**
+         * Current state of the automaton or null if no glob matches anymore.
+         */
+        final State state;
+        /**
+         * A match, no matter what follows.
+         */
+        final boolean matched;
+
+        Position(Node node, State state, boolean matched) {
+            this.node = node;
+            this.state = state;
+            this.matched = matched;
+        }
+
+        boolean isActive() {
+            return matched || node != null || state != null;
+        }
+
+        Position walk(String text, int from, int to) {
+            if (matched) {
+                return this;
+            }
+            Node n = node;
+            State s = state;
+            for (int i = from; i < to && (n != null || s != null); i++) {
+                char c = Character.toLowerCase(text.charAt(i));
+                if (n != null) {
+                    n = n.child(c);
+                    if (n != null && n.terminal) {
+                        return new Position(null, null, true);
+                    }
+                }
+                if (s != null) {
+                    s = s.next(c);
+                    if (s.sure) {
+                        return new Position(null, null, true);
+                    }
+                    if (s.positions.length == 0) {
+                        s = null;
+                    }
+                }
+            }
+            if (n == node && s == state) {
+                return this;
+            }
+            return new Position(n, s, false);
+        }
+    }
+
+    /**
+     * Trie node of lower case characters. Not modified after construction.
+     */
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        boolean isEmpty() {
+            return keys.length == 0 && !terminal;
+        }
+
+        void add(String text, boolean reverse) {
+            Node node = this;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(reverse ? text.length() - 1 - i : i);
+                Node child = node.child(c);
+                if (child == null) {
+                    child = new Node();
+                    node.keys = Arrays.copyOf(node.keys, node.keys.length + 1);
+                    node.children = Arrays.copyOf(node.children,
+                        node.children.length + 1);
+                    node.keys[node.keys.length - 1] = c;
+                    node.children[node.children.length - 1] = child;
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        boolean matchesReverse(String text) {
+            if (terminal) {
+                return true;
+            }
+            Node node = this;
+            for (int i = text.length() - 1; i >= 0; i--) {
+                node = node.child(Character.toLowerCase(text.charAt(i)));
+                if (node == null) {
+                    return false;
+                }
+                if (node.terminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Nondeterministic automaton of all glob patterns. Every character of a
+     * pattern is a position. Every pattern ends with an accepting position.
+     * The deterministic states are sets of positions, created and cached on
+     * demand.
+     */
+    private static final class Automaton {
+        private final char[] chars;
+        private final boolean[] stars;
+        private final boolean[] accepting;
+        private final Map<BitSet, State> states = Util
+            .createConcurrentHashMap();
+        final State initial;
+
+        Automaton(List<String> globs) {
+            int size = 0;
+            for (String glob : globs) {
+                size += glob.length() + 1;
+            }
+            chars = new char[size];
+            stars = new boolean[size];
+            accepting = new boolean[size];
+            BitSet starts = new BitSet(size);
+            int p = 0;
+            for (String glob : globs) {
+                add(starts, p);
+                for (int i = 0; i < glob.length(); i++) {
+                    chars[p] = glob.charAt(i);
+                    stars[p] = chars[p] == '*';
+                    p++;
+                }
+                accepting[p] = true;
+                p++;
+            }
+            // Now that all positions are known.
+            BitSet closed = new BitSet(size);
+            for (int i = starts.nextSetBit(0); i >= 0; i = starts
+                .nextSetBit(i + 1))
+            {
+                add(closed, i);
+            }
+            initial = state(closed);
+        }
+
+        /**
+         * Adds the position and the positions reachable without consuming a
+         * character.
+         */
+        private void add(BitSet set, int p) {
+            while (p < chars.length && !set.get(p)) {
+                set.set(p);
+                if (!stars[p]) {
+                    break;
+                }
+                // A star may also match nothing.
+                p++;
+            }
+        }
+
+        State state(BitSet positions) {
+            State state = states.get(positions);
+            if (state != null) {
+                return state;
+            }
+            state = new State(this, positions);
+            if (states.size() < MAX_STATES) {
+                state.cached = true;
+                State existing = states.putIfAbsent(positions, state);
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            return state;
+        }
+
+        State next(State from, char c) {
+            BitSet next = new BitSet(chars.length);
+            for (int p : from.positions) {
+                if (accepting[p]) {
+                    continue;
+                }
+                if (stars[p]) {
+                    add(next, p);
+                } else if (chars[p] == c) {
+                    add(next, p + 1);
+                }
+            }
+            return state(next);
+        }
+    }
+
+    private static final class State {
+        private final Automaton automaton;
+        private final State[] ascii = new State[128];
+        private final Map<Character, State> unicode = Util
+            .createConcurrentHashMap();
+        final int[] positions;
+        final boolean accept;
+        /**
+         * True if a trailing star has been reached: Matches whatever follows.
+         */
+        final boolean sure;
+        /**
+         * Only transitions to cached states are remembered. Keeps the memory
+         * bounded for huge automatons.
+         */
+        boolean cached;
+
+        State(Automaton automaton, BitSet set) {
+            this.automaton = automaton;
+            positions = new int[set.cardinality()];
+            boolean a = false;
+            boolean s = false;
+            int i = 0;
+            for (int p = set.nextSetBit(0); p >= 0; p = set.nextSetBit(p + 1))
+            {
+                positions[i++] = p;
+                a |= automaton.accepting[p];
+                s |= automaton.stars[p] && automaton.accepting[p + 1];
+            }
+            accept = a;
+            sure = s;
+        }
+
+        State next(char c) {
+            if (c < ascii.length) {
+                State next = ascii[c];
+                if (next == null) {
+                    next = automaton.next(this, c);
+                    if (next.cached) {
+                        ascii[c] = next;
+                    }
+                }
+                return next;
+            }
+            State next = unicode.get(c);
+            if (next == null) {
+                next = automaton.next(this, c);
+                if (next.cached) {
+                    unicode.put(c, next);
+                }
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.clientserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageListener;
+import de.dal33t.powerfolder.message.clientserver.Request;
+import de.dal33t.powerfolder.message.clientserver.Response;
+import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the execution of concurrent requests over one connection.
+ *
+ * @author sprajc
+ */
+public class RequestExecutorTest extends TwoControllerTestCase {
+
+    private Member lisaAtBart;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connectBartAndLisa();
+        lisaAtBart = getContollerBart().getNodeManager().getNode(
+            getContollerLisa().getMySelf().getInfo());
+        Member bartAtLisa = getContollerLisa().getNodeManager().getNode(
+            getContollerBart().getMySelf().getInfo());
+        bartAtLisa.addMessageListener(new EchoListener());
+    }
+
+    public void testConcurrentRequests() throws Exception {
+        RequestExecutor executor = lisaAtBart.getRequestExecutor();
+        assertSame(executor, lisaAtBart.getRequestExecutor());
+
+        List<EchoRequest> requests = new ArrayList<>();
+        List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            EchoRequest request = new EchoRequest(i);
+            requests.add(request);
+            futures.add(executor.executeAsync(request));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            EchoResponse response = (EchoResponse) futures.get(i).get(30,
+                TimeUnit.SECONDS);
+            assertEquals(requests.get(i).getRequestId(), response.requestId);
+            assertEquals(i, response.value);
+        }
+        assertEquals(0, executor.countPendingRequests());
+
+        EchoResponse response = (EchoResponse) executor
+            .execute(new EchoRequest(4711));
+        assertEquals(4711, response.value);
+        assertTrue(RequestExecutor.getLatencies().containsKey(
+            EchoRequest.class.getName()));
+    }
+
+    public void testUnknownResponse() {
+        RequestExecutor executor = lisaAtBart.getRequestExecutor();
+        assertFalse(executor.responseReceived(new EchoResponse(
+            new EchoRequest(1))));
+    }
+
+    public void testDisconnect() throws Exception {
+        RequestExecutor executor = lisaAtBart.getRequestExecutor();
+        CompletableFuture<Response> future = executor
+            .executeAsync(new EchoRequest(-1));
+        disconnectBartAndLisa();
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail("Request not broken by disconnect");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ConnectionException);
+        }
+        assertEquals(0, executor.countPendingRequests());
+
+        try {
+            executor.execute(new EchoRequest(1));
+            fail("Request executed while disconnected");
+        } catch (ConnectionException e) {
+            // Expected
+        }
+    }
+
+    private static class EchoListener implements MessageListener {
+        public void handleMessage(Member source, Message message) {
+            if (!(message instanceof EchoRequest)) {
+                return;
+            }
+            EchoRequest request = (EchoRequest) message;
+            if (request.value < 0) {
+                // Never answer
+                return;
+            }
+            source.sendMessagesAsynchron(new EchoResponse(request));
+        }
+
+        public boolean fireInEventDispatchThread() {
+            return false;
+        }
+    }
+
+    private static class EchoRequest extends Request {
+        private static final long serialVersionUID = 100L;
+
+        private final int value;
+
+        EchoRequest(int value) {
+            this.value = value;
+        }
+    }
+
+    private static class EchoResponse extends Response {
+        private static final long serialVersionUID = 100L;
+
+        private final int value;
+
+        EchoResponse(EchoRequest request) {
+            super(request);
+            value = request.value;
+        }
+    }
+}
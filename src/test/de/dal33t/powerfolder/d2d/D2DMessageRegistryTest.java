@@ -0,0 +1,88 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.d2d;
+
+import junit.framework.TestCase;
+
+import com.google.protobuf.AbstractMessage;
+
+import de.dal33t.powerfolder.message.KnownNodes;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.Pong;
+
+/**
+ * Test of the reading and writing of messages with the
+ * {@link D2DMessageRegistry}.
+ *
+ * @author sprajc
+ */
+public class D2DMessageRegistryTest extends TestCase {
+
+    public void testReadWrite() throws Exception {
+        D2DMessageRegistry registry = D2DMessageRegistry.getInstance();
+        D2DMessageRegistry.Type type = registry.getType("Ping");
+        assertNotNull(type);
+        long received = type.getReceivedMessages();
+        long sent = type.getSentMessages();
+        long sentBytes = type.getSentBytes();
+
+        Ping ping = new Ping(10);
+        byte[] data = registry.write(ping);
+        assertEquals(sent + 1, type.getSentMessages());
+        assertEquals(sentBytes + data.length, type.getSentBytes());
+        assertEquals("Ping",
+            D2DMessageRegistry.readTypeName(data, data.length));
+
+        Object read = registry.read(data, data.length);
+        assertTrue(read instanceof Ping);
+        assertEquals(ping.id, ((Ping) read).id);
+        assertEquals(received + 1, type.getReceivedMessages());
+
+        Pong pong = new Pong(ping);
+        data = registry.write(pong);
+        assertTrue(registry.read(data, data.length) instanceof Pong);
+    }
+
+    public void testUnknownType() throws Exception {
+        D2DMessageRegistry registry = D2DMessageRegistry.getInstance();
+        AbstractMessage mesg = new Ping(0).toD2D();
+        byte[] data = mesg.toBuilder().setField(
+            mesg.getDescriptorForType().findFieldByName("clazzName"), "Unknown")
+            .build().toByteArray();
+        assertEquals("Unknown",
+            D2DMessageRegistry.readTypeName(data, data.length));
+        try {
+            registry.read(data, data.length);
+            fail("Read message of unknown type");
+        } catch (ClassNotFoundException e) {
+            // OK
+        }
+        assertNull(D2DMessageRegistry.readTypeName(new byte[0], 0));
+    }
+
+    public void testSupported() {
+        D2DMessageRegistry registry = D2DMessageRegistry.getInstance();
+        assertTrue(registry.isSupported(new Ping()));
+        assertFalse(registry.isSupported(new KnownNodes()));
+        for (D2DMessageRegistry.Type type : registry.getTypes()) {
+            assertNotNull(type.getName());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.PathUtils;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import junit.framework.TestCase;
+
+public class FileArchiveIndexTest extends TestCase {
+    private static final String NAME = "dir/file.txt";
+
+    private FolderInfo foInfo;
+    private MemberInfo mySelf;
+    private MemberInfo other;
+    private AccountInfo account;
+    private Path workDir;
+    private Path archiveDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("ArchiveFolder", IdGenerator.makeFolderId())
+            .intern();
+        mySelf = new MemberInfo("me", IdGenerator.makeId(), null);
+        other = new MemberInfo("other", IdGenerator.makeId(), null);
+        account = new AccountInfo(IdGenerator.makeId(), "user@example.com");
+        Path dir = TestHelper.getTestDir().resolve("FileArchiveIndexTest");
+        PathUtils.recursiveDelete(dir);
+        workDir = dir.resolve("work");
+        archiveDir = dir.resolve("archive");
+        Files.createDirectories(workDir);
+    }
+
+    public void testVersionIndex() throws IOException {
+        FileArchiver archiver = new FileArchiver(archiveDir, mySelf);
+        archive(archiver, 1, "first");
+        archive(archiver, 2, "second version");
+        assertTrue(archiver.hasArchivedFileInfo(createFileInfo(3, 0)));
+        assertFalse(archiver.hasArchivedFileInfo(FileInfoFactory
+            .archivedFile(foInfo, "dir/other.txt", null, 0, other, account,
+                new Date(), 1, null, null)));
+
+        List<FileInfo> versions = archiver
+            .getArchivedFilesInfos(createFileInfo(3, 0));
+        assertEquals(2, versions.size());
+        for (FileInfo version : versions) {
+            assertEquals(NAME, version.getRelativeName());
+            assertEquals(other, version.getModifiedBy());
+            assertEquals(account, version.getModifiedByAccount());
+        }
+        assertEquals("first".length() + "second version".length(),
+            archiver.getSize());
+
+        // Persisted index keeps the meta data
+        archiver.saveIndex();
+        archiver = new FileArchiver(archiveDir, mySelf);
+        versions = archiver.getArchivedFilesInfos(createFileInfo(3, 0));
+        assertEquals(2, versions.size());
+        assertEquals(other, versions.get(0).getModifiedBy());
+
+        // Unsaved changes (e.g. crash): Archive gets indexed again.
+        archive(archiver, 3, "third");
+        archiver = new FileArchiver(archiveDir, mySelf);
+        assertEquals(3,
+            archiver.getArchivedFilesInfos(createFileInfo(4, 0)).size());
+
+        // Version limit
+        archiver.setVersionsPerFile(2);
+        archive(archiver, 4, "fourth");
+        versions = archiver.getArchivedFilesInfos(createFileInfo(5, 0));
+        assertEquals(2, versions.size());
+        for (FileInfo version : versions) {
+            assertTrue(version.getVersion() >= 3);
+        }
+        assertTrue(archiver.maintain());
+        assertEquals(2,
+            archiver.getArchivedFilesInfos(createFileInfo(5, 0)).size());
+    }
+
+    public void testCleanupOldArchiveFiles() throws IOException {
+        FileArchiver archiver = new FileArchiver(archiveDir, mySelf);
+        long now = System.currentTimeMillis();
+        archive(archiver, 1, "old", now - 10L * 24 * 3600 * 1000);
+        archive(archiver, 2, "new", now);
+        archiver.cleanupOldArchiveFiles(new Date(now - 24L * 3600 * 1000));
+        List<FileInfo> versions = archiver
+            .getArchivedFilesInfos(createFileInfo(3, 0));
+        assertEquals(1, versions.size());
+        assertEquals(2, versions.get(0).getVersion());
+        assertEquals("new".length(), archiver.getSize());
+    }
+
+    public void testDeduplication() throws IOException {
+        FileArchiver archiver = new FileArchiver(archiveDir, mySelf);
+        archiver.setDeduplicate(true);
+        archive(archiver, 1, "same content");
+        archive(archiver, 2, "same content");
+        archive(archiver, 3, "other content");
+        assertEquals("same content".length() + "other content".length(),
+            archiver.getSize());
+
+        List<FileInfo> versions = archiver
+            .getArchivedFilesInfos(createFileInfo(4, 0));
+        assertEquals(3, versions.size());
+        assertNotNull(versions.get(0).getHashes());
+
+        // Removing one of the identical versions keeps the other.
+        archiver.setVersionsPerFile(2);
+        archive(archiver, 4, "newest content");
+        Path target = workDir.resolve("restored.txt");
+        for (FileInfo version : archiver
+            .getArchivedFilesInfos(createFileInfo(5, 0)))
+        {
+            assertTrue(version.getVersion() >= 3);
+        }
+        assertTrue(archiver.restore(createFileInfo(3, 0), target));
+        assertEquals("other content", new String(Files.readAllBytes(target)));
+        assertFalse(archiver.restore(createFileInfo(1, 0), target));
+    }
+
+    public void testDeduplicationLinkFailed() throws IOException {
+        FileArchiver archiver = new FileArchiver(archiveDir, mySelf);
+        archiver.setDeduplicate(true);
+        archive(archiver, 1, "same content");
+
+        // Archived file changed its size: Identical version can't be linked
+        Path archived;
+        try (Stream<Path> files = Files.walk(archiveDir)) {
+            archived = files.filter(Files::isRegularFile)
+                .filter(p -> p.getFileName().toString().startsWith("file"))
+                .findFirst().get();
+        }
+        Files.write(archived, "same content!".getBytes());
+        archive(archiver, 2, "same content");
+
+        // Both versions are stored separately
+        assertEquals("same content".length() * 2, archiver.getSize());
+
+        // Size counted from the index
+        archiver.saveIndex();
+        Files.delete(archiveDir.resolve("Size"));
+        archiver = new FileArchiver(archiveDir, mySelf);
+        assertEquals("same content".length() * 2, archiver.getSize());
+    }
+
+    private void archive(FileArchiver archiver, int version, String content)
+        throws IOException
+    {
+        archive(archiver, version, content, System.currentTimeMillis());
+    }
+
+    private void archive(FileArchiver archiver, int version, String content,
+        long modified) throws IOException
+    {
+        Path source = workDir.resolve("file.txt");
+        Files.write(source, content.getBytes());
+        archiver.archive(createFileInfo(version, content.length(), modified),
+            source, false);
+        assertFalse(Files.exists(source));
+    }
+
+    private FileInfo createFileInfo(int version, long size) {
+        return createFileInfo(version, size, System.currentTimeMillis());
+    }
+
+    private FileInfo createFileInfo(int version, long size, long modified) {
+        return FileInfoFactory.archivedFile(foInfo, NAME, null, size, other,
+            account, new Date(modified), version, null, null);
+    }
+}
@@ -1,9 +1,17 @@
 package de.dal33t.powerfolder.disk;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
 import java.util.logging.Level;
 
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.disk.dao.SyncStatistics;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.IdGenerator;
@@ -83,4 +91,203 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         assertNotNull(found);
         testAssertEquals(fInfoWithID_2, found);
     }
+
+    public void testDirectoryIndex() {
+        dao.store(null, createFileInfo("a/b/c/file1.txt", 1, false));
+        dao.store(null, createFileInfo("a/b/c/file2.txt", 1, false));
+        dao.store(null, createFileInfo("a/b/file3.txt", 1, false));
+        dao.store(null, createFileInfo("a/b/c", 1, true));
+        dao.store(null, createFileInfo("top.txt", 1, false));
+
+        // "a" and "a/b" are not stored
+        assertEquals(1, dao.findInDirectory(null, "", false).size());
+        assertEquals(0, dao.findInDirectory(null, "a", false).size());
+        assertEquals(2, dao.findInDirectory(null, "a/b", false).size());
+        assertEquals(4, dao.findInDirectory(null, "a", true).size());
+        assertEquals(5, dao.findInDirectory(null, "/", true).size());
+
+        // New version replaces the old one
+        FileInfo file1 = createFileInfo("a/b/c/file1.txt", 2, false);
+        dao.store(null, file1);
+        assertEquals(2, dao.findInDirectory(null, "a/b/c/", false).size());
+        for (FileInfo fInfo : dao.findInDirectory(null, "a/b/c/", false)) {
+            if (fInfo.equals(file1)) {
+                assertEquals(2, fInfo.getVersion());
+            }
+        }
+
+        // Directory replaced by a file
+        dao.store(null, createFileInfo("a/b/c", 2, false));
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setPath("a/b");
+        crit.setType(FileInfoCriteria.Type.DIRECTORIES_ONLY);
+        assertEquals(0, dao.findFiles(crit).size());
+
+        // Empty directories are removed from the index
+        dao.delete(null, createFileInfo("a/b/c/file1.txt", 2, false));
+        dao.delete(null, createFileInfo("a/b/c/file2.txt", 1, false));
+        assertEquals(0, dao.findInDirectory(null, "a/b/c", true).size());
+        assertEquals(3, dao.findInDirectory(null, "", true).size());
+
+        crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.setMaxResults(2);
+        assertEquals(2, dao.findFiles(crit).size());
+    }
+
+    public void testFindBySecondaryIndex() {
+        ((FileInfoDAOHashMapImpl) dao).setSecondaryIndexMinFiles(0);
+        testFindByOID();
+
+        String testID = IdGenerator.makeFileId();
+        FileInfo fInfo = FileInfoFactory.setOID(
+            createFileInfo("moved/File.txt", 3, false), testID);
+        dao.store("other", fInfo);
+        testAssertEquals(fInfo,
+            dao.findNewestByOID(testID, null, "other"));
+
+        // Older version of another file with the same OID
+        FileInfo older = FileInfoFactory.setOID(
+            createFileInfo("File.txt", 1, false), testID);
+        dao.store(null, older);
+        testAssertEquals(fInfo,
+            dao.findNewestByOID(testID, null, "other"));
+
+        // Index follows deletions and replacements
+        dao.delete("other", fInfo);
+        testAssertEquals(older, dao.findNewestByOID(testID, null, "other"));
+        dao.store(null, createFileInfo("File.txt", 2, false));
+        assertNull(dao.findNewestByOID(testID, null, "other"));
+
+        dao.deleteDomain(null, 0);
+        assertNull(dao.findNewestByOID(testID, null, "other"));
+
+        FileInfo template = createFileInfo("hashed.txt", 1, false);
+        FileInfo hashed = FileInfoFactory.unmarshallExistingFile(
+            template.getFolderInfo(), template.getRelativeName(), null, 100,
+            template.getModifiedBy(), template.getModifiedByAccount(),
+            template.getModifiedDate(), 1, "MD5:abc,SHA1:def", false, null);
+        dao.store(null, hashed);
+        testAssertEquals(hashed, dao.findNewestByHash("SHA1:def", null, "other"));
+        assertNull(dao.findNewestByHash("SHA1:xyz", null, "other"));
+    }
+
+    public void testFindByHashSameWithAndWithoutIndex() {
+        FileInfo template = createFileInfo("hashed.txt", 1, false);
+        FileInfo hashed = FileInfoFactory.unmarshallExistingFile(
+            template.getFolderInfo(), template.getRelativeName(), null, 100,
+            template.getModifiedBy(), template.getModifiedByAccount(),
+            template.getModifiedDate(), 1, "MD5:abc,SHA1:def", false, null);
+        dao.store(null, hashed);
+        for (int minFiles : new int[]{Integer.MAX_VALUE, 0}) {
+            ((FileInfoDAOHashMapImpl) dao).setSecondaryIndexMinFiles(minFiles);
+            testAssertEquals(hashed, dao.findNewestByHash("MD5:abc", "ME"));
+            testAssertEquals(hashed, dao.findNewestByHash("SHA1:def", "ME"));
+            assertNull(dao.findNewestByHash("SHA1:de", "ME"));
+            assertNull(dao.findNewestByHash("abc", "ME"));
+            assertNull(dao.findNewestByHash("MD5:abc,SHA1:def", "ME"));
+        }
+    }
+
+    public void testSyncStatistics() {
+        Set<String> sources = new HashSet<String>(Arrays.asList("ME", "A"));
+        Random r = new Random(7);
+        String[] domainIds = {"ME", "A", "B"};
+        for (int i = 0; i < 200; i++) {
+            String domain = domainIds[r.nextInt(domainIds.length)];
+            dao.store(domain, createFileInfo("file-" + r.nextInt(50), r
+                .nextInt(4), false));
+            if (i == 100) {
+                dao.rebuildSyncStatistics(sources);
+            }
+        }
+        dao.delete("A", createFileInfo("file-1", 0, false));
+        dao.deleteDomain("B", 0);
+        dao.store("B", createFileInfo("file-2", 9, false));
+
+        SyncStatistics stats = dao.getSyncStatistics();
+        assertSameStatistics(dao.rebuildSyncStatistics(sources), stats,
+            domainIds);
+        assertEquals(dao.findAllFiles("ME").size(), stats.getFilesCount("ME"));
+
+        // "B" is no version source
+        assertEquals(1, stats.getFilesCount("B"));
+        assertEquals(0, stats.getFilesCountInSync("B"));
+    }
+
+    public void testSyncStatisticsNewestRemoved() {
+        Set<String> sources = new HashSet<String>(Arrays.asList("ME", "A",
+            "C"));
+        Random r = new Random(11);
+        String[] domainIds = {"ME", "A", "B", "C"};
+        dao.rebuildSyncStatistics(sources);
+        for (int i = 0; i < 2000; i++) {
+            String domain = domainIds[r.nextInt(domainIds.length)];
+            FileInfo fInfo = createFileInfo("file-" + r.nextInt(30), r
+                .nextInt(4), false);
+            if (r.nextInt(4) == 0) {
+                dao.delete(domain, fInfo);
+            } else {
+                dao.store(domain, fInfo);
+            }
+        }
+        SyncStatistics stats = dao.getSyncStatistics();
+        assertSameStatistics(dao.rebuildSyncStatistics(sources), stats,
+            domainIds);
+
+        // Removes the newest versions held by "A"
+        dao.deleteDomain("A", 0);
+        stats = dao.getSyncStatistics();
+        assertSameStatistics(dao.rebuildSyncStatistics(sources), stats,
+            domainIds);
+    }
+
+    private static void assertSameStatistics(SyncStatistics expected,
+        SyncStatistics actual, String[] domainIds)
+    {
+        for (String domain : domainIds) {
+            assertEquals(expected.getFilesCount(domain),
+                actual.getFilesCount(domain));
+            assertEquals(expected.getFilesCountInSync(domain),
+                actual.getFilesCountInSync(domain));
+            assertEquals(expected.getSize(domain), actual.getSize(domain));
+            assertEquals(expected.getSizeInSync(domain),
+                actual.getSizeInSync(domain));
+        }
+        assertEquals(expected.getTotalFilesCount(),
+            actual.getTotalFilesCount());
+        assertEquals(expected.getTotalSize(), actual.getTotalSize());
+        assertEquals(expected.getIncomingFilesCount(),
+            actual.getIncomingFilesCount());
+    }
+
+    public void testIncoming() {
+        FileInfo file1 = createFileInfo("dir/file1.txt", 1, false);
+        FileInfo dir = createFileInfo("dir", 1, true);
+        dao.store("REMOTE", file1, dir);
+        assertEquals(2, dao.findIncoming("REMOTE").size());
+
+        // Same version locally
+        dao.store(null, file1, dir);
+        assertEquals(0, dao.findIncoming("REMOTE").size());
+
+        // Remote change
+        FileInfo file1v2 = createFileInfo("dir/file1.txt", 2, false);
+        dao.store("REMOTE", file1v2);
+        Collection<FileInfo> incoming = dao.findIncoming("REMOTE");
+        assertEquals(1, incoming.size());
+        assertEquals(2, incoming.iterator().next().getVersion());
+
+        // Removed locally, remote deleted items are not incoming
+        dao.delete(null, file1);
+        dao.store("REMOTE", FileInfoFactory.deletedFile(file1v2,
+            file1v2.getModifiedBy(), file1v2.getModifiedByAccount(),
+            new Date()));
+        assertEquals(0, dao.findIncoming("REMOTE").size());
+
+        dao.deleteDomain(null, 10);
+        assertEquals(1, dao.findIncoming("REMOTE").size());
+    }
 }
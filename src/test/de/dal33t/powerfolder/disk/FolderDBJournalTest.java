@@ -0,0 +1,223 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import junit.framework.TestCase;
+
+public class FolderDBJournalTest extends TestCase {
+    private static final long GENERATION = 4711L;
+
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+    private Path journalFile;
+    private FolderDBJournal journal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("JournalFolder", IdGenerator.makeFolderId())
+            .intern();
+        mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+        Path dir = TestHelper.getTestDir().resolve("FolderDBJournalTest");
+        Files.createDirectories(dir);
+        journalFile = dir.resolve("test.journal");
+        Files.deleteIfExists(journalFile);
+        journal = new FolderDBJournal();
+        journal.loaded(GENERATION, 0);
+    }
+
+    public void testAppendAndReplay() {
+        FileInfo a = createFileInfo("dir/a.txt", 1);
+        FileInfo b = createFileInfo("dir/b.txt", 1);
+        FileInfo c = createFileInfo("c.txt", 3);
+        journal.stored(a);
+        journal.stored(b);
+        journal.deleted(c);
+        assertEquals(3, journal.append(journalFile, new MemberInfo[]{mInfo},
+            new Date()));
+
+        FileInfo a2 = createFileInfo("dir/a.txt", 2);
+        journal.stored(a2);
+        journal.deleted(b);
+        assertEquals(2, journal.append(journalFile, new MemberInfo[]{mInfo},
+            new Date()));
+        // Nothing pending
+        assertEquals(0, journal.append(journalFile, new MemberInfo[]{mInfo},
+            new Date()));
+
+        List<FileInfo[]> stored = new ArrayList<>();
+        List<FileInfo[]> deleted = new ArrayList<>();
+        int blocks = journal.replay(journalFile, GENERATION,
+            (s, d, members, lastScan) -> {
+                stored.add(s);
+                deleted.add(d);
+                assertEquals(1, members.length);
+                assertNotNull(lastScan);
+            });
+        assertEquals(3, blocks);
+        assertEquals(2, stored.get(0).length);
+        assertEquals(1, deleted.get(0).length);
+        assertEquals(c, deleted.get(0)[0]);
+        assertEquals(1, stored.get(1).length);
+        assertEquals(2, stored.get(1)[0].getVersion());
+        assertEquals(b, deleted.get(1)[0]);
+
+        // Other generation. Must be ignored
+        assertEquals(0, journal.replay(journalFile, GENERATION + 1,
+            (s, d, members, lastScan) -> fail("Wrong generation replayed")));
+    }
+
+    public void testTruncatedBlock() throws IOException {
+        journal.stored(createFileInfo("a.txt", 1));
+        assertEquals(1, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        // Simulate crash while writing the second block
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(
+            journalFile, StandardOpenOption.APPEND)))
+        {
+            out.writeInt(10000);
+            out.write(new byte[100]);
+        }
+        assertEquals(1, journal.replay(journalFile, GENERATION,
+            (s, d, members, lastScan) -> assertEquals(1, s.length)));
+    }
+
+    public void testAppendAfterTruncatedBlock() throws IOException {
+        journal.stored(createFileInfo("a.txt", 1));
+        assertEquals(1, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        long goodSize = Files.size(journalFile);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(
+            journalFile, StandardOpenOption.APPEND)))
+        {
+            out.writeInt(10000);
+            out.write(new byte[100]);
+        }
+
+        // Load: Replays the good block and cuts off the torn tail
+        assertEquals(1, journal.replay(journalFile, GENERATION,
+            (s, d, members, lastScan) -> assertEquals(1, s.length)));
+        journal.loaded(GENERATION, 1);
+        assertEquals(goodSize, Files.size(journalFile));
+
+        // Changes after load must survive the next load
+        journal.stored(createFileInfo("b.txt", 1));
+        assertEquals(1, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        List<FileInfo> replayed = new ArrayList<>();
+        assertEquals(2, journal.replay(journalFile, GENERATION,
+            (s, d, members, lastScan) -> replayed.add(s[0])));
+        assertEquals("a.txt", replayed.get(0).getRelativeName());
+        assertEquals("b.txt", replayed.get(1).getRelativeName());
+    }
+
+    public void testCorruptBlockLength() throws IOException {
+        journal.stored(createFileInfo("a.txt", 1));
+        assertEquals(1, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        long goodSize = Files.size(journalFile);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(
+            journalFile, StandardOpenOption.APPEND)))
+        {
+            out.writeInt(-1);
+            out.write(new byte[20]);
+        }
+        assertEquals(1, journal.replay(journalFile, GENERATION,
+            (s, d, members, lastScan) -> assertEquals(1, s.length)));
+        journal.loaded(GENERATION, 1);
+        assertEquals(goodSize, Files.size(journalFile));
+        assertTrue(journal.isAppendable(10, 20));
+    }
+
+    public void testHugeBlockLength() throws IOException {
+        journal.stored(createFileInfo("a.txt", 1));
+        assertEquals(1, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        long goodSize = Files.size(journalFile);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(
+            journalFile, StandardOpenOption.APPEND)))
+        {
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(new byte[20]);
+        }
+        assertEquals(1, journal.replay(journalFile, GENERATION,
+            (s, d, members, lastScan) -> assertEquals(1, s.length)));
+        journal.loaded(GENERATION, 1);
+        assertEquals(goodSize, Files.size(journalFile));
+        assertTrue(journal.isAppendable(10, 20));
+    }
+
+    public void testSnapshot() {
+        journal.stored(createFileInfo("a.txt", 1));
+        assertEquals(1, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        assertTrue(Files.exists(journalFile));
+
+        journal.stored(createFileInfo("b.txt", 1));
+        long newGeneration = journal.startSnapshot();
+        assertTrue(newGeneration != GENERATION);
+        journal.snapshotWritten(journalFile, newGeneration);
+        assertTrue(Files.notExists(journalFile));
+        assertTrue(journal.isAppendable(10, 20));
+
+        // Domain replaced: Requires full snapshot
+        journal.domainCleared();
+        assertFalse(journal.isAppendable(10, 20));
+    }
+
+    public void testCompaction() {
+        for (int i = 0; i < 1500; i++) {
+            journal.stored(createFileInfo("file-" + i, 1));
+        }
+        // 20% of 10000 items = 2000 records allowed
+        assertTrue(journal.isAppendable(10000, 20));
+        // Minimum of 1000 records
+        assertFalse(journal.isAppendable(100, 20));
+
+        assertEquals(1500, journal.append(journalFile, new MemberInfo[0],
+            new Date()));
+        for (int i = 0; i < 600; i++) {
+            journal.stored(createFileInfo("file-" + i, 2));
+        }
+        assertFalse(journal.isAppendable(10000, 20));
+    }
+
+    private FileInfo createFileInfo(String name, int version) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, null, 100,
+            mInfo, new AccountInfo(IdGenerator.makeId(), "user"), new Date(),
+            version, null, false, null);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the background and on demand loading of folders from the config.
+ *
+ * @author sprajc
+ */
+public class FolderLoaderTest extends ControllerTestCase {
+
+    public void testLoadRegisteredFolders() throws Exception {
+        FolderRepository repo = getController().getFolderRepository();
+        FolderLoader loader = repo.getFolderLoader();
+        int registeredBefore = loader.getRegisteredCount();
+
+        List<FolderInfo> foInfos = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            FolderInfo foInfo = new FolderInfo("lazy" + i, UUID.randomUUID()
+                .toString());
+            Path baseDir = TestHelper.getTestDir().resolve("lazy" + i)
+                .toAbsolutePath();
+            Files.createDirectories(baseDir);
+            TestHelper.createRandomFile(baseDir, 10);
+            FolderSettings settings = new FolderSettings(baseDir,
+                SyncProfile.HOST_FILES, 0);
+            repo.saveFolderConfig(foInfo, settings, false);
+            loader.register(settings.getConfigEntryId(), foInfo);
+            assertTrue(repo.hasJoinedFolder(foInfo));
+            foInfos.add(foInfo);
+        }
+
+        // Demand
+        Folder folder = repo.getFolder(foInfos.get(7));
+        assertNotNull(folder);
+        assertEquals(foInfos.get(7), folder.getInfo());
+        assertSame(folder, repo.getFolder(foInfos.get(7)));
+
+        loader.waitForReady();
+        assertTrue(loader.isReady());
+        assertEquals(0, loader.getPendingCount());
+        assertEquals(registeredBefore + 8, loader.getRegisteredCount());
+        assertTrue(loader.getLoadedCount() >= 8);
+        assertTrue(loader.getTimeToReady().getCount() >= 8);
+        assertTrue(loader.getStartupMillis() >= 0);
+        for (FolderInfo foInfo : foInfos) {
+            assertNotNull(repo.getFolder(foInfo));
+        }
+        assertEquals(8, repo.getFoldersCount());
+
+        // Not registered
+        assertNull(loader.demand(new FolderInfo("unknown", UUID.randomUUID()
+            .toString())));
+    }
+
+    public void testRegisteredNotLoaded() throws Exception {
+        FolderRepository repo = getController().getFolderRepository();
+        FolderLoader loader = repo.getFolderLoader();
+        // Keep registered folders unloaded
+        loader.shutdown();
+
+        FolderInfo foInfo = new FolderInfo("unloaded", UUID.randomUUID()
+            .toString());
+        Path baseDir = TestHelper.getTestDir().resolve("unloaded")
+            .toAbsolutePath();
+        Files.createDirectories(baseDir);
+        FolderSettings settings = new FolderSettings(baseDir,
+            SyncProfile.HOST_FILES, 0);
+        repo.saveFolderConfig(foInfo, settings, false);
+        loader.register(settings.getConfigEntryId(), foInfo);
+        assertTrue(repo.hasJoinedFolder(foInfo));
+        assertTrue(repo.getJoinedFolderInfos().contains(foInfo));
+
+        // Not on the directory of the unloaded folder
+        FolderInfo other = new FolderInfo("other", UUID.randomUUID()
+            .toString());
+        try {
+            repo.createFolder(other, new FolderSettings(baseDir,
+                SyncProfile.HOST_FILES, 0));
+            fail("Created duplicate folder on directory of unloaded folder");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertFalse(repo.hasJoinedFolder(other));
+
+        loader.start();
+        loader.waitForReady();
+        assertNotNull(repo.getFolder(foInfo));
+        assertTrue(repo.getJoinedFolderInfos().contains(foInfo));
+    }
+
+    public void testIllegalEntry() throws Exception {
+        FolderRepository repo = getController().getFolderRepository();
+        FolderLoader loader = repo.getFolderLoader();
+        int failedBefore = loader.getFailedCount();
+
+        // No settings in config
+        FolderInfo foInfo = new FolderInfo("broken", UUID.randomUUID()
+            .toString());
+        loader.register("broken", foInfo);
+        assertNull(repo.getFolder(foInfo));
+        assertFalse(repo.hasJoinedFolder(foInfo));
+        assertEquals(failedBefore + 1, loader.getFailedCount());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.event.FolderRepositoryAdapter;
+import de.dal33t.powerfolder.event.FolderRepositoryEvent;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the parallel maintenance of many folders.
+ *
+ * @author sprajc
+ */
+public class FolderMaintenanceSchedulerTest extends ControllerTestCase {
+
+    public void testMaintainManyFolders() {
+        final FolderMaintenanceScheduler scheduler = getController()
+            .getFolderRepository().getMaintenanceScheduler();
+        final AtomicInteger maintaining = new AtomicInteger();
+        final AtomicInteger maxMaintaining = new AtomicInteger();
+        getController().getFolderRepository().addFolderRepositoryListener(
+            new FolderRepositoryAdapter() {
+                @Override
+                public void maintenanceStarted(FolderRepositoryEvent e) {
+                    maxMaintaining.accumulateAndGet(
+                        maintaining.incrementAndGet(), Math::max);
+                }
+
+                @Override
+                public void maintenanceFinished(FolderRepositoryEvent e) {
+                    maintaining.decrementAndGet();
+                }
+
+                @Override
+                public boolean fireInEventDispatchThread() {
+                    return false;
+                }
+            });
+
+        final List<Folder> folders = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Path baseDir = TestHelper.getTestDir().resolve("folder" + i);
+            Folder folder = joinFolder(new FolderInfo("folder" + i, UUID
+                .randomUUID().toString()), baseDir,
+                SyncProfile.HOST_FILES);
+            TestHelper.createRandomFile(baseDir, 10);
+            folder.recommendScanOnNextMaintenance(true);
+            folders.add(folder);
+        }
+        getController().getFolderRepository().triggerMaintenance();
+
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                for (Folder folder : folders) {
+                    if (scheduler.getStats(folder.getInfo()) == null
+                        || folder.getKnownItemCount() != 1)
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+
+        int perDisk = ConfigurationEntry.FOLDER_MAINTENANCE_MAX_PER_DISK
+            .getValueInt(getController());
+        assertTrue("Too many folders maintained on one disk: "
+            + maxMaintaining.get(), maxMaintaining.get() <= perDisk);
+        assertTrue(scheduler.getQueueWait().getCount() >= folders.size());
+        assertTrue(scheduler.getDuration().getCount() >= folders.size());
+        assertTrue(scheduler.getStats(folders.get(0).getInfo()).getDuration() > 0);
+
+        // Removed folders are forgotten
+        Folder removed = folders.get(0);
+        getController().getFolderRepository().removeFolder(removed, true);
+        assertNull(scheduler.getStats(removed.getInfo()));
+        assertFalse(scheduler.isScheduled(removed));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import junit.framework.TestCase;
+
+public class MovementDetectorTest extends TestCase {
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+    private AccountInfo aInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("MoveFolder", IdGenerator.makeFolderId())
+            .intern();
+        mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+        aInfo = new AccountInfo(IdGenerator.makeId(), "user");
+    }
+
+    public void testMovedDirs() {
+        assertDirs("a", "b", "a/f.txt", "b/f.txt");
+        assertDirs("a", "b", "a/x/f.txt", "b/x/f.txt");
+        assertDirs("a/x", "b/y", "a/x/f.txt", "b/y/f.txt");
+        assertDirs("a", "b/a", "a/x/f.txt", "b/a/x/f.txt");
+        assertNull(MovementDetector.movedDirs("f.txt", "g.txt"));
+        assertNull(MovementDetector.movedDirs("f.txt", "sub/f.txt"));
+        assertNull(MovementDetector.movedDirs("sub/f.txt", "f.txt"));
+        assertNull(MovementDetector.movedDirs("a/f.txt", "b/g.txt"));
+    }
+
+    public void testFileMoves() {
+        List<FileInfo> gone = new ArrayList<FileInfo>();
+        List<FileInfo> found = new ArrayList<FileInfo>();
+        FileInfo renamedFrom = file("a.txt", 10, 1000, null);
+        FileInfo renamedTo = file("b.txt", 10, 1000, null);
+        FileInfo movedFrom = file("c.txt", 20, 1000, null);
+        FileInfo movedTo = file("sub/c.txt", 20, 1000, null);
+        gone.add(renamedFrom);
+        gone.add(movedFrom);
+        gone.add(file("deleted.txt", 30, 1000, null));
+        found.add(renamedTo);
+        found.add(movedTo);
+        found.add(file("new.txt", 30, 2000, null));
+        found.add(dir("sub"));
+
+        Map<FileInfo, FileInfo> moves = MovementDetector.findMovements(gone,
+            found);
+        assertEquals(moves.toString(), 2, moves.size());
+        assertSame(renamedTo, moves.get(renamedFrom));
+        assertSame(movedTo, moves.get(movedFrom));
+    }
+
+    public void testHashDecides() {
+        List<FileInfo> gone = new ArrayList<FileInfo>();
+        List<FileInfo> found = new ArrayList<FileInfo>();
+        FileInfo from = file("a.txt", 10, 1000, "HASH1");
+        FileInfo other = file("x/a.txt", 10, 1000, "HASH2");
+        FileInfo to = file("y/b.txt", 10, 1000, "HASH1");
+        gone.add(from);
+        found.add(other);
+        found.add(to);
+        Map<FileInfo, FileInfo> moves = MovementDetector.findMovements(gone,
+            found);
+        assertSame(to, moves.get(from));
+
+        found.remove(to);
+        moves = MovementDetector.findMovements(gone, found);
+        assertTrue(moves.toString(), moves.isEmpty());
+    }
+
+    public void testSubtreeMove() {
+        List<FileInfo> gone = new ArrayList<FileInfo>();
+        List<FileInfo> found = new ArrayList<FileInfo>();
+        FileInfo fromDir = dir("old");
+        FileInfo toDir = dir("new/old");
+        gone.add(fromDir);
+        gone.add(dir("old/sub"));
+        found.add(dir("new"));
+        found.add(toDir);
+        found.add(dir("new/old/sub"));
+        for (int i = 0; i < 100; i++) {
+            gone.add(file("old/sub/f" + i, i, 1000, null));
+            found.add(file("new/old/sub/f" + i, i, 1000, null));
+            gone.add(file("old/g" + i, 1000 + i, 1000, null));
+            found.add(file("new/old/g" + i, 1000 + i, 1000, null));
+        }
+        Map<FileInfo, FileInfo> moves = MovementDetector.findMovements(gone,
+            found);
+        assertEquals(moves.toString(), 1, moves.size());
+        assertSame(toDir, moves.get(fromDir));
+
+        // One file moved elsewhere: No subtree move
+        gone.add(file("old/h", 5000, 1000, null));
+        found.add(file("other/h", 5000, 1000, null));
+        moves = MovementDetector.findMovements(gone, found);
+        assertEquals(201, moves.size());
+        assertFalse(moves.containsKey(fromDir));
+    }
+
+    private void assertDirs(String from, String to, String fromFile,
+        String toFile)
+    {
+        String[] dirs = MovementDetector.movedDirs(fromFile, toFile);
+        assertNotNull(dirs);
+        assertEquals(from, dirs[0]);
+        assertEquals(to, dirs[1]);
+    }
+
+    private FileInfo file(String name, long size, long date, String hashes) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, null,
+            size, mInfo, aInfo, new Date(date), 1, hashes, false, null);
+    }
+
+    private FileInfo dir(String name) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, null, 0,
+            mInfo, aInfo, new Date(), 1, null, true, null);
+    }
+}
@@ -156,6 +156,23 @@ public class FolderScannerTest extends ControllerTestCase {
         assertEquals("Scanned size mismatch", totalSize, scannedSize);
     }
 
+    public void testPhaseTimes() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            TestHelper.createRandomFile(getFolder().getLocalBase().resolve(
+                "sub" + i + "/subsub"));
+        }
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        // 10 files + 20 dirs
+        assertEquals(result.toString(), 30, result.getNewFiles().size());
+        assertEquals(30, result.getTotalFilesCount());
+        for (ScanResult.ScanPhase phase : ScanResult.ScanPhase.values()) {
+            assertTrue(phase + " not timed: " + result,
+                result.getPhaseTime(phase) >= 0);
+        }
+        assertFalse(folderScanner.isScanning(getFolder()));
+    }
+
     private ScanResult scanFolderWaitIfBusy(final FolderScanner folderScanner) {
         ScanResult result;
         boolean scannerBusy;
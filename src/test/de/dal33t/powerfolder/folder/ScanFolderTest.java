@@ -30,7 +30,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 
-import de.dal33t.powerfolder.disk.FolderWatcher;
 import de.dal33t.powerfolder.disk.SyncProfile;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
@@ -698,8 +697,8 @@ public class ScanFolderTest extends ControllerTestCase {
      */
     public void testScanDirMovementWithWatcher() throws IOException {
         getController().setPaused(false);
-        if (!FolderWatcher.isLibLoaded()) {
-            System.err.println("NOT testing with file watcher. Lib not loaded");
+        if (!getFolder().getFolderWatcher().isSupported()) {
+            System.err.println("NOT testing with file watcher. Not supported");
             return;
         }
         LoggingManager.setConsoleLogging(Level.WARNING);
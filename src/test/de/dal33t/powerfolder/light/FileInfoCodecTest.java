@@ -0,0 +1,178 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+public class FileInfoCodecTest extends TestCase {
+
+    public void testRoundtrip() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Codec folder",
+            IdGenerator.makeFolderId()).intern();
+        MemberInfo mInfo = new MemberInfo("bart", IdGenerator.makeId(), null);
+        AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(), "bart@x.y");
+
+        FileInfo[] fInfos = new FileInfo[5];
+        fInfos[0] = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/sub/file.txt", IdGenerator.makeFileId(), 4711L, mInfo, aInfo,
+            new Date(1500000000000L), 3, "MD5:abc", false, "tag1");
+        fInfos[1] = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/sub/file2.txt", null, 0, mInfo, null, new Date(), 0, null,
+            false, null);
+        fInfos[2] = FileInfoFactory.unmarshallDeletedFile(foInfo,
+            "dir/other.doc", null, null, aInfo, new Date(), 12, null, false,
+            null);
+        fInfos[3] = FileInfoFactory.unmarshallExistingFile(foInfo, "dir",
+            null, 0, mInfo, aInfo, new Date(), 1, null, true, null);
+        fInfos[4] = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "ä/ö/ü - unicode €.txt", null, Long.MAX_VALUE, mInfo, aInfo,
+            new Date(), Integer.MAX_VALUE, null, false, null);
+        fInfos[4].setPreviousSize(42L);
+        fInfos[4].setReupload(true);
+
+        FileInfo[] copy = roundtrip(fInfos);
+        assertEquals(fInfos.length, copy.length);
+        for (int i = 0; i < fInfos.length; i++) {
+            FileInfo expected = fInfos[i];
+            FileInfo actual = copy[i];
+            assertEquals(expected, actual);
+            assertEquals(expected.isDiretory(), actual.isDiretory());
+            assertEquals(expected.isDeleted(), actual.isDeleted());
+            assertEquals(expected.getSize(), actual.getSize());
+            assertEquals(expected.getPreviousSize(), actual.getPreviousSize());
+            assertEquals(expected.getVersion(), actual.getVersion());
+            assertEquals(expected.getModifiedDate(), actual.getModifiedDate());
+            assertEquals(expected.getModifiedBy(), actual.getModifiedBy());
+            assertEquals(expected.getModifiedByAccount(),
+                actual.getModifiedByAccount());
+            assertEquals(expected.getOID(), actual.getOID());
+            assertEquals(expected.getHashes(), actual.getHashes());
+            assertEquals(expected.getTags(), actual.getTags());
+            assertEquals(expected.isReupload(), actual.isReupload());
+            assertSame(foInfo, actual.getFolderInfo());
+        }
+    }
+
+    public void testSurrogatePairNames() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Codec folder",
+            IdGenerator.makeFolderId()).intern();
+        MemberInfo mInfo = new MemberInfo("bart", IdGenerator.makeId(), null);
+        FileInfo[] fInfos = new FileInfo[3];
+        fInfos[0] = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/a\uD83D\uDE00.txt", null, 1, mInfo, null, new Date(), 0,
+            null, false, null);
+        fInfos[1] = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/a\uD83D\uDE01.txt", null, 2, mInfo, null, new Date(), 0,
+            null, false, null);
+        fInfos[2] = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/a\uD83D\uDE01\uD83D\uDE02.txt", null, 3, mInfo, null,
+            new Date(), 0, null, false, null);
+
+        FileInfo[] copy = roundtrip(fInfos);
+        assertEquals(fInfos.length, copy.length);
+        for (int i = 0; i < fInfos.length; i++) {
+            assertEquals(fInfos[i].getRelativeName(),
+                copy[i].getRelativeName());
+        }
+    }
+
+    public void testSignedAndNullValues() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Codec folder",
+            IdGenerator.makeFolderId()).intern();
+        MemberInfo mInfo = new MemberInfo("bart", IdGenerator.makeId(), null);
+        FileInfo[] fInfos = new FileInfo[3];
+        fInfos[0] = FileInfoFactory.unmarshallExistingFile(foInfo, "a.txt",
+            null, -1L, mInfo, null, new Date(), -3, null, false, null);
+        fInfos[0].setPreviousSize(null);
+        fInfos[1] = FileInfoFactory.unmarshallExistingFile(foInfo, "b.txt",
+            null, Long.MIN_VALUE, mInfo, null, new Date(),
+            Integer.MIN_VALUE, null, false, null);
+        fInfos[1].setPreviousSize(-42L);
+        fInfos[2] = FileInfoFactory.unmarshallExistingFile(foInfo, "c.txt",
+            null, Long.MAX_VALUE, mInfo, null, new Date(),
+            Integer.MAX_VALUE, null, false, null);
+        fInfos[2].setPreviousSize(Long.MAX_VALUE);
+
+        FileInfo[] copy = roundtrip(fInfos);
+        for (int i = 0; i < fInfos.length; i++) {
+            assertEquals(fInfos[i].getSize(), copy[i].getSize());
+            assertEquals(fInfos[i].getPreviousSize(),
+                copy[i].getPreviousSize());
+            assertEquals(fInfos[i].getVersion(), copy[i].getVersion());
+            assertEquals(fInfos[i].getModifiedDate(),
+                copy[i].getModifiedDate());
+        }
+        assertNull(copy[0].getPreviousSize());
+    }
+
+    public void testSmallerThanSerialization() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Codec folder",
+            IdGenerator.makeFolderId()).intern();
+        MemberInfo mInfo = new MemberInfo("bart", IdGenerator.makeId(), null);
+        AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(), "bart@x.y");
+        FileInfo[] fInfos = new FileInfo[1000];
+        for (int i = 0; i < fInfos.length; i++) {
+            fInfos[i] = FileInfoFactory.unmarshallExistingFile(foInfo,
+                "projects/2016/customer/documents/file-" + i + ".pdf", null,
+                i * 1000L, mInfo, aInfo, new Date(), i % 10, null, false, null);
+        }
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(plain)) {
+            FileInfoCodec.writeObject(out, fInfos, false);
+        }
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(compact)) {
+            FileInfoCodec.writeObject(out, fInfos, true);
+        }
+        assertTrue("Compact encoding not smaller: " + compact.size() + " vs. "
+            + plain.size(), compact.size() * 3 < plain.size());
+
+        // Both readable
+        try (ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(plain.toByteArray())))
+        {
+            assertEquals(fInfos.length, FileInfoCodec.readObject(in).length);
+        }
+        assertEquals(fInfos.length, roundtrip(fInfos).length);
+    }
+
+    private static FileInfo[] roundtrip(FileInfo[] fInfos) throws IOException,
+        ClassNotFoundException
+    {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bOut)) {
+            FileInfoCodec.writeObject(out, fInfos, true);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bOut.toByteArray())))
+        {
+            return FileInfoCodec.readObject(in);
+        }
+    }
+}
@@ -19,7 +19,15 @@
  */
 package de.dal33t.powerfolder.message;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -30,6 +38,7 @@ import de.dal33t.powerfolder.disk.DiskItemFilter;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.util.IdGenerator;
 
 /**
@@ -200,6 +209,49 @@ public class FileListTest extends TestCase {
         }
     }
 
+    public void testExtVersions() throws Exception {
+        FolderInfo foInfo = createRandomFolderInfo();
+        MemberInfo mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+        FileInfo[] files = new FileInfo[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = FileInfoFactory.unmarshallExistingFile(foInfo,
+                "dir/file-" + i, null, i * 1000, mInfo, null, new Date(), i,
+                null, false, null);
+        }
+
+        FileListExt list = new FileListExt(foInfo, files, 2);
+        assertEquals(101L, readExtVersion(list));
+        assertEquals(100L, readExtVersion(list.withoutCodec()));
+        FileListExt listCopy = new FileListExt();
+        listCopy.readExternal(writeExternal(list.withoutCodec()));
+        assertEquals(2, listCopy.nFollowingDeltas);
+        assertEquals(Arrays.asList(files), Arrays.asList(listCopy.files));
+
+        FolderFilesChangedExt changes = new FolderFilesChangedExt(foInfo,
+            files);
+        assertEquals(101L, readExtVersion(changes));
+        assertEquals(100L, readExtVersion(changes.withoutCodec()));
+        FolderFilesChangedExt changesCopy = new FolderFilesChangedExt();
+        changesCopy.readExternal(writeExternal(changes.withoutCodec()));
+        assertEquals(Arrays.asList(files),
+            Arrays.asList(changesCopy.getFiles()));
+    }
+
+    private static long readExtVersion(Externalizable msg) throws IOException {
+        return writeExternal(msg).readLong();
+    }
+
+    private static ObjectInput writeExternal(Externalizable msg)
+        throws IOException
+    {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bOut)) {
+            msg.writeExternal(out);
+        }
+        return new ObjectInputStream(new ByteArrayInputStream(
+            bOut.toByteArray()));
+    }
+
     private static FileInfo createRandomFileInfo(int n) {
         FolderInfo foInfo = createRandomFolderInfo();
         boolean dir = Math.random() > 0.70f;
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the asynchronous message sender of socket connections.
+ *
+ * @author sprajc
+ */
+public class MessageSenderTest extends TwoControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        connectBartAndLisa();
+    }
+
+    public void testCoalesceQueuedMessages() {
+        Member lisaAtBart = getContollerBart().getNodeManager().getNode(
+            getContollerLisa().getMySelf().getInfo());
+        assertTrue(lisaAtBart.getPeer() instanceof AbstractSocketConnectionHandler);
+        final AbstractSocketConnectionHandler peer = (AbstractSocketConnectionHandler) lisaAtBart
+            .getPeer();
+        final long sentBefore = peer.getSentMessagesCount();
+        final long writesBefore = peer.getSendWritesCount();
+
+        int nMessages = 1000;
+        Message[] pings = new Message[nMessages];
+        for (int i = 0; i < pings.length; i++) {
+            pings[i] = new Ping(100);
+        }
+        peer.sendMessagesAsynchron(pings);
+
+        TestHelper.waitForCondition(10, new ConditionWithMessage() {
+            public boolean reached() {
+                return peer.getSendQueueSize() == 0
+                    && peer.getBytesInFlight() == 0;
+            }
+
+            public String message() {
+                return "Send queue: " + peer.getSendQueueSize()
+                    + ", bytes in flight: " + peer.getBytesInFlight();
+            }
+        });
+        assertTrue(lisaAtBart.isCompletelyConnected());
+        long sent = peer.getSentMessagesCount() - sentBefore;
+        long writes = peer.getSendWritesCount() - writesBefore;
+        assertTrue("Sent: " + sent, sent >= nMessages);
+        assertTrue("Writes: " + writes + ", messages: " + sent, writes < sent);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.security.SecurityManagerClient.PermissionsCacheSegment;
+
+/**
+ * Tests the caching, coalescing and refreshing of permissions.
+ *
+ * @author sprajc
+ */
+public class PermissionsCacheSegmentTest extends TestCase {
+    private FolderInfo foInfo = new FolderInfo("myFolder", "4711");
+
+    public void testHitsAndMisses() {
+        PermissionsCacheSegment cache = new PermissionsCacheSegment();
+        assertNull(cache.hasPermission(FolderPermission.read(foInfo)));
+        cache.set(FolderPermission.read(foInfo), Boolean.TRUE);
+        cache.set(FolderPermission.admin(foInfo), Boolean.FALSE);
+        assertEquals(Boolean.TRUE,
+            cache.hasPermission(FolderPermission.read(foInfo)));
+        assertEquals(Boolean.FALSE,
+            cache.hasPermission(FolderPermission.admin(foInfo)));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testExpiry() throws InterruptedException {
+        PermissionsCacheSegment cache = new PermissionsCacheSegment(10, 50);
+        cache.set(AdminPermission.INSTANCE, Boolean.TRUE);
+        assertEquals(Boolean.TRUE, cache.hasPermission(AdminPermission.INSTANCE));
+        Thread.sleep(100);
+        assertNull(cache.hasPermission(AdminPermission.INSTANCE));
+    }
+
+    public void testExpiredWhileDisconnected() throws InterruptedException {
+        PermissionsCacheSegment cache = new PermissionsCacheSegment(10, 50);
+        cache.set(FolderPermission.read(foInfo), Boolean.TRUE);
+        Thread.sleep(100);
+        // Retrieve again if possible
+        assertNull(cache.hasPermission(FolderPermission.read(foInfo), true));
+        // Keep last known permission while disconnected
+        assertEquals(Boolean.TRUE,
+            cache.hasPermission(FolderPermission.read(foInfo), false));
+        assertNull(cache.hasPermission(FolderPermission.admin(foInfo), false));
+    }
+
+    public void testCoalesceFolderRetrievals() throws Exception {
+        final PermissionsCacheSegment cache = new PermissionsCacheSegment();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger retrievals = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            results.add(executor.submit(() -> cache.retrieve(
+                FolderPermission.read(foInfo), () -> {
+                    retrievals.incrementAndGet();
+                    started.countDown();
+                    await(release);
+                    // Bulk result
+                    cache.set(FolderPermission.read(foInfo), Boolean.TRUE);
+                    cache.set(FolderPermission.admin(foInfo), Boolean.FALSE);
+                    return Boolean.TRUE;
+                })));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 6; i++) {
+                final FolderPermission permission = i % 2 == 0
+                    ? FolderPermission.read(foInfo)
+                    : FolderPermission.admin(foInfo);
+                results.add(executor.submit(() -> cache.retrieve(permission,
+                    () -> {
+                        retrievals.incrementAndGet();
+                        return null;
+                    })));
+            }
+
+            // Other folders are not blocked
+            FolderInfo otherFolder = new FolderInfo("other", "0815");
+            assertEquals(Boolean.FALSE, cache.retrieve(
+                FolderPermission.read(otherFolder), () -> Boolean.FALSE));
+            assertEquals(1, retrievals.get());
+
+            // Let the others join the running retrieval
+            Thread.sleep(500);
+            release.countDown();
+            assertEquals(Boolean.TRUE, results.get(0).get(10, TimeUnit.SECONDS));
+            for (int i = 1; i < results.size(); i++) {
+                // Read permissions are granted, admin permissions are not
+                assertEquals(Boolean.valueOf(i % 2 == 1), results.get(i).get(
+                    10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, retrievals.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testFailedRetrieval() {
+        PermissionsCacheSegment cache = new PermissionsCacheSegment();
+        try {
+            cache.retrieve(AdminPermission.INSTANCE, () -> {
+                throw new IllegalStateException("Server down");
+            });
+            fail("Exception not passed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(Boolean.TRUE, cache.retrieve(AdminPermission.INSTANCE,
+            () -> Boolean.TRUE));
+    }
+
+    public void testRefreshAhead() throws InterruptedException {
+        final PermissionsCacheSegment cache = new PermissionsCacheSegment(50,
+            60000);
+        cache.set(AdminPermission.INSTANCE, Boolean.FALSE);
+        List<Runnable> tasks = new ArrayList<>();
+        assertFalse(cache.refreshIfRequired(AdminPermission.INSTANCE,
+            () -> Boolean.TRUE, tasks::add));
+        Thread.sleep(100);
+
+        assertTrue(cache.refreshIfRequired(AdminPermission.INSTANCE, () -> {
+            cache.set(AdminPermission.INSTANCE, Boolean.TRUE);
+            return Boolean.TRUE;
+        }, tasks::add));
+        // Already refreshing
+        assertFalse(cache.refreshIfRequired(AdminPermission.INSTANCE,
+            () -> Boolean.TRUE, tasks::add));
+        assertEquals(1, tasks.size());
+        assertEquals(Boolean.FALSE,
+            cache.hasPermission(AdminPermission.INSTANCE));
+
+        tasks.get(0).run();
+        assertEquals(Boolean.TRUE,
+            cache.hasPermission(AdminPermission.INSTANCE));
+        assertEquals(1, cache.getRefreshes());
+        assertEquals(1, cache.getLatency().getCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
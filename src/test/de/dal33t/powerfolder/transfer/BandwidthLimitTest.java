@@ -28,6 +28,8 @@ import java.io.InputStream;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BandwidthLimitTest extends TestCase {
 
@@ -213,4 +215,81 @@ public class BandwidthLimitTest extends TestCase {
         provider.shutdown();
         assertTrue("Failed to get any stats?", gotStat.get());
     }
+
+    public void testHierarchy() throws InterruptedException {
+        bl.setAvailable(1000);
+        BandwidthLimiter child = new BandwidthLimiter(
+            BandwidthLimiterInfo.LAN_INPUT, bl, null);
+        assertEquals(1000, child.requestBandwidth(5000));
+        assertEquals(0, bl.getAvailable());
+
+        child.returnAvailable(400);
+        assertEquals(400, bl.getAvailable());
+        assertEquals(400, child.requestBandwidth(5000));
+
+        child.setAvailable(100);
+        bl.setAvailable(1000);
+        assertEquals(100, child.requestBandwidth(5000));
+        assertEquals(900, bl.getAvailable());
+    }
+
+    public void testWeightedShares() throws InterruptedException {
+        bl.setAvailable(0);
+        provider.start();
+        provider.setLimitBPS(bl, 100 * 1024);
+        BandwidthLimiter low = new BandwidthLimiter(
+            BandwidthLimiterInfo.LAN_INPUT, bl, () -> 1);
+        BandwidthLimiter high = new BandwidthLimiter(
+            BandwidthLimiterInfo.LAN_INPUT, bl, () -> 4);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong lowBytes = new AtomicLong();
+        AtomicLong highBytes = new AtomicLong();
+        Thread lowThread = new Thread(() -> consume(low, lowBytes, done));
+        Thread highThread = new Thread(() -> consume(high, highBytes, done));
+        lowThread.start();
+        highThread.start();
+
+        Thread.sleep(3000);
+        done.set(true);
+        lowThread.join(2000);
+        highThread.join(2000);
+        provider.shutdown();
+
+        long total = lowBytes.get() + highBytes.get();
+        assertTrue("Exceeded limit: " + total, total <= 5 * 100 * 1024);
+        assertTrue("Unfair shares. low: " + lowBytes + ", high: " + highBytes,
+            highBytes.get() > 2 * lowBytes.get());
+    }
+
+    public void testWeightCached() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger weight = new AtomicInteger(4);
+        BandwidthLimiter child = new BandwidthLimiter(
+            BandwidthLimiterInfo.LAN_INPUT, bl, () -> {
+                calls.incrementAndGet();
+                return weight.get();
+            });
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(4, child.getWeight());
+        }
+        assertEquals(1, calls.get());
+
+        // Recalculated after the period
+        weight.set(2);
+        Thread.sleep(BandwidthProvider.PERIOD + 100);
+        assertEquals(2, child.getWeight());
+        assertEquals(2, calls.get());
+    }
+
+    private static void consume(BandwidthLimiter limiter, AtomicLong bytes,
+        AtomicBoolean done)
+    {
+        try {
+            while (!done.get()) {
+                bytes.addAndGet(limiter.requestBandwidth(1024));
+            }
+        } catch (InterruptedException e) {
+            fail(e.toString());
+        }
+    }
 }
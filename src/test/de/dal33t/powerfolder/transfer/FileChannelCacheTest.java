@@ -0,0 +1,149 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import de.dal33t.powerfolder.util.test.TestHelper;
+import junit.framework.TestCase;
+
+public class FileChannelCacheTest extends TestCase {
+    private FileChannelCache cache;
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Path dir = TestHelper.getTestDir().resolve("FileChannelCacheTest");
+        Files.createDirectories(dir);
+        file = dir.resolve("upload.bin");
+        byte[] content = new byte[200 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        Files.write(file, content);
+        cache = new FileChannelCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.shutdown();
+        super.tearDown();
+    }
+
+    public void testSharedChannel() throws Exception {
+        FileChannel c1 = cache.acquire(file);
+        FileChannel c2 = cache.acquire(file);
+        assertSame(c1, c2);
+        assertEquals(1, cache.size());
+
+        cache.release(c1);
+        assertTrue(c1.isOpen());
+        cache.release(c2);
+        assertFalse(c1.isOpen());
+        assertEquals(0, cache.size());
+
+        FileChannel c3 = cache.acquire(file);
+        assertNotSame(c1, c3);
+        assertTrue(c3.isOpen());
+        cache.shutdown();
+        assertFalse(c3.isOpen());
+    }
+
+    public void testReplacedFile() throws Exception {
+        FileChannel c1 = cache.acquire(file);
+        FileChannel c2 = cache.acquire(file);
+
+        // Replace file on disk. New uploads must read the new version
+        Path tmp = file.resolveSibling("upload.tmp");
+        Files.write(tmp, new byte[10]);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        FileChannel c3 = cache.acquire(file);
+        assertNotSame(c1, c3);
+        assertEquals(10, c3.size());
+        assertEquals(200 * 1024, c1.size());
+
+        // Releases of the old version must not affect the new one
+        cache.release(c1);
+        cache.release(c2);
+        assertFalse(c1.isOpen());
+        assertTrue(c3.isOpen());
+        assertEquals(1, cache.size());
+        cache.release(c3);
+        assertFalse(c3.isOpen());
+        assertEquals(0, cache.size());
+    }
+
+    public void testInterruptedUser() throws Exception {
+        FileChannel c1 = cache.acquire(file);
+        FileChannel c2 = cache.acquire(file);
+        assertSame(c1, c2);
+
+        // Read of an interrupted thread closes the underlying channel
+        Thread.currentThread().interrupt();
+        try {
+            c1.read(ByteBuffer.allocate(100), 0);
+            fail("Interrupted read should fail");
+        } catch (ClosedByInterruptException e) {
+            // OK
+        } finally {
+            Thread.interrupted();
+        }
+
+        // Other users still read through the shared channel
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        assertEquals(100, c2.read(buf, 1000));
+        assertEquals((byte) (1000 % 251), buf.get(0));
+        assertTrue(c2.isOpen());
+        cache.release(c1);
+        cache.release(c2);
+        assertFalse(c2.isOpen());
+    }
+
+    public void testTransferFrom() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(
+            BandwidthLimiterInfo.LAN_OUTPUT);
+        limiter.setAvailable(-1);
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        LimitedOutputStream out = new LimitedOutputStream(limiter, bOut);
+
+        FileChannel channel = cache.acquire(file);
+        out.transferFrom(channel, 1000, 150 * 1024, false);
+        out.transferFrom(channel, 0, 10, true);
+        assertEquals(0, channel.position());
+        cache.release(channel);
+
+        byte[] expected = Files.readAllBytes(file);
+        byte[] written = bOut.toByteArray();
+        assertEquals(150 * 1024 + 10, written.length);
+        assertTrue(Arrays.equals(
+            Arrays.copyOfRange(expected, 1000, 1000 + 150 * 1024),
+            Arrays.copyOfRange(written, 0, 150 * 1024)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 0, 10),
+            Arrays.copyOfRange(written, 150 * 1024, written.length)));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testRecord() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(99));
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50),
+            histogram.getMaxNanos());
+
+        // 100µs is in the bucket up to 128µs
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(128),
+            histogram.getPercentileNanos(50));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(128),
+            histogram.getPercentileNanos(99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50),
+            histogram.getPercentileNanos(100));
+
+        histogram.record(-1);
+        assertEquals(1, histogram.getBuckets()[0]);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+}
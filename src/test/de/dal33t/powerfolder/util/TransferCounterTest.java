@@ -19,40 +19,87 @@
 */
 package de.dal33t.powerfolder.util;
 
-import java.lang.reflect.Field;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.util.TransferCounter;
 
 public class TransferCounterTest extends TestCase {
-    public void testTransferCounter() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException, InterruptedException {
-        System.out.println("testTransferCounter test");
+    public void testTransferCounter() {
         TransferCounter tc = new TransferCounter();
-        Field ac;
-        ac = TransferCounter.class.getDeclaredField("CURRENT_CPS_CALCULATION_PERIOD");
-        ac.setAccessible(true);
-        long period = ac.getLong(tc);
+        assertFalse(tc.isTransferring());
+        assertEquals(0, tc.calculateCurrentCPS(), 0);
 
-        ac = TransferCounter.class.getDeclaredField("counter1Active");
+        tc.startedTransfer(1000);
+        assertTrue(tc.isTransferring());
+        tc.bytesTransferred(10000);
+        assertEquals(20000, tc.calculateCurrentCPS(1500), 0.001);
 
-        ac.setAccessible(true);
-        tc.startedTransfer();
+        // Rate goes down without transfers
+        assertEquals(10000 * 1000 / 1600.0, tc.calculateCurrentCPS(2600),
+            0.001);
+        assertEquals(10000 * 1000 / 2700.0, tc.calculateCurrentCPS(3700),
+            0.001);
+        // Transfer dropped out of the window
+        assertEquals(0, tc.calculateCurrentCPS(20000), 0);
+        assertEquals(10000, tc.getBytesTransferred());
 
-        // Starts out with counter2 active
-        for (int i = 0; i < period / 1000; i++) {
-            tc.calculateCurrentCPS();
-            assertEquals("Counter2 run " + i, false, ac.getBoolean(tc));
-            Thread.sleep(1000);
+        tc.stoppedTransfer();
+        assertFalse(tc.isTransferring());
+        assertEquals(0, tc.calculateCurrentCPS(), 0);
+
+        // Restarts on transfer. First bytes are not counted for the rate
+        tc.bytesTransferred(5000);
+        assertTrue(tc.isTransferring());
+        assertEquals(15000, tc.getBytesTransferred());
+        assertEquals(0, tc.calculateCurrentCPS(), 0);
+    }
+
+    public void testConcurrentTransfers() throws InterruptedException {
+        final TransferCounter tc = new TransferCounter(0, 8 * 100000);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    tc.bytesTransferred(1);
+                }
+            });
+            threads[i].start();
         }
-        // Now the switch should happen
-        tc.calculateCurrentCPS();
-        Thread.sleep(900);
-        tc.calculateCurrentCPS();
-        for (int i = 1; i < period / 1000; i++) {
-            tc.calculateCurrentCPS();
-            assertEquals("Counter1 run " + i, true, ac.getBoolean(tc));
-            Thread.sleep(1000);
+        for (Thread thread : threads) {
+            thread.join();
         }
-        tc.stoppedTransfer();
+        assertEquals(8 * 100000, tc.getBytesTransferred());
+        assertEquals(100, tc.calculateCompletionPercentage(), 0.001);
+
+        TransferCounter.Snapshot snapshot = tc.getSnapshot();
+        assertEquals(8 * 100000, snapshot.getBytesTransferred());
+        assertEquals(8 * 100000, snapshot.getBytesExpected());
+        assertTrue(snapshot.isTransferring());
+    }
+
+    public void testSerialization() throws Exception {
+        TransferCounter tc = new TransferCounter(100, 1000);
+        tc.bytesTransferred(400);
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bOut)) {
+            out.writeObject(tc);
+        }
+        TransferCounter read;
+        try (ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bOut.toByteArray())))
+        {
+            read = (TransferCounter) in.readObject();
+        }
+        assertEquals(400, read.getBytesTransferred());
+        assertEquals(1000, read.getBytesExpected());
+        assertEquals(50, read.calculateCompletionPercentage(), 0.001);
+        assertFalse(read.isTransferring());
+        read.bytesTransferred(500);
+        assertEquals(900, read.getBytesTransferred());
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests matching of file segments in parallel.
+ *
+ * @author sprajc
+ */
+public class MatchResultWorkerTest extends TestCase {
+    private static final int PART_SIZE = 4096;
+
+    private ExecutorService executor;
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newFixedThreadPool(4);
+        file = Files.createTempFile("match", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        Files.deleteIfExists(file);
+        super.tearDown();
+    }
+
+    public void testUnchangedFile() throws Exception {
+        byte[] remote = randomData(1, 1024 * 1024 + 1000);
+        FilePartsRecord record = buildRecord(remote);
+        Files.write(file, remote);
+
+        List<MatchInfo> sequential = new MatchResultWorker(record, file, null)
+            .call();
+        List<MatchInfo> parallel = matchParallel(record);
+        assertEquals(record.getInfos().length, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < parallel.size(); i++) {
+            assertEquals(sequential.get(i).getMatchedPart(), parallel.get(i)
+                .getMatchedPart());
+            assertEquals(sequential.get(i).getMatchedPosition(), parallel
+                .get(i).getMatchedPosition());
+        }
+    }
+
+    public void testModifiedFile() throws Exception {
+        byte[] remote = randomData(2, 1024 * 1024);
+        FilePartsRecord record = buildRecord(remote);
+
+        // Insert some bytes in between, so parts cross the segment borders
+        byte[] local = new byte[remote.length + 3000];
+        Random r = new Random(3);
+        int src = 0;
+        int dst = 0;
+        while (src < remote.length) {
+            int len = Math.min(remote.length - src, 100000);
+            System.arraycopy(remote, src, local, dst, len);
+            src += len;
+            dst += len;
+            if (dst + 200 <= local.length) {
+                for (int i = 0; i < 200; i++) {
+                    local[dst++] = (byte) r.nextInt();
+                }
+            }
+        }
+        local = Arrays.copyOf(local, dst);
+        Files.write(file, local);
+
+        List<MatchInfo> sequential = new MatchResultWorker(record, file, null)
+            .call();
+        List<MatchInfo> parallel = matchParallel(record);
+        assertValid(remote, local, parallel);
+        // At most one part per segment border may be lost
+        assertTrue("Sequential: " + sequential.size() + ", parallel: "
+            + parallel.size(), parallel.size() >= sequential.size() - 4);
+    }
+
+    public void testUnrelatedFile() throws Exception {
+        FilePartsRecord record = buildRecord(randomData(4, 512 * 1024));
+        Files.write(file, randomData(5, 512 * 1024));
+        assertTrue(matchParallel(record).isEmpty());
+    }
+
+    private List<MatchInfo> matchParallel(FilePartsRecord record)
+        throws Exception
+    {
+        MatchResultWorker worker = new MatchResultWorker(record, file, null,
+            executor, 4, 64 * 1024);
+        List<MatchInfo> matches = worker.call();
+        assertTrue(worker.getBytesPerSecond() > 0);
+        return matches;
+    }
+
+    private static void assertValid(byte[] remote, byte[] local,
+        List<MatchInfo> matches)
+    {
+        long matchedUntil = 0;
+        boolean[] matched = new boolean[remote.length / PART_SIZE + 1];
+        for (MatchInfo match : matches) {
+            long pos = match.getMatchedPosition();
+            int index = (int) match.getMatchedPart().getIndex();
+            assertTrue("Overlapping match at " + pos, pos >= matchedUntil);
+            assertFalse("Part matched twice: " + index, matched[index]);
+            matched[index] = true;
+            matchedUntil = pos + PART_SIZE;
+
+            int len = (int) Math.min(PART_SIZE, remote.length - (long) index
+                * PART_SIZE);
+            for (int i = 0; i < len; i++) {
+                assertEquals(remote[index * PART_SIZE + i],
+                    local[(int) pos + i]);
+            }
+        }
+    }
+
+    private static byte[] randomData(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static FilePartsRecord buildRecord(byte[] data) throws Exception {
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"), MessageDigest
+                .getInstance("SHA-256"), PART_SIZE);
+        builder.update(data);
+        return builder.getRecord();
+    }
+}
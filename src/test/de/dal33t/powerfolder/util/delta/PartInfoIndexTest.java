@@ -0,0 +1,83 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the primitive checksum lookup of {@link PartInfoIndex}.
+ *
+ * @author sprajc
+ */
+public class PartInfoIndexTest extends TestCase {
+
+    public void testLookup() {
+        Random r = new Random(42);
+        int nParts = 10000;
+        PartInfo[] infos = new PartInfo[nParts];
+        for (int i = 0; i < nParts; i++) {
+            // Checksums in the Adler32 value range
+            infos[i] = new PartInfo(i, r.nextInt() & 0xffffffffL, new byte[0]);
+        }
+        PartInfoIndex index = new PartInfoIndex(infos);
+        for (PartInfo info : infos) {
+            boolean found = false;
+            for (int i = index.first(info.getChecksum()); i >= 0; i = index
+                .next(i))
+            {
+                assertEquals(info.getChecksum(), index.get(i).getChecksum());
+                found |= index.get(i) == info;
+            }
+            assertTrue("Not found: " + info, found);
+        }
+
+        int hits = 0;
+        for (int i = 0; i < 100000; i++) {
+            long checksum = r.nextInt() & 0xffffffffL;
+            int pos = index.first(checksum);
+            if (pos >= 0) {
+                assertEquals(checksum, index.get(pos).getChecksum());
+                hits++;
+            }
+        }
+        // Random checksums should practically never hit
+        assertTrue("Hits: " + hits, hits < 10);
+    }
+
+    public void testSameChecksumKeepsOrder() {
+        PartInfo[] infos = new PartInfo[]{new PartInfo(0, 0, new byte[0]),
+            new PartInfo(1, 7, new byte[0]), new PartInfo(2, 0, new byte[0]),
+            new PartInfo(3, 0, new byte[0])};
+        PartInfoIndex index = new PartInfoIndex(infos);
+        List<Long> indices = new ArrayList<Long>();
+        for (int i = index.first(0); i >= 0; i = index.next(i)) {
+            indices.add(index.get(i).getIndex());
+        }
+        assertEquals("[0, 2, 3]", indices.toString());
+        assertEquals(1, index.get(index.first(7)).getIndex());
+        assertEquals(-1, index.next(index.first(7)));
+        assertEquals(-1, index.first(8));
+        assertEquals(-1, new PartInfoIndex(new PartInfo[0]).first(0));
+    }
+}
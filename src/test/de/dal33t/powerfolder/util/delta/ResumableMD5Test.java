@@ -0,0 +1,85 @@
+/*
+ * Copyright 2004 - 2016 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link ResumableMD5} against the JDK MD5 implementation.
+ *
+ * @author sprajc
+ */
+public class ResumableMD5Test extends TestCase {
+
+    public void testEmpty() throws Exception {
+        assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(),
+            new ResumableMD5().digest()));
+    }
+
+    public void testRandomUpdates() throws Exception {
+        Random r = new Random(4711);
+        for (int size : new int[]{1, 55, 56, 63, 64, 65, 119, 120, 1000,
+            100000})
+        {
+            byte[] data = new byte[size];
+            r.nextBytes(data);
+            ResumableMD5 md5 = new ResumableMD5();
+            int pos = 0;
+            while (pos < size) {
+                int len = Math.min(size - pos, r.nextInt(200));
+                md5.update(data, pos, len);
+                pos += len;
+            }
+            assertEquals(size, md5.getLength());
+            byte[] expected = MessageDigest.getInstance("MD5").digest(data);
+            assertTrue("Size " + size, Arrays.equals(expected, md5.digest()));
+            // Digest does not alter the state
+            assertTrue("Size " + size, Arrays.equals(expected, md5.digest()));
+        }
+    }
+
+    public void testResumeAfterSerialization() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.update(data, 0, 4321);
+
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bOut);
+        out.writeObject(md5);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+            bOut.toByteArray()));
+        ResumableMD5 resumed = (ResumableMD5) in.readObject();
+
+        assertEquals(4321, resumed.getLength());
+        resumed.update(data, 4321, data.length - 4321);
+        assertTrue(Arrays.equals(MessageDigest.getInstance("MD5").digest(data),
+            resumed.digest()));
+    }
+}
@@ -19,6 +19,10 @@
  */
 package de.dal33t.powerfolder.util.pattern;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.util.Profiling;
 import de.dal33t.powerfolder.util.ProfilingEntry;
@@ -284,4 +288,52 @@ public class PatternMatchTest extends TestCase {
         }
         System.err.println(Profiling.dumpStats());
     }
+
+    public void testPatternMatcher() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (DefaultExcludes exclude : DefaultExcludes.values()) {
+            patterns.add(PatternFactory.createPattern(exclude.getPattern()));
+        }
+        patterns.add(PatternFactory.createPattern("build/*"));
+        patterns.add(PatternFactory.createPattern("src/main/generated*"));
+        patterns.add(PatternFactory.createPattern("docs/readme.txt"));
+        patterns.add(PatternFactory.createPattern("*.bak"));
+        patterns.add(PatternFactory.createPattern("*/cache/*"));
+        patterns.add(PatternFactory.createPattern("src/*.class"));
+        patterns.add(PatternFactory.createPattern("*/target/*"));
+        PatternMatcher matcher = new PatternMatcher(patterns);
+
+        String[] names = {"build/classes/a.class", "Build/x", "build",
+            "src/main/generated/a.java", "src/main/Generated.java",
+            "src/main/gen.java", "docs/README.TXT", "docs/readme.txt.old",
+            "dir/file.BAK", "dir/file.bak2", "x/Cache/y", "cache/y",
+            "src/de/A.class", "src/de/A.classes", "a/b/target/c",
+            "target/c", "Thumbs.db", "dir/thumbs.DB", "dir/~file.tmp",
+            "dir/~$doc.docx", "dir/.~lock.doc#", "dir/.DS_Store",
+            "dir/file.txt", "dir/sub/file.txt", "", "a", "dir/",
+            "dir/sub/*", "build/*", "dir/\u00e4\u00f6\u00fc.part",
+            "dir/\u00e4\u00f6\u00fc.txt"};
+        // Twice: Second round uses the remembered directories.
+        for (int round = 0; round < 2; round++) {
+            for (String name : names) {
+                boolean expected = false;
+                for (Pattern pattern : patterns) {
+                    expected |= pattern.isMatch(name);
+                }
+                assertEquals(name, expected, matcher.isMatch(name));
+            }
+        }
+
+        assertFalse(new PatternMatcher(new ArrayList<Pattern>())
+            .isMatch("dir/file.txt"));
+        // More correct than CompiledPattern, which matches parts greedy.
+        PatternMatcher glob = new PatternMatcher(Collections
+            .singleton(PatternFactory.createPattern("x*.tmp")));
+        assertTrue(glob.isMatch("x.tmp.tmp"));
+        assertFalse(glob.isMatch("x.tmp.txt"));
+        glob = new PatternMatcher(Collections.singleton(PatternFactory
+            .createPattern("a*a")));
+        assertFalse(glob.isMatch("a"));
+        assertTrue(glob.isMatch("aa"));
+    }
 }